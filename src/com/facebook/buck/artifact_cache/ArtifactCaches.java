@@ -354,7 +354,7 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
       }
 
       builder.add(
-          createRetryingArtifactCache(
+          createNetworkArtifactCache(
               cacheEntry,
               buckConfig.getHostToReportToRemoteCacheServer(),
               buckEventBus,
@@ -392,7 +392,8 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
               projectFilesystem,
               cacheDir,
               dirCacheConfig.getCacheReadMode(),
-              dirCacheConfig.getMaxSizeBytes());
+              dirCacheConfig.getMaxSizeBytes(),
+              dirCacheConfig.getIndexEnabled());
 
       if (!buckEventBus.isPresent()) {
         return dirArtifactCache;
@@ -409,7 +410,7 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
     }
   }
 
-  private static ArtifactCache createRetryingArtifactCache(
+  private static ArtifactCache createNetworkArtifactCache(
       HttpCacheEntry cacheDescription,
       String hostToReportToRemote,
       BuckEventBus buckEventBus,
@@ -430,7 +431,19 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
             config,
             factory,
             cacheMode);
-    return new RetryingCacheDecorator(cacheMode, cache, config.getMaxFetchRetries(), buckEventBus);
+    cache =
+        new RetryingCacheDecorator(cacheMode, cache, config.getMaxFetchRetries(), buckEventBus);
+    if (!config.getChunkedCachingEnabled()) {
+      return cache;
+    }
+    return new ChunkedArtifactCacheDecorator(
+        cache,
+        projectFilesystem,
+        buckEventBus,
+        projectFilesystem.getBuckPaths().getBuckOut().resolve("chunks"),
+        Optional.of(config.getChunkStoreMaximumSize()),
+        config.getChunkedCachingMinimumSize(),
+        config.getChunkedCachingMaximumSize());
   }
 
   private static ArtifactCache createHttpArtifactCache(
@@ -0,0 +1,486 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.core.exceptions.HumanReadableException;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.counters.CounterRegistry;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.counters.SamplingCounter;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.Nullable;
+
+/**
+ * Stores large artifacts in a network cache as content-defined chunks, so that artifacts which
+ * only differ in a few bytes from ones stored before only upload and download the chunks that
+ * changed.
+ *
+ * <p>An artifact is split with a {@link ContentDefinedChunker} and each chunk is stored under a
+ * key derived from its content hash. The artifact itself is stored under its rule keys as an empty
+ * payload whose metadata lists its chunks: rulekey -> (metadata, chunk hashes), chunk hash ->
+ * chunk. Before storing, the cache is asked which chunks it already has, and only the others are
+ * uploaded. Chunks are also kept in a local chunk store under buck-out, so that fetching an
+ * artifact only downloads the chunks that are not already on disk.
+ */
+public class ChunkedArtifactCacheDecorator implements ArtifactCache, CacheDecorator {
+
+  @VisibleForTesting static final String METADATA_KEY = "CHUNKED_ARTIFACT_CHUNKS";
+  private static final String CHUNK_KEY_SUFFIX = "cdc0";
+  private static final String COUNTER_CATEGORY = "buck_chunked_cache_stats";
+
+  private static final int MINIMUM_CHUNK_SIZE = 16 * 1024;
+  private static final int AVERAGE_CHUNK_SIZE = 64 * 1024;
+  private static final int MAXIMUM_CHUNK_SIZE = 256 * 1024;
+
+  private static final Logger LOG = Logger.get(ChunkedArtifactCacheDecorator.class);
+
+  private final ArtifactCache delegate;
+  private final ProjectFilesystem projectFilesystem;
+  private final Path chunkStoreDir;
+  private final Optional<Long> maximumChunkStoreSize;
+  private final long minimumChunkedArtifactSize;
+  private final Optional<Long> maximumChunkedArtifactSize;
+  private final ContentDefinedChunker chunker =
+      new ContentDefinedChunker(MINIMUM_CHUNK_SIZE, AVERAGE_CHUNK_SIZE, MAXIMUM_CHUNK_SIZE);
+
+  private final IntegerCounter chunksFetched;
+  private final SamplingCounter chunkBytesFetched;
+  private final IntegerCounter localChunkHits;
+  private final IntegerCounter chunkUploadsSkipped;
+
+  // Only created once a chunked artifact is stored or fetched.
+  @Nullable private DirArtifactCache chunkStore;
+
+  public ChunkedArtifactCacheDecorator(
+      ArtifactCache delegate,
+      ProjectFilesystem projectFilesystem,
+      BuckEventBus buckEventBus,
+      Path chunkStoreDir,
+      Optional<Long> maximumChunkStoreSize,
+      long minimumChunkedArtifactSize,
+      Optional<Long> maximumChunkedArtifactSize) {
+    this.delegate = delegate;
+    this.projectFilesystem = projectFilesystem;
+    this.chunkStoreDir = chunkStoreDir;
+    this.maximumChunkStoreSize = maximumChunkStoreSize;
+    this.minimumChunkedArtifactSize = minimumChunkedArtifactSize;
+    this.maximumChunkedArtifactSize = maximumChunkedArtifactSize;
+
+    chunksFetched = new IntegerCounter(COUNTER_CATEGORY, "chunks_fetched", ImmutableMap.of());
+    chunkBytesFetched =
+        new SamplingCounter(COUNTER_CATEGORY, "chunk_bytes_fetched", ImmutableMap.of());
+    localChunkHits = new IntegerCounter(COUNTER_CATEGORY, "local_chunk_hits", ImmutableMap.of());
+    chunkUploadsSkipped =
+        new IntegerCounter(COUNTER_CATEGORY, "chunk_uploads_skipped", ImmutableMap.of());
+    buckEventBus.post(
+        new CounterRegistry.AsyncCounterRegistrationEvent(
+            ImmutableList.of(
+                chunksFetched, chunkBytesFetched, localChunkHits, chunkUploadsSkipped)));
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+    return Futures.transformAsync(
+        delegate.fetchAsync(target, ruleKey, output),
+        (CacheResult fetchResult) -> {
+          if (!fetchResult.getType().isSuccess()
+              || !fetchResult.getMetadata().containsKey(METADATA_KEY)) {
+            return Futures.immediateFuture(fetchResult);
+          }
+          ImmutableList<RuleKey> chunks =
+              Splitter.on(',')
+                  .splitToList(fetchResult.getMetadata().get(METADATA_KEY))
+                  .stream()
+                  .map(RuleKey::new)
+                  .collect(ImmutableList.toImmutableList());
+          LOG.verbose("Found a chunked artifact for %s with %d chunks.", ruleKey, chunks.size());
+          return fetchChunks(target, fetchResult, chunks, output);
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<CacheResult> fetchChunks(
+      @Nullable BuildTarget target,
+      CacheResult manifestResult,
+      ImmutableList<RuleKey> chunks,
+      LazyPath output) {
+    DirArtifactCache store;
+    ImmutableMap<RuleKey, CacheResult> local;
+    try {
+      store = getChunkStore();
+      local = Futures.getUnchecked(store.multiContainsAsync(ImmutableSet.copyOf(chunks)));
+    } catch (HumanReadableException e) {
+      return Futures.immediateFuture(errorResult(manifestResult, e.getMessage()));
+    }
+
+    List<ListenableFuture<CacheResult>> fetches = new ArrayList<>();
+    for (Map.Entry<RuleKey, CacheResult> chunk : local.entrySet()) {
+      if (chunk.getValue().getType().isSuccess()) {
+        localChunkHits.inc();
+      } else {
+        fetches.add(fetchChunk(target, manifestResult, chunk.getKey(), store));
+      }
+    }
+
+    return Futures.transform(
+        Futures.allAsList(fetches),
+        results -> {
+          long fetchedBytes = 0;
+          for (CacheResult result : results) {
+            if (!result.getType().isSuccess()) {
+              LOG.verbose("Missed a chunk lookup.");
+              return result;
+            }
+            fetchedBytes += result.getArtifactSizeBytes();
+          }
+
+          try (InputStream artifact = new ChunksInputStream(store, chunks.iterator())) {
+            if (output instanceof StreamingLazyPath) {
+              ((StreamingLazyPath) output).consume(artifact);
+            } else {
+              try (OutputStream out = projectFilesystem.newFileOutputStream(output.get())) {
+                ByteStreams.copy(artifact, out);
+              }
+            }
+          } catch (IOException e) {
+            LOG.warn(e, "Failed to assemble chunked artifact to %s", output);
+            return errorResult(
+                manifestResult, String.format("%s: %s", e.getClass(), e.getMessage()));
+          }
+
+          // The chunk list was not part of the metadata stored for the artifact.
+          ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
+          for (Map.Entry<String, String> entry : manifestResult.getMetadata().entrySet()) {
+            if (!entry.getKey().equals(METADATA_KEY)) {
+              metadata.put(entry);
+            }
+          }
+          return manifestResult.withMetadata(metadata.build()).withArtifactSizeBytes(fetchedBytes);
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<CacheResult> fetchChunk(
+      @Nullable BuildTarget target,
+      CacheResult manifestResult,
+      RuleKey chunkKey,
+      DirArtifactCache store) {
+    Path tmp;
+    try {
+      tmp = createTempFile("chunk");
+    } catch (IOException e) {
+      return Futures.immediateFuture(
+          errorResult(manifestResult, String.format("%s: %s", e.getClass(), e.getMessage())));
+    }
+    return Futures.transform(
+        delegate.fetchAsync(target, chunkKey, LazyPath.ofInstance(tmp)),
+        (CacheResult result) -> {
+          try {
+            if (!result.getType().isSuccess()) {
+              return result;
+            }
+            // Chunks outlive the artifact they were fetched for, so make sure they are intact.
+            String contentKey = projectFilesystem.computeSha1(tmp) + CHUNK_KEY_SUFFIX;
+            if (!contentKey.equals(chunkKey.toString())) {
+              return errorResult(
+                  result, String.format("Chunk %s has the content hash %s", chunkKey, contentKey));
+            }
+            chunksFetched.inc();
+            chunkBytesFetched.addSample(result.getArtifactSizeBytes());
+            store.store(
+                ArtifactInfo.builder().addRuleKeys(chunkKey).build(),
+                BorrowablePath.borrowablePath(tmp));
+            return result;
+          } catch (IOException e) {
+            return errorResult(result, String.format("%s: %s", e.getClass(), e.getMessage()));
+          } finally {
+            deleteTempFile(tmp);
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  @Override
+  public void skipPendingAndFutureAsyncFetches() {
+    delegate.skipPendingAndFutureAsyncFetches();
+  }
+
+  @Override
+  public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+    if (!getCacheReadMode().isWritable()) {
+      return delegate.store(info, output);
+    }
+    try {
+      long fileSize = projectFilesystem.getFileSize(output.getPath());
+      if (fileSize < minimumChunkedArtifactSize
+          || (maximumChunkedArtifactSize.isPresent()
+              && fileSize > maximumChunkedArtifactSize.get())) {
+        return delegate.store(info, output);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot get file size of " + output.getPath());
+    }
+
+    // Write out each distinct chunk, so that it can be uploaded and then kept locally.
+    List<RuleKey> chunks = new ArrayList<>();
+    Map<RuleKey, Path> chunkFiles = new LinkedHashMap<>();
+    Path manifestFile;
+    try {
+      try (InputStream in = projectFilesystem.newFileInputStream(output.getPath())) {
+        chunker.split(
+            in,
+            (buffer, length) -> {
+              RuleKey chunkKey =
+                  new RuleKey(
+                      Hashing.sha1().hashBytes(buffer, 0, length).toString() + CHUNK_KEY_SUFFIX);
+              chunks.add(chunkKey);
+              if (!chunkFiles.containsKey(chunkKey)) {
+                Path chunkFile = createTempFile("chunk");
+                chunkFiles.put(chunkKey, chunkFile);
+                try (OutputStream out = projectFilesystem.newFileOutputStream(chunkFile)) {
+                  out.write(buffer, 0, length);
+                }
+              }
+            });
+      }
+      manifestFile = createTempFile("manifest");
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to split %s into chunks, storing it whole.", output.getPath());
+      chunkFiles.values().forEach(this::deleteTempFile);
+      return delegate.store(info, output);
+    }
+
+    // Chunks must be uploaded before the artifact referring to them, otherwise other builders
+    // could find the artifact but not all of its chunks.
+    ListenableFuture<Void> chunkUploads =
+        Futures.transformAsync(
+            Futures.catching(
+                delegate.multiContainsAsync(ImmutableSet.copyOf(chunkFiles.keySet())),
+                Exception.class,
+                e -> ImmutableMap.<RuleKey, CacheResult>of(),
+                MoreExecutors.directExecutor()),
+            contained -> {
+              List<ListenableFuture<Void>> uploads = new ArrayList<>();
+              for (Map.Entry<RuleKey, Path> chunk : chunkFiles.entrySet()) {
+                CacheResult result = contained.get(chunk.getKey());
+                if (result != null && result.getType().isSuccess()) {
+                  chunkUploadsSkipped.inc();
+                  continue;
+                }
+                uploads.add(
+                    delegate.store(
+                        ArtifactInfo.builder().addRuleKeys(chunk.getKey()).build(),
+                        BorrowablePath.notBorrowablePath(chunk.getValue())));
+              }
+              // Fail if any chunk failed to upload, but only once all uploads are done, as the
+              // chunk files are deleted afterwards.
+              return Futures.whenAllComplete(uploads)
+                  .<Void>callAsync(
+                      () ->
+                          Futures.transform(
+                              Futures.allAsList(uploads),
+                              ignored -> null,
+                              MoreExecutors.directExecutor()),
+                      MoreExecutors.directExecutor());
+            },
+            MoreExecutors.directExecutor());
+
+    ListenableFuture<Void> manifestUpload =
+        Futures.transformAsync(
+            chunkUploads,
+            ignored -> {
+              keepChunks(chunkFiles);
+              return delegate.store(
+                  ArtifactInfo.builder()
+                      .from(info)
+                      .setMetadata(
+                          ImmutableMap.<String, String>builder()
+                              .putAll(info.getMetadata())
+                              .put(METADATA_KEY, Joiner.on(',').join(chunks))
+                              .build())
+                      .build(),
+                  BorrowablePath.notBorrowablePath(manifestFile));
+            },
+            MoreExecutors.directExecutor());
+    manifestUpload.addListener(
+        () -> {
+          chunkFiles.values().forEach(this::deleteTempFile);
+          deleteTempFile(manifestFile);
+        },
+        MoreExecutors.directExecutor());
+    return manifestUpload;
+  }
+
+  /** Moves the given chunks into the local chunk store, so that later fetches can reuse them. */
+  private void keepChunks(Map<RuleKey, Path> chunkFiles) {
+    DirArtifactCache store;
+    try {
+      store = getChunkStore();
+    } catch (HumanReadableException e) {
+      LOG.warn(e, "Not keeping stored chunks locally.");
+      return;
+    }
+    for (Map.Entry<RuleKey, Path> chunk : chunkFiles.entrySet()) {
+      store.store(
+          ArtifactInfo.builder().addRuleKeys(chunk.getKey()).build(),
+          BorrowablePath.borrowablePath(chunk.getValue()));
+    }
+  }
+
+  /** Contains is supposed to be best-effort, but super-fast => Assume the chunks are present. */
+  @Override
+  public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+      ImmutableSet<RuleKey> ruleKeys) {
+    return delegate.multiContainsAsync(ruleKeys);
+  }
+
+  @Override
+  public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+    // Only the artifacts are deleted, as their chunks may be shared with other artifacts.
+    return delegate.deleteAsync(ruleKeys);
+  }
+
+  @Override
+  public ArtifactCache getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public CacheReadMode getCacheReadMode() {
+    return delegate.getCacheReadMode();
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+    DirArtifactCache store;
+    synchronized (this) {
+      store = chunkStore;
+    }
+    if (store != null) {
+      store.close();
+    }
+  }
+
+  private synchronized DirArtifactCache getChunkStore() {
+    if (chunkStore == null) {
+      try {
+        chunkStore =
+            new DirArtifactCache(
+                "chunks",
+                projectFilesystem,
+                chunkStoreDir,
+                CacheReadMode.READWRITE,
+                maximumChunkStoreSize);
+      } catch (IOException e) {
+        throw new HumanReadableException(
+            e, "Failure initializing artifact chunk store: %s", chunkStoreDir);
+      }
+    }
+    return chunkStore;
+  }
+
+  private Path createTempFile(String prefix) throws IOException {
+    Path tmpDir = projectFilesystem.getBuckPaths().getTmpDir();
+    projectFilesystem.mkdirs(tmpDir);
+    return projectFilesystem.resolve(projectFilesystem.createTempFile(tmpDir, prefix, ".tmp"));
+  }
+
+  private void deleteTempFile(Path path) {
+    try {
+      projectFilesystem.deleteFileAtPathIfExists(path);
+    } catch (IOException e) {
+      LOG.debug(e, "Exception when deleting temp file %s.", path);
+    }
+  }
+
+  private static CacheResult errorResult(CacheResult result, String error) {
+    return CacheResult.error(result.getCacheSource(), result.cacheMode().get(), error);
+  }
+
+  /** Reads the given chunks from the chunk store one after the other. */
+  private static class ChunksInputStream extends InputStream {
+    private final DirArtifactCache store;
+    private final Iterator<RuleKey> chunks;
+    @Nullable private InputStream current;
+
+    private ChunksInputStream(DirArtifactCache store, Iterator<RuleKey> chunks) {
+      this.store = store;
+      this.chunks = chunks;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (true) {
+        if (current == null) {
+          if (!chunks.hasNext()) {
+            return -1;
+          }
+          current = store.openArtifact(chunks.next());
+        }
+        int read = current.read(b, off, len);
+        if (read != -1) {
+          return read;
+        }
+        current.close();
+        current = null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (current != null) {
+        current.close();
+        current = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks whose boundaries depend on the content around them rather than on
+ * their offset, so that inserting or removing bytes only changes the chunks around the edit.
+ *
+ * <p>Boundaries are found with a gear rolling hash over the last 64 bytes: a chunk ends where the
+ * top bits of the hash are all zero, once it is at least the minimum size, or when it reaches the
+ * maximum size.
+ */
+class ContentDefinedChunker {
+
+  /** Receives the chunks of a stream, in order. */
+  interface ChunkConsumer {
+    /** The buffer is reused for the next chunk, so it must be copied if it is kept. */
+    void accept(byte[] buffer, int length) throws IOException;
+  }
+
+  // The table must never change, as chunk boundaries, and hence chunk keys, are derived from it.
+  private static final long[] GEAR = new long[256];
+
+  static {
+    Random random = new Random(0x6275636b);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  private final int minimumSize;
+  private final int maximumSize;
+  private final long boundaryMask;
+
+  /**
+   * @param minimumSize the size below which chunks are never split.
+   * @param averageSize the average number of bytes past the minimum size before a chunk is split.
+   *     Must be a power of two.
+   * @param maximumSize the size at which chunks are always split.
+   */
+  ContentDefinedChunker(int minimumSize, int averageSize, int maximumSize) {
+    Preconditions.checkArgument(Integer.bitCount(averageSize) == 1);
+    Preconditions.checkArgument(Long.SIZE <= minimumSize && minimumSize <= maximumSize);
+    this.minimumSize = minimumSize;
+    this.maximumSize = maximumSize;
+    int bits = Integer.numberOfTrailingZeros(averageSize);
+    this.boundaryMask = bits == 0 ? 0 : -1L << (Long.SIZE - bits);
+  }
+
+  void split(InputStream input, ChunkConsumer consumer) throws IOException {
+    byte[] chunk = new byte[maximumSize];
+    byte[] buffer = new byte[64 * 1024];
+    // Every byte is shifted out of the hash after 64 more bytes, so bytes further than that from
+    // the minimum size cannot affect any boundary and are not hashed.
+    int hashFrom = minimumSize - Long.SIZE;
+    int length = 0;
+    long hash = 0;
+    int read;
+    while ((read = input.read(buffer)) != -1) {
+      for (int i = 0; i < read; i++) {
+        byte b = buffer[i];
+        chunk[length++] = b;
+        if (length > hashFrom) {
+          hash = (hash << 1) + GEAR[b & 0xff];
+          if ((length >= minimumSize && (hash & boundaryMask) == 0) || length == maximumSize) {
+            consumer.accept(chunk, length);
+            length = 0;
+            hash = 0;
+          }
+        }
+      }
+    }
+    if (length > 0) {
+      consumer.accept(chunk, length);
+    }
+  }
+}
@@ -38,6 +38,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
@@ -69,6 +70,7 @@ public class DirArtifactCache implements ArtifactCache {
   private final Path cacheDir;
   private final Optional<Long> maxCacheSizeBytes;
   private final CacheReadMode cacheReadMode;
+  private final Optional<DirArtifactCacheIndex> index;
   private long bytesSinceLastDeleteOldFiles;
 
   public DirArtifactCache(
@@ -78,6 +80,22 @@ public class DirArtifactCache implements ArtifactCache {
       CacheReadMode cacheReadMode,
       Optional<Long> maxCacheSizeBytes)
       throws IOException {
+    this(name, filesystem, cacheDir, cacheReadMode, maxCacheSizeBytes, false);
+  }
+
+  /**
+   * @param indexed whether to keep a {@link DirArtifactCacheIndex} of the cache contents. When
+   *     set, the cache is trimmed incrementally based on the index instead of by walking the whole
+   *     cache directory.
+   */
+  public DirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      CacheReadMode cacheReadMode,
+      Optional<Long> maxCacheSizeBytes,
+      boolean indexed)
+      throws IOException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
@@ -89,6 +107,15 @@ public class DirArtifactCache implements ArtifactCache {
     if (!filesystem.isDirectory(cacheDir)) {
       filesystem.mkdirs(cacheDir);
     }
+
+    this.index =
+        indexed
+            ? Optional.of(
+                DirArtifactCacheIndex.load(
+                    filesystem.resolve(cacheDir),
+                    filesystem.resolve(getPathToIndexFolder()),
+                    filesystem.resolve(getPathToTempFolder())))
+            : Optional.empty();
   }
 
   @Override
@@ -97,6 +124,18 @@ public class DirArtifactCache implements ArtifactCache {
     return Futures.immediateFuture(fetch(ruleKey, output));
   }
 
+  /**
+   * Opens the artifact stored for the given rule key in place, without copying it out of the cache.
+   *
+   * @throws NoSuchFileException if there is no such artifact.
+   */
+  InputStream openArtifact(RuleKey ruleKey) throws IOException {
+    InputStream artifact =
+        filesystem.newFileInputStream(getPathForRuleKey(ruleKey, Optional.empty()));
+    index.ifPresent(idx -> idx.touch(ruleKey.toString()));
+    return artifact;
+  }
+
   @Override
   public void skipPendingAndFutureAsyncFetches() {
     // Async requests are not supported by DirArtifactCache, so do nothing
@@ -126,7 +165,10 @@ public class DirArtifactCache implements ArtifactCache {
 
       result =
           CacheResult.hit(name, CACHE_MODE, metadata.build(), filesystem.getFileSize(output.get()));
+      index.ifPresent(idx -> idx.touch(ruleKey.toString()));
     } catch (NoSuchFileException e) {
+      // The entry may have been deleted behind our back, make sure we stop accounting for it.
+      index.ifPresent(idx -> idx.remove(ruleKey.toString()));
       result = CacheResult.miss();
     } catch (IOException e) {
       LOG.warn(e, "Artifact fetch(%s, %s) error", ruleKey, output);
@@ -155,6 +197,13 @@ public class DirArtifactCache implements ArtifactCache {
         Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
 
         if (filesystem.exists(artifactPath) && filesystem.exists(metadataPath)) {
+          if (index.isPresent() && !index.get().contains(ruleKey.toString())) {
+            index
+                .get()
+                .store(
+                    ruleKey.toString(),
+                    filesystem.getFileSize(artifactPath) + filesystem.getFileSize(metadataPath));
+          }
           continue;
         }
 
@@ -192,13 +241,27 @@ public class DirArtifactCache implements ArtifactCache {
         } finally {
           filesystem.deleteFileAtPathIfExists(tmp);
         }
+
+        if (index.isPresent()) {
+          index
+              .get()
+              .store(
+                  ruleKey.toString(),
+                  filesystem.getFileSize(artifactPath) + filesystem.getFileSize(metadataPath));
+        }
       }
 
     } catch (IOException e) {
       LOG.warn(e, "Artifact store(%s, %s) error", info.getRuleKeys(), output);
     }
 
-    if (maxCacheSizeBytes.isPresent()
+    if (index.isPresent()) {
+      // The index knows the exact size of the cache, so trim as soon as it goes over the limit.
+      if (maxCacheSizeBytes.isPresent()
+          && index.get().getTotalBytes() > maxCacheSizeBytes.get()) {
+        deleteOldFiles();
+      }
+    } else if (maxCacheSizeBytes.isPresent()
         && bytesSinceLastDeleteOldFiles
             > (maxCacheSizeBytes.get() * STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER)) {
       bytesSinceLastDeleteOldFiles = 0L;
@@ -234,6 +297,7 @@ public class DirArtifactCache implements ArtifactCache {
   private void deleteSync(RuleKey ruleKey) {
     Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
     Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+    index.ifPresent(idx -> idx.remove(ruleKey.toString()));
 
     try {
       filesystem.deleteFileAtPathIfExists(metadataPath);
@@ -258,6 +322,10 @@ public class DirArtifactCache implements ArtifactCache {
     return cacheDir.resolve("tmp");
   }
 
+  private Path getPathToIndexFolder() {
+    return cacheDir.resolve("index");
+  }
+
   private Path getPreparedTempFolder() throws IOException {
     Path tmp = getPathToTempFolder();
     if (!filesystem.exists(tmp)) {
@@ -266,22 +334,30 @@ public class DirArtifactCache implements ArtifactCache {
     return tmp;
   }
 
-  private ImmutableList<String> subfolders(RuleKey ruleKey) {
-    if (ruleKey.toString().length() < 4) {
+  private ImmutableList<String> subfolders(String ruleKey) {
+    if (ruleKey.length() < 4) {
       return ImmutableList.of();
     }
-    String first = ruleKey.toString().substring(0, 2);
-    String second = ruleKey.toString().substring(2, 4);
+    String first = ruleKey.substring(0, 2);
+    String second = ruleKey.substring(2, 4);
     return ImmutableList.of(first, second);
   }
 
   @VisibleForTesting
   Path getPathForRuleKey(RuleKey ruleKey, Optional<String> extension) {
+    return getPathForRuleKey(ruleKey.toString(), extension);
+  }
+
+  private Path getPathForRuleKey(String ruleKey, Optional<String> extension) {
     return getParentDirForRuleKey(ruleKey).resolve(ruleKey + extension.orElse(""));
   }
 
   @VisibleForTesting
   Path getParentDirForRuleKey(RuleKey ruleKey) {
+    return getParentDirForRuleKey(ruleKey.toString());
+  }
+
+  private Path getParentDirForRuleKey(String ruleKey) {
     ImmutableList<String> folders = subfolders(ruleKey);
     Path result = cacheDir;
     for (String f : folders) {
@@ -315,6 +391,7 @@ public class DirArtifactCache implements ArtifactCache {
     if (bytesSinceLastDeleteOldFiles > 0) {
       deleteOldFiles();
     }
+    index.ifPresent(DirArtifactCacheIndex::close);
   }
 
   /** Deletes files that haven't been accessed recently from the directory cache. */
@@ -324,6 +401,11 @@ public class DirArtifactCache implements ArtifactCache {
       return;
     }
 
+    if (index.isPresent()) {
+      deleteLeastRecentlyUsedEntries(index.get());
+      return;
+    }
+
     Path cacheDirInFs = filesystem.resolve(cacheDir);
     try {
       synchronized (this) {
@@ -334,10 +416,33 @@ public class DirArtifactCache implements ArtifactCache {
     }
   }
 
+  /**
+   * Evicts entries based on the index. Unlike the {@link DirectoryCleaner} this only touches the
+   * files of the entries that are evicted.
+   */
+  private void deleteLeastRecentlyUsedEntries(DirArtifactCacheIndex index) {
+    if (index.getTotalBytes() <= maxCacheSizeBytes.get()) {
+      return;
+    }
+    ImmutableList<String> evicted =
+        index.evict((long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO));
+    for (String ruleKey : evicted) {
+      try {
+        filesystem.deleteFileAtPathIfExists(getPathForRuleKey(ruleKey, Optional.of(".metadata")));
+        filesystem.deleteFileAtPathIfExists(getPathForRuleKey(ruleKey, Optional.empty()));
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to delete evicted artifact for rule key [%s].", ruleKey);
+      }
+    }
+    index.flush();
+    LOG.debug("Evicted %d entries from dir cache %s.", evicted.size(), cacheDir);
+  }
+
   @VisibleForTesting
   List<Path> getAllFilesInCache() {
     List<Path> allFiles = new ArrayList<>();
     Path tempFolderPath = getPathToTempFolder();
+    Path indexFolderPath = filesystem.resolve(getPathToIndexFolder());
     try {
       Files.walkFileTree(
           filesystem.resolve(cacheDir),
@@ -349,7 +454,7 @@ public class DirArtifactCache implements ArtifactCache {
             public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
                 throws IOException {
               // do not work with files in temp folder as they will be moved later
-              if (dir.equals(tempFolderPath)) {
+              if (dir.equals(tempFolderPath) || dir.equals(indexFolderPath)) {
                 return FileVisitResult.SKIP_SUBTREE;
               }
               return super.preVisitDirectory(dir, attrs);
@@ -0,0 +1,657 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Persistent index of the entries stored in a {@link DirArtifactCache}.
+ *
+ * <p>The index tracks the on-disk size and the last access of every rule key in the cache, so that
+ * the cache can be trimmed without walking the whole cache directory. Entries are spread over a
+ * fixed number of shards, each of which keeps its entries in access order. Evicting an entry only
+ * needs to look at the least recently used entry of every shard, so a trim costs O(evicted
+ * entries).
+ *
+ * <p>Every mutation is recorded in a journal that lives next to the cache. When the journal is
+ * missing or can't be read, the index is rebuilt once from the contents of the cache directory.
+ *
+ * <p>Several processes may use the same cache directory. Records are buffered and appended to the
+ * journal while holding a file lock, and the records other processes appended since the last write
+ * are applied to the index first. Compaction rewrites the journal under the same lock and bumps the
+ * generation in its header, so that the other processes reload the index from the new journal.
+ * Records of other processes count as more recent than the ones this index has not written yet, so
+ * the access order across processes is only as precise as the flushes.
+ */
+public class DirArtifactCacheIndex {
+
+  private static final Logger LOG = Logger.get(DirArtifactCacheIndex.class);
+
+  private static final int MAGIC = 0xB0C4D1C0;
+  private static final int VERSION = 2;
+  // Magic, version and generation.
+  private static final int HEADER_SIZE = 16;
+
+  private static final byte OP_STORE = 'S';
+  private static final byte OP_ACCESS = 'A';
+  private static final byte OP_REMOVE = 'R';
+
+  private static final int NUM_SHARDS = 16;
+  // Compact the journal when it holds this many records more than there are live entries.
+  private static final int MIN_STALE_RECORDS_TO_COMPACT = 10000;
+  // Write buffered records to the journal once they take this many bytes.
+  private static final int MAX_PENDING_BYTES = 64 * 1024;
+
+  private static final String JOURNAL_FILE_NAME = "journal";
+  private static final String LOCK_FILE_NAME = "journal.lock";
+  private static final String METADATA_EXTENSION = ".metadata";
+
+  // File locks are held by the whole process, so indexes of the same directory in this process
+  // also need to exclude each other.
+  private static final ConcurrentMap<Path, Object> JOURNAL_LOCKS = new ConcurrentHashMap<>();
+
+  private final Path indexDir;
+  private final Object journalLock;
+  private final Shard[] shards;
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicLong totalBytes = new AtomicLong();
+
+  @GuardedBy("this")
+  private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+  @GuardedBy("this")
+  private final DataOutputStream pendingOut = new DataOutputStream(pending);
+
+  @GuardedBy("this")
+  private int pendingRecords;
+
+  @GuardedBy("this")
+  private boolean persistent = true;
+
+  /** Generation of the journal that this index has read. */
+  @GuardedBy("this")
+  private long generation;
+
+  /** Offset up to which the records of the journal have been applied to this index. */
+  @GuardedBy("this")
+  private long journalPosition;
+
+  @GuardedBy("this")
+  private long journalRecords;
+
+  private DirArtifactCacheIndex(Path indexDir) {
+    this.indexDir = indexDir;
+    this.journalLock =
+        JOURNAL_LOCKS.computeIfAbsent(indexDir.toAbsolutePath().normalize(), key -> new Object());
+    this.shards = new Shard[NUM_SHARDS];
+    for (int i = 0; i < NUM_SHARDS; i++) {
+      shards[i] = new Shard();
+    }
+  }
+
+  /**
+   * Loads the index stored in {@code indexDir}, rebuilding it from the files under {@code
+   * cacheDir} if there is no usable journal.
+   *
+   * @param cacheDir absolute path to the root of the dir cache.
+   * @param indexDir absolute path to the directory holding the index journal. Files under it and
+   *     under {@code tmpDir} are never considered part of the cache.
+   * @param tmpDir absolute path to the directory the cache uses for in-flight writes.
+   */
+  public static DirArtifactCacheIndex load(Path cacheDir, Path indexDir, Path tmpDir)
+      throws IOException {
+    Files.createDirectories(indexDir);
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex(indexDir);
+    synchronized (index) {
+      index.withJournalLock(() -> index.loadJournal(cacheDir, tmpDir));
+    }
+    return index;
+  }
+
+  /** Records that {@code key} has been stored in the cache and takes {@code sizeBytes} on disk. */
+  public synchronized void store(String key, long sizeBytes) {
+    long seq = sequence.incrementAndGet();
+    Entry previous = getShard(key).put(key, new Entry(sizeBytes, seq));
+    totalBytes.addAndGet(sizeBytes - (previous == null ? 0 : previous.sizeBytes));
+    appendRecord(OP_STORE, key, sizeBytes, seq);
+  }
+
+  /** Records a cache hit on {@code key}. Unknown keys are ignored. */
+  public synchronized void touch(String key) {
+    long seq = sequence.incrementAndGet();
+    if (getShard(key).touch(key, seq)) {
+      appendRecord(OP_ACCESS, key, 0, seq);
+    }
+  }
+
+  /** Forgets about {@code key}, e.g. because its files were deleted. */
+  public synchronized void remove(String key) {
+    Entry previous = getShard(key).remove(key);
+    if (previous != null) {
+      totalBytes.addAndGet(-previous.sizeBytes);
+      appendRecord(OP_REMOVE, key, 0, sequence.incrementAndGet());
+    }
+  }
+
+  public boolean contains(String key) {
+    return getShard(key).get(key) != null;
+  }
+
+  public long getTotalBytes() {
+    return totalBytes.get();
+  }
+
+  public int size() {
+    int size = 0;
+    for (Shard shard : shards) {
+      size += shard.size();
+    }
+    return size;
+  }
+
+  /**
+   * Removes least recently used entries from the index until at most {@code maxBytesAfterEviction}
+   * bytes are left.
+   *
+   * @return the keys of the removed entries, least recently used first. The caller is responsible
+   *     for deleting their files.
+   */
+  public synchronized ImmutableList<String> evict(long maxBytesAfterEviction) {
+    ImmutableList.Builder<String> evicted = ImmutableList.builder();
+    while (totalBytes.get() > maxBytesAfterEviction) {
+      Shard oldestShard = null;
+      long oldestSeq = Long.MAX_VALUE;
+      for (Shard shard : shards) {
+        long seq = shard.getEldestSequence();
+        if (seq < oldestSeq) {
+          oldestSeq = seq;
+          oldestShard = shard;
+        }
+      }
+      if (oldestShard == null) {
+        break;
+      }
+      Map.Entry<String, Entry> removed = oldestShard.removeEldest(oldestSeq);
+      if (removed == null) {
+        // Raced with a concurrent access to that entry, look again.
+        continue;
+      }
+      totalBytes.addAndGet(-removed.getValue().sizeBytes);
+      appendRecord(OP_REMOVE, removed.getKey(), 0, sequence.incrementAndGet());
+      evicted.add(removed.getKey());
+    }
+    return evicted.build();
+  }
+
+  /**
+   * Writes pending journal records to disk, and applies the records other processes wrote since
+   * the last flush.
+   */
+  public synchronized void flush() {
+    if (!persistent) {
+      return;
+    }
+    try {
+      withJournalLock(
+          () -> {
+            syncJournal();
+            if (needsCompaction(journalRecords)) {
+              compact();
+            }
+          });
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to write dir cache index journal, disabling persistence.");
+      disablePersistence();
+    }
+  }
+
+  /** Rewrites the journal so it only contains the live entries, and stops writing to it. */
+  public synchronized void close() {
+    if (!persistent) {
+      return;
+    }
+    try {
+      withJournalLock(
+          () -> {
+            syncJournal();
+            compact();
+          });
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to compact dir cache index journal.");
+    }
+    disablePersistence();
+  }
+
+  @VisibleForTesting
+  Path getJournalPath() {
+    return indexDir.resolve(JOURNAL_FILE_NAME);
+  }
+
+  private Shard getShard(String key) {
+    return shards[(key.hashCode() & Integer.MAX_VALUE) % NUM_SHARDS];
+  }
+
+  private void clear() {
+    for (Shard shard : shards) {
+      shard.clear();
+    }
+    totalBytes.set(0);
+    sequence.set(0);
+  }
+
+  @GuardedBy("this")
+  private void appendRecord(byte op, String key, long sizeBytes, long seq) {
+    if (!persistent) {
+      return;
+    }
+    try {
+      writeRecord(pendingOut, op, key, sizeBytes, seq);
+      pendingRecords++;
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to record %s in dir cache index journal, disabling persistence.", key);
+      disablePersistence();
+      return;
+    }
+    if (pending.size() >= MAX_PENDING_BYTES) {
+      flush();
+    }
+  }
+
+  @GuardedBy("this")
+  private void disablePersistence() {
+    persistent = false;
+    pending.reset();
+    pendingRecords = 0;
+  }
+
+  private boolean needsCompaction(long records) {
+    return records > 2L * size() + MIN_STALE_RECORDS_TO_COMPACT;
+  }
+
+  /** Runs {@code update} while holding the lock on the journal of this index. */
+  @GuardedBy("this")
+  private void withJournalLock(JournalUpdate update) throws IOException {
+    synchronized (journalLock) {
+      try (FileChannel lockChannel =
+              FileChannel.open(
+                  indexDir.resolve(LOCK_FILE_NAME),
+                  StandardOpenOption.CREATE,
+                  StandardOpenOption.WRITE);
+          FileLock lock = lockChannel.lock()) {
+        update.run();
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private void loadJournal(Path cacheDir, Path tmpDir) throws IOException {
+    Path journalPath = getJournalPath();
+    if (Files.exists(journalPath)) {
+      try {
+        replayJournal();
+        if (needsCompaction(journalRecords)) {
+          compact();
+        }
+        return;
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to read dir cache index %s, rebuilding it.", journalPath);
+        clear();
+      }
+    }
+    rebuildFromCacheDir(cacheDir, indexDir, tmpDir);
+    compact();
+  }
+
+  /**
+   * Applies the records other processes wrote to the journal since it was last read, and then
+   * appends the pending records of this index. Must be called with the journal lock held.
+   */
+  @GuardedBy("this")
+  private void syncJournal() throws IOException {
+    Path journalPath = getJournalPath();
+    if (!Files.exists(journalPath)) {
+      compact();
+      return;
+    }
+    if (readGeneration(journalPath) != generation) {
+      // Another process compacted the journal, which holds everything written to the old one. Start
+      // over from it, and then apply the records that are not in it yet again.
+      clear();
+      replayJournal();
+      try (DataInputStream in =
+          new DataInputStream(new ByteArrayInputStream(pending.toByteArray()))) {
+        while (readRecord(in)) {
+          // Applied by readRecord.
+        }
+      }
+    } else {
+      replayRecords(journalPath);
+    }
+    if (pendingRecords == 0) {
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+      channel.position(journalPosition);
+      ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      journalPosition = channel.position();
+    }
+    journalRecords += pendingRecords;
+    pending.reset();
+    pendingRecords = 0;
+  }
+
+  /**
+   * Writes a fresh journal of the next generation holding one record per live entry, in access
+   * order, and atomically replaces the old journal with it. Must be called with the journal lock
+   * held.
+   */
+  @GuardedBy("this")
+  private void compact() throws IOException {
+    List<Map.Entry<String, Entry>> entries = new ArrayList<>();
+    for (Shard shard : shards) {
+      shard.copyEntriesTo(entries);
+    }
+    entries.sort(Comparator.comparingLong(e -> e.getValue().sequence));
+
+    Path journalPath = getJournalPath();
+    Path tmp = Files.createTempFile(indexDir, JOURNAL_FILE_NAME, ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(generation + 1);
+        for (Map.Entry<String, Entry> entry : entries) {
+          writeRecord(
+              out,
+              OP_STORE,
+              entry.getKey(),
+              entry.getValue().sizeBytes,
+              entry.getValue().sequence);
+        }
+      }
+      Files.move(tmp, journalPath, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+
+    generation++;
+    journalPosition = Files.size(journalPath);
+    journalRecords = entries.size();
+    // The pending records are part of the entries that were written.
+    pending.reset();
+    pendingRecords = 0;
+  }
+
+  private static void writeRecord(
+      DataOutputStream out, byte op, String key, long sizeBytes, long seq) throws IOException {
+    out.writeByte(op);
+    out.writeUTF(key);
+    if (op == OP_STORE) {
+      out.writeLong(sizeBytes);
+    }
+    out.writeLong(seq);
+  }
+
+  private static long readGeneration(Path journalPath) throws IOException {
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(journalPath))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Unrecognized dir cache index format.");
+      }
+      return in.readLong();
+    }
+  }
+
+  /** Applies all the records of the journal to this index. */
+  @GuardedBy("this")
+  private void replayJournal() throws IOException {
+    Path journalPath = getJournalPath();
+    generation = readGeneration(journalPath);
+    journalPosition = HEADER_SIZE;
+    journalRecords = 0;
+    replayRecords(journalPath);
+  }
+
+  /**
+   * Applies the records after {@link #journalPosition} to this index. A partially written record at
+   * the end, e.g. because buck was killed while appending it, is truncated from the journal.
+   */
+  @GuardedBy("this")
+  private void replayRecords(Path journalPath) throws IOException {
+    long start = journalPosition;
+    boolean truncated = false;
+    try (InputStream journal = Files.newInputStream(journalPath)) {
+      ByteStreams.skipFully(journal, start);
+      CountingInputStream counting = new CountingInputStream(new BufferedInputStream(journal));
+      DataInputStream in = new DataInputStream(counting);
+      while (readRecord(in)) {
+        journalRecords++;
+        journalPosition = start + counting.getCount();
+      }
+    } catch (EOFException e) {
+      truncated = true;
+    }
+    if (truncated) {
+      LOG.debug("Ignoring truncated record at the end of %s.", journalPath);
+      try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+        channel.truncate(journalPosition);
+      }
+    }
+  }
+
+  /**
+   * Reads the next record and applies it to this index.
+   *
+   * @return false at the end of the stream.
+   * @throws EOFException if the stream ends in the middle of a record.
+   */
+  @GuardedBy("this")
+  private boolean readRecord(DataInputStream in) throws IOException {
+    int op = in.read();
+    if (op == -1) {
+      return false;
+    }
+    String key = in.readUTF();
+    long sizeBytes = op == OP_STORE ? in.readLong() : 0;
+    long seq = in.readLong();
+    sequence.set(Math.max(sequence.get(), seq));
+    switch (op) {
+      case OP_STORE:
+        Entry previous = getShard(key).put(key, new Entry(sizeBytes, seq));
+        totalBytes.addAndGet(sizeBytes - (previous == null ? 0 : previous.sizeBytes));
+        break;
+      case OP_ACCESS:
+        getShard(key).touch(key, seq);
+        break;
+      case OP_REMOVE:
+        Entry removed = getShard(key).remove(key);
+        if (removed != null) {
+          totalBytes.addAndGet(-removed.sizeBytes);
+        }
+        break;
+      default:
+        throw new IOException(String.format("Unknown dir cache index record %d.", op));
+    }
+    return true;
+  }
+
+  private void rebuildFromCacheDir(Path cacheDir, Path indexDir, Path tmpDir) throws IOException {
+    Map<String, long[]> sizeAndAccess = new HashMap<>();
+    if (Files.isDirectory(cacheDir)) {
+      Files.walkFileTree(
+          cacheDir,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+              if (dir.equals(indexDir) || dir.equals(tmpDir)) {
+                return FileVisitResult.SKIP_SUBTREE;
+              }
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              String name = file.getFileName().toString();
+              if (name.endsWith(METADATA_EXTENSION)) {
+                name = name.substring(0, name.length() - METADATA_EXTENSION.length());
+              }
+              long[] stats = sizeAndAccess.computeIfAbsent(name, k -> new long[2]);
+              stats[0] += attrs.size();
+              stats[1] = Math.max(stats[1], attrs.lastAccessTime().toMillis());
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+              if (exc instanceof NoSuchFileException) {
+                return FileVisitResult.CONTINUE;
+              }
+              throw exc;
+            }
+          });
+    }
+
+    List<Map.Entry<String, long[]>> entries = new ArrayList<>(sizeAndAccess.entrySet());
+    entries.sort(Comparator.comparingLong(e -> e.getValue()[1]));
+    for (Map.Entry<String, long[]> entry : entries) {
+      long seq = sequence.incrementAndGet();
+      getShard(entry.getKey()).put(entry.getKey(), new Entry(entry.getValue()[0], seq));
+      totalBytes.addAndGet(entry.getValue()[0]);
+    }
+    LOG.info("Rebuilt dir cache index for %s with %d entries.", cacheDir, entries.size());
+  }
+
+  private interface JournalUpdate {
+    void run() throws IOException;
+  }
+
+  private static class Entry {
+    private final long sizeBytes;
+    private final long sequence;
+
+    private Entry(long sizeBytes, long sequence) {
+      this.sizeBytes = sizeBytes;
+      this.sequence = sequence;
+    }
+  }
+
+  /** A subset of the index, kept in least-recently-used first order. */
+  private static class Shard {
+    @GuardedBy("this")
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    @Nullable
+    synchronized Entry put(String key, Entry entry) {
+      // Remove first so that the key moves to the most recently used end.
+      Entry previous = entries.remove(key);
+      entries.put(key, entry);
+      return previous;
+    }
+
+    synchronized boolean touch(String key, long seq) {
+      Entry previous = entries.remove(key);
+      if (previous == null) {
+        return false;
+      }
+      entries.put(key, new Entry(previous.sizeBytes, seq));
+      return true;
+    }
+
+    @Nullable
+    synchronized Entry get(String key) {
+      return entries.get(key);
+    }
+
+    @Nullable
+    synchronized Entry remove(String key) {
+      return entries.remove(key);
+    }
+
+    synchronized long getEldestSequence() {
+      Iterator<Entry> iterator = entries.values().iterator();
+      return iterator.hasNext() ? iterator.next().sequence : Long.MAX_VALUE;
+    }
+
+    @Nullable
+    synchronized Map.Entry<String, Entry> removeEldest(long expectedSequence) {
+      Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+      if (!iterator.hasNext()) {
+        return null;
+      }
+      Map.Entry<String, Entry> eldest = iterator.next();
+      if (eldest.getValue().sequence != expectedSequence) {
+        return null;
+      }
+      iterator.remove();
+      return new AbstractMap.SimpleImmutableEntry<>(eldest);
+    }
+
+    synchronized int size() {
+      return entries.size();
+    }
+
+    synchronized void clear() {
+      entries.clear();
+    }
+
+    synchronized void copyEntriesTo(List<Map.Entry<String, Entry>> out) {
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        out.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+      }
+    }
+  }
+}
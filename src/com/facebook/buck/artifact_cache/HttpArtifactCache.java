@@ -30,6 +30,7 @@ import java.net.HttpURLConnection;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.List;
+import java.util.Optional;
 import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -76,18 +77,27 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
           return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
         }
 
-        // Setup a temporary file, which sits next to the destination, to write to and
-        // make sure all parent dirs exist.
-        Path file = output.get();
-        getProjectFilesystem().createParentDirs(file);
-        Path temp =
-            getProjectFilesystem()
-                .createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
-
+        // Hand the payload straight to the output if it can take it as a stream. Otherwise, setup
+        // a temporary file, which sits next to the destination, to write to and make sure all
+        // parent dirs exist.
+        Optional<Path> temp = Optional.empty();
         FetchResponseReadResult fetchedData;
-        try (OutputStream tempFileOutputStream = getProjectFilesystem().newFileOutputStream(temp)) {
+        if (output instanceof StreamingLazyPath) {
           fetchedData =
-              HttpArtifactCacheBinaryProtocol.readFetchResponse(input, tempFileOutputStream);
+              HttpArtifactCacheBinaryProtocol.readFetchResponse(
+                  input, ((StreamingLazyPath) output)::consume);
+        } else {
+          Path file = output.get();
+          getProjectFilesystem().createParentDirs(file);
+          temp =
+              Optional.of(
+                  getProjectFilesystem()
+                      .createTempFile(file.getParent(), file.getFileName().toString(), ".tmp"));
+          try (OutputStream tempFileOutputStream =
+              getProjectFilesystem().newFileOutputStream(temp.get())) {
+            fetchedData =
+                HttpArtifactCacheBinaryProtocol.readFetchResponse(input, tempFileOutputStream);
+          }
         }
 
         resultBuilder
@@ -107,12 +117,17 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
         if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
           String msg = "artifact had invalid checksum";
           reportFailureWithFormatKey("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          getProjectFilesystem().deleteFileAtPath(temp);
+          if (temp.isPresent()) {
+            getProjectFilesystem().deleteFileAtPath(temp.get());
+          }
           return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
         }
 
         // Finally, move the temp file into it's final place.
-        getProjectFilesystem().move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        if (temp.isPresent()) {
+          getProjectFilesystem()
+              .move(temp.get(), output.get(), StandardCopyOption.REPLACE_EXISTING);
+        }
 
         LOG.info("fetch(%s, %s): cache hit", response.requestUrl(), ruleKey);
         return resultBuilder
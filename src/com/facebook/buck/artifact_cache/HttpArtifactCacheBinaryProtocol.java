@@ -30,6 +30,7 @@ import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -61,6 +62,20 @@ public class HttpArtifactCacheBinaryProtocol {
     return result.build();
   }
 
+  /**
+   * Reads a fetch response, passing the payload to the given consumer as it is read instead of
+   * copying it to a sink. The payload has not been verified yet when it is consumed.
+   */
+  public static FetchResponseReadResult readFetchResponse(
+      DataInputStream input, PayloadConsumer payloadConsumer) throws IOException {
+
+    MetadataAndPayloadReadResultInternal resultInternal =
+        readMetadataAndPayload(input, payloadConsumer);
+
+    FetchResponseReadResult.Builder result = FetchResponseReadResult.builder().from(resultInternal);
+    return result.build();
+  }
+
   public static StoreResponseReadResult readStoreRequest(
       DataInputStream input, OutputStream payloadSink) throws IOException {
     ImmutableSet.Builder<RuleKey> rawRuleKeys = ImmutableSet.builder();
@@ -79,6 +94,11 @@ public class HttpArtifactCacheBinaryProtocol {
 
   public static MetadataAndPayloadReadResultInternal readMetadataAndPayload(
       DataInputStream input, OutputStream payloadSink) throws IOException {
+    return readMetadataAndPayload(input, payload -> ByteStreams.copy(payload, payloadSink));
+  }
+
+  private static MetadataAndPayloadReadResultInternal readMetadataAndPayload(
+      DataInputStream input, PayloadConsumer payloadConsumer) throws IOException {
     // Read the size of a the metadata, and use that to build a input stream to read and
     // process the rest of it.
     int metadataSize = input.readInt();
@@ -123,12 +143,16 @@ public class HttpArtifactCacheBinaryProtocol {
       result.setExpectedHashCode(HashCode.fromBytes(hashCodeBytes));
     }
 
-    // The remaining data is the payload, which we write to the created file, and also include
+    // The remaining data is the payload, which we pass on to the consumer, and also include
     // in our verification checksum.
     Hasher artifactOnlyHasher = HASH_FUNCTION.newHasher();
-    try (InputStream payload =
-        new HasherInputStream(artifactOnlyHasher, new HasherInputStream(hasher, input))) {
-      result.setResponseSizeBytes(ByteStreams.copy(payload, payloadSink));
+    try (CountingInputStream payload =
+        new CountingInputStream(
+            new HasherInputStream(artifactOnlyHasher, new HasherInputStream(hasher, input)))) {
+      payloadConsumer.consume(payload);
+      // Whatever the consumer did not read still has to be checksummed.
+      ByteStreams.exhaust(payload);
+      result.setResponseSizeBytes(payload.getCount());
       result.setArtifactOnlyHashCode(artifactOnlyHasher.hash());
     }
 
@@ -37,6 +37,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
 
 /**
@@ -71,6 +72,7 @@ public class MultiArtifactCache implements ArtifactCache {
     ListenableFuture<CacheResult> cacheResult = Futures.immediateFuture(CacheResult.miss());
     // This is the list of higher-priority caches that we should write the artifact to.
     ImmutableList.Builder<ArtifactCache> cachesToFill = ImmutableList.builder();
+    AtomicBoolean lastFetchStreamed = new AtomicBoolean(false);
     for (ArtifactCache artifactCache : artifactCaches) {
       cacheResult =
           Futures.transformAsync(
@@ -79,10 +81,18 @@ public class MultiArtifactCache implements ArtifactCache {
                 if (result.getType().isSuccess()) {
                   return Futures.immediateFuture(result);
                 }
+                // Propagating the artifact to previous caches needs it as a file, so it can only be
+                // streamed if there are none to fill.
+                boolean streaming =
+                    output instanceof StreamingLazyPath && cachesToFill.build().isEmpty();
+                lastFetchStreamed.set(streaming);
                 if (artifactCache.getCacheReadMode().isWritable()) {
                   cachesToFill.add(artifactCache);
                 }
-                return artifactCache.fetchAsync(target, ruleKey, output);
+                return artifactCache.fetchAsync(
+                    target,
+                    ruleKey,
+                    streaming ? output : StreamingLazyPath.withoutStreaming(output));
               },
               MoreExecutors.directExecutor());
     }
@@ -91,7 +101,7 @@ public class MultiArtifactCache implements ArtifactCache {
     return Futures.transform(
         cacheResult,
         (CacheResult result) -> {
-          if (!result.getType().isSuccess()) {
+          if (!result.getType().isSuccess() || lastFetchStreamed.get()) {
             return result;
           }
           storeToCaches(
@@ -28,7 +28,9 @@ import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.file.MostFiles;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.CommandThreadFactory;
 import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.sqlite.RetryBusyHandler;
 import com.facebook.buck.util.sqlite.SQLiteUtils;
 import com.facebook.buck.util.types.Pair;
@@ -58,12 +60,24 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.Nullable;
 import org.sqlite.BusyHandler;
 import org.sqlite.SQLiteConfig;
@@ -74,6 +88,11 @@ import org.sqlite.SQLiteConfig;
  * <p>Cache entries are either metadata or content. All metadata contains a mapping to a content
  * entry. Content entries with sufficiently small content will have their artifacts inlined into the
  * database for improved performance.
+ *
+ * <p>The database is opened in WAL mode, so lookups are served by a pool of read-only connections
+ * and never wait for writers. All writes go through a single writer connection: concurrent stores
+ * are group-committed in one transaction, and access time updates from cache hits are buffered and
+ * flushed in batches in the background.
  */
 public class SQLiteArtifactCache implements ArtifactCache {
 
@@ -85,6 +104,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
   private static final String TMP_EXTENSION = ".tmp";
   private static final long DEFAULT_MAX_INLINED_BYTES = 40;
   private static final Duration DEFAULT_EVICTION_TIME = Duration.ofDays(7);
+  private static final long ACCESS_FLUSH_INTERVAL_MS = 1000;
 
   private final String name;
   private final ProjectFilesystem filesystem;
@@ -96,6 +116,14 @@ public class SQLiteArtifactCache implements ArtifactCache {
   private final CacheReadMode cacheMode;
 
   private final ConnectionInfo db;
+  private final ReaderPool readers;
+  private final ScheduledExecutorService accessFlushExecutor;
+
+  // Writes waiting to be committed by the next writer, see ConnectionInfo#commitPendingWrites.
+  private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+  // Keys that were hit since the last flush and need their access time updated.
+  private final Set<RuleKey> pendingMetadataAccesses = ConcurrentHashMap.newKeySet();
+  private final Set<RuleKey> pendingContentAccesses = ConcurrentHashMap.newKeySet();
 
   static {
     SQLiteUtils.initialize();
@@ -135,6 +163,15 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
 
     this.db = new ConnectionInfo(cacheDir);
+    this.readers = new ReaderPool(cacheDir, Runtime.getRuntime().availableProcessors());
+    this.accessFlushExecutor =
+        Executors.newSingleThreadScheduledExecutor(
+            new CommandThreadFactory("SQLiteArtifactCache", Thread.MIN_PRIORITY));
+    this.accessFlushExecutor.scheduleWithFixedDelay(
+        this::flushAccesses,
+        ACCESS_FLUSH_INTERVAL_MS,
+        ACCESS_FLUSH_INTERVAL_MS,
+        TimeUnit.MILLISECONDS);
   }
 
   @Override
@@ -170,7 +207,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
             CACHE_MODE,
             String.format("Artifact fetch(%s, %s) stopped unexpectedly", contentHash, output));
     try {
-      Optional<Content> content = db.selectContent(contentHash);
+      Optional<Content> content = readers.selectContent(contentHash);
       if (content.isPresent()) {
         byte[] artifact = content.get().artifact;
         String filepath = content.get().filepath;
@@ -183,12 +220,12 @@ public class SQLiteArtifactCache implements ArtifactCache {
           filesystem.copyFile(filesystem.resolve(filepath), output.get());
         } else {
           // artifact stored on disk was removed by another cache, remove database entry
-          db.deleteContent(contentHash);
+          write(db -> db.deleteContent(contentHash));
           return result = CacheResult.miss();
         }
 
         long size = content.get().size;
-        db.accessContent(contentHash);
+        pendingContentAccesses.add(contentHash);
 
         return result = CacheResult.hit(name, CACHE_MODE, ImmutableMap.of(), size);
       }
@@ -213,9 +250,9 @@ public class SQLiteArtifactCache implements ArtifactCache {
             CACHE_MODE,
             String.format("Metadata fetch(%s, %s) stopped unexpectedly", ruleKey, output));
     try {
-      Optional<byte[]> metadata = db.selectMetadata(ruleKey);
+      Optional<byte[]> metadata = readers.selectMetadata(ruleKey);
       if (metadata.isPresent()) {
-        db.accessMetadata(ruleKey);
+        pendingMetadataAccesses.add(ruleKey);
         output.get(); // for MultiArtifactCache, force evaluation of the output path
 
         return result = CacheResult.hit(name, CACHE_MODE, unmarshalMetadata(metadata.get()), 0);
@@ -277,7 +314,8 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
 
     try {
-      db.storeMetadata(info.getRuleKeys(), marshalMetadata(metadata));
+      byte[] marshalled = marshalMetadata(metadata);
+      write(db -> db.storeMetadata(info.getRuleKeys(), marshalled));
     } catch (IOException | SQLException e) {
       LOG.warn(e, "Metadata store(%s) error", info.getRuleKeys());
     }
@@ -296,7 +334,8 @@ public class SQLiteArtifactCache implements ArtifactCache {
       long size = filesystem.getFileSize(content.getPath());
       if (size <= maxInlinedBytes) {
         // artifact is small enough to inline in the database
-        db.storeArtifact(toStore, Files.readAllBytes(content.getPath()), size);
+        byte[] artifact = Files.readAllBytes(content.getPath());
+        write(db -> db.storeArtifact(toStore, artifact, size));
       } else if (!toStore.isEmpty()) {
         // artifact is too large to inline, store on disk and put path in database
         Path artifactPath = getArtifactPath(toStore.iterator().next());
@@ -308,7 +347,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
           storeArtifactOutput(content.getPath(), artifactPath);
         }
 
-        db.storeFilepath(toStore, artifactPath.toString(), size);
+        write(db -> db.storeFilepath(toStore, artifactPath.toString(), size));
       }
     } catch (IOException | SQLException e) {
       LOG.warn(e, "Artifact store(%s, %s) error", contentHashes, content);
@@ -322,13 +361,13 @@ public class SQLiteArtifactCache implements ArtifactCache {
     ImmutableSet.Builder<RuleKey> builder = ImmutableSet.builder();
     for (RuleKey contentHash : contentHashes) {
       // if the content already exists in the cache, skip it
-      Optional<Content> existingArtifact = db.selectContent(contentHash);
+      Optional<Content> existingArtifact = readers.selectContent(contentHash);
       if (existingArtifact.isPresent()) {
         byte[] inlined = existingArtifact.get().artifact;
         String artifactPath = existingArtifact.get().filepath;
 
         if (Objects.nonNull(inlined) || filesystem.exists(filesystem.resolve(artifactPath))) {
-          db.accessContent(contentHash);
+          pendingContentAccesses.add(contentHash);
           continue;
         }
       }
@@ -339,6 +378,50 @@ public class SQLiteArtifactCache implements ArtifactCache {
     return builder.build();
   }
 
+  /**
+   * Runs {@code operation} on the writer connection and waits for it to be committed. Operations
+   * submitted concurrently by other threads are committed together in a single transaction.
+   */
+  private void write(WriteOperation operation) throws SQLException {
+    PendingWrite pendingWrite = new PendingWrite(operation);
+    pendingWrites.add(pendingWrite);
+    // Either commits our write along with everything queued behind it, or returns once the thread
+    // that got to the writer first has committed it for us.
+    db.commitPendingWrites(pendingWrites);
+    if (pendingWrite.failure != null) {
+      throw pendingWrite.failure;
+    }
+  }
+
+  /** Writes out the access times of all entries that were hit since the last flush. */
+  @VisibleForTesting
+  void flushAccesses() {
+    ImmutableList<RuleKey> metadataAccesses = drain(pendingMetadataAccesses);
+    ImmutableList<RuleKey> contentAccesses = drain(pendingContentAccesses);
+    if (metadataAccesses.isEmpty() && contentAccesses.isEmpty()) {
+      return;
+    }
+    try {
+      write(
+          db -> {
+            db.accessMetadata(metadataAccesses);
+            db.accessContent(contentAccesses);
+          });
+    } catch (SQLException e) {
+      LOG.warn(e, "Failed to update access times of %d entries", metadataAccesses.size());
+    }
+  }
+
+  private static ImmutableList<RuleKey> drain(Set<RuleKey> keys) {
+    ImmutableList.Builder<RuleKey> drained = ImmutableList.builder();
+    Iterator<RuleKey> iterator = keys.iterator();
+    while (iterator.hasNext()) {
+      drained.add(iterator.next());
+      iterator.remove();
+    }
+    return drained.build();
+  }
+
   @VisibleForTesting
   static byte[] marshalMetadata(ImmutableMap<String, String> metadata) throws IOException {
     ByteArrayOutputStream metadataStream = new ByteArrayOutputStream();
@@ -398,6 +481,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
   /** Removes metadata older than a computed eviction time. */
   @VisibleForTesting
   ListenableFuture<Void> removeOldMetadata() {
+    flushAccesses();
     Timestamp evictionTime = Timestamp.from(Instant.now().minus(DEFAULT_EVICTION_TIME));
     try {
       int deleted = db.deleteMetadata(evictionTime);
@@ -416,6 +500,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
       return Futures.immediateFuture(null);
     }
 
+    flushAccesses();
     long totalSizeBytes;
     try {
       totalSizeBytes = db.totalSize();
@@ -453,11 +538,14 @@ public class SQLiteArtifactCache implements ArtifactCache {
   @Override
   public void close() {
     try (SimplePerfEvent.Scope ignored = SimplePerfEvent.scope(eventBus, "sqlite_cache_clean")) {
+      MostExecutors.shutdown(accessFlushExecutor, 1, TimeUnit.MINUTES);
+      flushAccesses();
       Futures.allAsList(removeOldMetadata(), removeOldContent()).get();
     } catch (ExecutionException | InterruptedException e) {
       LOG.error("Failed to clean SQLite cache");
     }
 
+    readers.close();
     db.close();
   }
 
@@ -536,12 +624,39 @@ public class SQLiteArtifactCache implements ArtifactCache {
     return keys.build();
   }
 
+  /** Properties shared by the writer and reader connections. */
+  private static Properties getConnectionProperties(boolean readOnly) {
+    SQLiteConfig config = new SQLiteConfig();
+    config.setReadOnly(readOnly);
+    Properties properties = config.toProperties();
+    // date format must be set to match CURRENT_TIMESTAMP
+    properties.setProperty(
+        SQLiteConfig.Pragma.DATE_STRING_FORMAT.pragmaName, "yyyy-MM-dd HH:mm:ss");
+    return properties;
+  }
+
+  private static Path getDatabasePath(Path cacheDir) {
+    return cacheDir.resolve("dircache.db");
+  }
+
+  /** An operation run on the writer connection as part of a group commit. */
+  private interface WriteOperation {
+    void run(ConnectionInfo db) throws SQLException;
+  }
+
+  private static class PendingWrite {
+    private final WriteOperation operation;
+    @Nullable private SQLException failure;
+
+    private PendingWrite(WriteOperation operation) {
+      this.operation = operation;
+    }
+  }
+
+  /** The writer connection. All statements that modify the database run on it. */
   private static class ConnectionInfo {
     private final Connection connection;
 
-    private final PreparedStatement fetchMetadata;
-    private final PreparedStatement fetchContent;
-
     private final PreparedStatement updateMetadataTime;
     private final PreparedStatement updateContentTime;
 
@@ -558,12 +673,9 @@ public class SQLiteArtifactCache implements ArtifactCache {
     private final PreparedStatement contentSize;
 
     private ConnectionInfo(Path cacheDir) throws SQLException {
-      // date format must be set to match CURRENT_TIMESTAMP
-      Properties properties = new SQLiteConfig().toProperties();
-      properties.setProperty(
-          SQLiteConfig.Pragma.DATE_STRING_FORMAT.pragmaName, "yyyy-MM-dd HH:mm:ss");
       connection =
-          DriverManager.getConnection("jdbc:sqlite:" + cacheDir.resolve("dircache.db"), properties);
+          DriverManager.getConnection(
+              "jdbc:sqlite:" + getDatabasePath(cacheDir), getConnectionProperties(false));
       connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
       connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
 
@@ -599,11 +711,6 @@ public class SQLiteArtifactCache implements ArtifactCache {
                   + "OR artifact ISNULL AND filepath NOT NULL)) "
                   + "WITHOUT ROWID");
 
-      fetchMetadata = connection.prepareStatement("SELECT data FROM metadata WHERE rulekey = ?");
-      fetchContent =
-          connection.prepareStatement(
-              "SELECT artifact, filepath, size FROM content WHERE sha1 = ?");
-
       updateMetadataTime =
           connection.prepareStatement(
               "UPDATE metadata SET accessed = CURRENT_TIMESTAMP WHERE rulekey = ?");
@@ -635,28 +742,56 @@ public class SQLiteArtifactCache implements ArtifactCache {
       BusyHandler.setHandler(connection, new RetryBusyHandler());
     }
 
-    private synchronized Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
-      fetchMetadata.setBytes(1, getBytes(ruleKey));
-      ResultSet rs = fetchMetadata.executeQuery();
-      return rs.next() ? Optional.of(rs.getBytes(1)) : Optional.empty();
-    }
+    /**
+     * Runs all queued writes in a single transaction. Threads that call this while another thread
+     * is committing wait for it, and then either find their write already committed or commit the
+     * writes that queued up in the meantime.
+     */
+    private synchronized void commitPendingWrites(Queue<PendingWrite> pendingWrites) {
+      List<PendingWrite> batch = new ArrayList<>();
+      for (PendingWrite write = pendingWrites.poll(); write != null; write = pendingWrites.poll()) {
+        batch.add(write);
+      }
+      if (batch.isEmpty()) {
+        return;
+      }
 
-    private synchronized Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
-      fetchContent.setBytes(1, getBytes(contentHash));
-      ResultSet rs = fetchContent.executeQuery();
-      return rs.next()
-          ? Optional.of(new Content(rs.getBytes(1), rs.getString(2), rs.getLong(3)))
-          : Optional.empty();
+      try {
+        connection.setAutoCommit(false);
+        try {
+          for (PendingWrite write : batch) {
+            try {
+              write.operation.run(this);
+            } catch (SQLException e) {
+              // A failed statement is rolled back on its own and doesn't affect the other writes.
+              write.failure = e;
+            }
+          }
+          connection.commit();
+        } finally {
+          connection.setAutoCommit(true);
+        }
+      } catch (SQLException e) {
+        for (PendingWrite write : batch) {
+          write.failure = e;
+        }
+      }
     }
 
-    private synchronized void accessMetadata(RuleKey ruleKey) throws SQLException {
-      updateMetadataTime.setBytes(1, getBytes(ruleKey));
-      updateMetadataTime.executeUpdate();
+    private synchronized void accessMetadata(Iterable<RuleKey> ruleKeys) throws SQLException {
+      for (RuleKey ruleKey : ruleKeys) {
+        updateMetadataTime.setBytes(1, getBytes(ruleKey));
+        updateMetadataTime.addBatch();
+      }
+      updateMetadataTime.executeBatch();
     }
 
-    private synchronized void accessContent(RuleKey contentHash) throws SQLException {
-      updateContentTime.setBytes(1, getBytes(contentHash));
-      updateContentTime.executeUpdate();
+    private synchronized void accessContent(Iterable<RuleKey> contentHashes) throws SQLException {
+      for (RuleKey contentHash : contentHashes) {
+        updateContentTime.setBytes(1, getBytes(contentHash));
+        updateContentTime.addBatch();
+      }
+      updateContentTime.executeBatch();
     }
 
     private synchronized void storeMetadata(ImmutableSet<RuleKey> ruleKeys, byte[] metadata)
@@ -759,6 +894,119 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
   }
 
+  /** A read-only connection, used by one thread at a time. */
+  private static class ReadConnection {
+    private final Connection connection;
+    private final PreparedStatement fetchMetadata;
+    private final PreparedStatement fetchContent;
+
+    private ReadConnection(Path cacheDir) throws SQLException {
+      connection =
+          DriverManager.getConnection(
+              "jdbc:sqlite:" + getDatabasePath(cacheDir), getConnectionProperties(true));
+      fetchMetadata = connection.prepareStatement("SELECT data FROM metadata WHERE rulekey = ?");
+      fetchContent =
+          connection.prepareStatement(
+              "SELECT artifact, filepath, size FROM content WHERE sha1 = ?");
+      BusyHandler.setHandler(connection, new RetryBusyHandler());
+    }
+
+    private Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
+      fetchMetadata.setBytes(1, ConnectionInfo.getBytes(ruleKey));
+      try (ResultSet rs = fetchMetadata.executeQuery()) {
+        return rs.next() ? Optional.of(rs.getBytes(1)) : Optional.empty();
+      }
+    }
+
+    private Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
+      fetchContent.setBytes(1, ConnectionInfo.getBytes(contentHash));
+      try (ResultSet rs = fetchContent.executeQuery()) {
+        return rs.next()
+            ? Optional.of(new Content(rs.getBytes(1), rs.getString(2), rs.getLong(3)))
+            : Optional.empty();
+      }
+    }
+
+    private void close() {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        LOG.warn(e, "Failed to close SQLite cache reader connection");
+      }
+    }
+  }
+
+  /**
+   * Pool of {@link ReadConnection}s. Connections are opened on demand, up to a fixed limit, so that
+   * concurrent lookups don't contend on a single connection.
+   */
+  private static class ReaderPool {
+    private final Path cacheDir;
+    private final int maxConnections;
+    private final BlockingQueue<ReadConnection> idle;
+    private final AtomicInteger opened = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    private ReaderPool(Path cacheDir, int maxConnections) {
+      this.cacheDir = cacheDir;
+      this.maxConnections = Math.max(1, maxConnections);
+      this.idle = new ArrayBlockingQueue<>(this.maxConnections);
+    }
+
+    private Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
+      ReadConnection reader = borrow();
+      try {
+        return reader.selectMetadata(ruleKey);
+      } finally {
+        release(reader);
+      }
+    }
+
+    private Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
+      ReadConnection reader = borrow();
+      try {
+        return reader.selectContent(contentHash);
+      } finally {
+        release(reader);
+      }
+    }
+
+    private ReadConnection borrow() throws SQLException {
+      ReadConnection reader = idle.poll();
+      if (reader != null) {
+        return reader;
+      }
+      if (opened.incrementAndGet() <= maxConnections) {
+        try {
+          return new ReadConnection(cacheDir);
+        } catch (SQLException e) {
+          opened.decrementAndGet();
+          throw e;
+        }
+      }
+      opened.decrementAndGet();
+      try {
+        return idle.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for a SQLite cache connection", e);
+      }
+    }
+
+    private void release(ReadConnection reader) {
+      if (closed || !idle.offer(reader)) {
+        reader.close();
+      }
+    }
+
+    private void close() {
+      closed = true;
+      for (ReadConnection reader = idle.poll(); reader != null; reader = idle.poll()) {
+        reader.close();
+      }
+    }
+  }
+
   private static class Content {
     private final byte[] artifact;
     private final String filepath;
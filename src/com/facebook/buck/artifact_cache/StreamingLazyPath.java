@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.io.file.LazyPath;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * An output for a fetched artifact which can also take the artifact as a stream.
+ *
+ * <p>Caches which download artifacts pass the payload to {@link #consume} as it is received instead
+ * of writing it to a temporary file and then to {@link #get()}, so that it can be unpacked while it
+ * is downloaded. Caches which need the artifact as a file, or which already have it on disk, just
+ * use the path.
+ */
+public abstract class StreamingLazyPath extends LazyPath {
+
+  /**
+   * Consumes the payload of the fetched artifact as it is received. This is called before the cache
+   * has finished verifying the payload, so the artifact must only be used if the fetch then returns
+   * a hit. Whatever is left of the payload when this returns is read by the cache.
+   */
+  public abstract void consume(InputStream payload) throws IOException;
+
+  /**
+   * @return the given output, or if it can take the artifact as a stream, an output which resolves
+   *     to the same path but always gets the artifact written to it as a file.
+   */
+  public static LazyPath withoutStreaming(LazyPath output) {
+    if (!(output instanceof StreamingLazyPath)) {
+      return output;
+    }
+    return new LazyPath() {
+      @Override
+      protected Path create() throws IOException {
+        return output.get();
+      }
+    };
+  }
+}
@@ -162,16 +162,14 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
         }
 
         LOG.verbose("Got artifact.  Attempting to read payload.");
-        Path tmp = createTempFileForDownload();
+        PayloadReader payloadReader = new PayloadReader(response);
+        Optional<Path> tmp = Optional.empty();
         ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readResult;
-        try (OutputStream tmpFile = getProjectFilesystem().newFileOutputStream(tmp)) {
-          try {
-            readResult = response.readPayload(tmpFile);
-          } catch (IOException e) {
-            LOG.debug(e, "encountered an exception while receiving the payload for %s", ruleKey);
-            throw e;
-          }
-          LOG.verbose("Successfully read payload: %d bytes.", readResult.getBytesRead());
+        if (output instanceof StreamingLazyPath) {
+          readResult = payloadReader.readNextPayload((StreamingLazyPath) output, ruleKey);
+        } else {
+          tmp = Optional.of(createTempFileForDownload());
+          readResult = payloadReader.readNextPayload(tmp.get(), ruleKey);
         }
 
         if (!fetchResponse.isSetMetadata()) {
@@ -231,7 +229,9 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
         }
 
         // This makes sure we don't have 'half downloaded files' in the dir cache.
-        getProjectFilesystem().move(tmp, output.get(), StandardCopyOption.REPLACE_EXISTING);
+        if (tmp.isPresent()) {
+          getProjectFilesystem().move(tmp.get(), output.get(), StandardCopyOption.REPLACE_EXISTING);
+        }
         return resultBuilder
             .setCacheResult(
                 CacheResult.hit(
@@ -548,13 +548,23 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
     }
 
     LOG.verbose("Got artifact.  Attempting to read payload.");
-    Path tmp = createTempFileForDownload();
 
     // Always read payload even if information is missing to ensure that we associate payloads
     // with the correct result.
-    @SuppressWarnings("PMD.PrematureDeclaration")
-    ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readResult =
-        payloadReader.readNextPayload(tmp, ruleKey);
+    Optional<Path> tmp = Optional.empty();
+    ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readResult;
+    if (output instanceof StreamingLazyPath) {
+      try {
+        readResult = payloadReader.readNextPayload((StreamingLazyPath) output, ruleKey);
+      } catch (ThriftArtifactCacheProtocol.PayloadConsumerException e) {
+        // The payload was still read in full, so only this result failed.
+        builder.setCacheResult(CacheResult.error(getName(), getMode(), e.getMessage()));
+        return;
+      }
+    } else {
+      tmp = Optional.of(createTempFileForDownload());
+      readResult = payloadReader.readNextPayload(tmp.get(), ruleKey);
+    }
 
     if (!fetchResponse.isSetMetadata()) {
       String msg =
@@ -621,7 +631,9 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
     }
 
     // This makes sure we don't have 'half downloaded files' in the dir cache.
-    getProjectFilesystem().move(tmp, output.get(), StandardCopyOption.REPLACE_EXISTING);
+    if (tmp.isPresent()) {
+      getProjectFilesystem().move(tmp.get(), output.get(), StandardCopyOption.REPLACE_EXISTING);
+    }
     builder.setCacheResult(
         CacheResult.hit(
             getName(),
@@ -866,5 +878,18 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
         return result;
       }
     }
+
+    ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readNextPayload(
+        StreamingLazyPath output, RuleKey ruleKey) throws IOException {
+      ThriftArtifactCacheProtocol.Response.ReadPayloadInfo result;
+      try {
+        result = response.readPayload(output::consume);
+      } catch (IOException e) {
+        LOG.debug(e, "Encountered an exception while streaming the payload for %s", ruleKey);
+        throw e;
+      }
+      LOG.verbose("Successfully streamed payload: %d bytes.", result.getBytesRead());
+      return result;
+    }
   }
 }
@@ -25,9 +25,11 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
 import com.google.common.hash.HashingOutputStream;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -181,16 +183,7 @@ public class ThriftArtifactCacheProtocol {
     }
 
     public ReadPayloadInfo readPayload(OutputStream outStream) throws IOException {
-      assertTrue(
-          nextPayloadToBeRead < thriftData.getPayloadsSize(),
-          "Trying to download payload index=[%s] but the thriftData only contains [%s] payloads.",
-          nextPayloadToBeRead,
-          thriftData.getPayloadsSize());
-
-      long payloadSizeBytes =
-          assertNotNull(thriftData.getPayloads(), "Payloads[] cannot be null.")
-              .get(nextPayloadToBeRead)
-              .getSizeBytes();
+      long payloadSizeBytes = getNextPayloadSizeBytes();
       try (HashingOutputStream wrappedOutputStream =
           new HashingOutputStream(MD5_HASH_FUNCTION, outStream)) {
         copyExactly(responseStream, wrappedOutputStream, payloadSizeBytes);
@@ -199,6 +192,54 @@ public class ThriftArtifactCacheProtocol {
       }
     }
 
+    /**
+     * Reads the next payload, passing it to the given consumer as it is read instead of copying it
+     * to a stream. The payload has not been verified yet when it is consumed.
+     *
+     * @throws PayloadConsumerException if the consumer failed. The payload has still been read in
+     *     full, so the following payloads can be read.
+     */
+    public ReadPayloadInfo readPayload(PayloadConsumer payloadConsumer) throws IOException {
+      long payloadSizeBytes = getNextPayloadSizeBytes();
+      HashingInputStream hashingStream =
+          new HashingInputStream(
+              MD5_HASH_FUNCTION, ByteStreams.limit(responseStream, payloadSizeBytes));
+      CountingInputStream payload = new CountingInputStream(hashingStream);
+      IOException consumerException = null;
+      try {
+        payloadConsumer.consume(payload);
+      } catch (IOException e) {
+        consumerException = e;
+      }
+      // Read whatever the consumer left, so that the next payload starts in the right place.
+      ByteStreams.exhaust(payload);
+      if (payload.getCount() < payloadSizeBytes) {
+        String msg =
+            String.format(
+                "InputStream was missing [%d] bytes. Expected to read a total of [%d] bytes.",
+                payloadSizeBytes - payload.getCount(), payloadSizeBytes);
+        LOG.error(msg);
+        throw new IOException(msg);
+      }
+      ++nextPayloadToBeRead;
+      if (consumerException != null) {
+        throw new PayloadConsumerException(consumerException);
+      }
+      return new ReadPayloadInfo(payloadSizeBytes, hashingStream.hash().toString());
+    }
+
+    private long getNextPayloadSizeBytes() throws ProtocolException {
+      assertTrue(
+          nextPayloadToBeRead < thriftData.getPayloadsSize(),
+          "Trying to download payload index=[%s] but the thriftData only contains [%s] payloads.",
+          nextPayloadToBeRead,
+          thriftData.getPayloadsSize());
+
+      return assertNotNull(thriftData.getPayloads(), "Payloads[] cannot be null.")
+          .get(nextPayloadToBeRead)
+          .getSizeBytes();
+    }
+
     @Override
     public void close() throws IOException {
       responseStream.close();
@@ -254,6 +295,13 @@ public class ThriftArtifactCacheProtocol {
     }
   }
 
+  /** Thrown when a payload was read, but the consumer it was passed to failed. */
+  public static class PayloadConsumerException extends IOException {
+    public PayloadConsumerException(IOException cause) {
+      super(cause.getMessage(), cause);
+    }
+  }
+
   private static void assertTrue(boolean condition, String msgTemplate, Object... msgArgs)
       throws ProtocolException {
     if (!condition) {
@@ -31,4 +31,10 @@ abstract class AbstractDirCacheEntry {
   public abstract Optional<Long> getMaxSizeBytes();
 
   public abstract CacheReadMode getCacheReadMode();
+
+  /** Whether the cache keeps a persistent index of its entries to drive eviction. */
+  @Value.Default
+  public boolean getIndexEnabled() {
+    return false;
+  }
 }
@@ -84,9 +84,10 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String DIR_FIELD = "dir";
   private static final String DIR_MODE_FIELD = "dir_mode";
   private static final String DIR_MAX_SIZE_FIELD = "dir_max_size";
+  private static final String DIR_INDEX_FIELD = "dir_index";
   private static final String DIR_CACHE_NAMES_FIELD_NAME = "dir_cache_names";
   private static final ImmutableSet<String> DIR_CACHE_DESCRIPTION_FIELDS =
-      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD);
+      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD, DIR_INDEX_FIELD);
 
   private static final URI DEFAULT_HTTP_URL = URI.create("http://localhost:8080/");
   private static final String DEFAULT_HTTP_CACHE_MODE = CacheReadMode.READWRITE.name();
@@ -125,6 +126,13 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
       "two_level_cache_maximum_size";
   private static final long TWO_LEVEL_CACHING_MIN_SIZE_DEFAULT = 20 * 1024L;
 
+  private static final String CHUNKED_CACHING_ENABLED_FIELD_NAME = "chunked_cache_enabled";
+  private static final String CHUNKED_CACHING_MIN_SIZE_FIELD_NAME = "chunked_cache_minimum_size";
+  private static final String CHUNKED_CACHING_MAX_SIZE_FIELD_NAME = "chunked_cache_maximum_size";
+  private static final String CHUNK_STORE_MAX_SIZE_FIELD_NAME = "chunk_store_max_size";
+  private static final long CHUNKED_CACHING_MIN_SIZE_DEFAULT = 256 * 1024L;
+  private static final long CHUNK_STORE_MAX_SIZE_DEFAULT = 1024 * 1024 * 1024L;
+
   private static final String HYBRID_THRIFT_ENDPOINT = "hybrid_thrift_endpoint";
   private static final String REPOSITORY = "repository";
   private static final String DEFAULT_REPOSITORY = "";
@@ -382,6 +390,32 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
         .map(SizeUnit::parseBytes);
   }
 
+  public boolean getChunkedCachingEnabled() {
+    return buckConfig.getBooleanValue(
+        CACHE_SECTION_NAME, CHUNKED_CACHING_ENABLED_FIELD_NAME, false);
+  }
+
+  public long getChunkedCachingMinimumSize() {
+    return buckConfig
+        .getValue(CACHE_SECTION_NAME, CHUNKED_CACHING_MIN_SIZE_FIELD_NAME)
+        .map(SizeUnit::parseBytes)
+        .orElse(CHUNKED_CACHING_MIN_SIZE_DEFAULT);
+  }
+
+  public Optional<Long> getChunkedCachingMaximumSize() {
+    return buckConfig
+        .getValue(CACHE_SECTION_NAME, CHUNKED_CACHING_MAX_SIZE_FIELD_NAME)
+        .map(SizeUnit::parseBytes);
+  }
+
+  /** @return the maximum size of the local store of chunks fetched from chunked caches. */
+  public long getChunkStoreMaximumSize() {
+    return buckConfig
+        .getValue(CACHE_SECTION_NAME, CHUNK_STORE_MAX_SIZE_FIELD_NAME)
+        .map(SizeUnit::parseBytes)
+        .orElse(CHUNK_STORE_MAX_SIZE_DEFAULT);
+  }
+
   private boolean getServingLocalCacheEnabled() {
     return buckConfig.getBooleanValue(CACHE_SECTION_NAME, SERVED_CACHE_ENABLED_FIELD_NAME, false);
   }
@@ -443,6 +477,7 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
         .setCacheDir(pathToCacheDir)
         .setCacheReadMode(readMode)
         .setMaxSizeBytes(maxSizeBytes)
+        .setIndexEnabled(buckConfig.getBooleanValue(section, DIR_INDEX_FIELD, false))
         .build();
   }
 
@@ -44,6 +44,7 @@ import com.facebook.buck.util.ExitCode;
 import com.facebook.buck.util.cache.InstrumentingCacheStatsTracker;
 import com.facebook.buck.util.concurrent.ConcurrencyLimit;
 import com.facebook.buck.versions.VersionException;
+import com.facebook.buck.worker.WorkerPoolSettings;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -68,6 +69,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -385,7 +387,9 @@ public abstract class AbstractCommand implements Command {
             .setRuleKeyDiagnosticsMode(params.getBuckConfig().getRuleKeyDiagnosticsMode())
             .setConcurrencyLimit(getConcurrencyLimit(params.getBuckConfig()))
             .setPersistentWorkerPools(params.getPersistentWorkerPools())
+            .setWorkerPoolSettings(getWorkerPoolSettings(params.getBuckConfig()))
             .setProjectFilesystemFactory(params.getProjectFilesystemFactory());
+    params.getWorkerPoolManager().ifPresent(builder::setWorkerPoolManager);
     if (skylarkProfile != null) {
       Clock clock = new JavaClock();
       try {
@@ -413,6 +417,23 @@ public abstract class AbstractCommand implements Command {
     return buckConfig.getView(ResourcesConfig.class).getConcurrencyLimit();
   }
 
+  private static WorkerPoolSettings getWorkerPoolSettings(BuckConfig buckConfig) {
+    // Zero or negative values disable reaping, like leaving them unset.
+    return WorkerPoolSettings.builder()
+        .setPrespawnEnabled(buckConfig.getBooleanValue("worker", "prespawn", false))
+        .setIdleTimeoutMillis(
+            buckConfig
+                .getLong("worker", "idle_timeout_seconds")
+                .filter(seconds -> seconds > 0)
+                .map(TimeUnit.SECONDS::toMillis))
+        .setMaxResidentMemoryBytes(
+            buckConfig
+                .getLong("worker", "max_pool_rss_mb")
+                .filter(megabytes -> megabytes > 0)
+                .map(megabytes -> megabytes * 1024 * 1024))
+        .build();
+  }
+
   @Override
   public boolean isSourceControlStatsGatheringEnabled() {
     return false;
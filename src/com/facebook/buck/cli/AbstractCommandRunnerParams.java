@@ -46,6 +46,7 @@ import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.util.timing.Clock;
 import com.facebook.buck.util.versioncontrol.VersionControlStatsGenerator;
 import com.facebook.buck.versions.InstrumentedVersionedTargetGraphCache;
+import com.facebook.buck.worker.WorkerPoolManager;
 import com.facebook.buck.worker.WorkerProcessPool;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -109,6 +110,10 @@ public abstract class AbstractCommandRunnerParams {
   @Value.Parameter
   public abstract Optional<ConcurrentMap<String, WorkerProcessPool>> getPersistentWorkerPools();
 
+  /** Maintains the worker process pools of the buck daemon, if there is one. */
+  @Value.Parameter
+  public abstract Optional<WorkerPoolManager> getWorkerPoolManager();
+
   @Value.Parameter
   public abstract BuckConfig getBuckConfig();
 
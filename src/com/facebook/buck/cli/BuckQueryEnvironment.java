@@ -34,11 +34,13 @@ import com.facebook.buck.graph.GraphTraversable;
 import com.facebook.buck.graph.MutableDirectedGraph;
 import com.facebook.buck.io.file.MorePaths;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildFileTree;
 import com.facebook.buck.model.FilesystemBackedBuildFileTree;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.parser.ParserMessages;
 import com.facebook.buck.parser.PerBuildState;
+import com.facebook.buck.parser.TargetGraphIndex;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.parser.exceptions.BuildTargetException;
 import com.facebook.buck.query.NoopQueryEvaluator;
@@ -86,6 +88,8 @@ import java.util.function.Predicate;
  */
 public class BuckQueryEnvironment implements QueryEnvironment {
 
+  private static final Logger LOG = Logger.get(BuckQueryEnvironment.class);
+
   private final Parser parser;
   private final PerBuildState parserState;
   private final Cell rootCell;
@@ -99,9 +103,15 @@ public class BuckQueryEnvironment implements QueryEnvironment {
   private final ImmutableMap<Cell, BuildFileTree> buildFileTrees;
   private final Map<BuildTarget, QueryTarget> buildTargetToQueryTarget = new HashMap<>();
 
+  // Target graph shared with the previous queries of the daemon, which only needs to be extended
+  // with the nodes that are new or were invalidated since.
+  private final TargetGraphIndex targetGraphIndex;
+
+  // Targets whose transitive closure makes up the target graph of this environment.
+  private final Set<BuildTarget> closureRoots = new LinkedHashSet<>();
+
   // Query execution is single threaded, however the buildTransitiveClosure implementation
   // traverses the graph in parallel.
-  private MutableDirectedGraph<TargetNode<?, ?>> graph = MutableDirectedGraph.createConcurrent();
   private Map<BuildTarget, TargetNode<?, ?>> targetsToNodes = new ConcurrentHashMap<>();
 
   @VisibleForTesting
@@ -117,6 +127,7 @@ public class BuckQueryEnvironment implements QueryEnvironment {
     this.parser = parser;
     this.eventBus = eventBus;
     this.parserState = parserState;
+    this.targetGraphIndex = parser.getPermState().getTargetGraphIndex();
     this.rootCell = rootCell;
     this.ownersReportBuilder = ownersReportBuilder;
     this.buildFileTrees =
@@ -177,9 +188,33 @@ public class BuckQueryEnvironment implements QueryEnvironment {
   }
 
   public DirectedAcyclicGraph<TargetNode<?, ?>> getTargetGraph() {
+    MutableDirectedGraph<TargetNode<?, ?>> graph = new MutableDirectedGraph<>();
+    ImmutableSet<TargetNode<?, ?>> roots =
+        closureRoots
+            .stream()
+            .map(target -> getIndexedNode(target))
+            .collect(ImmutableSet.toImmutableSet());
+    new AbstractBreadthFirstTraversal<TargetNode<?, ?>>(roots) {
+      @Override
+      public Iterable<TargetNode<?, ?>> visit(TargetNode<?, ?> node) {
+        ImmutableSet<TargetNode<?, ?>> deps = targetGraphIndex.getOutgoingNodesFor(node);
+        graph.addNode(node);
+        deps.forEach(dep -> graph.addEdge(node, dep));
+        return deps;
+      }
+    }.start();
     return new DirectedAcyclicGraph<>(graph);
   }
 
+  private TargetNode<?, ?> getIndexedNode(BuildTarget target) {
+    return targetGraphIndex
+        .getNode(target)
+        .orElseThrow(
+            () ->
+                new IllegalStateException(
+                    String.format("Node %s should have been added to the index.", target)));
+  }
+
   public PerBuildState getParserState() {
     return parserState;
   }
@@ -269,7 +304,7 @@ public class BuckQueryEnvironment implements QueryEnvironment {
     ImmutableSet.Builder<QueryTarget> result = new ImmutableSet.Builder<>();
     for (QueryTarget target : targets) {
       TargetNode<?, ?> node = getNode(target);
-      result.addAll(getTargetsFromTargetNodes(graph.getOutgoingNodesFor(node)));
+      result.addAll(getTargetsFromTargetNodes(targetGraphIndex.getOutgoingNodesFor(node)));
     }
     return result.build();
   }
@@ -279,7 +314,7 @@ public class BuckQueryEnvironment implements QueryEnvironment {
     Set<QueryTarget> result = new LinkedHashSet<>();
     for (QueryTarget target : targets) {
       TargetNode<?, ?> node = getNode(target);
-      result.addAll(getTargetsFromTargetNodes(graph.getIncomingNodesFor(node)));
+      result.addAll(getTargetsFromTargetNodes(targetGraphIndex.getIncomingNodesFor(node)));
     }
     return result;
   }
@@ -307,10 +342,7 @@ public class BuckQueryEnvironment implements QueryEnvironment {
       @Override
       public Iterable<TargetNode<?, ?>> visit(TargetNode<?, ?> node) {
         result.add(getOrCreateQueryBuildTarget(node.getBuildTarget()));
-        return node.getParseDeps()
-            .stream()
-            .map(targetsToNodes::get)
-            .collect(ImmutableSet.toImmutableSet());
+        return targetGraphIndex.getOutgoingNodesFor(node);
       }
     }.start();
 
@@ -319,13 +351,29 @@ public class BuckQueryEnvironment implements QueryEnvironment {
 
   @Override
   public void buildTransitiveClosure(Set<QueryTarget> targets, int maxDepth) throws QueryException {
-    // Filter QueryTargets that are build targets and not yet present in the build target graph.
-    ImmutableSet<BuildTarget> newBuildTargets =
+    ImmutableSet<BuildTarget> buildTargets =
         targets
             .stream()
             .filter(target -> target instanceof QueryBuildTarget)
             .map(target -> ((QueryBuildTarget) target).getBuildTarget())
-            .filter(buildTarget -> !targetsToNodes.containsKey(buildTarget))
+            .collect(ImmutableSet.toImmutableSet());
+    closureRoots.addAll(buildTargets);
+
+    // File changes can invalidate indexed nodes while new nodes that depend on them are added. The
+    // new nodes can't be added then, and are retried once the invalidated nodes are rediscovered.
+    while (!indexTransitiveClosure(buildTargets)) {
+      LOG.debug("Dependencies of %s were invalidated while indexing them, retrying.", buildTargets);
+    }
+  }
+
+  /** @return whether all of {@code buildTargets} were added to the index. */
+  private boolean indexTransitiveClosure(ImmutableSet<BuildTarget> buildTargets)
+      throws QueryException {
+    // Filter build targets that are not yet present in the build target graph.
+    ImmutableSet<BuildTarget> newBuildTargets =
+        buildTargets
+            .stream()
+            .filter(buildTarget -> !targetGraphIndex.contains(buildTarget))
             .collect(ImmutableSet.toImmutableSet());
 
     // TODO(mkosiba): This looks more and more like the Parser.buildTargetGraph method. Unify the
@@ -353,12 +401,6 @@ public class BuckQueryEnvironment implements QueryEnvironment {
 
     GraphTraversable<BuildTarget> traversable =
         target -> {
-          TargetNode<?, ?> node =
-              Preconditions.checkNotNull(
-                  targetsToNodes.get(target),
-                  "Node %s should have been discovered by `discoverNewTargetsConcurrently`.",
-                  target);
-
           // If a node has been added to the graph it means it and all of its children have been
           // visited by an acyclic traversal and added to the graph. From this it follows that there
           // are no outgoing edges from the graph (as it had been "fully" explored before) back out
@@ -366,26 +408,31 @@ public class BuckQueryEnvironment implements QueryEnvironment {
           //  - we can't have a cycle involving the "old" nodes,
           //  - there are no new edges or nodes to be discovered by descending into the "old" nodes,
           // making this node safe to skip.
-          if (graph.getNodes().contains(node)) {
+          if (targetGraphIndex.contains(target)) {
             return ImmutableSet.<BuildTarget>of().iterator();
           }
+          TargetNode<?, ?> node =
+              Preconditions.checkNotNull(
+                  targetsToNodes.get(target),
+                  "Node %s should have been discovered by `discoverNewTargetsConcurrently`.",
+                  target);
           return node.getParseDeps().iterator();
         };
 
     AcyclicDepthFirstPostOrderTraversal<BuildTarget> targetNodeTraversal =
         new AcyclicDepthFirstPostOrderTraversal<>(traversable);
+    boolean addedAllNodes = true;
     try {
       for (BuildTarget buildTarget : targetNodeTraversal.traverse(newBuildTargets)) {
-        TargetNode<?, ?> node =
-            Preconditions.checkNotNull(
-                targetsToNodes.get(buildTarget), "Couldn't find TargetNode for %s", buildTarget);
-        graph.addNode(node);
-        for (BuildTarget dep : node.getParseDeps()) {
-          graph.addEdge(
-              node,
-              Preconditions.checkNotNull(
-                  targetsToNodes.get(dep), "Couldn't find TargetNode for %s", dep));
+        if (targetGraphIndex.contains(buildTarget)) {
+          continue;
         }
+        addedAllNodes &=
+            targetGraphIndex.addNode(
+                Preconditions.checkNotNull(
+                    targetsToNodes.get(buildTarget),
+                    "Couldn't find TargetNode for %s",
+                    buildTarget));
       }
     } catch (AcyclicDepthFirstPostOrderTraversal.CycleException e) {
       throw new QueryException(e, e.getMessage());
@@ -396,11 +443,15 @@ public class BuckQueryEnvironment implements QueryEnvironment {
         buildTargetToQueryTarget.put(buildTarget, QueryBuildTarget.of(buildTarget));
       }
     }
+    return addedAllNodes;
   }
 
   private Optional<ListenableFuture<Void>> discoverNewTargetsConcurrently(
       BuildTarget buildTarget, ConcurrentHashMap<BuildTarget, ListenableFuture<Void>> jobsCache)
       throws BuildFileParseException {
+    if (targetGraphIndex.contains(buildTarget)) {
+      return Optional.empty();
+    }
     ListenableFuture<Void> job = jobsCache.get(buildTarget);
     if (job != null) {
       return Optional.empty();
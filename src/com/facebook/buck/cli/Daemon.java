@@ -35,28 +35,41 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.parser.DefaultParser;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.parser.ParserConfig;
+import com.facebook.buck.parser.ParserStateSnapshot;
 import com.facebook.buck.parser.TargetSpecResolver;
 import com.facebook.buck.rules.coercer.ConstructorArgMarshaller;
 import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
+import com.facebook.buck.rules.keys.CompactRuleKeyCache;
 import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
+import com.facebook.buck.rules.keys.config.impl.BuckVersion;
 import com.facebook.buck.util.RichStream;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
 import com.facebook.buck.util.cache.impl.WatchedFileHashCache;
 import com.facebook.buck.versions.VersionedTargetGraphCache;
+import com.facebook.buck.worker.WorkerPoolManager;
 import com.facebook.buck.worker.WorkerProcessPool;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Daemon used to monitor the file system and cache build rules between Main() method invocations is
@@ -66,6 +79,12 @@ import java.util.concurrent.ConcurrentMap;
 final class Daemon implements Closeable {
   private static final Logger LOG = Logger.get(Daemon.class);
 
+  private static final String PARSER_STATE_FILE_NAME = "parser_state";
+
+  // Commands that follow each other closely share one save of the daemon state.
+  private static final long STATE_SAVE_DELAY_SECONDS = 10;
+  private static final long STATE_SAVE_TIMEOUT_SECONDS = 60;
+
   private final Cell rootCell;
   private final TypeCoercerFactory typeCoercerFactory;
   private final Parser parser;
@@ -73,11 +92,22 @@ final class Daemon implements Closeable {
   private final EventBus fileEventBus;
   private final Optional<WebServer> webServer;
   private final ConcurrentMap<String, WorkerProcessPool> persistentWorkerPools;
+  private final WorkerPoolManager workerPoolManager;
   private final VersionedTargetGraphCache versionedTargetGraphCache;
   private final ActionGraphCache actionGraphCache;
   private final RuleKeyCacheRecycler<RuleKey> defaultRuleKeyFactoryCacheRecycler;
   private final ImmutableMap<Path, WatchmanCursor> cursor;
   private final KnownBuildRuleTypesProvider knownBuildRuleTypesProvider;
+  private final Optional<Path> parserStatePath;
+  private final ScheduledExecutorService stateSaver;
+
+  @GuardedBy("this")
+  @Nullable
+  private ScheduledFuture<?> pendingStateSave;
+
+  // Whether the parser state was restored from a snapshot and the changes since the Watchman clocks
+  // it was saved with are yet to be applied.
+  private volatile boolean parserStateRestored = false;
 
   Daemon(
       Cell rootCell,
@@ -95,7 +125,9 @@ final class Daemon implements Closeable {
         subCell -> {
           WatchedFileHashCache watchedCache =
               new WatchedFileHashCache(
-                  subCell.getFilesystem(), rootCell.getBuckConfig().getFileHashCacheMode());
+                  subCell.getFilesystem(),
+                  rootCell.getBuckConfig().getFileHashCacheMode(),
+                  rootCell.getBuckConfig().isFileHashCachePersistent());
           fileEventBus.register(watchedCache);
           hashCachesBuilder.add(watchedCache);
         });
@@ -105,7 +137,9 @@ final class Daemon implements Closeable {
     this.hashCaches = hashCachesBuilder.build();
 
     this.actionGraphCache =
-        new ActionGraphCache(rootCell.getBuckConfig().getMaxActionGraphCacheEntries());
+        new ActionGraphCache(
+            rootCell.getBuckConfig().getMaxActionGraphCacheEntries(),
+            rootCell.getBuckConfig().getIncrementalActionGraphMaxUnusedBuilds());
     this.versionedTargetGraphCache = new VersionedTargetGraphCache();
     this.knownBuildRuleTypesProvider = knownBuildRuleTypesProvider;
 
@@ -121,10 +155,13 @@ final class Daemon implements Closeable {
     parser.register(fileEventBus);
 
     // Build the the rule key cache recycler.
+    BuckConfig buckConfig = rootCell.getBuckConfig();
     this.defaultRuleKeyFactoryCacheRecycler =
         RuleKeyCacheRecycler.createAndRegister(
             fileEventBus,
-            new DefaultRuleKeyCache<>(),
+            buckConfig.isRuleKeyCacheCompact()
+                ? new CompactRuleKeyCache<>(buckConfig.getRuleKeyCacheMaxEntries())
+                : new DefaultRuleKeyCache<>(),
             RichStream.from(allCells).map(Cell::getFilesystem).toImmutableSet());
 
     if (webServerToReuse.isPresent()) {
@@ -135,9 +172,11 @@ final class Daemon implements Closeable {
     if (!initWebServer()) {
       LOG.warn("Can't start web server");
     }
-    if (rootCell.getBuckConfig().getView(ParserConfig.class).getWatchmanCursor()
-            == WatchmanWatcher.CursorType.CLOCK_ID
-        && !rootCell.getWatchman().getClockIds().isEmpty()) {
+    ParserConfig parserConfig = rootCell.getBuckConfig().getView(ParserConfig.class);
+    boolean useClockCursors =
+        parserConfig.getWatchmanCursor() == WatchmanWatcher.CursorType.CLOCK_ID
+            && !rootCell.getWatchman().getClockIds().isEmpty();
+    if (useClockCursors) {
       cursor = rootCell.getWatchman().buildClockWatchmanCursorMap();
     } else {
       LOG.debug("Falling back to named cursors: %s", rootCell.getWatchman().getProjectWatches());
@@ -145,6 +184,23 @@ final class Daemon implements Closeable {
     }
     LOG.debug("Using Watchman Cursor: %s", cursor);
     persistentWorkerPools = new ConcurrentHashMap<>();
+    workerPoolManager = new WorkerPoolManager();
+    stateSaver =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("daemon-state-saver").build());
+
+    // The parser state can only be persisted with clock cursors, as named cursors can't tell what
+    // changed since a clock saved by another daemon.
+    if (parserConfig.isParserStatePersistent() && useClockCursors) {
+      ProjectFilesystem filesystem = rootCell.getFilesystem();
+      parserStatePath =
+          Optional.of(
+              filesystem.resolve(
+                  filesystem.getBuckPaths().getBuckOut().resolve(PARSER_STATE_FILE_NAME)));
+      restoreParserState(parserStatePath.get());
+    } else {
+      parserStatePath = Optional.empty();
+    }
   }
 
   Cell getRootCell() {
@@ -220,6 +276,10 @@ final class Daemon implements Closeable {
     return persistentWorkerPools;
   }
 
+  WorkerPoolManager getWorkerPoolManager() {
+    return workerPoolManager;
+  }
+
   RuleKeyCacheRecycler<RuleKey> getDefaultRuleKeyFactoryCacheRecycler() {
     return defaultRuleKeyFactoryCacheRecycler;
   }
@@ -251,7 +311,14 @@ final class Daemon implements Closeable {
       FileHashCacheEvent.InvalidationStarted started = FileHashCacheEvent.invalidationStarted();
       eventBus.post(started);
       try {
-        watchmanWatcher.postEvents(eventBus, watchmanFreshInstanceAction);
+        // The restored parser state is only valid if Watchman can tell what changed since it was
+        // saved, so invalidate it if Watchman restarted since.
+        watchmanWatcher.postEvents(
+            eventBus,
+            parserStateRestored
+                ? WatchmanWatcher.FreshInstanceAction.POST_OVERFLOW_EVENT
+                : watchmanFreshInstanceAction);
+        parserStateRestored = false;
       } finally {
         eventBus.post(FileHashCacheEvent.invalidationFinished(started));
         hashCaches.forEach(
@@ -265,6 +332,88 @@ final class Daemon implements Closeable {
     }
   }
 
+  /**
+   * Saves the file hashes and the parser state in the background shortly after a command, rather
+   * than only on shutdown, as the daemon is usually killed rather than shut down cleanly. Saves
+   * requested while one is pending are coalesced.
+   */
+  synchronized void scheduleStateSave() {
+    if (stateSaver.isShutdown() || (pendingStateSave != null && !pendingStateSave.isDone())) {
+      return;
+    }
+    pendingStateSave =
+        stateSaver.schedule(this::saveState, STATE_SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+  }
+
+  @VisibleForTesting
+  void saveState() {
+    saveFileHashes();
+    saveParserState();
+  }
+
+  /** Saves the file hashes computed so far, so that a restarted daemon doesn't recompute them. */
+  private void saveFileHashes() {
+    for (ProjectFileHashCache hashCache : hashCaches) {
+      if (hashCache instanceof WatchedFileHashCache) {
+        try {
+          ((WatchedFileHashCache) hashCache).saveHashes();
+        } catch (IOException e) {
+          LOG.warn(e, "Failed to save file hashes of %s", hashCache.getFilesystem().getRootPath());
+        }
+      }
+    }
+  }
+
+  /**
+   * Restores the parser state saved by a previous daemon, and starts watching for file changes
+   * from the Watchman clocks it was saved with, so that the build files that changed since are
+   * invalidated before the first command.
+   */
+  private void restoreParserState(Path snapshotPath) {
+    Optional<ParserStateSnapshot> snapshot =
+        ParserStateSnapshot.load(snapshotPath, BuckVersion.getVersion());
+    if (!snapshot.isPresent()) {
+      return;
+    }
+    ImmutableMap<String, String> clocks = snapshot.get().getWatchmanClocks();
+    for (Path cellPath : cursor.keySet()) {
+      if (!clocks.containsKey(rootCell.getRoot().relativize(cellPath).toString())) {
+        LOG.debug("Not restoring parser state without a Watchman clock for %s.", cellPath);
+        return;
+      }
+    }
+    for (Map.Entry<Path, WatchmanCursor> entry : cursor.entrySet()) {
+      entry.getValue().set(clocks.get(rootCell.getRoot().relativize(entry.getKey()).toString()));
+    }
+    int buildFiles = parser.getPermState().restoreSnapshot(snapshot.get(), rootCell);
+    parserStateRestored = true;
+    LOG.info("Restored the raw nodes of %d build files from %s.", buildFiles, snapshotPath);
+  }
+
+  /** Saves the parser state, so that a restarted daemon only reparses what changed since. */
+  private void saveParserState() {
+    if (!parserStatePath.isPresent()) {
+      return;
+    }
+    // Watchman advances the clocks before it posts the changes since the previous clocks, so
+    // synchronize with watchFileSystem to never save new clocks with the state they invalidate.
+    synchronized (parser) {
+      ImmutableMap.Builder<String, String> clocks = ImmutableMap.builder();
+      for (Map.Entry<Path, WatchmanCursor> entry : cursor.entrySet()) {
+        clocks.put(
+            rootCell.getRoot().relativize(entry.getKey()).toString(), entry.getValue().get());
+      }
+      try {
+        parser
+            .getPermState()
+            .saveSnapshot(
+                parserStatePath.get(), rootCell, clocks.build(), BuckVersion.getVersion());
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to save parser state to %s", parserStatePath.get());
+      }
+    }
+  }
+
   /** @return true if the web server was started successfully. */
   private boolean initWebServer() {
     if (webServer.isPresent()) {
@@ -291,10 +440,27 @@ final class Daemon implements Closeable {
 
   @Override
   public void close() {
+    shutdownStateSaver();
     shutdownPersistentWorkerPools();
     shutdownWebServer();
   }
 
+  /** Saves the state one last time, on the saver thread so that it doesn't race a pending save. */
+  private synchronized void shutdownStateSaver() {
+    if (pendingStateSave != null) {
+      pendingStateSave.cancel(false);
+    }
+    stateSaver.execute(this::saveState);
+    stateSaver.shutdown();
+    try {
+      if (!stateSaver.awaitTermination(STATE_SAVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOG.warn("Timed out saving the daemon state.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   private void shutdownPersistentWorkerPools() {
     for (WorkerProcessPool pool : persistentWorkerPools.values()) {
       try {
@@ -303,6 +469,7 @@ final class Daemon implements Closeable {
         LOG.error(e);
       }
     }
+    workerPoolManager.close();
   }
 
   private void shutdownWebServer() {
@@ -161,6 +161,7 @@ import com.facebook.buck.util.versioncontrol.VersionControlBuckConfig;
 import com.facebook.buck.util.versioncontrol.VersionControlStatsGenerator;
 import com.facebook.buck.versions.InstrumentedVersionedTargetGraphCache;
 import com.facebook.buck.versions.VersionedTargetGraphCache;
+import com.facebook.buck.worker.WorkerPoolManager;
 import com.facebook.buck.worker.WorkerProcessPool;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
@@ -802,6 +803,7 @@ public final class Main {
       Optional<WebServer> webServer = daemon.flatMap(Daemon::getWebServer);
       Optional<ConcurrentMap<String, WorkerProcessPool>> persistentWorkerPools =
           daemon.map(Daemon::getPersistentWorkerPools);
+      Optional<WorkerPoolManager> workerPoolManager = daemon.map(Daemon::getWorkerPoolManager);
 
       TestConfig testConfig = new TestConfig(buckConfig);
       ArtifactCacheBuckConfig cacheBuckConfig = new ArtifactCacheBuckConfig(buckConfig);
@@ -1164,6 +1166,7 @@ public final class Main {
                         processManager,
                         webServer,
                         persistentWorkerPools,
+                        workerPoolManager,
                         buckConfig,
                         fileHashCache,
                         executors,
@@ -1215,6 +1218,8 @@ public final class Main {
             context.get().exit(exitCode.getCode());
           }
 
+          daemon.ifPresent(Daemon::scheduleStateSave);
+
           // TODO(buck_team): refactor eventListeners for RAII
           flushAndCloseEventListeners(console, eventListeners);
         }
@@ -22,6 +22,7 @@ import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.model.BuildFileTree;
 import com.facebook.buck.parser.Parser;
+import com.facebook.buck.parser.TargetGraphIndex;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.util.Optionals;
 import com.facebook.buck.util.RichStream;
@@ -176,22 +177,37 @@ final class OwnersReport {
         Path cellRelativePath) {
       Path buckFile = cell.getFilesystem().resolve(basePath).resolve(cell.getBuildFileName());
       ImmutableSet<TargetNode<?, ?>> targetNodes =
-          map.computeIfAbsent(
-              buckFile,
-              basePath1 -> {
-                try {
-                  return parser.getAllTargetNodes(
-                      eventBus, cell, /* enable profiling */ false, executor, basePath1);
-                } catch (BuildFileParseException e) {
-                  throw new HumanReadableException(e);
-                }
-              });
+          map.computeIfAbsent(buckFile, buildFile -> getAllTargetNodes(executor, cell, buildFile));
       return targetNodes
           .stream()
           .map(targetNode -> generateOwnersReport(cell, targetNode, cellRelativePath.toString()))
           .reduce(OwnersReport.emptyReport(), OwnersReport::updatedWith);
     }
 
+    /**
+     * @return The nodes of all targets defined in {@code buildFile}, which are shared with the
+     *     previous commands of the daemon until the build file changes.
+     */
+    private ImmutableSet<TargetNode<?, ?>> getAllTargetNodes(
+        ListeningExecutorService executor, Cell cell, Path buildFile) {
+      TargetGraphIndex targetGraphIndex = parser.getPermState().getTargetGraphIndex();
+      Optional<ImmutableSet<TargetNode<?, ?>>> indexedNodes =
+          targetGraphIndex.getBuildFileNodes(buildFile);
+      if (indexedNodes.isPresent()) {
+        return indexedNodes.get();
+      }
+      ImmutableSet<TargetNode<?, ?>> targetNodes;
+      try {
+        targetNodes =
+            parser.getAllTargetNodes(
+                eventBus, cell, /* enable profiling */ false, executor, buildFile);
+      } catch (BuildFileParseException e) {
+        throw new HumanReadableException(e);
+      }
+      targetGraphIndex.putBuildFileNodes(buildFile, targetNodes);
+      return targetNodes;
+    }
+
     private ImmutableSet<Path> getAllBasePathsForPath(
         BuildFileTree buildFileTree, Path cellRelativePath) {
       Collection<Path> pathTree =
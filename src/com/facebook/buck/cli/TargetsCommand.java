@@ -89,7 +89,9 @@ import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.StringWriter;
@@ -103,6 +105,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.SortedMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
@@ -116,6 +120,9 @@ public class TargetsCommand extends AbstractCommand {
 
   private static final Logger LOG = Logger.get(TargetsCommand.class);
 
+  /** Maximum number of targets whose results are computed at the same time when streaming. */
+  private static final int MAX_PENDING_STREAMED_TARGETS = 1024;
+
   // TODO(mbolin): Use org.kohsuke.args4j.spi.PathOptionHandler. Currently, we resolve paths
   // manually, which is likely the path to madness.
   @Option(
@@ -193,6 +200,14 @@ public class TargetsCommand extends AbstractCommand {
       usage = "Show rule keys of transitive deps as well.")
   private boolean isShowTransitiveRuleKeys;
 
+  @Option(
+      name = "--streaming",
+      forbids = {"--show-target-hash", "--show-transitive-rulekeys"},
+      usage =
+          "With '--show-rulekey', '--show-output' or '--show-full-output', print each target as "
+              + "soon as its results are computed, instead of sorting all targets first.")
+  private boolean isStreaming;
+
   @Option(
       name = "--show-target-hash",
       forbids = {"--show-rulekey"},
@@ -372,6 +387,16 @@ public class TargetsCommand extends AbstractCommand {
         useVersioning
             ? toVersionedTargetGraph(params, targetGraphAndBuildTargetsForShowRules)
             : targetGraphAndBuildTargetsForShowRules;
+    if (isStreaming && (isShowRuleKey || isShowOutput || isShowFullOutput)) {
+      streamShowRules(
+          params,
+          executor,
+          targetGraphAndBuildTargetsForShowRules.getTargetGraph(),
+          targetGraphAndBuildTargetsForShowRules
+              .getTargetGraph()
+              .getAll(targetGraphAndBuildTargetsForShowRules.getBuildTargets()));
+      return ExitCode.SUCCESS;
+    }
     showRulesResult =
         computeShowRules(
             params,
@@ -651,18 +676,21 @@ public class TargetsCommand extends AbstractCommand {
       Map<BuildTarget, TargetResult> showRulesResult, CommandRunnerParams params) {
     for (Entry<BuildTarget, TargetResult> entry :
         ImmutableSortedMap.copyOf(showRulesResult).entrySet()) {
-      ImmutableList.Builder<String> builder = ImmutableList.builder();
-      builder.add(entry.getKey().getFullyQualifiedName());
-      TargetResult targetResult = entry.getValue();
-      targetResult.getRuleKey().ifPresent(builder::add);
-      if (isShowCellPath) {
-        builder.add(entry.getKey().getCellPath().toString());
-      }
-      targetResult.getOutputPath().ifPresent(builder::add);
-      targetResult.getGeneratedSourcePath().ifPresent(builder::add);
-      targetResult.getTargetHash().ifPresent(builder::add);
-      params.getConsole().getStdOut().println(Joiner.on(' ').join(builder.build()));
+      params.getConsole().getStdOut().println(getShowRulesLine(entry.getKey(), entry.getValue()));
+    }
+  }
+
+  private String getShowRulesLine(BuildTarget target, TargetResult targetResult) {
+    ImmutableList.Builder<String> builder = ImmutableList.builder();
+    builder.add(target.getFullyQualifiedName());
+    targetResult.getRuleKey().ifPresent(builder::add);
+    if (isShowCellPath) {
+      builder.add(target.getCellPath().toString());
     }
+    targetResult.getOutputPath().ifPresent(builder::add);
+    targetResult.getGeneratedSourcePath().ifPresent(builder::add);
+    targetResult.getTargetHash().ifPresent(builder::add);
+    return Joiner.on(' ').join(builder.build());
   }
 
   @Override
@@ -792,64 +820,20 @@ public class TargetsCommand extends AbstractCommand {
 
     Iterator<TargetNode<?, ?>> targetNodeIterator = targetNodes.iterator();
 
-    try (PerBuildState state =
-        new PerBuildStateFactory()
-            .create(
-                params.getTypeCoercerFactory(),
-                params.getParser().getPermState(),
-                new ConstructorArgMarshaller(params.getTypeCoercerFactory()),
-                params.getBuckEventBus(),
-                new ParserPythonInterpreterProvider(
-                    params.getCell().getBuckConfig(), params.getExecutableFinder()),
-                executor,
-                params.getCell(),
-                params.getKnownBuildRuleTypesProvider(),
-                getEnableParserProfiling(),
-                SpeculativeParsing.DISABLED)) {
-
+    try (PerBuildState state = createPerBuildState(params, executor)) {
       while (targetNodeIterator.hasNext()) {
         TargetNode<?, ?> targetNode = targetNodeIterator.next();
-        @Nullable
-        Map<String, Object> targetNodeAttributes =
-            params.getParser().getTargetNodeRawAttributes(state, params.getCell(), targetNode);
-        if (targetNodeAttributes == null) {
-          params
-              .getBuckEventBus()
-              .post(
-                  ConsoleEvent.warning(
-                      "unable to find rule for target "
-                          + targetNode.getBuildTarget().getFullyQualifiedName()));
+        Optional<String> json =
+            getJsonForTarget(
+                params,
+                state,
+                attributesPatternsMatcher,
+                targetNode,
+                targetResults.get(targetNode.getBuildTarget()));
+        if (!json.isPresent()) {
           continue;
         }
-
-        @Nullable TargetResult targetResult = targetResults.get(targetNode.getBuildTarget());
-        if (targetResult != null) {
-          for (TargetResultFieldName field : TargetResultFieldName.values()) {
-            field
-                .getter
-                .apply(targetResult)
-                .ifPresent(value -> targetNodeAttributes.put(field.name, value));
-          }
-        }
-        targetNodeAttributes.put(
-            "fully_qualified_name", targetNode.getBuildTarget().getFullyQualifiedName());
-        if (isShowCellPath) {
-          targetNodeAttributes.put("buck.cell_path", targetNode.getBuildTarget().getCellPath());
-        }
-
-        // Print the build rule information as JSON.
-        StringWriter stringWriter = new StringWriter();
-        try {
-          ObjectMappers.WRITER
-              .withDefaultPrettyPrinter()
-              .writeValue(
-                  stringWriter,
-                  attributesPatternsMatcher.filterMatchingMapKeys(targetNodeAttributes));
-        } catch (IOException e) {
-          // Shouldn't be possible while writing to a StringWriter...
-          throw new RuntimeException(e);
-        }
-        params.getConsole().getStdOut().print(stringWriter.getBuffer().toString());
+        params.getConsole().getStdOut().print(json.get());
         if (targetNodeIterator.hasNext()) {
           params.getConsole().getStdOut().print(',');
         }
@@ -860,6 +844,75 @@ public class TargetsCommand extends AbstractCommand {
     params.getConsole().getStdOut().println("]");
   }
 
+  private PerBuildState createPerBuildState(
+      CommandRunnerParams params, ListeningExecutorService executor) {
+    return new PerBuildStateFactory()
+        .create(
+            params.getTypeCoercerFactory(),
+            params.getParser().getPermState(),
+            new ConstructorArgMarshaller(params.getTypeCoercerFactory()),
+            params.getBuckEventBus(),
+            new ParserPythonInterpreterProvider(
+                params.getCell().getBuckConfig(), params.getExecutableFinder()),
+            executor,
+            params.getCell(),
+            params.getKnownBuildRuleTypesProvider(),
+            getEnableParserProfiling(),
+            SpeculativeParsing.DISABLED);
+  }
+
+  /**
+   * @return The pretty printed JSON representation of the build node of {@code targetNode} together
+   *     with its results, or nothing if the node cannot be found.
+   */
+  private Optional<String> getJsonForTarget(
+      CommandRunnerParams params,
+      PerBuildState state,
+      PatternsMatcher attributesPatternsMatcher,
+      TargetNode<?, ?> targetNode,
+      @Nullable TargetResult targetResult)
+      throws BuildFileParseException {
+    @Nullable
+    Map<String, Object> targetNodeAttributes =
+        params.getParser().getTargetNodeRawAttributes(state, params.getCell(), targetNode);
+    if (targetNodeAttributes == null) {
+      params
+          .getBuckEventBus()
+          .post(
+              ConsoleEvent.warning(
+                  "unable to find rule for target "
+                      + targetNode.getBuildTarget().getFullyQualifiedName()));
+      return Optional.empty();
+    }
+
+    if (targetResult != null) {
+      for (TargetResultFieldName field : TargetResultFieldName.values()) {
+        field
+            .getter
+            .apply(targetResult)
+            .ifPresent(value -> targetNodeAttributes.put(field.name, value));
+      }
+    }
+    targetNodeAttributes.put(
+        "fully_qualified_name", targetNode.getBuildTarget().getFullyQualifiedName());
+    if (isShowCellPath) {
+      targetNodeAttributes.put("buck.cell_path", targetNode.getBuildTarget().getCellPath());
+    }
+
+    // Print the build rule information as JSON.
+    StringWriter stringWriter = new StringWriter();
+    try {
+      ObjectMappers.WRITER
+          .withDefaultPrettyPrinter()
+          .writeValue(
+              stringWriter, attributesPatternsMatcher.filterMatchingMapKeys(targetNodeAttributes));
+    } catch (IOException e) {
+      // Shouldn't be possible while writing to a StringWriter...
+      throw new RuntimeException(e);
+    }
+    return Optional.of(stringWriter.getBuffer().toString());
+  }
+
   @VisibleForTesting
   static void printNullDelimitedTargets(Iterable<String> targets, PrintStream printStream) {
     for (String target : targets) {
@@ -915,43 +968,12 @@ public class TargetsCommand extends AbstractCommand {
 
     try (ThriftRuleKeyLogger ruleKeyLogger = createRuleKeyLogger().orElse(null)) {
       if (isShowRuleKey || isShowOutput || isShowFullOutput) {
-        ActionGraphAndBuilder result =
-            params
-                .getActionGraphCache()
-                .getActionGraph(
-                    params.getBuckEventBus(),
-                    targetGraphAndTargetNodes.getFirst(),
-                    params.getCell().getCellProvider(),
-                    params.getBuckConfig(),
-                    params.getRuleKeyConfiguration(),
-                    params.getPoolSupplier());
+        ActionGraphAndBuilder result = getActionGraph(params, targetGraphAndTargetNodes.getFirst());
         actionGraph = Optional.of(result.getActionGraph());
         graphBuilder = Optional.of(result.getActionGraphBuilder());
         if (isShowRuleKey) {
-          SourcePathRuleFinder ruleFinder =
-              new SourcePathRuleFinder(result.getActionGraphBuilder());
-
-          try (RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
-              getDefaultRuleKeyCacheScope(
-                  params,
-                  new RuleKeyCacheRecycler.SettingsAffectingCache(
-                      params.getBuckConfig().getKeySeed(), result.getActionGraph()))) {
-
-            // Setup a parallel rule key calculator to use when building rule keys.
-            ruleKeyCalculator =
-                Optional.of(
-                    new ParallelRuleKeyCalculator<>(
-                        executor,
-                        new DefaultRuleKeyFactory(
-                            new RuleKeyFieldLoader(params.getRuleKeyConfiguration()),
-                            params.getFileHashCache(),
-                            DefaultSourcePathResolver.from(ruleFinder),
-                            ruleFinder,
-                            ruleKeyCacheScope.getCache(),
-                            Optional.ofNullable(ruleKeyLogger)),
-                        new DefaultRuleDepsCache(graphBuilder.get()),
-                        (eventBus, rule) -> () -> {}));
-          }
+          ruleKeyCalculator =
+              Optional.of(createRuleKeyCalculator(params, executor, result, ruleKeyLogger));
         }
       } else {
         actionGraph = Optional.empty();
@@ -1002,27 +1024,11 @@ public class TargetsCommand extends AbstractCommand {
           BuildRule rule = graphBuilder.get().requireRule(target);
           builder.setRuleType(rule.getType());
           if (isShowOutput || isShowFullOutput) {
-            getUserFacingOutputPath(
-                    DefaultSourcePathResolver.from(new SourcePathRuleFinder(graphBuilder.get())),
-                    rule,
-                    params.getBuckConfig().getBuckOutCompatLink())
-                .map(
-                    path ->
-                        isShowFullOutput ? path : params.getCell().getFilesystem().relativize(path))
-                .ifPresent(path -> builder.setOutputPath(path.toString()));
-            // If the output dir is requested, also calculate the generated src dir
-            if (rule instanceof JavaLibrary) {
-              ((JavaLibrary) rule)
-                  .getGeneratedSourcePath()
-                  .map(
-                      path -> {
-                        Path rootPath = params.getCell().getFilesystem().getRootPath();
-                        Path sameFsPath = rootPath.resolve(path.toString());
-                        Path returnPath = isShowFullOutput ? path : rootPath.relativize(sameFsPath);
-                        return returnPath.toString();
-                      })
-                  .ifPresent(builder::setGeneratedSourcePath);
-            }
+            setOutputPaths(
+                params,
+                DefaultSourcePathResolver.from(new SourcePathRuleFinder(graphBuilder.get())),
+                rule,
+                builder);
           }
         }
       }
@@ -1036,6 +1042,182 @@ public class TargetsCommand extends AbstractCommand {
     }
   }
 
+  /**
+   * Prints the rule key and outputs of each of {@code targetNodes} as soon as they are computed,
+   * rather than once all of them are known. Rule keys are computed in parallel, and at most {@link
+   * #MAX_PENDING_STREAMED_TARGETS} targets are waited for at the same time so that the results
+   * waiting to be printed stay bounded.
+   */
+  private void streamShowRules(
+      CommandRunnerParams params,
+      ListeningExecutorService executor,
+      TargetGraph targetGraph,
+      Iterable<TargetNode<?, ?>> targetNodes)
+      throws IOException, InterruptedException, BuildFileParseException {
+    try (ThriftRuleKeyLogger ruleKeyLogger = createRuleKeyLogger().orElse(null);
+        PerBuildState state =
+            shouldUseJsonFormat() ? createPerBuildState(params, executor) : null) {
+      ActionGraphAndBuilder actionGraph = getActionGraph(params, targetGraph);
+      ActionGraphBuilder graphBuilder = actionGraph.getActionGraphBuilder();
+      SourcePathResolver pathResolver =
+          DefaultSourcePathResolver.from(new SourcePathRuleFinder(graphBuilder));
+      Optional<ParallelRuleKeyCalculator<RuleKey>> ruleKeyCalculator =
+          isShowRuleKey
+              ? Optional.of(createRuleKeyCalculator(params, executor, actionGraph, ruleKeyLogger))
+              : Optional.empty();
+
+      StreamedResultPrinter printer = new StreamedResultPrinter(params, state);
+      printer.start();
+      BlockingQueue<Pair<TargetNode<?, ?>, ListenableFuture<TargetResult>>> completedResults =
+          new ArrayBlockingQueue<>(MAX_PENDING_STREAMED_TARGETS);
+      int pendingResults = 0;
+      for (TargetNode<?, ?> targetNode : targetNodes) {
+        if (pendingResults == MAX_PENDING_STREAMED_TARGETS) {
+          printer.print(completedResults.take());
+          pendingResults--;
+        }
+        BuildRule rule = graphBuilder.requireRule(targetNode.getBuildTarget());
+        TargetResult.Builder builder = TargetResult.builder().setRuleType(rule.getType());
+        if (isShowOutput || isShowFullOutput) {
+          setOutputPaths(params, pathResolver, rule, builder);
+        }
+        ListenableFuture<TargetResult> result =
+            ruleKeyCalculator.isPresent()
+                ? Futures.transform(
+                    ruleKeyCalculator.get().calculate(params.getBuckEventBus(), rule),
+                    ruleKey -> builder.setRuleKey(ruleKey.toString()).build(),
+                    MoreExecutors.directExecutor())
+                : Futures.immediateFuture(builder.build());
+        result.addListener(
+            () -> completedResults.add(new Pair<>(targetNode, result)),
+            MoreExecutors.directExecutor());
+        pendingResults++;
+      }
+      for (; pendingResults > 0; pendingResults--) {
+        printer.print(completedResults.take());
+      }
+      printer.finish();
+    }
+  }
+
+  /** Prints the results of targets in the order in which they are computed. */
+  private class StreamedResultPrinter {
+    private final CommandRunnerParams params;
+    @Nullable private final PerBuildState state;
+    private final PatternsMatcher attributesPatternsMatcher;
+    private boolean isFirstResult = true;
+
+    private StreamedResultPrinter(CommandRunnerParams params, @Nullable PerBuildState state) {
+      this.params = params;
+      this.state = state;
+      this.attributesPatternsMatcher = new PatternsMatcher(outputAttributes.get());
+    }
+
+    private void start() {
+      if (state != null) {
+        params.getConsole().getStdOut().println("[");
+      }
+    }
+
+    private void print(Pair<TargetNode<?, ?>, ListenableFuture<TargetResult>> result)
+        throws BuildFileParseException {
+      PrintStream stdOut = params.getConsole().getStdOut();
+      TargetNode<?, ?> targetNode = result.getFirst();
+      TargetResult targetResult = Futures.getUnchecked(result.getSecond());
+      if (state == null) {
+        stdOut.println(getShowRulesLine(targetNode.getBuildTarget(), targetResult));
+      } else {
+        Optional<String> json =
+            getJsonForTarget(params, state, attributesPatternsMatcher, targetNode, targetResult);
+        if (!json.isPresent()) {
+          return;
+        }
+        if (!isFirstResult) {
+          stdOut.println(',');
+        }
+        stdOut.print(json.get());
+        isFirstResult = false;
+      }
+      // Let consumers of the output process the result right away.
+      stdOut.flush();
+    }
+
+    private void finish() {
+      if (state == null) {
+        return;
+      }
+      PrintStream stdOut = params.getConsole().getStdOut();
+      if (!isFirstResult) {
+        stdOut.println();
+      }
+      stdOut.println("]");
+    }
+  }
+
+  private ActionGraphAndBuilder getActionGraph(
+      CommandRunnerParams params, TargetGraph targetGraph) {
+    return params
+        .getActionGraphCache()
+        .getActionGraph(
+            params.getBuckEventBus(),
+            targetGraph,
+            params.getCell().getCellProvider(),
+            params.getBuckConfig(),
+            params.getRuleKeyConfiguration(),
+            params.getPoolSupplier());
+  }
+
+  private ParallelRuleKeyCalculator<RuleKey> createRuleKeyCalculator(
+      CommandRunnerParams params,
+      ListeningExecutorService executor,
+      ActionGraphAndBuilder actionGraph,
+      @Nullable ThriftRuleKeyLogger ruleKeyLogger) {
+    SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(actionGraph.getActionGraphBuilder());
+
+    try (RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
+        getDefaultRuleKeyCacheScope(
+            params,
+            new RuleKeyCacheRecycler.SettingsAffectingCache(
+                params.getBuckConfig().getKeySeed(), actionGraph.getActionGraph()))) {
+
+      // Setup a parallel rule key calculator to use when building rule keys.
+      return new ParallelRuleKeyCalculator<>(
+          executor,
+          new DefaultRuleKeyFactory(
+              new RuleKeyFieldLoader(params.getRuleKeyConfiguration()),
+              params.getFileHashCache(),
+              DefaultSourcePathResolver.from(ruleFinder),
+              ruleFinder,
+              ruleKeyCacheScope.getCache(),
+              Optional.ofNullable(ruleKeyLogger)),
+          new DefaultRuleDepsCache(actionGraph.getActionGraphBuilder()),
+          (eventBus, rule) -> () -> {});
+    }
+  }
+
+  private void setOutputPaths(
+      CommandRunnerParams params,
+      SourcePathResolver pathResolver,
+      BuildRule rule,
+      TargetResult.Builder builder) {
+    getUserFacingOutputPath(pathResolver, rule, params.getBuckConfig().getBuckOutCompatLink())
+        .map(path -> isShowFullOutput ? path : params.getCell().getFilesystem().relativize(path))
+        .ifPresent(path -> builder.setOutputPath(path.toString()));
+    // If the output dir is requested, also calculate the generated src dir
+    if (rule instanceof JavaLibrary) {
+      ((JavaLibrary) rule)
+          .getGeneratedSourcePath()
+          .map(
+              path -> {
+                Path rootPath = params.getCell().getFilesystem().getRootPath();
+                Path sameFsPath = rootPath.resolve(path.toString());
+                Path returnPath = isShowFullOutput ? path : rootPath.relativize(sameFsPath);
+                return returnPath.toString();
+              })
+          .ifPresent(builder::setGeneratedSourcePath);
+    }
+  }
+
   /** Returns absolute path to the output rule, if the rule has an output. */
   static Optional<Path> getUserFacingOutputPath(
       SourcePathResolver pathResolver, BuildRule rule, boolean buckOutCompatLink) {
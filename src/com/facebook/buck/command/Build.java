@@ -23,6 +23,7 @@ import com.facebook.buck.core.build.engine.BuildEngine;
 import com.facebook.buck.core.build.engine.BuildEngineBuildContext;
 import com.facebook.buck.core.build.engine.BuildEngineResult;
 import com.facebook.buck.core.build.engine.BuildResult;
+import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
 import com.facebook.buck.core.build.event.BuildEvent;
 import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.exceptions.ExceptionWithHumanReadableMessage;
@@ -127,6 +128,11 @@ public class Build implements Closeable {
         .setBuildId(buildId)
         .putAllEnvironment(executionContext.getEnvironment())
         .setKeepGoing(isKeepGoing)
+        .setArtifactPrefetchEnabled(
+            rootCell
+                .getBuckConfig()
+                .getView(CachingBuildEngineBuckConfig.class)
+                .isArtifactPrefetchEnabled())
         .build();
   }
 
@@ -570,6 +570,20 @@ public class BuckConfig implements ConfigPathGetter {
     return getInteger("cache", "max_action_graph_cache_entries").orElse(1);
   }
 
+  /**
+   * @return The number of builds that the build rules of a target are kept for incremental action
+   *     graph generation when they are not part of the build.
+   */
+  public int getIncrementalActionGraphMaxUnusedBuilds() {
+    int maxUnusedBuilds =
+        getInteger("cache", "incremental_action_graph_max_unused_builds").orElse(3);
+    if (maxUnusedBuilds <= 0) {
+      throw new HumanReadableException(
+          "incremental_action_graph_max_unused_builds must be larger than zero");
+    }
+    return maxUnusedBuilds;
+  }
+
   public IncrementalActionGraphMode getIncrementalActionGraphMode() {
     return getEnum("cache", "incremental_action_graph", IncrementalActionGraphMode.class)
         .orElse(IncrementalActionGraphMode.DEFAULT);
@@ -1024,6 +1038,24 @@ public class BuckConfig implements ConfigPathGetter {
         .orElse(FileHashCacheMode.DEFAULT);
   }
 
+  /** @return whether the daemon should save file hashes to disk to reuse them after a restart. */
+  public boolean isFileHashCachePersistent() {
+    return getBooleanValue("build", "file_hash_cache_persistent", false);
+  }
+
+  /** @return whether the daemon should use the compact, optionally bounded, rule key cache. */
+  public boolean isRuleKeyCacheCompact() {
+    return getBooleanValue("build", "rule_key_cache_compact", false);
+  }
+
+  /**
+   * @return the maximum number of entries in the daemon's compact rule key cache, or 0 if it is
+   *     unbounded.
+   */
+  public long getRuleKeyCacheMaxEntries() {
+    return config.getLong("build", "rule_key_cache_max_entries").orElse(0L);
+  }
+
   /** Whether to parallelize action graph creation. */
   public ActionGraphParallelizationMode getActionGraphParallelizationMode() {
     return getEnum("build", "action_graph_parallelization", ActionGraphParallelizationMode.class)
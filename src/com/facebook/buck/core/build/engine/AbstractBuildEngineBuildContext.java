@@ -54,6 +54,12 @@ abstract class AbstractBuildEngineBuildContext {
     return false;
   }
 
+  /** Whether to speculatively fetch the artifacts of deps before the build reaches them. */
+  @Value.Default
+  public boolean isArtifactPrefetchEnabled() {
+    return false;
+  }
+
   /**
    * Creates an {@link OnDiskBuildInfo}.
    *
@@ -73,6 +73,12 @@ public class BuildInfo {
 
     /** Key for {@link OnDiskBuildInfo} to store the hash of the output. */
     public static final String OUTPUT_HASH = "OUTPUT_HASH";
+
+    /**
+     * Key for {@link OnDiskBuildInfo} to store how long the last local build of the rule took, in
+     * milliseconds. Used to prioritize rules on the critical path of subsequent builds.
+     */
+    public static final String BUILD_DURATION_MS = "BUILD_DURATION_MS";
   }
 
   public static final ImmutableSet<String> METADATA_KEYS =
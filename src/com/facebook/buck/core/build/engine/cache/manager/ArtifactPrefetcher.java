@@ -0,0 +1,292 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.cache.manager;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.core.build.engine.RuleDepsCache;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.file.MostFiles;
+import com.facebook.buck.log.Logger;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * Speculatively downloads the artifacts a build is going to need from the artifact cache.
+ *
+ * <p>Without prefetching, a rule is only looked up in the cache once the build engine reaches it,
+ * so fetching a graph costs one cache round-trip per level of the graph. Once the rule keys of a
+ * top-level rule are known, the prefetcher checks which of its transitive deps are in the cache
+ * with batched {@link ArtifactCache#multiContainsAsync} requests, works out which of those the
+ * build will fetch, and requests all of them at once, so that the cache can batch and parallelize
+ * the downloads. The build engine then claims the prefetched artifacts through {@link #claim}
+ * instead of fetching them again. Rules whose outputs on disk already match their rule key are not
+ * fetched by the build, so they are neither looked up nor prefetched.
+ */
+public class ArtifactPrefetcher implements AutoCloseable {
+
+  private static final Logger LOG = Logger.get(ArtifactPrefetcher.class);
+
+  private static final int MULTI_CONTAINS_BATCH_SIZE = 1000;
+
+  /** Marks a rule key that the build engine fetched itself. */
+  private static final Object CLAIMED = new Object();
+
+  private final RuleDepsCache ruleDeps;
+  private final Function<BuildRule, RuleKey> ruleKeys;
+  private final Function<BuildRule, Optional<RuleKey>> onDiskRuleKeys;
+  private final ListeningExecutorService executorService;
+  private final boolean fetchAllDeps;
+
+  /** Values are either a {@link PrefetchedArtifact} or {@link #CLAIMED}. */
+  private final ConcurrentMap<RuleKey, Object> artifacts = new ConcurrentHashMap<>();
+
+  private final Set<BuildRule> visited = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param ruleDeps the deps of each rule in the build.
+   * @param ruleKeys computes default rule keys, which must already be cached when prefetching.
+   * @param onDiskRuleKeys reads the rule key recorded in the build info of the outputs on disk.
+   * @param executorService executor used to process cache lookup results.
+   * @param fetchAllDeps whether the build materializes all transitive deps of top-level rules, and
+   *     not only those needed to build rules that miss the cache.
+   */
+  public ArtifactPrefetcher(
+      RuleDepsCache ruleDeps,
+      Function<BuildRule, RuleKey> ruleKeys,
+      Function<BuildRule, Optional<RuleKey>> onDiskRuleKeys,
+      ListeningExecutorService executorService,
+      boolean fetchAllDeps) {
+    this.ruleDeps = ruleDeps;
+    this.ruleKeys = ruleKeys;
+    this.onDiskRuleKeys = onDiskRuleKeys;
+    this.executorService = executorService;
+    this.fetchAllDeps = fetchAllDeps;
+  }
+
+  /**
+   * Prefetches the artifacts of the transitive deps of the given rule that the build is expected
+   * to fetch from the given cache. The rule itself is left to the build engine, which looks it up
+   * straight away, but it is checked to know whether its deps will be needed at all.
+   *
+   * @return a future which completes once all the prefetches have been requested.
+   */
+  public ListenableFuture<?> prefetch(BuildRule topLevelRule, ArtifactCache artifactCache) {
+    if (!visited.add(topLevelRule)) {
+      return Futures.immediateFuture(null);
+    }
+
+    // Collect the rule and its transitive deps not covered by an earlier prefetch.
+    List<BuildRule> rules = new ArrayList<>();
+    rules.add(topLevelRule);
+    ArrayDeque<BuildRule> queue = new ArrayDeque<>(ruleDeps.get(topLevelRule));
+    while (!queue.isEmpty()) {
+      BuildRule rule = queue.pop();
+      if (visited.add(rule)) {
+        rules.add(rule);
+        queue.addAll(ruleDeps.get(rule));
+      }
+    }
+
+    Map<RuleKey, BuildRule> rulesByKey = new HashMap<>();
+    Set<BuildRule> upToDate = new HashSet<>();
+    for (BuildRule rule : rules) {
+      if (!rule.isCacheable()) {
+        continue;
+      }
+      RuleKey ruleKey = ruleKeys.apply(rule);
+      if (ruleKey.equals(onDiskRuleKeys.apply(rule).orElse(null))) {
+        upToDate.add(rule);
+      } else {
+        rulesByKey.put(ruleKey, rule);
+      }
+    }
+    if (rulesByKey.isEmpty() || (!fetchAllDeps && upToDate.contains(topLevelRule))) {
+      return Futures.immediateFuture(null);
+    }
+
+    List<ListenableFuture<ImmutableMap<RuleKey, CacheResult>>> lookups = new ArrayList<>();
+    for (List<RuleKey> batch :
+        Iterables.partition(rulesByKey.keySet(), MULTI_CONTAINS_BATCH_SIZE)) {
+      lookups.add(artifactCache.multiContainsAsync(ImmutableSet.copyOf(batch)));
+    }
+
+    return Futures.transform(
+        Futures.successfulAsList(lookups),
+        results -> {
+          Set<BuildRule> cached = new HashSet<>();
+          for (@Nullable ImmutableMap<RuleKey, CacheResult> result : results) {
+            if (result == null) {
+              continue;
+            }
+            for (Map.Entry<RuleKey, CacheResult> entry : result.entrySet()) {
+              if (entry.getValue().getType().isSuccess()) {
+                cached.add(rulesByKey.get(entry.getKey()));
+              }
+            }
+          }
+          ImmutableList<BuildRule> toFetch = getRulesToFetch(topLevelRule, cached, upToDate);
+          LOG.debug(
+              "Prefetching %d of %d cached deps of %s",
+              toFetch.size(), cached.size(), topLevelRule.getBuildTarget());
+          for (BuildRule rule : toFetch) {
+            startFetch(rule, ruleKeys.apply(rule), artifactCache);
+          }
+          return null;
+        },
+        executorService);
+  }
+
+  /**
+   * Returns the cached deps that the build will fetch. Unless all deps are materialized, a rule
+   * only needs its deps if it is neither up to date on disk nor fetched from the cache itself, so
+   * nothing is prefetched for a top-level rule which is in the cache.
+   */
+  private ImmutableList<BuildRule> getRulesToFetch(
+      BuildRule topLevelRule, Set<BuildRule> cached, Set<BuildRule> upToDate) {
+    if (fetchAllDeps) {
+      return cached
+          .stream()
+          .filter(rule -> !rule.equals(topLevelRule))
+          .collect(ImmutableList.toImmutableList());
+    }
+    ImmutableList.Builder<BuildRule> toFetch = ImmutableList.builder();
+    if (cached.contains(topLevelRule)) {
+      return toFetch.build();
+    }
+    Set<BuildRule> seen = new HashSet<>();
+    ArrayDeque<BuildRule> queue = new ArrayDeque<>(ruleDeps.get(topLevelRule));
+    while (!queue.isEmpty()) {
+      BuildRule rule = queue.pop();
+      if (!seen.add(rule) || upToDate.contains(rule)) {
+        continue;
+      }
+      if (cached.contains(rule)) {
+        toFetch.add(rule);
+      } else {
+        queue.addAll(ruleDeps.get(rule));
+      }
+    }
+    return toFetch.build();
+  }
+
+  private void startFetch(BuildRule rule, RuleKey ruleKey, ArtifactCache artifactCache) {
+    PrefetchedArtifact artifact = new PrefetchedArtifact(rule);
+    if (artifacts.putIfAbsent(ruleKey, artifact) != null) {
+      // Already prefetched, or the build engine got to this rule first.
+      return;
+    }
+    artifact.result.setFuture(
+        artifactCache.fetchAsync(rule.getBuildTarget(), ruleKey, artifact.path));
+  }
+
+  /**
+   * Claims the prefetched artifact for the given rule key, if there is one. Any later prefetch of
+   * the same key is skipped, so the caller must fetch the artifact itself if this returns null.
+   */
+  @Nullable
+  public PrefetchedArtifact claim(RuleKey ruleKey) {
+    Object artifact = artifacts.putIfAbsent(ruleKey, CLAIMED);
+    if (artifact instanceof PrefetchedArtifact && artifacts.replace(ruleKey, artifact, CLAIMED)) {
+      return (PrefetchedArtifact) artifact;
+    }
+    return null;
+  }
+
+  /** Deletes the downloaded artifacts that were never claimed by the build. */
+  @Override
+  public void close() {
+    for (Object value : artifacts.values()) {
+      if (value instanceof PrefetchedArtifact) {
+        PrefetchedArtifact artifact = (PrefetchedArtifact) value;
+        artifact.result.addListener(artifact.path::delete, MoreExecutors.directExecutor());
+      }
+    }
+    artifacts.clear();
+  }
+
+  /** An artifact being downloaded to a temporary zip file. */
+  public static class PrefetchedArtifact {
+    private final SettableFuture<CacheResult> result = SettableFuture.create();
+    private final ArtifactZipPath path;
+
+    private PrefetchedArtifact(BuildRule rule) {
+      this.path = new ArtifactZipPath(rule);
+    }
+
+    public ListenableFuture<CacheResult> getResult() {
+      return result;
+    }
+
+    public LazyPath getPath() {
+      return path;
+    }
+  }
+
+  /** A temp file whose extension is ".zip", so that it can be opened as a zip file system. */
+  static class ArtifactZipPath extends LazyPath {
+    private final BuildRule rule;
+    @Nullable private volatile Path created;
+
+    ArtifactZipPath(BuildRule rule) {
+      this.rule = rule;
+    }
+
+    @Override
+    protected Path create() throws IOException {
+      created =
+          Files.createTempFile(
+              "buck_artifact_" + MostFiles.sanitize(rule.getBuildTarget().getShortName()), ".zip");
+      return created;
+    }
+
+    private void delete() {
+      Path path = created;
+      if (path != null) {
+        try {
+          Files.deleteIfExists(path);
+        } catch (IOException e) {
+          LOG.debug(e, "Failed to delete unused prefetched artifact %s", path);
+        }
+      }
+    }
+  }
+}
@@ -19,6 +19,7 @@ package com.facebook.buck.core.build.engine.cache.manager;
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.StreamingLazyPath;
 import com.facebook.buck.core.build.engine.buildinfo.BuildInfo;
 import com.facebook.buck.core.build.engine.buildinfo.BuildInfoStore;
 import com.facebook.buck.core.build.engine.buildinfo.OnDiskBuildInfo;
@@ -28,7 +29,6 @@ import com.facebook.buck.core.rules.BuildRule;
 import com.facebook.buck.event.ArtifactCompressionEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.io.file.LazyPath;
-import com.facebook.buck.io.file.MostFiles;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.util.RichStream;
@@ -36,15 +36,19 @@ import com.facebook.buck.util.Scope;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
 import com.facebook.buck.util.unarchive.ArchiveFormat;
 import com.facebook.buck.util.unarchive.ExistingFileMode;
+import com.facebook.buck.util.unarchive.StreamingUnzip;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Optional;
 import java.util.zip.ZipFile;
 
 public class BuildCacheArtifactFetcher {
@@ -59,6 +63,7 @@ public class BuildCacheArtifactFetcher {
   private final BuildInfoStoreManager buildInfoStoreManager;
   private final MetadataStorage metadataStorage;
   private final OnDiskBuildInfo onDiskBuildInfo;
+  private final ArtifactPrefetcher artifactPrefetcher;
 
   public BuildCacheArtifactFetcher(
       BuildRule rule,
@@ -68,7 +73,8 @@ public class BuildCacheArtifactFetcher {
       BuckEventBus eventBus,
       BuildInfoStoreManager buildInfoStoreManager,
       MetadataStorage metadataStorage,
-      OnDiskBuildInfo onDiskBuildInfo) {
+      OnDiskBuildInfo onDiskBuildInfo,
+      ArtifactPrefetcher artifactPrefetcher) {
     this.rule = rule;
     this.buildRuleScopeManager = buildRuleScopeManager;
     this.executorService = executorService;
@@ -77,6 +83,7 @@ public class BuildCacheArtifactFetcher {
     this.buildInfoStoreManager = buildInfoStoreManager;
     this.metadataStorage = metadataStorage;
     this.onDiskBuildInfo = onDiskBuildInfo;
+    this.artifactPrefetcher = artifactPrefetcher;
   }
 
   private Scope buildRuleScope() {
@@ -90,23 +97,31 @@ public class BuildCacheArtifactFetcher {
       return Futures.immediateFuture(CacheResult.ignored());
     }
 
-    // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
-    // that we are creating a zip-based FileSystem.
-    LazyPath lazyZipPath =
-        new LazyPath() {
-          @Override
-          protected Path create() throws IOException {
-            return Files.createTempFile(
-                "buck_artifact_" + MostFiles.sanitize(rule.getBuildTarget().getShortName()),
-                ".zip");
-          }
-        };
+    // Use the artifact if it has already been requested ahead of time, otherwise fetch it now.
+    // Caches that can stream the artifact have it unpacked as it is downloaded, others write it
+    // into a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer that
+    // we are creating a zip-based FileSystem.
+    ArtifactPrefetcher.PrefetchedArtifact prefetched = artifactPrefetcher.claim(ruleKey);
+    Optional<StreamingArtifactOutput> streamingOutput =
+        prefetched == null
+            ? Optional.of(new StreamingArtifactOutput(ruleKey, filesystem))
+            : Optional.empty();
+    LazyPath lazyZipPath;
+    ListenableFuture<CacheResult> fetchResult;
+    if (prefetched != null) {
+      LOG.verbose("Using prefetched artifact for '%s' with rulekey '%s'", rule, ruleKey);
+      lazyZipPath = prefetched.getPath();
+      fetchResult = verify(artifactCache, ruleKey, prefetched.getResult());
+    } else {
+      lazyZipPath = streamingOutput.get();
+      fetchResult = fetch(artifactCache, ruleKey, lazyZipPath);
+    }
 
     // TODO(mbolin): Change ArtifactCache.fetch() so that it returns a File instead of takes one.
     // Then we could download directly from the remote cache into the on-disk cache and unzip it
     // from there.
     return Futures.transformAsync(
-        fetch(artifactCache, ruleKey, lazyZipPath),
+        fetchResult,
         cacheResult -> {
           try (Scope ignored = buildRuleScope()) {
             // Verify that the rule key we used to fetch the artifact is one of the rule keys
@@ -125,6 +140,10 @@ public class BuildCacheArtifactFetcher {
               }
             }
 
+            if (streamingOutput.isPresent() && streamingOutput.get().wasStreamed()) {
+              return Futures.immediateFuture(
+                  finishStreamedArtifact(ruleKey, streamingOutput.get(), cacheResult));
+            }
             return Futures.immediateFuture(
                 unzipArtifactFromCacheResult(ruleKey, lazyZipPath, filesystem, cacheResult));
           }
@@ -133,8 +152,17 @@ public class BuildCacheArtifactFetcher {
 
   public ListenableFuture<CacheResult> fetch(
       ArtifactCache artifactCache, RuleKey ruleKey, LazyPath outputPath) {
+    return verify(
+        artifactCache,
+        ruleKey,
+        artifactCache.fetchAsync(rule.getBuildTarget(), ruleKey, outputPath));
+  }
+
+  /** Checks that the rule keys in the metadata of a fetched artifact are well formed. */
+  private ListenableFuture<CacheResult> verify(
+      ArtifactCache artifactCache, RuleKey ruleKey, ListenableFuture<CacheResult> fetchResult) {
     return Futures.transform(
-        artifactCache.fetchAsync(rule.getBuildTarget(), ruleKey, outputPath),
+        fetchResult,
         (CacheResult cacheResult) -> {
           try (Scope ignored = buildRuleScope()) {
             if (cacheResult.getType() != CacheResultType.HIT) {
@@ -246,6 +274,110 @@ public class BuildCacheArtifactFetcher {
     return cacheResult;
   }
 
+  /**
+   * Records the metadata of an artifact which was unpacked as it was downloaded, once the cache has
+   * verified it.
+   */
+  private CacheResult finishStreamedArtifact(
+      RuleKey ruleKey, StreamingArtifactOutput output, CacheResult cacheResult) throws IOException {
+    if (!cacheResult.getType().isSuccess()) {
+      // The cache rejected the artifact after it was unpacked, so throw away the metadata that came
+      // with it, so that the outputs aren't mistaken for a complete artifact.
+      LOG.debug("Discarding streamed artifact for '%s' with rulekey '%s'", rule, ruleKey);
+      onOutputsWillChange.call();
+      return cacheResult;
+    }
+
+    Preconditions.checkState(cacheResult.metadata().isPresent());
+    Preconditions.checkArgument(cacheResult.getType() == CacheResultType.HIT);
+    LOG.debug("Fetched and unpacked '%s' from cache with rulekey '%s'", rule, ruleKey);
+
+    try {
+      BuildInfoStore buildInfoStore =
+          buildInfoStoreManager.get(rule.getProjectFilesystem(), metadataStorage);
+
+      onDiskBuildInfo.validateArtifact(output.getExtractedFiles());
+
+      Preconditions.checkState(
+          cacheResult.getMetadata().containsKey(BuildInfo.MetadataKey.ORIGIN_BUILD_ID),
+          "Cache artifact for rulekey %s is missing metadata %s.",
+          ruleKey,
+          BuildInfo.MetadataKey.ORIGIN_BUILD_ID);
+
+      buildInfoStore.updateMetadata(rule.getBuildTarget(), cacheResult.getMetadata());
+    } catch (IOException e) {
+      throw new IOException(
+          String.format("%s. Suggested fix: try `buck clean`", e.getMessage()), e.getCause());
+    }
+
+    return cacheResult;
+  }
+
+  /**
+   * The output of a fetch, which unpacks the artifact into the filesystem while it is downloaded if
+   * the cache can stream it. Otherwise, the cache writes the artifact to a temp zip file.
+   */
+  private class StreamingArtifactOutput extends StreamingLazyPath {
+    private final RuleKey ruleKey;
+    private final ProjectFilesystem filesystem;
+    private final LazyPath zipPath;
+    private volatile boolean streamed = false;
+    private volatile boolean zipPathRequested = false;
+    private volatile ImmutableSet<Path> extractedFiles = ImmutableSet.of();
+
+    private StreamingArtifactOutput(RuleKey ruleKey, ProjectFilesystem filesystem) {
+      this.ruleKey = ruleKey;
+      this.filesystem = filesystem;
+      this.zipPath = new ArtifactPrefetcher.ArtifactZipPath(rule);
+    }
+
+    @Override
+    protected Path create() throws IOException {
+      zipPathRequested = true;
+      return zipPath.get();
+    }
+
+    @Override
+    public void consume(InputStream payload) throws IOException {
+      PushbackInputStream input = new PushbackInputStream(payload, 1);
+      int first = input.read();
+      if (first < 0) {
+        // An empty payload, such as the first level entry of a two-level cache, has no artifact.
+        return;
+      }
+      input.unread(first);
+
+      streamed = true;
+      extractedFiles = ImmutableSet.of();
+      onOutputsWillChange.call();
+      ArtifactCompressionEvent.Started started =
+          ArtifactCompressionEvent.started(
+              ArtifactCompressionEvent.Operation.DECOMPRESS, ImmutableSet.of(ruleKey));
+      eventBus.post(started);
+      try {
+        extractedFiles =
+            ImmutableSet.copyOf(
+                new StreamingUnzip()
+                    .extractArchive(
+                        input, filesystem, ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES));
+      } finally {
+        eventBus.post(ArtifactCompressionEvent.finished(started));
+      }
+    }
+
+    /**
+     * Whether the artifact was unpacked as it was downloaded. Caches that stream artifacts never
+     * use the path, so if it was used, the artifact was written there by a cache tried afterwards.
+     */
+    private boolean wasStreamed() {
+      return streamed && !zipPathRequested;
+    }
+
+    private ImmutableSet<Path> getExtractedFiles() {
+      return extractedFiles;
+    }
+  }
+
   @FunctionalInterface
   public interface OnOutputsWillChange {
     void call() throws IOException;
@@ -66,6 +66,14 @@ abstract class AbstractCachingBuildEngineBuckConfig implements ConfigView<BuckCo
     return getDelegate().getLong("build", "artifact_cache_size_limit");
   }
 
+  /**
+   * @return whether to look up the transitive deps of top-level rules in the artifact cache in
+   *     batches and start fetching the ones the build will need before it reaches them.
+   */
+  public boolean isArtifactPrefetchEnabled() {
+    return getDelegate().getBooleanValue("build", "artifact_prefetch", false);
+  }
+
   public ResourceAwareSchedulingInfo getResourceAwareSchedulingInfo() {
     ResourcesConfig resourcesConfig = getDelegate().getView(ResourcesConfig.class);
     return ResourceAwareSchedulingInfo.of(
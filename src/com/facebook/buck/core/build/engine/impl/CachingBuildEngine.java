@@ -30,6 +30,7 @@ import com.facebook.buck.core.build.engine.buildinfo.BuildInfo;
 import com.facebook.buck.core.build.engine.buildinfo.BuildInfoRecorder;
 import com.facebook.buck.core.build.engine.buildinfo.BuildInfoStore;
 import com.facebook.buck.core.build.engine.buildinfo.OnDiskBuildInfo;
+import com.facebook.buck.core.build.engine.cache.manager.ArtifactPrefetcher;
 import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
 import com.facebook.buck.core.build.engine.config.ResourceAwareSchedulingInfo;
 import com.facebook.buck.core.build.engine.delegate.CachingBuildEngineDelegate;
@@ -48,6 +49,7 @@ import com.facebook.buck.core.rules.attr.HasRuntimeDeps;
 import com.facebook.buck.core.rules.build.strategy.BuildRuleStrategy;
 import com.facebook.buck.core.sourcepath.resolver.SourcePathResolver;
 import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.keys.RuleKeyDiagnostics;
 import com.facebook.buck.rules.keys.RuleKeyFactories;
 import com.facebook.buck.rules.keys.hasher.StringRuleKeyHasher;
@@ -64,6 +66,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -86,6 +89,8 @@ import javax.annotation.Nullable;
  * tries to fetch its output from an {@link ArtifactCache} to avoid doing any computation.
  */
 public class CachingBuildEngine implements BuildEngine, Closeable {
+  private static final Logger LOG = Logger.get(CachingBuildEngine.class);
+
   public static final ResourceAmounts CACHE_CHECK_RESOURCE_AMOUNTS = ResourceAmounts.of(0, 0, 1, 1);
 
   public static final ResourceAmounts RULE_KEY_COMPUTATION_RESOURCE_AMOUNTS =
@@ -135,6 +140,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
   private final RuleKeyDiagnostics<RuleKey, String> defaultRuleKeyDiagnostics;
   private final BuildRulePipelinesRunner pipelinesRunner = new BuildRulePipelinesRunner();
   private final ParallelRuleKeyCalculator<RuleKey> ruleKeyCalculator;
+  private final CriticalPathEstimator criticalPathEstimator;
+  private final ArtifactPrefetcher artifactPrefetcher;
 
   private final BuildInfoStoreManager buildInfoStoreManager;
 
@@ -233,6 +240,14 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     this.remoteBuildRuleCompletionWaiter = remoteBuildRuleCompletionWaiter;
 
     this.ruleDeps = new DefaultRuleDepsCache(resolver);
+    this.criticalPathEstimator = new CriticalPathEstimator(ruleDeps);
+    this.artifactPrefetcher =
+        new ArtifactPrefetcher(
+            ruleDeps,
+            rule -> ruleKeyFactories.getDefaultRuleKeyFactory().build(rule),
+            this::readOnDiskRuleKey,
+            serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS),
+            buildMode != BuildType.SHALLOW);
     this.unskippedRulesTracker = createUnskippedRulesTracker(buildMode, ruleDeps, resolver);
     this.defaultRuleKeyDiagnostics = defaultRuleKeyDiagnostics;
     this.consoleLogBuildFailuresInline = consoleLogBuildFailuresInline;
@@ -252,6 +267,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   @Override
   public void close() {
+    LOG.debug("Rule key calculation stats: %s", ruleKeyCalculator.getStats());
+    artifactPrefetcher.close();
     try {
       if (customBuildRuleStrategy.isPresent()) {
         customBuildRuleStrategy.get().close();
@@ -401,6 +418,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     return Futures.transformAsync(
         Futures.immediateFuture(ruleDeps.get(rule)),
         deps -> {
+          readHistoricalBuildDuration(rule);
           List<ListenableFuture<?>> results1 = new ArrayList<>(SortedSets.sizeEstimate(deps));
           for (BuildRule dep : deps) {
             if (seen.add(dep)) {
@@ -425,6 +443,42 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     return seen.size();
   }
 
+  /**
+   * Computes the critical path priorities of the rules needed to build {@code rule}, so that the
+   * rules with the most work waiting on them are started first. Uses the build durations read while
+   * counting the rules to build, if they were counted.
+   */
+  private void prioritizeRules(BuildRule rule) {
+    criticalPathEstimator.computePriorities(ImmutableList.of(rule));
+  }
+
+  private void readHistoricalBuildDuration(BuildRule rule) {
+    Optional<String> duration =
+        buildInfoStoreManager
+            .get(rule.getProjectFilesystem(), metadataStorage)
+            .readMetadata(rule.getBuildTarget(), BuildInfo.MetadataKey.BUILD_DURATION_MS);
+    if (duration.isPresent()) {
+      try {
+        criticalPathEstimator.recordHistoricalDuration(rule, Long.parseLong(duration.get()));
+      } catch (NumberFormatException e) {
+        LOG.debug("Ignoring malformed build duration of %s: %s", rule, duration.get());
+      }
+    }
+  }
+
+  private Optional<RuleKey> readOnDiskRuleKey(BuildRule rule) {
+    Optional<String> ruleKey =
+        buildInfoStoreManager
+            .get(rule.getProjectFilesystem(), metadataStorage)
+            .readMetadata(rule.getBuildTarget(), BuildInfo.MetadataKey.RULE_KEY);
+    try {
+      return ruleKey.map(RuleKey::new);
+    } catch (IllegalArgumentException e) {
+      LOG.debug("Ignoring malformed rule key of %s: %s", rule, ruleKey.get());
+      return Optional.empty();
+    }
+  }
+
   private ListenableFuture<RuleKey> calculateRuleKey(
       BuildRule rule, BuildEngineBuildContext context) {
     return ruleKeyCalculator.calculate(context.getEventBus(), rule);
@@ -436,8 +490,30 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     // Keep track of all jobs that run asynchronously with respect to the build dep chain.  We want
     // to make sure we wait for these before calling yielding the final build result.
     registerTopLevelRule(rule, buildContext.getEventBus());
+    prioritizeRules(rule);
     ListenableFuture<BuildResult> resultFuture =
         getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext);
+    if (buildContext.isArtifactPrefetchEnabled()) {
+      // The rule keys of all the deps are known once the rule's own key has been computed.
+      ListenableFuture<?> prefetch =
+          Futures.transformAsync(
+              calculateRuleKey(rule, buildContext),
+              ruleKey -> artifactPrefetcher.prefetch(rule, buildContext.getArtifactCache()),
+              serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
+      // Prefetching is only an optimization, the build fetches anything it did not prefetch.
+      Futures.addCallback(
+          prefetch,
+          new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(@Nullable Object result) {}
+
+            @Override
+            public void onFailure(Throwable t) {
+              LOG.warn(t, "Failed to prefetch the artifacts of %s", rule);
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
     return BuildEngineResult.builder().setResult(resultFuture).build();
   }
 
@@ -510,7 +586,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
             buildableContext,
             pipelinesRunner,
             remoteBuildRuleCompletionWaiter,
-            customBuildRuleStrategy)
+            customBuildRuleStrategy,
+            artifactPrefetcher)
         .build();
   }
 
@@ -551,6 +628,11 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       cachingBuildEngine.asyncCallbacks.add(callback);
     }
 
+    @Override
+    public long getSchedulingPriority(BuildRule rule) {
+      return cachingBuildEngine.criticalPathEstimator.getPriority(rule);
+    }
+
     @Override
     @Nullable
     public Throwable getFirstFailure() {
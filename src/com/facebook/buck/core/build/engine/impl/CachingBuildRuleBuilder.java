@@ -35,6 +35,7 @@ import com.facebook.buck.core.build.engine.buildinfo.BuildInfo;
 import com.facebook.buck.core.build.engine.buildinfo.BuildInfo.MetadataKey;
 import com.facebook.buck.core.build.engine.buildinfo.BuildInfoRecorder;
 import com.facebook.buck.core.build.engine.buildinfo.OnDiskBuildInfo;
+import com.facebook.buck.core.build.engine.cache.manager.ArtifactPrefetcher;
 import com.facebook.buck.core.build.engine.cache.manager.BuildCacheArtifactFetcher;
 import com.facebook.buck.core.build.engine.cache.manager.BuildCacheArtifactUploader;
 import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
@@ -161,6 +162,7 @@ class CachingBuildRuleBuilder {
   @Nullable private volatile Pair<Long, Long> inputRuleKeyCacheCheckTimestampsMillis = null;
   @Nullable private volatile Pair<Long, Long> manifestRuleKeyCacheCheckTimestampsMillis = null;
   @Nullable private volatile Pair<Long, Long> buildTimestampsMillis = null;
+  @Nullable private volatile Long buildStartedMillis = null;
 
   /**
    * This is used to weakly cache the manifest RuleKeyAndInputs. I
@@ -204,7 +206,8 @@ class CachingBuildRuleBuilder {
       BuildableContext buildableContext,
       BuildRulePipelinesRunner pipelinesRunner,
       RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter,
-      Optional<BuildRuleStrategy> customBuildRuleStrategy) {
+      Optional<BuildRuleStrategy> customBuildRuleStrategy,
+      ArtifactPrefetcher artifactPrefetcher) {
     this.buildRuleBuilderDelegate = buildRuleBuilderDelegate;
     this.buildMode = buildMode;
     this.consoleLogBuildFailuresInline = consoleLogBuildFailuresInline;
@@ -261,7 +264,8 @@ class CachingBuildRuleBuilder {
             eventBus,
             buildInfoStoreManager,
             metadataStorage,
-            onDiskBuildInfo);
+            onDiskBuildInfo,
+            artifactPrefetcher);
     inputBasedRuleKeyManager =
         new InputBasedRuleKeyManager(
             eventBus,
@@ -609,6 +613,15 @@ class CachingBuildRuleBuilder {
   private void finalizeBuiltLocally(AtomicReference<Long> outputSize)
       throws IOException, StepFailedException, InterruptedException {
     BuildRuleSuccessType success = BuildRuleSuccessType.BUILT_LOCALLY;
+    // Remember how long the build took, to schedule this rule ahead of others next time if it is
+    // on the critical path.
+    Long startedMillis = buildStartedMillis;
+    if (startedMillis != null) {
+      getBuildInfoRecorder()
+          .addBuildMetadata(
+              BuildInfo.MetadataKey.BUILD_DURATION_MS,
+              String.valueOf(System.currentTimeMillis() - startedMillis));
+    }
     // Try get the output size now that all outputs have been recorded.
     outputSize.set(getBuildInfoRecorder().getOutputSize());
     getBuildInfoRecorder()
@@ -794,6 +807,7 @@ class CachingBuildRuleBuilder {
         new BuildExecutorRunner() {
           @Override
           public void runWithDefaultExecutor() {
+            buildStartedMillis = System.currentTimeMillis();
             if (SupportsPipelining.isSupported(rule)
                 && ((SupportsPipelining<?>) rule).useRulePipelining()) {
               future.setFuture(
@@ -807,6 +821,7 @@ class CachingBuildRuleBuilder {
 
           @Override
           public void runWithExecutor(BuildExecutor buildExecutor) {
+            buildStartedMillis = System.currentTimeMillis();
             future.setFuture(buildRuleSteps.future);
             buildRuleSteps.runWithExecutor(buildExecutor);
           }
@@ -992,7 +1007,10 @@ class CachingBuildRuleBuilder {
                     service
                         // This needs to adjust the default amounts even in the non-resource-aware
                         // scheduling case so that RuleScheduleInfo works correctly.
-                        .withDefaultAmounts(getRuleResourceAmounts())));
+                        .withDefaultAmounts(getRuleResourceAmounts())
+                        // Rules on the critical path of the build go first.
+                        .withDefaultPriority(
+                            buildRuleBuilderDelegate.getSchedulingPriority(rule))));
 
     if (SupportsPipelining.isSupported(rule)) {
       buildResultFuture.addListener(
@@ -1381,5 +1399,8 @@ class CachingBuildRuleBuilder {
     Throwable getFirstFailure();
 
     void onRuleAboutToBeBuilt(BuildRule rule);
+
+    /** @return the priority with which the given rule should be scheduled to build locally. */
+    long getSchedulingPriority(BuildRule rule);
   }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import com.facebook.buck.core.build.engine.RuleDepsCache;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rules.BuildRule;
+import com.google.common.collect.Lists;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Estimates how much work is left on the longest chain of rules waiting on each rule of a build,
+ * using how long each rule took to build last time. Rules with the most remaining work are on the
+ * critical path of the build, so starting them first shortens the overall build.
+ */
+class CriticalPathEstimator {
+
+  private final RuleDepsCache ruleDeps;
+  private final ConcurrentMap<BuildTarget, Long> durations = new ConcurrentHashMap<>();
+  private final LongAdder totalDuration = new LongAdder();
+  private final ConcurrentMap<BuildTarget, Long> priorities = new ConcurrentHashMap<>();
+
+  /** Rules whose priority has been computed, so that each rule is only walked once per build. */
+  @GuardedBy("this")
+  private final Set<BuildRule> visited = new HashSet<>();
+
+  CriticalPathEstimator(RuleDepsCache ruleDeps) {
+    this.ruleDeps = ruleDeps;
+  }
+
+  /** Records how long the given rule took to build the last time it was built locally. */
+  void recordHistoricalDuration(BuildRule rule, long durationMillis) {
+    long duration = Math.max(0, durationMillis);
+    Long previous = durations.put(rule.getBuildTarget(), duration);
+    totalDuration.add(previous == null ? duration : duration - previous);
+  }
+
+  /**
+   * Computes the priority of all the rules needed to build the given top-level rules. The priority
+   * of a rule is the estimated time, in milliseconds, of the longest chain of rules from it up to a
+   * top-level rule, itself included. Rules without a recorded duration are assumed to take the
+   * average recorded duration.
+   *
+   * <p>Top-level rules may be added over several calls. Each call only walks the rules that no
+   * earlier call reached, and raises the priorities of the rules that earlier calls did reach only
+   * as far as the new chains are longer.
+   */
+  synchronized void computePriorities(Iterable<BuildRule> topLevelRules) {
+    List<BuildRule> order = topologicalOrder(topLevelRules);
+    if (order.isEmpty()) {
+      return;
+    }
+    int recorded = durations.size();
+    long defaultCost = recorded == 0 ? 1 : Math.max(1, totalDuration.sum() / recorded);
+
+    // Rules reached for the first time only depend on rules reached before or on each other, and
+    // the latter come after them in the order, so one pass computes their priorities.
+    Map<BuildTarget, Long> remaining = new HashMap<>();
+    ArrayDeque<BuildRule> raised = new ArrayDeque<>();
+    for (BuildRule rule : order) {
+      long rulePriority =
+          remaining.getOrDefault(
+              rule.getBuildTarget(), durations.getOrDefault(rule.getBuildTarget(), defaultCost));
+      priorities.put(rule.getBuildTarget(), rulePriority);
+      for (BuildRule dep : ruleDeps.get(rule)) {
+        long depPriority =
+            rulePriority + durations.getOrDefault(dep.getBuildTarget(), defaultCost);
+        if (priorities.containsKey(dep.getBuildTarget())) {
+          raisePriority(dep, depPriority, raised);
+        } else {
+          remaining.merge(dep.getBuildTarget(), depPriority, Math::max);
+        }
+      }
+    }
+
+    // Rules reached before only need to be revisited where a new chain is longer than theirs.
+    while (!raised.isEmpty()) {
+      BuildRule rule = raised.pop();
+      long rulePriority = priorities.get(rule.getBuildTarget());
+      for (BuildRule dep : ruleDeps.get(rule)) {
+        raisePriority(
+            dep,
+            rulePriority + durations.getOrDefault(dep.getBuildTarget(), defaultCost),
+            raised);
+      }
+    }
+  }
+
+  private void raisePriority(BuildRule rule, long priority, ArrayDeque<BuildRule> raised) {
+    Long current = priorities.get(rule.getBuildTarget());
+    if (current != null && priority > current) {
+      priorities.put(rule.getBuildTarget(), priority);
+      raised.push(rule);
+    }
+  }
+
+  /** @return the priority of the given rule, or 0 if it was not part of a computed build. */
+  long getPriority(BuildRule rule) {
+    return priorities.getOrDefault(rule.getBuildTarget(), 0L);
+  }
+
+  /**
+   * @return the rules reachable from the given ones that no earlier call reached, each listed
+   *     before all of its deps.
+   */
+  @GuardedBy("this")
+  private List<BuildRule> topologicalOrder(Iterable<BuildRule> topLevelRules) {
+    List<BuildRule> postOrder = new ArrayList<>();
+    ArrayDeque<Iterator<BuildRule>> stack = new ArrayDeque<>();
+    ArrayDeque<BuildRule> path = new ArrayDeque<>();
+    for (BuildRule root : topLevelRules) {
+      if (!visited.add(root)) {
+        continue;
+      }
+      path.push(root);
+      stack.push(ruleDeps.get(root).iterator());
+      while (!stack.isEmpty()) {
+        Iterator<BuildRule> deps = stack.peek();
+        if (deps.hasNext()) {
+          BuildRule dep = deps.next();
+          if (visited.add(dep)) {
+            path.push(dep);
+            stack.push(ruleDeps.get(dep).iterator());
+          }
+        } else {
+          stack.pop();
+          postOrder.add(path.pop());
+        }
+      }
+    }
+    return Lists.reverse(postOrder);
+  }
+}
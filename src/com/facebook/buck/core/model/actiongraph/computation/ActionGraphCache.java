@@ -83,8 +83,17 @@ public class ActionGraphCache {
   private IncrementalActionGraphGenerator incrementalActionGraphGenerator;
 
   public ActionGraphCache(int maxEntries) {
+    this(maxEntries, IncrementalActionGraphGenerator.DEFAULT_MAX_UNUSED_GENERATIONS);
+  }
+
+  /**
+   * @param maxIncrementalUnusedGenerations Number of action graphs that the build rules of a target
+   *     are kept for incremental action graph generation when they are not used.
+   */
+  public ActionGraphCache(int maxEntries, int maxIncrementalUnusedGenerations) {
     previousActionGraphs = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
-    incrementalActionGraphGenerator = new IncrementalActionGraphGenerator();
+    incrementalActionGraphGenerator =
+        new IncrementalActionGraphGenerator(maxIncrementalUnusedGenerations);
   }
 
   /** Create an ActionGraph, using options extracted from a BuckConfig. */
@@ -29,45 +29,91 @@ import com.facebook.buck.event.ActionGraphEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.log.Logger;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Sets;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import javax.annotation.Nullable;
 
 /**
- * Provides a way to incrementally construct a new {@link ActionGraphBuilder} from a previous one.
+ * Provides a way to incrementally construct a new {@link ActionGraphBuilder} from previous ones.
  *
- * <p>This works by grabbing all the build rules from the previous {@link ActionGraphBuilder} with
- * unflavored targets that were not invalidated when doing a target graph walk to check for changes.
+ * <p>This works by memoizing the build rules created for each unflavored target together with the
+ * target nodes they were created from. A memoized entry is reused when those target nodes are
+ * unchanged and the entries of all their dependencies are reused as well, which is found with a
+ * walk of the new target graph. Entries are kept until they have not been used by a number of
+ * action graphs, so that switching between builds of different targets does not discard the rules
+ * of the targets that were not part of the last build.
  */
 public class IncrementalActionGraphGenerator {
   private static final Logger LOG = Logger.get(IncrementalActionGraphGenerator.class);
 
+  /** Number of action graphs memoized rules are kept for when they are not used. */
+  static final int DEFAULT_MAX_UNUSED_GENERATIONS = 3;
+
+  private final int maxUnusedGenerations;
+  private final Map<UnflavoredBuildTarget, MemoizedRules> memoizedRules = new HashMap<>();
+  private long generation = 0;
+
   @Nullable private ActionGraphBuilder lastActionGraphBuilder;
   @Nullable private TargetGraph lastTargetGraph;
 
   /**
-   * Populates the given {@link ActionGraphBuilder} with the rules from the previously used {@link
-   * ActionGraphBuilder} that are deemed usable after checking for invalidations with a target graph
-   * walk.
+   * Entries that were reused by the last action graph, whose rules can be added to by rules created
+   * on the fly while building the graph.
+   */
+  private Set<MemoizedRules> lastReusedRules = new HashSet<>();
+
+  public IncrementalActionGraphGenerator() {
+    this(DEFAULT_MAX_UNUSED_GENERATIONS);
+  }
+
+  public IncrementalActionGraphGenerator(int maxUnusedGenerations) {
+    Preconditions.checkArgument(maxUnusedGenerations > 0);
+    this.maxUnusedGenerations = maxUnusedGenerations;
+  }
+
+  /**
+   * Populates the given {@link ActionGraphBuilder} with the memoized rules that are deemed usable
+   * after checking for invalidations with a target graph walk.
    */
   public void populateActionGraphBuilderWithCachedRules(
       BuckEventBus eventBus, TargetGraph targetGraph, ActionGraphBuilder graphBuilder) {
     int reusedRuleCount = 0;
+    int reusedTargetNodeCount = 0;
     if (lastActionGraphBuilder != null) {
-      // We figure out which build rules we can reuse from the last action graph by performing an
-      // invalidation walk over the new target graph.
-      Map<BuildTarget, Boolean> explored = new HashMap<>();
-      Set<UnflavoredBuildTarget> validTargets = new HashSet<>();
-      for (TargetNode<?, ?> root : targetGraph.getNodesWithNoIncomingEdges()) {
-        invalidateChangedTargets(root, targetGraph, explored, validTargets);
+      // Remember the rules created by the last action graph before it's discarded.
+      memoizeRulesOfLastActionGraph();
+
+      // We figure out which memoized build rules we can reuse by performing an invalidation walk
+      // over the new target graph.
+      ListMultimap<UnflavoredBuildTarget, TargetNode<?, ?>> nodesByTarget =
+          ArrayListMultimap.create();
+      for (TargetNode<?, ?> node : targetGraph.getNodes()) {
+        nodesByTarget.put(node.getBuildTarget().getUnflavoredBuildTarget(), node);
+      }
+      Map<UnflavoredBuildTarget, Boolean> explored = new HashMap<>();
+      for (UnflavoredBuildTarget target : nodesByTarget.keySet()) {
+        isReusable(target, targetGraph, nodesByTarget, explored);
       }
 
       // Now we can load in all build rules whose unflavored targets weren't invalidated for
       // incremental action graph generation.
-      reusedRuleCount = addValidRulesToActionGraphBuilder(graphBuilder, validTargets);
+      Set<MemoizedRules> reusedRules = new HashSet<>();
+      for (Map.Entry<UnflavoredBuildTarget, Boolean> entry : explored.entrySet()) {
+        if (entry.getValue()) {
+          reusedRules.add(memoizedRules.get(entry.getKey()));
+          reusedTargetNodeCount += nodesByTarget.get(entry.getKey()).size();
+        }
+      }
+      reusedRuleCount = addReusedRulesToActionGraphBuilder(graphBuilder, reusedRules);
+      lastReusedRules = reusedRules;
 
       // Invalidate the previous {@see ActionGraphBuilder}, which we no longer need, to make sure
       // nobody unexpectedly accesses it after this point.
@@ -76,17 +122,86 @@ public class IncrementalActionGraphGenerator {
 
     lastTargetGraph = targetGraph;
     lastActionGraphBuilder = graphBuilder;
-    eventBus.post(new ActionGraphEvent.IncrementalLoad(reusedRuleCount));
+    int targetNodeCount = targetGraph.getNodes().size();
+    LOG.debug(
+        "reused the build rules of %d of %d target nodes", reusedTargetNodeCount, targetNodeCount);
+    eventBus.post(
+        new ActionGraphEvent.IncrementalLoad(
+            reusedRuleCount, reusedTargetNodeCount, targetNodeCount));
   }
 
-  private int addValidRulesToActionGraphBuilder(
-      ActionGraphBuilder graphBuilder, Set<UnflavoredBuildTarget> validTargets) {
+  /**
+   * Memoizes the rules created by the last action graph for each unflavored target in its target
+   * graph, and evicts the entries that have not been used for too long.
+   */
+  private void memoizeRulesOfLastActionGraph() {
+    Preconditions.checkNotNull(lastActionGraphBuilder);
+    Preconditions.checkNotNull(lastTargetGraph);
+    generation++;
+
+    ListMultimap<UnflavoredBuildTarget, BuildRule> rulesByTarget = ArrayListMultimap.create();
+    for (BuildRule buildRule : lastActionGraphBuilder.getBuildRules()) {
+      rulesByTarget.put(buildRule.getBuildTarget().getUnflavoredBuildTarget(), buildRule);
+    }
+    ListMultimap<UnflavoredBuildTarget, TargetNode<?, ?>> nodesByTarget =
+        ArrayListMultimap.create();
+    for (TargetNode<?, ?> node : lastTargetGraph.getNodes()) {
+      nodesByTarget.put(node.getBuildTarget().getUnflavoredBuildTarget(), node);
+    }
+
+    // Reused entries stay the same, so that the entries depending on them remain valid, but they
+    // take in the rules that were created on the fly for their targets.
+    Set<MemoizedRules> newRules = Sets.newIdentityHashSet();
+    for (UnflavoredBuildTarget target : nodesByTarget.keySet()) {
+      @Nullable MemoizedRules reused = memoizedRules.get(target);
+      if (reused != null && lastReusedRules.contains(reused)) {
+        reused.rules = ImmutableList.copyOf(rulesByTarget.get(target));
+        reused.lastUsedGeneration = generation;
+        continue;
+      }
+      ImmutableMap.Builder<BuildTarget, TargetNode<?, ?>> nodes = ImmutableMap.builder();
+      for (TargetNode<?, ?> node : nodesByTarget.get(target)) {
+        nodes.put(node.getBuildTarget(), node);
+      }
+      MemoizedRules memoized =
+          new MemoizedRules(
+              nodes.build(), ImmutableList.copyOf(rulesByTarget.get(target)), generation);
+      memoizedRules.put(target, memoized);
+      newRules.add(memoized);
+    }
+
+    // The dependencies of new entries are the entries of the same target graph.
+    for (MemoizedRules memoized : newRules) {
+      Set<MemoizedRules> deps = Sets.newIdentityHashSet();
+      for (TargetNode<?, ?> node : memoized.nodes.values()) {
+        for (TargetNode<?, ?> dep : lastTargetGraph.getOutgoingNodesFor(node)) {
+          MemoizedRules depRules =
+              memoizedRules.get(dep.getBuildTarget().getUnflavoredBuildTarget());
+          if (depRules != memoized) {
+            deps.add(depRules);
+          }
+        }
+      }
+      memoized.deps = ImmutableSet.copyOf(deps);
+    }
+
+    int memoizedCount = memoizedRules.size();
+    memoizedRules
+        .values()
+        .removeIf(memoized -> generation - memoized.lastUsedGeneration >= maxUnusedGenerations);
+    LOG.debug(
+        "memoized the build rules of %d targets, evicted %d",
+        memoizedRules.size(), memoizedCount - memoizedRules.size());
+    lastReusedRules = new HashSet<>();
+  }
+
+  private int addReusedRulesToActionGraphBuilder(
+      ActionGraphBuilder graphBuilder, Set<MemoizedRules> reusedRules) {
     SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(graphBuilder);
     SourcePathResolver pathResolver = DefaultSourcePathResolver.from(ruleFinder);
-    int totalRuleCount = 0;
     int reusedRuleCount = 0;
-    for (BuildRule buildRule : lastActionGraphBuilder.getBuildRules()) {
-      if (validTargets.contains(buildRule.getBuildTarget().getUnflavoredBuildTarget())) {
+    for (MemoizedRules memoized : reusedRules) {
+      for (BuildRule buildRule : memoized.rules) {
         graphBuilder.addToIndex(buildRule);
 
         // Update build rule resolvers for all reused rules. Build rules may use build rule
@@ -96,76 +211,99 @@ public class IncrementalActionGraphGenerator {
 
         reusedRuleCount++;
       }
-      totalRuleCount++;
     }
 
-    LOG.debug("reused %d of %d build rules", reusedRuleCount, totalRuleCount);
+    LOG.debug(
+        "reused %d build rules of %d memoized targets", reusedRuleCount, memoizedRules.size());
     return reusedRuleCount;
   }
 
-  private boolean invalidateChangedTargets(
-      TargetNode<?, ?> node,
+  /**
+   * @return Whether the memoized rules of {@code target} can be reused, which requires that all of
+   *     its target nodes are unchanged and the memoized rules of their dependencies are reused too.
+   */
+  private boolean isReusable(
+      UnflavoredBuildTarget target,
       TargetGraph targetGraph,
-      Map<BuildTarget, Boolean> explored,
-      Set<UnflavoredBuildTarget> validTargets) {
-    if (explored.containsKey(node.getBuildTarget())) {
-      return explored.get(node.getBuildTarget());
-    }
-
-    // Recursively check if any node in a child subgraph causes invalidation of its parent chain.
-    boolean ancestorInvalidated = false;
-    for (TargetNode<?, ?> child : targetGraph.getOutgoingNodesFor(node)) {
-      // Note: We can't short circuit here since we need to also make sure things inside child
-      // subgraphs get properly invalidated in turn.
-      ancestorInvalidated |= invalidateChangedTargets(child, targetGraph, explored, validTargets);
+      ListMultimap<UnflavoredBuildTarget, TargetNode<?, ?>> nodesByTarget,
+      Map<UnflavoredBuildTarget, Boolean> explored) {
+    @Nullable Boolean reusable = explored.get(target);
+    if (reusable != null) {
+      return reusable;
     }
+    // Targets of a cycle between unflavored targets are conservatively not reused.
+    explored.put(target, false);
 
-    boolean invalidateParent = false;
-    if (ancestorInvalidated || shouldInvalidateParentChain(node)) {
-      if (LOG.isVerboseEnabled()) {
-        LOG.verbose("invalidating target %s", node.getBuildTarget().toString());
+    @Nullable MemoizedRules memoized = memoizedRules.get(target);
+    // Note: We can't short circuit here since we need to also make sure things inside child
+    // subgraphs get properly invalidated in turn.
+    boolean depsReusable = true;
+    for (TargetNode<?, ?> node : nodesByTarget.get(target)) {
+      for (TargetNode<?, ?> dep : targetGraph.getOutgoingNodesFor(node)) {
+        UnflavoredBuildTarget depTarget = dep.getBuildTarget().getUnflavoredBuildTarget();
+        if (depTarget.equals(target)) {
+          continue;
+        }
+        depsReusable &= isReusable(depTarget, targetGraph, nodesByTarget, explored);
+        // The rules must have been created with the same rules of the dependency that are reused.
+        depsReusable &= memoized != null && memoized.deps.contains(memoizedRules.get(depTarget));
       }
-      invalidateParent = true;
-    } else {
-      // This node is valid. We can load all the flavors of its targets from cache.
-      validTargets.add(node.getBuildTarget().getUnflavoredBuildTarget());
     }
 
-    explored.put(node.getBuildTarget(), invalidateParent);
-    return invalidateParent;
+    reusable = depsReusable && memoized != null && isUnchanged(memoized, nodesByTarget.get(target));
+    if (!reusable && LOG.isVerboseEnabled()) {
+      LOG.verbose("invalidating target %s", target);
+    }
+    explored.put(target, reusable);
+    return reusable;
   }
 
-  private boolean shouldInvalidateParentChain(TargetNode<?, ?> targetNode) {
-    if (lastTargetGraph != null) {
-      Optional<TargetNode<?, ?>> previousTargetNode =
-          lastTargetGraph.getExactOptional(targetNode.getBuildTarget());
-      if (previousTargetNode.isPresent()) {
-        Preconditions.checkState(
-            lastActionGraphBuilder.getRuleOptional(targetNode.getBuildTarget()).isPresent());
-        // If the target node has changed, then invalidate parent chains, as ancestors might
-        // generate their subgraphs differently given the change.
-        if (!targetNode.equals(previousTargetNode.get())) {
-          if (LOG.isVerboseEnabled()) {
-            LOG.verbose(
-                "target %s caused invalidation due to target node change",
-                targetNode.getBuildTarget().toString());
-          }
-          return true;
+  private boolean isUnchanged(MemoizedRules memoized, Iterable<TargetNode<?, ?>> targetNodes) {
+    for (TargetNode<?, ?> targetNode : targetNodes) {
+      // If the target node has changed, then invalidate parent chains, as ancestors might
+      // generate their subgraphs differently given the change.
+      if (!targetNode.equals(memoized.nodes.get(targetNode.getBuildTarget()))) {
+        if (LOG.isVerboseEnabled()) {
+          LOG.verbose(
+              "target %s caused invalidation due to target node change",
+              targetNode.getBuildTarget().toString());
         }
+        return false;
       }
-    }
-    // Incremental caching is only supported for {@link Description}s known to
-    // be safe. This is
-    // because we cannot generally guarantee that descriptions won't do crazy things that violate
-    // our assumptions during their construction.
-    if (!targetNode.getDescription().producesCacheableSubgraph()) {
-      if (LOG.isVerboseEnabled()) {
-        LOG.verbose(
-            "target %s caused invalidation due to not being cacheable",
-            targetNode.getBuildTarget().toString());
+      // Incremental caching is only supported for {@link Description}s known to
+      // be safe. This is
+      // because we cannot generally guarantee that descriptions won't do crazy things that violate
+      // our assumptions during their construction.
+      if (!targetNode.getDescription().producesCacheableSubgraph()) {
+        if (LOG.isVerboseEnabled()) {
+          LOG.verbose(
+              "target %s caused invalidation due to not being cacheable",
+              targetNode.getBuildTarget().toString());
+        }
+        return false;
       }
-      return true;
     }
-    return false;
+    return true;
+  }
+
+  /** Build rules created for all flavors of an unflavored target by one action graph. */
+  private static class MemoizedRules {
+    /** The target nodes the rules were created from. */
+    private final ImmutableMap<BuildTarget, TargetNode<?, ?>> nodes;
+
+    /** The memoized rules of the dependencies of the nodes that the rules were created with. */
+    private ImmutableSet<MemoizedRules> deps = ImmutableSet.of();
+
+    private ImmutableList<BuildRule> rules;
+    private long lastUsedGeneration;
+
+    private MemoizedRules(
+        ImmutableMap<BuildTarget, TargetNode<?, ?>> nodes,
+        ImmutableList<BuildRule> rules,
+        long generation) {
+      this.nodes = nodes;
+      this.rules = rules;
+      this.lastUsedGeneration = generation;
+    }
   }
 }
@@ -23,21 +23,31 @@ import com.facebook.buck.core.rules.BuildRule;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.rules.keys.RuleKeyFactory;
 import com.facebook.buck.util.Scope;
-import com.facebook.buck.util.collect.SortedSets;
 import com.facebook.buck.util.exceptions.BuckUncheckedExecutionException;
-import com.google.common.collect.Maps;
-import com.google.common.util.concurrent.Futures;
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
-import java.util.ArrayList;
-import java.util.List;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Set;
-import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
-import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
-/** Calculates {@link RuleKey}, bottom-up, using tree parallelism. */
+/**
+ * Calculates {@link RuleKey}, bottom-up, using tree parallelism.
+ *
+ * <p>Each rule is tracked by a node in a concurrent memo table. Whoever registers a rule first
+ * schedules the expansion of its deps, and the rule key itself is scheduled by whichever dep
+ * finishes last. No lock is taken while walking the graph and no futures are chained between
+ * rules: a single {@link SettableFuture} per rule is completed for callers.
+ */
 public class ParallelRuleKeyCalculator<T> {
 
   private final ListeningExecutorService service;
@@ -45,7 +55,16 @@ public class ParallelRuleKeyCalculator<T> {
   private final RuleDepsCache ruleDepsCache;
   private final BiFunction<BuckEventBus, BuildRule, Scope> ruleKeyCalculationScope;
 
-  private final ConcurrentMap<BuildTarget, ListenableFuture<T>> ruleKeys = Maps.newConcurrentMap();
+  private final ConcurrentMap<BuildTarget, Node> ruleKeys = new ConcurrentHashMap<>();
+
+  // Marks the waiter list of a node whose rule key has been calculated (or has failed).
+  private final Waiter completed = new Waiter(null, null);
+
+  private final LongAdder cachedRuleKeys = new LongAdder();
+  private final LongAdder calculatedRuleKeys = new LongAdder();
+  private final LongAdder depsResolutionNanos = new LongAdder();
+  private final LongAdder queuedNanos = new LongAdder();
+  private final LongAdder calculationNanos = new LongAdder();
 
   public ParallelRuleKeyCalculator(
       ListeningExecutorService service,
@@ -62,61 +81,241 @@ public class ParallelRuleKeyCalculator<T> {
    * @return a {@link ListenableFuture} wrapping the result of calculating the {@link RuleKey} of
    *     the given {@link BuildRule}.
    */
-  public synchronized ListenableFuture<T> calculate(BuckEventBus buckEventBus, BuildRule rule) {
-    ListenableFuture<T> fromOurCache = ruleKeys.get(rule.getBuildTarget());
-    if (fromOurCache != null) {
-      return fromOurCache;
+  public ListenableFuture<T> calculate(BuckEventBus buckEventBus, BuildRule rule) {
+    return getOrSchedule(buckEventBus, rule).future;
+  }
+
+  private Node getOrSchedule(BuckEventBus buckEventBus, BuildRule rule) {
+    Node node = ruleKeys.get(rule.getBuildTarget());
+    if (node != null) {
+      return node;
+    }
+    Node newNode = new Node(buckEventBus, rule);
+    node = ruleKeys.putIfAbsent(rule.getBuildTarget(), newNode);
+    if (node != null) {
+      return node;
     }
 
     T fromInternalCache = ruleKeyFactory.getFromCache(rule);
     if (fromInternalCache != null) {
-      ListenableFuture<T> future = Futures.immediateFuture(fromInternalCache);
-      // Record the rule key future.
-      ruleKeys.put(rule.getBuildTarget(), future);
       // Because a rule key will be invalidated from the internal cache any time one of its
       // dependents is invalidated, we know that all of our transitive deps are also in cache.
-      return future;
-    }
-
-    // Grab all the dependency rule key futures.  Since our rule key calculation depends on this
-    // one, we need to wait for them to complete.
-    ListenableFuture<List<T>> depKeys =
-        Futures.transformAsync(
-            Futures.immediateFuture(ruleDepsCache.get(rule)),
-            (@Nonnull SortedSet<BuildRule> deps) -> {
-              List<ListenableFuture<T>> depKeys1 =
-                  new ArrayList<>(SortedSets.sizeEstimate(rule.getBuildDeps()));
-              for (BuildRule dep : deps) {
-                depKeys1.add(calculate(buckEventBus, dep));
-              }
-              return Futures.allAsList(depKeys1);
-            },
-            service);
-
-    // Setup a future to calculate this rule key once the dependencies have been calculated.
-    ListenableFuture<T> calculated =
-        Futures.transform(
-            depKeys,
-            (List<T> input) -> {
-              try (Scope scope = ruleKeyCalculationScope.apply(buckEventBus, rule)) {
-                return ruleKeyFactory.build(rule);
-              } catch (Exception e) {
-                throw new BuckUncheckedExecutionException(
-                    e, String.format("When computing rulekey for %s.", rule));
-              }
-            },
-            service);
-
-    // Record the rule key future.
-    ruleKeys.put(rule.getBuildTarget(), calculated);
-    return calculated;
+      cachedRuleKeys.increment();
+      newNode.complete(fromInternalCache);
+    } else {
+      newNode.schedule(newNode::expand);
+    }
+    return newNode;
   }
 
-  public synchronized Set<BuildTarget> getAllKnownTargets() {
+  public Set<BuildTarget> getAllKnownTargets() {
     return ruleKeys.keySet();
   }
 
   public RuleDepsCache getRuleDepsCache() {
     return ruleDepsCache;
   }
+
+  /** @return the time spent so far in each phase of rule key calculation. */
+  public Stats getStats() {
+    return new Stats(
+        cachedRuleKeys.sum(),
+        calculatedRuleKeys.sum(),
+        depsResolutionNanos.sum(),
+        queuedNanos.sum(),
+        calculationNanos.sum());
+  }
+
+  /** An entry in the lock-free list of rules waiting for a node to complete. */
+  private class Waiter {
+    @Nullable private final Node node;
+    @Nullable private final Waiter next;
+
+    private Waiter(@Nullable Node node, @Nullable Waiter next) {
+      this.node = node;
+      this.next = next;
+    }
+  }
+
+  private class Node {
+    private final BuckEventBus buckEventBus;
+    private final BuildRule rule;
+    private final SettableFuture<T> future = SettableFuture.create();
+    private final AtomicReference<Waiter> waiters = new AtomicReference<>();
+    // Deps whose rule keys are still being calculated, plus one held by the expansion until it
+    // has registered with all of them.
+    private final AtomicInteger pendingDeps = new AtomicInteger(1);
+    @Nullable private volatile Throwable failure;
+    private volatile long readyNanos;
+
+    private Node(BuckEventBus buckEventBus, BuildRule rule) {
+      this.buckEventBus = buckEventBus;
+      this.rule = rule;
+    }
+
+    private void schedule(Runnable task) {
+      try {
+        service.execute(task);
+      } catch (RuntimeException e) {
+        fail(e);
+      }
+    }
+
+    /** Registers this node with all its deps, scheduling their calculation where needed. */
+    private void expand() {
+      long start = System.nanoTime();
+      try {
+        for (BuildRule dep : ruleDepsCache.get(rule)) {
+          Node depNode = getOrSchedule(buckEventBus, dep);
+          pendingDeps.incrementAndGet();
+          if (!depNode.addWaiter(this)) {
+            onDepDone(depNode.failure);
+          }
+        }
+      } catch (RuntimeException e) {
+        fail(e);
+        return;
+      } finally {
+        depsResolutionNanos.add(System.nanoTime() - start);
+      }
+      onDepDone(null);
+    }
+
+    /** @return false if this node has already completed, in which case nothing was added. */
+    private boolean addWaiter(Node waiter) {
+      while (true) {
+        Waiter head = waiters.get();
+        if (head == completed) {
+          return false;
+        }
+        if (waiters.compareAndSet(head, new Waiter(waiter, head))) {
+          return true;
+        }
+      }
+    }
+
+    private void onDepDone(@Nullable Throwable depFailure) {
+      if (depFailure != null) {
+        fail(depFailure);
+      } else if (pendingDeps.decrementAndGet() == 0) {
+        readyNanos = System.nanoTime();
+        schedule(this::calculate);
+      }
+    }
+
+    private void calculate() {
+      if (future.isDone()) {
+        return;
+      }
+      long start = System.nanoTime();
+      queuedNanos.add(start - readyNanos);
+      T ruleKey;
+      try (Scope scope = ruleKeyCalculationScope.apply(buckEventBus, rule)) {
+        ruleKey = ruleKeyFactory.build(rule);
+      } catch (Exception e) {
+        fail(
+            new BuckUncheckedExecutionException(
+                e, String.format("When computing rulekey for %s.", rule)));
+        return;
+      } finally {
+        calculationNanos.add(System.nanoTime() - start);
+      }
+      calculatedRuleKeys.increment();
+      complete(ruleKey);
+    }
+
+    private void complete(T ruleKey) {
+      future.set(ruleKey);
+      Waiter waiter = waiters.getAndSet(completed);
+      while (waiter != null && waiter != completed) {
+        waiter.node.onDepDone(null);
+        waiter = waiter.next;
+      }
+    }
+
+    /**
+     * Fails this node and all nodes waiting on it, transitively. The waiting nodes are failed with
+     * a worklist rather than recursively, as chains of deps can be deep enough to overflow the
+     * stack.
+     */
+    private void fail(Throwable throwable) {
+      if (failure == null) {
+        failure = throwable;
+      }
+      Deque<Node> failedNodes = new ArrayDeque<>();
+      failedNodes.add(this);
+      while (!failedNodes.isEmpty()) {
+        Node node = failedNodes.remove();
+        Throwable nodeFailure = Preconditions.checkNotNull(node.failure);
+        node.future.setException(nodeFailure);
+        Waiter waiter = node.waiters.getAndSet(completed);
+        while (waiter != null && waiter != completed) {
+          Node dependent = Preconditions.checkNotNull(waiter.node);
+          if (dependent.failure == null) {
+            dependent.failure = nodeFailure;
+          }
+          failedNodes.add(dependent);
+          waiter = waiter.next;
+        }
+      }
+    }
+  }
+
+  /** Time spent in each phase of rule key calculation, accumulated over all threads. */
+  public static class Stats {
+    private final long cachedRuleKeys;
+    private final long calculatedRuleKeys;
+    private final long depsResolutionNanos;
+    private final long queuedNanos;
+    private final long calculationNanos;
+
+    private Stats(
+        long cachedRuleKeys,
+        long calculatedRuleKeys,
+        long depsResolutionNanos,
+        long queuedNanos,
+        long calculationNanos) {
+      this.cachedRuleKeys = cachedRuleKeys;
+      this.calculatedRuleKeys = calculatedRuleKeys;
+      this.depsResolutionNanos = depsResolutionNanos;
+      this.queuedNanos = queuedNanos;
+      this.calculationNanos = calculationNanos;
+    }
+
+    /** @return the number of rule keys found in the rule key factory's cache. */
+    public long getCachedRuleKeys() {
+      return cachedRuleKeys;
+    }
+
+    /** @return the number of rule keys calculated by the rule key factory. */
+    public long getCalculatedRuleKeys() {
+      return calculatedRuleKeys;
+    }
+
+    /** @return time spent looking up deps and registering rules with them. */
+    public long getDepsResolutionNanos() {
+      return depsResolutionNanos;
+    }
+
+    /** @return time rules spent queued between their deps completing and their calculation. */
+    public long getQueuedNanos() {
+      return queuedNanos;
+    }
+
+    /** @return time spent building rule keys in the rule key factory. */
+    public long getCalculationNanos() {
+      return calculationNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "cached=%d calculated=%d deps_resolution=%dms queued=%dms calculation=%dms",
+          cachedRuleKeys,
+          calculatedRuleKeys,
+          TimeUnit.NANOSECONDS.toMillis(depsResolutionNanos),
+          TimeUnit.NANOSECONDS.toMillis(queuedNanos),
+          TimeUnit.NANOSECONDS.toMillis(calculationNanos));
+    }
+  }
 }
@@ -24,6 +24,7 @@ import com.facebook.buck.doctor.config.BuildLogEntry;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.json.ObjectMappers;
+import com.facebook.buck.util.trace.BuildTraces;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.common.collect.ImmutableList;
 import java.io.BufferedReader;
@@ -42,6 +43,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 /** Methods for finding and inspecting buck log files. */
@@ -50,6 +52,8 @@ public class BuildLogHelper {
   private final ProjectFilesystem projectFilesystem;
 
   private static final String INFO_FIELD_UNEXPANDED_CMD_ARGS = "unexpandedCommandArgs";
+  private static final Pattern TRACE_FILE_PATTERN =
+      Pattern.compile(".*" + BuildTraces.TRACE_FILE_EXTENSION_PATTERN_TEXT);
 
   public BuildLogHelper(ProjectFilesystem projectFilesystem) {
     this.projectFilesystem = projectFilesystem;
@@ -131,7 +135,7 @@ public class BuildLogHelper {
         projectFilesystem
             .getFilesUnderPath(logFile.getParent())
             .stream()
-            .filter(input -> input.toString().endsWith(".trace"))
+            .filter(input -> TRACE_FILE_PATTERN.matcher(input.toString()).matches())
             .findFirst();
 
     return builder
@@ -93,10 +93,14 @@ public abstract class ActionGraphEvent extends AbstractBuckEvent
   /** Event for incremental action graph construction. * */
   public static class IncrementalLoad extends ActionGraphEvent {
     public int reusedNodeCount;
+    public int reusedTargetNodeCount;
+    public int targetNodeCount;
 
-    public IncrementalLoad(int reusedNodeCount) {
+    public IncrementalLoad(int reusedNodeCount, int reusedTargetNodeCount, int targetNodeCount) {
       super(EventKey.unique());
       this.reusedNodeCount = reusedNodeCount;
+      this.reusedTargetNodeCount = reusedTargetNodeCount;
+      this.targetNodeCount = targetNodeCount;
     }
 
     @Override
@@ -107,6 +111,16 @@ public abstract class ActionGraphEvent extends AbstractBuckEvent
     public int getReusedNodeCount() {
       return reusedNodeCount;
     }
+
+    /** @return The number of target nodes whose build rules were reused. */
+    public int getReusedTargetNodeCount() {
+      return reusedTargetNodeCount;
+    }
+
+    /** @return The number of target nodes in the target graph of the action graph. */
+    public int getTargetNodeCount() {
+      return targetNodeCount;
+    }
   }
 
   public static class Cache extends ActionGraphEvent implements BuckEvent {
@@ -19,23 +19,30 @@ import com.facebook.buck.core.model.BuildId;
 import com.facebook.buck.log.CommandThreadFactory;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.util.Threads;
-import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.timing.Clock;
-import com.facebook.buck.util.types.Pair;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
-import com.google.common.eventbus.EventBus;
-import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayDeque;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Supplier;
+import javax.annotation.Nullable;
 
-/** Thin wrapper around guava event bus. */
+/**
+ * Event bus that delivers events to the {@link com.google.common.eventbus.Subscribe} methods of its
+ * listeners, like Guava's {@link com.google.common.eventbus.EventBus}.
+ *
+ * <p>Asynchronous event buses deliver all events on a single dispatcher thread, in the order they
+ * were posted in. Posting threads add events to a lock-free queue, which the dispatcher thread
+ * drains in batches, so that posting threads neither contend on a lock nor wait for listeners.
+ */
 public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus {
 
   private static final Logger LOG = Logger.get(BuckEventBus.class);
@@ -46,21 +53,40 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
       () -> Thread.currentThread().getId();
   private static final long DEADLOCK_MONITOR_TIME_MS = 2000;
 
+  /** Maximum number of events the dispatcher thread takes from the queue at once. */
+  private static final int MAX_BATCH_SIZE = 1024;
+
   private final Clock clock;
-  private final ExecutorService executorService;
-  private final EventBus eventBus;
+  private final EventSubscribers subscribers = new EventSubscribers();
   private final Supplier<Long> threadIdSupplier;
   private final BuildId buildId;
   private final int shutdownTimeoutMillis;
 
+  /** Events waiting for the dispatcher thread. Unused by synchronous event buses. */
+  private final MpscEventQueue queue = new MpscEventQueue();
+
+  /** Delivers queued events. Absent for synchronous event buses. */
+  @Nullable private final Thread dispatcherThread;
+
+  private volatile boolean dispatcherParked = false;
+
+  /** Events posted by each thread while it delivers an event of a synchronous event bus. */
+  private final ThreadLocal<ArrayDeque<BuckEvent>> synchronouslyQueuedEvents = new ThreadLocal<>();
+
   // TODO(bobyf) remove when printing issue diagnosed
   private final ScheduledExecutorService deadLockDetectorThread;
-  private final AtomicReference<Pair<BuckEvent, Long>> currentEvent = new AtomicReference<>();
+  @Nullable private volatile BuckEvent currentEvent;
+  private volatile long currentEventStartMillis;
 
-  // synchronization variables to ensure proper shutdown
-  private volatile int activeTasks = 0;
+  // counters to wait for all posted events, including the events posted by listeners, on shutdown
+  private final LongAdder postedEvents = new LongAdder();
+  private final AtomicLong deliveredEvents = new AtomicLong();
+  private final AtomicInteger waitingThreads = new AtomicInteger();
   private final Object lock = new Object();
 
+  private volatile boolean closed = false;
+  private volatile boolean discardQueuedEvents = false;
+
   public DefaultBuckEventBus(Clock clock, BuildId buildId) {
     this(clock, true, buildId, DEFAULT_SHUTDOWN_TIMEOUT_MS);
   }
@@ -69,52 +95,124 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
   public DefaultBuckEventBus(
       Clock clock, boolean async, BuildId buildId, int shutdownTimeoutMillis) {
     this.clock = clock;
-    this.executorService =
-        async
-            ? MostExecutors.newSingleThreadExecutor(
-                new CommandThreadFactory(BuckEventBus.class.getSimpleName()))
-            : MoreExecutors.newDirectExecutorService();
     this.deadLockDetectorThread = new ScheduledThreadPoolExecutor(1);
     this.deadLockDetectorThread.schedule(
         () -> {
           // Assumes Single Threaded event bus dispatching
-          Pair<BuckEvent, Long> current = currentEvent.get();
+          BuckEvent current = currentEvent;
           if (current != null
-              && System.currentTimeMillis() - current.getSecond() > DEADLOCK_MONITOR_TIME_MS) {
-            LOG.warn(
-                "Sending event %s took longer than %d ms",
-                current.getFirst(), DEADLOCK_MONITOR_TIME_MS);
+              && System.currentTimeMillis() - currentEventStartMillis > DEADLOCK_MONITOR_TIME_MS) {
+            LOG.warn("Sending event %s took longer than %d ms", current, DEADLOCK_MONITOR_TIME_MS);
           }
         },
         DEFAULT_SHUTDOWN_TIMEOUT_MS,
         TimeUnit.MILLISECONDS);
-    this.eventBus = new EventBus("buck-build-events");
     this.threadIdSupplier = DEFAULT_THREAD_ID_SUPPLIER;
     this.buildId = buildId;
     this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    if (async) {
+      this.dispatcherThread =
+          new CommandThreadFactory(BuckEventBus.class.getSimpleName())
+              .newThread(this::runDispatcher);
+      this.dispatcherThread.setDaemon(true);
+      this.dispatcherThread.start();
+    } else {
+      this.dispatcherThread = null;
+    }
   }
 
   private void dispatch(BuckEvent event) {
-    // keep track the number of active tasks so we can do proper shutdown
-    synchronized (lock) {
-      activeTasks++;
+    if (closed) {
+      LOG.debug("Discarding event %s posted after the event bus was closed.", event);
+      return;
     }
+    // keep track the number of posted events so we can do proper shutdown
+    postedEvents.increment();
 
-    executorService.submit(
-        () -> {
-          try {
-            currentEvent.set(new Pair<>(event, System.currentTimeMillis()));
-            eventBus.post(event);
-          } finally {
-            currentEvent.set(null);
-            // event bus should not throw but just in case wrap with try-finally
-            synchronized (lock) {
-              activeTasks--;
-              // notify about task completion; shutdown may wait for it
-              lock.notifyAll();
-            }
-          }
-        });
+    if (dispatcherThread == null) {
+      dispatchSynchronously(event);
+      return;
+    }
+    queue.offer(event);
+    if (dispatcherParked) {
+      LockSupport.unpark(dispatcherThread);
+    }
+  }
+
+  /**
+   * Delivers {@code event} on the posting thread. Events posted by listeners while it is delivered
+   * are queued, and delivered once all listeners got {@code event}, like Guava's event bus does.
+   */
+  private void dispatchSynchronously(BuckEvent event) {
+    ArrayDeque<BuckEvent> queuedEvents = synchronouslyQueuedEvents.get();
+    if (queuedEvents != null) {
+      queuedEvents.add(event);
+      return;
+    }
+    queuedEvents = new ArrayDeque<>();
+    synchronouslyQueuedEvents.set(queuedEvents);
+    try {
+      for (BuckEvent next = event; next != null; next = queuedEvents.poll()) {
+        deliver(next);
+        markDelivered(1);
+      }
+    } finally {
+      synchronouslyQueuedEvents.remove();
+    }
+  }
+
+  /** Body of the dispatcher thread of asynchronous event buses. */
+  private void runDispatcher() {
+    BuckEvent[] batch = new BuckEvent[MAX_BATCH_SIZE];
+    while (!discardQueuedEvents) {
+      int size = queue.drainTo(batch);
+      if (size == 0) {
+        if (closed) {
+          return;
+        }
+        dispatcherParked = true;
+        // Posting threads unpark this thread after they queue an event and see it parked.
+        if (queue.isEmpty() && !closed) {
+          LockSupport.park(this);
+        }
+        dispatcherParked = false;
+        continue;
+      }
+      for (int i = 0; i < size; i++) {
+        deliver(batch[i]);
+        batch[i] = null;
+      }
+      markDelivered(size);
+    }
+  }
+
+  private void deliver(BuckEvent event) {
+    currentEventStartMillis = System.currentTimeMillis();
+    currentEvent = event;
+    try {
+      subscribers.deliver(event);
+    } catch (RuntimeException | Error e) {
+      // subscribers should not throw but just in case keep delivering the other events
+      LOG.error(e, "Failed to deliver event %s", event);
+    } finally {
+      currentEvent = null;
+    }
+  }
+
+  private void markDelivered(int count) {
+    deliveredEvents.addAndGet(count);
+    if (waitingThreads.get() > 0) {
+      synchronized (lock) {
+        // notify about delivered events; shutdown may wait for them
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private long getUndeliveredEventCount() {
+    // Events posted by listeners are counted before the events they were posted by are delivered.
+    long delivered = deliveredEvents.get();
+    return postedEvents.sum() - delivered;
   }
 
   @Override
@@ -137,12 +235,12 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
 
   @Override
   public void register(Object object) {
-    eventBus.register(object);
+    subscribers.register(object);
   }
 
   @Override
   public void unregister(Object object) {
-    eventBus.unregister(object);
+    subscribers.unregister(object);
   }
 
   @Override
@@ -169,62 +267,74 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
   }
 
   /**
-   * {@link ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)} is called to wait
-   * for events which have been posted, but which have been queued by the {@link EventBus}, to be
-   * delivered. This allows listeners to record or report as much information as possible. This aids
-   * debugging when close is called during exception processing.
+   * Waits for events which have been posted, but which have not been delivered yet, to be
+   * delivered. This allows listeners to record or report as much information as possible. This
+   * aids debugging when close is called during exception processing.
    */
   @Override
   public void close() throws IOException {
     long timeoutTime = System.currentTimeMillis() + shutdownTimeoutMillis;
 
-    // it might have happened that executor service is still processing a task which in turn may
-    // post new tasks to the executor, in this case if we shutdown executor they won't be processed
-    // so first wait for all currently running tasks and their descendants to finish
-    // ideally it should be done inside executorService but it only provides shutdown() method
-    // which immediately stops accepting new tasks, that's why we have some wrapper on top of it
+    // listeners may still be handling events which in turn may post new events, which would not be
+    // delivered if we stopped the dispatcher thread, so first wait for all posted events and their
+    // descendants to be delivered
     waitEvents(shutdownTimeoutMillis);
 
-    executorService.shutdown();
+    closed = true;
     try {
-      long waitTime = timeoutTime - System.currentTimeMillis();
-      if (waitTime <= 0 || !executorService.awaitTermination(waitTime, TimeUnit.MILLISECONDS)) {
-        LOG.warn(
-            Joiner.on(System.lineSeparator())
-                .join(
-                    "The BuckEventBus failed to shut down within the standard timeout.",
-                    "Your build might have succeeded, but some messages were probably lost.",
-                    "Here's some debugging information:",
-                    executorService.toString()));
-        executorService.shutdownNow();
+      if (dispatcherThread != null) {
+        LockSupport.unpark(dispatcherThread);
+        long waitTime = timeoutTime - System.currentTimeMillis();
+        if (waitTime > 0) {
+          dispatcherThread.join(waitTime);
+        }
+        if (dispatcherThread.isAlive()) {
+          LOG.warn(
+              Joiner.on(System.lineSeparator())
+                  .join(
+                      "The BuckEventBus failed to shut down within the standard timeout.",
+                      "Your build might have succeeded, but some messages were probably lost.",
+                      "Here's some debugging information:",
+                      String.format(
+                          "%d events were not delivered, the event being delivered is %s.",
+                          getUndeliveredEventCount(), currentEvent)));
+          discardQueuedEvents = true;
+          dispatcherThread.interrupt();
+        }
       }
-      deadLockDetectorThread.shutdownNow();
     } catch (InterruptedException e) {
       Threads.interruptCurrentThread();
+    } finally {
+      deadLockDetectorThread.shutdownNow();
     }
   }
 
   @Override
   public boolean waitEvents(long timeout) {
     long startWaitTime = System.nanoTime();
-    synchronized (lock) {
-      while (activeTasks > 0) {
-
-        long waitTime = 0;
-        if (timeout > 0) {
-          waitTime = timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startWaitTime);
-          if (waitTime <= 0) {
-            return false;
+    waitingThreads.incrementAndGet();
+    try {
+      synchronized (lock) {
+        while (getUndeliveredEventCount() > 0) {
+
+          long waitTime = 0;
+          if (timeout > 0) {
+            waitTime = timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startWaitTime);
+            if (waitTime <= 0) {
+              return false;
+            }
           }
-        }
 
-        try {
-          lock.wait(waitTime);
-        } catch (InterruptedException e) {
-          Threads.interruptCurrentThread();
-          return activeTasks == 0;
+          try {
+            lock.wait(waitTime);
+          } catch (InterruptedException e) {
+            Threads.interruptCurrentThread();
+            return getUndeliveredEventCount() == 0;
+          }
         }
       }
+    } finally {
+      waitingThreads.decrementAndGet();
     }
     return true;
   }
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.reflect.TypeToken;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Listeners registered with a {@link DefaultBuckEventBus}, and the {@link Subscribe} methods that
+ * events of each type are delivered to.
+ *
+ * <p>Events are delivered the same way Guava's {@link com.google.common.eventbus.EventBus} does:
+ * to every method annotated with {@link Subscribe} whose parameter type is a supertype of the event
+ * type, in the order of the event type hierarchy and then in the order the listeners were
+ * registered in. Unlike the Guava event bus, the methods an event type is delivered to are only
+ * looked up the first time an event of that type is delivered, and are called through method
+ * handles instead of reflection.
+ */
+final class EventSubscribers {
+
+  private static final Logger LOG = Logger.get(EventSubscribers.class);
+
+  private static final MethodType SUBSCRIBER_TYPE = MethodType.methodType(void.class, Object.class);
+
+  /** The {@link Subscribe} methods of each listener class. */
+  private static final LoadingCache<Class<?>, ImmutableList<Method>> SUBSCRIBER_METHODS =
+      CacheBuilder.newBuilder()
+          .weakKeys()
+          .build(CacheLoader.from(EventSubscribers::findSubscriberMethods));
+
+  private final Object lock = new Object();
+
+  /** Replaced while holding {@link #lock} whenever a listener is registered or unregistered. */
+  private volatile Registrations registrations =
+      new Registrations(new IdentityHashMap<>(), new LinkedHashMap<>());
+
+  /** Registers all {@link Subscribe} methods of {@code listener}. */
+  void register(Object listener) {
+    ImmutableList<Method> methods = SUBSCRIBER_METHODS.getUnchecked(listener.getClass());
+    synchronized (lock) {
+      if (registrations.listeners.containsKey(listener)) {
+        return;
+      }
+      Map<Class<?>, ImmutableList<Subscriber>> subscribers =
+          new LinkedHashMap<>(registrations.subscribersByEventType);
+      for (Method method : methods) {
+        Class<?> eventType = method.getParameterTypes()[0];
+        subscribers.put(
+            eventType,
+            ImmutableList.<Subscriber>builder()
+                .addAll(subscribers.getOrDefault(eventType, ImmutableList.of()))
+                .add(new Subscriber(listener, method))
+                .build());
+      }
+      IdentityHashMap<Object, Boolean> listeners = new IdentityHashMap<>(registrations.listeners);
+      listeners.put(listener, true);
+      registrations = new Registrations(listeners, subscribers);
+    }
+  }
+
+  /** Stops delivering events to {@code listener}. */
+  void unregister(Object listener) {
+    synchronized (lock) {
+      Preconditions.checkArgument(
+          registrations.listeners.containsKey(listener),
+          "missing event subscriber for an annotated method. Is %s registered?",
+          listener);
+      Map<Class<?>, ImmutableList<Subscriber>> subscribers =
+          new LinkedHashMap<>(registrations.subscribersByEventType);
+      subscribers.replaceAll(
+          (eventType, eventTypeSubscribers) ->
+              eventTypeSubscribers
+                  .stream()
+                  .filter(subscriber -> subscriber.listener != listener)
+                  .collect(ImmutableList.toImmutableList()));
+      subscribers.values().removeIf(List::isEmpty);
+      IdentityHashMap<Object, Boolean> listeners = new IdentityHashMap<>(registrations.listeners);
+      listeners.remove(listener);
+      registrations = new Registrations(listeners, subscribers);
+    }
+  }
+
+  /** Delivers {@code event} to all subscribers of its type. */
+  void deliver(Object event) {
+    for (Subscriber subscriber : registrations.getSubscribers(event.getClass())) {
+      subscriber.invoke(event);
+    }
+  }
+
+  private static ImmutableList<Method> findSubscriberMethods(Class<?> listenerClass) {
+    Map<String, Method> methods = new LinkedHashMap<>();
+    for (Class<?> type : TypeToken.of(listenerClass).getTypes().rawTypes()) {
+      for (Method method : type.getDeclaredMethods()) {
+        if (!method.isAnnotationPresent(Subscribe.class) || method.isSynthetic()) {
+          continue;
+        }
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Preconditions.checkArgument(
+            parameterTypes.length == 1,
+            "Method %s has @Subscribe annotation but has %s parameters. "
+                + "Subscriber methods must have exactly 1 parameter.",
+            method,
+            parameterTypes.length);
+        Preconditions.checkArgument(
+            !parameterTypes[0].isPrimitive(),
+            "@Subscribe method %s's parameter is %s. Subscriber methods cannot accept primitives.",
+            method,
+            parameterTypes[0].getName());
+        // Overridden methods are only called once, through the most derived class.
+        methods.putIfAbsent(method.getName() + Arrays.toString(parameterTypes), method);
+      }
+    }
+    return ImmutableList.copyOf(methods.values());
+  }
+
+  /** An immutable snapshot of the registered listeners and their subscribers. */
+  private static class Registrations {
+    private final IdentityHashMap<Object, Boolean> listeners;
+    private final Map<Class<?>, ImmutableList<Subscriber>> subscribersByEventType;
+
+    /** Subscribers of each event type, including those of its supertypes, in delivery order. */
+    private final ConcurrentMap<Class<?>, Subscriber[]> subscribersTable =
+        new ConcurrentHashMap<>();
+
+    private Registrations(
+        IdentityHashMap<Object, Boolean> listeners,
+        Map<Class<?>, ImmutableList<Subscriber>> subscribersByEventType) {
+      this.listeners = listeners;
+      this.subscribersByEventType = subscribersByEventType;
+    }
+
+    private Subscriber[] getSubscribers(Class<?> eventType) {
+      Subscriber[] subscribers = subscribersTable.get(eventType);
+      if (subscribers == null) {
+        subscribers = subscribersTable.computeIfAbsent(eventType, this::computeSubscribers);
+      }
+      return subscribers;
+    }
+
+    private Subscriber[] computeSubscribers(Class<?> eventType) {
+      ImmutableList.Builder<Subscriber> subscribers = ImmutableList.builder();
+      for (Class<?> type : TypeToken.of(eventType).getTypes().rawTypes()) {
+        subscribers.addAll(subscribersByEventType.getOrDefault(type, ImmutableList.of()));
+      }
+      return subscribers.build().toArray(new Subscriber[0]);
+    }
+  }
+
+  /** A {@link Subscribe} method of a registered listener. */
+  private static class Subscriber {
+    private final Object listener;
+    private final Method method;
+    private final MethodHandle handle;
+
+    private Subscriber(Object listener, Method method) {
+      this.listener = listener;
+      this.method = method;
+      method.setAccessible(true);
+      try {
+        this.handle =
+            MethodHandles.lookup().unreflect(method).bindTo(listener).asType(SUBSCRIBER_TYPE);
+      } catch (IllegalAccessException e) {
+        throw new IllegalArgumentException(
+            String.format("Cannot access subscriber method %s.", method), e);
+      }
+    }
+
+    private void invoke(Object event) {
+      try {
+        handle.invokeExact(event);
+      } catch (Throwable t) {
+        // Like the Guava event bus, a failing listener does not keep the event from the others.
+        LOG.error(
+            t,
+            "Exception thrown by subscriber method %s on subscriber %s when dispatching event %s",
+            method,
+            listener,
+            event);
+      }
+    }
+  }
+}
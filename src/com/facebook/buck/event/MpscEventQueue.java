@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+
+/**
+ * An unbounded, lock-free queue of events that any number of threads post to, and that a single
+ * thread drains in batches.
+ *
+ * <p>Posting an event never blocks and never waits for other posting threads: the event is linked
+ * to the end of the queue with a single atomic exchange. The draining thread only follows links,
+ * without any atomic read-modify-write operations. The queue is unbounded, so that listeners can
+ * post events from the thread draining it without ever waiting for themselves.
+ */
+final class MpscEventQueue {
+
+  /** The last node of the queue, which producers exchange with their new node. */
+  private final AtomicReference<Node> tail;
+
+  /** The node before the first event in the queue. Only accessed by the consumer thread. */
+  private Node head;
+
+  MpscEventQueue() {
+    Node stub = new Node(null);
+    this.head = stub;
+    this.tail = new AtomicReference<>(stub);
+  }
+
+  /** Adds {@code event} to the end of the queue. May be called by any thread. */
+  void offer(BuckEvent event) {
+    Node node = new Node(event);
+    Node previous = tail.getAndSet(node);
+    // Until this link is set, the consumer sees the queue as ending at previous.
+    previous.next = node;
+  }
+
+  /**
+   * Moves events from the head of the queue into {@code batch}. May only be called by the consumer
+   * thread.
+   *
+   * @return the number of events moved, which is 0 if the queue is empty, or if the events posted
+   *     last are not completely linked yet.
+   */
+  int drainTo(BuckEvent[] batch) {
+    int size = 0;
+    Node node = head;
+    while (size < batch.length) {
+      Node next = node.next;
+      if (next == null) {
+        break;
+      }
+      batch[size++] = next.event;
+      // next becomes the new stub node; drop its reference to the event it carried.
+      next.event = null;
+      node = next;
+    }
+    head = node;
+    return size;
+  }
+
+  /** @return whether a call to {@link #drainTo} would move no events. Only for the consumer. */
+  boolean isEmpty() {
+    return head.next == null;
+  }
+
+  private static class Node {
+    @Nullable private BuckEvent event;
+    @Nullable private volatile Node next;
+
+    private Node(@Nullable BuckEvent event) {
+      this.event = event;
+    }
+  }
+}
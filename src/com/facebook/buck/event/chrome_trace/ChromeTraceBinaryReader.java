@@ -0,0 +1,190 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.facebook.buck.event.chrome_trace;
+
+import com.facebook.buck.event.chrome_trace.ChromeTraceEvent.Phase;
+import com.facebook.buck.util.json.ObjectMappers;
+import com.google.common.collect.ImmutableMap;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/** Reads Chrome trace events written by {@link ChromeTraceBinaryWriter}. */
+public class ChromeTraceBinaryReader implements AutoCloseable {
+
+  private static final Phase[] PHASES = Phase.values();
+
+  private final DataInputStream input;
+  private final List<String> strings = new ArrayList<>();
+  private long previousMicroTime = 0;
+  private long previousMicroThreadUserTime = 0;
+  private boolean started = false;
+  private boolean ended = false;
+
+  /** Create a reader backed by specified input stream. */
+  public ChromeTraceBinaryReader(InputStream traceStream) {
+    this.input = new DataInputStream(new BufferedInputStream(traceStream));
+  }
+
+  /**
+   * Converts the binary trace read from {@code binaryTrace} to the JSON format of {@link
+   * ChromeTraceWriter}, and closes both streams.
+   *
+   * <p>The events of truncated traces, e.g. of builds that were killed, are converted up to the
+   * last complete event.
+   */
+  public static void convertToJson(InputStream binaryTrace, OutputStream jsonTrace)
+      throws IOException {
+    try (ChromeTraceBinaryReader reader = new ChromeTraceBinaryReader(binaryTrace);
+        ChromeTraceWriter writer = new ChromeTraceWriter(jsonTrace)) {
+      writer.writeStart();
+      try {
+        for (Optional<ChromeTraceEvent> event = reader.readEvent();
+            event.isPresent();
+            event = reader.readEvent()) {
+          writer.writeEvent(event.get());
+        }
+      } catch (EOFException e) {
+        // The trace is truncated; keep the events read so far.
+      }
+      writer.writeEnd();
+    }
+  }
+
+  /**
+   * @return the next event of the trace, or nothing if the trace ended.
+   * @throws EOFException if the trace is truncated.
+   */
+  public Optional<ChromeTraceEvent> readEvent() throws IOException {
+    if (!started) {
+      readHeader();
+      started = true;
+    }
+    while (!ended) {
+      int tag = input.readUnsignedByte();
+      switch (tag) {
+        case ChromeTraceBinaryWriter.TAG_END:
+          ended = true;
+          break;
+        case ChromeTraceBinaryWriter.TAG_STRING:
+          strings.add(readString());
+          break;
+        case ChromeTraceBinaryWriter.TAG_EVENT:
+          return Optional.of(readEventRecord());
+        default:
+          throw new IOException(String.format("Unknown record tag %d in binary trace.", tag));
+      }
+    }
+    return Optional.empty();
+  }
+
+  @Override
+  public void close() throws IOException {
+    input.close();
+  }
+
+  private void readHeader() throws IOException {
+    byte[] magic = new byte[ChromeTraceBinaryWriter.MAGIC.length];
+    input.readFully(magic);
+    if (!Arrays.equals(magic, ChromeTraceBinaryWriter.MAGIC)) {
+      throw new IOException("Not a binary trace.");
+    }
+    int version = input.readUnsignedByte();
+    if (version != ChromeTraceBinaryWriter.VERSION) {
+      throw new IOException(String.format("Unsupported binary trace version %d.", version));
+    }
+  }
+
+  private ChromeTraceEvent readEventRecord() throws IOException {
+    Phase phase = PHASES[input.readUnsignedByte()];
+    String category = readStringReference();
+    String name = readStringReference();
+    long processId = readVarLong();
+    long threadId = readVarLong();
+    long microTime = previousMicroTime + readZigZagLong();
+    long microThreadUserTime = previousMicroThreadUserTime + readZigZagLong();
+    previousMicroTime = microTime;
+    previousMicroThreadUserTime = microThreadUserTime;
+
+    long argumentCount = readVarLong();
+    ImmutableMap.Builder<String, Object> args = ImmutableMap.builder();
+    for (long i = 0; i < argumentCount; i++) {
+      String argumentName = readStringReference();
+      args.put(argumentName, readValue());
+    }
+    return new ChromeTraceEvent(
+        category, name, phase, processId, threadId, microTime, microThreadUserTime, args.build());
+  }
+
+  private Object readValue() throws IOException {
+    int type = input.readUnsignedByte();
+    switch (type) {
+      case ChromeTraceBinaryWriter.VALUE_STRING:
+        return readString();
+      case ChromeTraceBinaryWriter.VALUE_LONG:
+        return readZigZagLong();
+      case ChromeTraceBinaryWriter.VALUE_DOUBLE:
+        return input.readDouble();
+      case ChromeTraceBinaryWriter.VALUE_TRUE:
+        return true;
+      case ChromeTraceBinaryWriter.VALUE_FALSE:
+        return false;
+      case ChromeTraceBinaryWriter.VALUE_JSON:
+        return ObjectMappers.READER.readTree(readString());
+      default:
+        throw new IOException(String.format("Unknown value type %d in binary trace.", type));
+    }
+  }
+
+  private String readStringReference() throws IOException {
+    long index = readVarLong();
+    if (index >= strings.size()) {
+      throw new IOException(String.format("Undefined string %d in binary trace.", index));
+    }
+    return strings.get((int) index);
+  }
+
+  private String readString() throws IOException {
+    byte[] bytes = new byte[(int) readVarLong()];
+    input.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private long readZigZagLong() throws IOException {
+    long value = readVarLong();
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private long readVarLong() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = input.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable-length integer in binary trace.");
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.facebook.buck.event.chrome_trace;
+
+import com.facebook.buck.util.json.ObjectMappers;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Writes Chrome trace events in a compact binary format, which {@link ChromeTraceBinaryReader}
+ * converts to the JSON format of {@link ChromeTraceWriter}.
+ *
+ * <p>Writing this format takes less time and space than JSON: categories, names and argument names
+ * are only written the first time they are used, and are referred to by their index afterwards.
+ * Numbers are written as variable-length integers, and timestamps as the difference to those of the
+ * previous event.
+ *
+ * <p>The format starts with {@link #MAGIC} and {@link #VERSION}, followed by records that each
+ * start with a tag: {@link #TAG_STRING} defines the next string of the string table, {@link
+ * #TAG_EVENT} is an event, and {@link #TAG_END} terminates the trace.
+ */
+public class ChromeTraceBinaryWriter implements ChromeTraceEventWriter {
+
+  /** Suffix of the names of binary trace files. */
+  public static final String FILE_EXTENSION = ".bin";
+
+  static final byte[] MAGIC = {'B', 'T', 'R', 'C'};
+  static final int VERSION = 1;
+
+  static final int TAG_END = 0;
+  static final int TAG_STRING = 1;
+  static final int TAG_EVENT = 2;
+
+  static final int VALUE_STRING = 0;
+  static final int VALUE_LONG = 1;
+  static final int VALUE_DOUBLE = 2;
+  static final int VALUE_TRUE = 3;
+  static final int VALUE_FALSE = 4;
+  /** Any other value, written as JSON. */
+  static final int VALUE_JSON = 5;
+
+  private final DataOutputStream output;
+  private final Map<String, Integer> stringIndexes = new HashMap<>();
+  private long previousMicroTime = 0;
+  private long previousMicroThreadUserTime = 0;
+
+  /** Create a writer backed by specified output stream. */
+  public ChromeTraceBinaryWriter(OutputStream traceStream) {
+    this.output = new DataOutputStream(new BufferedOutputStream(traceStream));
+  }
+
+  @Override
+  public void writeStart() throws IOException {
+    output.write(MAGIC);
+    output.writeByte(VERSION);
+  }
+
+  @Override
+  public void writeEvent(ChromeTraceEvent chromeTraceEvent) throws IOException {
+    // Strings are defined before the event that first refers to them.
+    int categoryIndex = getStringIndex(chromeTraceEvent.getCategory());
+    int nameIndex = getStringIndex(chromeTraceEvent.getName());
+    int[] argumentIndexes = new int[chromeTraceEvent.getArgs().size()];
+    int argumentCount = 0;
+    for (String argumentName : chromeTraceEvent.getArgs().keySet()) {
+      argumentIndexes[argumentCount++] = getStringIndex(argumentName);
+    }
+
+    output.writeByte(TAG_EVENT);
+    output.writeByte(chromeTraceEvent.getPhase().ordinal());
+    writeVarLong(categoryIndex);
+    writeVarLong(nameIndex);
+    writeVarLong(chromeTraceEvent.getProcessId());
+    writeVarLong(chromeTraceEvent.getThreadId());
+    writeZigZagLong(chromeTraceEvent.getMicroTime() - previousMicroTime);
+    writeZigZagLong(chromeTraceEvent.getMicroThreadUserTime() - previousMicroThreadUserTime);
+    previousMicroTime = chromeTraceEvent.getMicroTime();
+    previousMicroThreadUserTime = chromeTraceEvent.getMicroThreadUserTime();
+
+    writeVarLong(argumentCount);
+    argumentCount = 0;
+    for (Object value : chromeTraceEvent.getArgs().values()) {
+      writeVarLong(argumentIndexes[argumentCount++]);
+      writeValue(value);
+    }
+  }
+
+  @Override
+  public void writeEnd() throws IOException {
+    output.writeByte(TAG_END);
+  }
+
+  @Override
+  public void close() throws IOException {
+    output.close();
+  }
+
+  private int getStringIndex(@Nullable String string) throws IOException {
+    // Nulls are written as the empty string.
+    String key = string == null ? "" : string;
+    Integer index = stringIndexes.get(key);
+    if (index == null) {
+      index = stringIndexes.size();
+      stringIndexes.put(key, index);
+      output.writeByte(TAG_STRING);
+      writeString(key);
+    }
+    return index;
+  }
+
+  private void writeValue(Object value) throws IOException {
+    if (value instanceof String) {
+      output.writeByte(VALUE_STRING);
+      writeString((String) value);
+    } else if (value instanceof Long
+        || value instanceof Integer
+        || value instanceof Short
+        || value instanceof Byte) {
+      output.writeByte(VALUE_LONG);
+      writeZigZagLong(((Number) value).longValue());
+    } else if (value instanceof Double || value instanceof Float) {
+      output.writeByte(VALUE_DOUBLE);
+      output.writeDouble(((Number) value).doubleValue());
+    } else if (value instanceof Boolean) {
+      output.writeByte((Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+    } else {
+      output.writeByte(VALUE_JSON);
+      writeString(ObjectMappers.WRITER.writeValueAsString(value));
+    }
+  }
+
+  private void writeString(String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(bytes.length);
+    output.write(bytes);
+  }
+
+  private void writeZigZagLong(long value) throws IOException {
+    writeVarLong((value << 1) ^ (value >> 63));
+  }
+
+  private void writeVarLong(long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      output.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    output.writeByte((int) value);
+  }
+}
@@ -21,13 +21,17 @@ import static java.lang.Integer.parseInt;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.config.BuckConfig;
 import com.facebook.buck.config.ConfigView;
+import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.event.LogUploadMode;
 import com.facebook.buck.util.environment.NetworkInfo;
 import java.net.URI;
 import java.util.Optional;
+import java.util.zip.Deflater;
 
 public class ChromeTraceBuckConfig implements ConfigView<BuckConfig> {
   private static final String DEFAULT_MAX_TRACES = "25";
+  private static final int DEFAULT_TRACE_QUEUE_SIZE = 100000;
+  private static final int DEFAULT_TRACE_COMPRESSION_LEVEL = Deflater.BEST_SPEED;
 
   private static final String LOG_SECTION = "log";
 
@@ -55,6 +59,43 @@ public class ChromeTraceBuckConfig implements ConfigView<BuckConfig> {
     return delegate.getBooleanValue(LOG_SECTION, "compress_traces", false);
   }
 
+  /**
+   * Returns the maximum number of trace events waiting to be written. Threads posting events wait
+   * for the trace writer once this many events are waiting. As that includes the event bus
+   * dispatcher, which then stops delivering events to all listeners, this must be large enough
+   * that the trace writer rarely falls this far behind.
+   */
+  public int getTraceQueueSize() {
+    int queueSize =
+        delegate.getInteger(LOG_SECTION, "trace_queue_size").orElse(DEFAULT_TRACE_QUEUE_SIZE);
+    if (queueSize <= 0) {
+      throw new HumanReadableException(
+          "%s.trace_queue_size must be positive, but is %d.", LOG_SECTION, queueSize);
+    }
+    return queueSize;
+  }
+
+  /** Returns the GZIP compression level of compressed traces, from 0 (none) to 9 (best). */
+  public int getTraceCompressionLevel() {
+    int level =
+        delegate
+            .getInteger(LOG_SECTION, "trace_compression_level")
+            .orElse(DEFAULT_TRACE_COMPRESSION_LEVEL);
+    if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new HumanReadableException(
+          "%s.trace_compression_level must be between %d and %d, but is %d.",
+          LOG_SECTION, Deflater.NO_COMPRESSION, Deflater.BEST_COMPRESSION, level);
+    }
+    return level;
+  }
+
+  /** Returns the format traces are written in. */
+  public ChromeTraceFormat getTraceFormat() {
+    return delegate
+        .getEnum(LOG_SECTION, "trace_format", ChromeTraceFormat.class)
+        .orElse(ChromeTraceFormat.JSON);
+  }
+
   /** Get URL to upload trace if the config is enabled. */
   public Optional<URI> getTraceUploadUriIfEnabled() {
     if (!getShouldUploadBuildTraces()) {
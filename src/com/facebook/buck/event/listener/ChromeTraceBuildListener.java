@@ -36,9 +36,12 @@ import com.facebook.buck.event.RuleKeyCalculationEvent;
 import com.facebook.buck.event.SimplePerfEvent;
 import com.facebook.buck.event.StartActivityEvent;
 import com.facebook.buck.event.UninstallEvent;
+import com.facebook.buck.event.chrome_trace.ChromeTraceBinaryWriter;
 import com.facebook.buck.event.chrome_trace.ChromeTraceBuckConfig;
 import com.facebook.buck.event.chrome_trace.ChromeTraceEvent;
 import com.facebook.buck.event.chrome_trace.ChromeTraceEvent.Phase;
+import com.facebook.buck.event.chrome_trace.ChromeTraceEventWriter;
+import com.facebook.buck.event.chrome_trace.ChromeTraceFormat;
 import com.facebook.buck.event.chrome_trace.ChromeTraceWriter;
 import com.facebook.buck.io.WatchmanOverflowEvent;
 import com.facebook.buck.io.file.PathListing;
@@ -56,14 +59,13 @@ import com.facebook.buck.test.external.ExternalTestSpecCalculationEvent;
 import com.facebook.buck.util.Optionals;
 import com.facebook.buck.util.ProcessResourceConsumption;
 import com.facebook.buck.util.Threads;
-import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.perf.PerfStatsTracking;
 import com.facebook.buck.util.perf.ProcessTracker;
 import com.facebook.buck.util.timing.Clock;
 import com.facebook.buck.util.trace.uploader.launcher.UploaderLauncher;
 import com.facebook.buck.util.trace.uploader.types.CompressionType;
 import com.facebook.buck.util.unit.SizeUnit;
-import com.facebook.buck.util.zip.BestCompressionGZIPOutputStream;
+import com.facebook.buck.util.zip.CompressionLevelGZIPOutputStream;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.CaseFormat;
 import com.google.common.base.Joiner;
@@ -88,10 +90,12 @@ import java.util.Optional;
 import java.util.OptionalInt;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /** Logs events to a json file formatted to be viewed in Chrome Trace View (chrome://tracing). */
@@ -113,19 +117,21 @@ public class ChromeTraceBuildListener implements BuckEventListener {
 
   private static final Logger LOG = Logger.get(ChromeTraceBuildListener.class);
   private static final int TIMEOUT_SECONDS = 30;
+  private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
 
   private final ProjectFilesystem projectFilesystem;
   private final Clock clock;
   private final ThreadLocal<SimpleDateFormat> dateFormat;
   private final Path tracePath;
   private final OutputStream traceStream;
-  private final ChromeTraceWriter chromeTraceWriter;
+  private final ChromeTraceEventWriter chromeTraceWriter;
   private final Path logDirectoryPath;
   private final ChromeTraceBuckConfig config;
   private final Set<Long> threadNamesRecorded = new HashSet<>();
   private final ThreadMXBean threadMXBean;
 
   private final ExecutorService outputExecutor;
+  private final LongAdder outputQueueFullCount = new LongAdder();
 
   private final BuildId buildId;
 
@@ -171,11 +177,21 @@ public class ChromeTraceBuildListener implements BuckEventListener {
     this.threadMXBean = threadMXBean;
     this.config = config;
     this.outputExecutor =
-        MostExecutors.newSingleThreadExecutor(new CommandThreadFactory(getClass().getName()));
+        new ThreadPoolExecutor(
+            /* corePoolSize */ 1,
+            /* maximumPoolSize */ 1,
+            /* keepAliveTime */ 0L,
+            TimeUnit.MILLISECONDS,
+            /* workQueue */ new ArrayBlockingQueue<>(config.getTraceQueueSize()),
+            new CommandThreadFactory(getClass().getName()),
+            this::waitForOutputQueue);
     TracePathAndStream tracePathAndStream = createPathAndStream(invocationInfo.getBuildId());
     this.tracePath = tracePathAndStream.getPath();
     this.traceStream = tracePathAndStream.getStream();
-    this.chromeTraceWriter = new ChromeTraceWriter(this.traceStream);
+    this.chromeTraceWriter =
+        config.getTraceFormat() == ChromeTraceFormat.BINARY
+            ? new ChromeTraceBinaryWriter(this.traceStream)
+            : new ChromeTraceWriter(this.traceStream);
     this.chromeTraceWriter.writeStart();
     addProcessMetadataEvent(invocationInfo);
     addProjectFilesystemDelegateMetadataEvent(projectFilesystem);
@@ -222,7 +238,8 @@ public class ChromeTraceBuildListener implements BuckEventListener {
       for (Path path :
           PathListing.listMatchingPathsWithFilters(
               traceDirectory,
-              "build.*.trace",
+              // Also matches compressed and binary traces, but not the build.trace* symlinks.
+              "build.*.trace*",
               PathListing.GET_PATH_MODIFIED_TIME,
               PathListing.FilterMode.EXCLUDE,
               OptionalInt.of(config.getMaxTraces()),
@@ -236,16 +253,16 @@ public class ChromeTraceBuildListener implements BuckEventListener {
 
   private TracePathAndStream createPathAndStream(BuildId buildId) {
     String filenameTime = dateFormat.get().format(new Date(clock.currentTimeMillis()));
-    String traceName = String.format("build.%s.%s.trace", filenameTime, buildId);
-    if (config.getCompressTraces()) {
-      traceName = traceName + ".gz";
-    }
+    String traceName =
+        String.format("build.%s.%s.trace%s", filenameTime, buildId, getTraceFileSuffix());
     Path tracePath = logDirectoryPath.resolve(traceName);
     try {
       projectFilesystem.createParentDirs(tracePath);
       OutputStream stream = projectFilesystem.newFileOutputStream(tracePath);
       if (config.getCompressTraces()) {
-        stream = new BestCompressionGZIPOutputStream(stream, true);
+        stream =
+            new CompressionLevelGZIPOutputStream(
+                stream, config.getTraceCompressionLevel(), COMPRESSION_BUFFER_SIZE, true);
       }
       return new TracePathAndStream(tracePath, stream);
     } catch (IOException e) {
@@ -253,6 +270,35 @@ public class ChromeTraceBuildListener implements BuckEventListener {
     }
   }
 
+  private String getTraceFileSuffix() {
+    String suffix = "";
+    if (config.getTraceFormat() == ChromeTraceFormat.BINARY) {
+      suffix += ChromeTraceBinaryWriter.FILE_EXTENSION;
+    }
+    if (config.getCompressTraces()) {
+      suffix += ".gz";
+    }
+    return suffix;
+  }
+
+  /**
+   * Makes threads posting trace events wait for the trace writer once its queue is full, so that
+   * the events of huge builds do not pile up in memory. Events are posted by the event bus
+   * dispatcher, so this holds up all listeners; the queue is sized so that this is rare.
+   */
+  private void waitForOutputQueue(Runnable task, ThreadPoolExecutor executor) {
+    if (executor.isShutdown()) {
+      // Like before the queue was bounded, discard events posted after the trace was closed.
+      return;
+    }
+    outputQueueFullCount.increment();
+    try {
+      executor.getQueue().put(task);
+    } catch (InterruptedException e) {
+      Threads.interruptCurrentThread();
+    }
+  }
+
   @Override
   public void close() throws IOException {
     LOG.debug("Writing Chrome trace to %s", tracePath);
@@ -264,13 +310,18 @@ public class ChromeTraceBuildListener implements BuckEventListener {
     } catch (InterruptedException e) {
       Threads.interruptCurrentThread();
     }
+    if (outputQueueFullCount.sum() > 0) {
+      LOG.info(
+          "Events waited %d times for the Chrome trace writer to catch up.",
+          outputQueueFullCount.sum());
+    }
 
     chromeTraceWriter.writeEnd();
     chromeTraceWriter.close();
     traceStream.close();
     uploadTraceIfConfigured(this.buildId);
 
-    String symlinkName = config.getCompressTraces() ? "build.trace.gz" : "build.trace";
+    String symlinkName = "build.trace" + getTraceFileSuffix();
     Path symlinkPath = projectFilesystem.getBuckPaths().getLogDir().resolve(symlinkName);
     projectFilesystem.createSymLink(
         projectFilesystem.resolve(symlinkPath), projectFilesystem.resolve(tracePath), true);
@@ -924,17 +975,14 @@ public class ChromeTraceBuildListener implements BuckEventListener {
 
   @SuppressWarnings("PMD.EmptyCatchBlock")
   private void submitTraceEvent(ChromeTraceEvent chromeTraceEvent) {
-    @SuppressWarnings("unused")
-    Future<?> unused =
-        outputExecutor.submit(
-            () -> {
-              try {
-                chromeTraceWriter.writeEvent(chromeTraceEvent);
-              } catch (IOException e) {
-                // Swallow any failures to write.
-              }
-              return null;
-            });
+    outputExecutor.execute(
+        () -> {
+          try {
+            chromeTraceWriter.writeEvent(chromeTraceEvent);
+          } catch (IOException e) {
+            // Swallow any failures to write.
+          }
+        });
   }
 
   private void uploadTraceIfConfigured(BuildId buildId) {
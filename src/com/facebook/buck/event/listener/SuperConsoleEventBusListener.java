@@ -98,6 +98,12 @@ public class SuperConsoleEventBusListener extends AbstractConsoleEventBusListene
    */
   private static final int EXPECTED_MAXIMUM_RENDERED_LINE_LENGTH = 128;
 
+  /**
+   * Scheduled frames are skipped until this many times the duration of the last frame passed since
+   * it started, so that slow terminals, e.g. over SSH, do not keep the renderer busy.
+   */
+  private static final int MIN_FRAME_INTERVAL_TO_FRAME_DURATION_RATIO = 10;
+
   private static final Logger LOG = Logger.get(SuperConsoleEventBusListener.class);
 
   @VisibleForTesting static final String EMOJI_BUNNY = "\uD83D\uDC07";
@@ -140,7 +146,12 @@ public class SuperConsoleEventBusListener extends AbstractConsoleEventBusListene
   private final long buildRuleMinimumDurationMillis;
 
   private final DateFormat dateFormat;
-  private int lastNumLinesPrinted;
+  /** The lines of the last frame, which the next frame only reprints where they changed. */
+  private ImmutableList<String> lastRenderedLines = ImmutableList.of();
+
+  private final StringBuilder frameBuilder = new StringBuilder();
+  private long lastFrameStartNanos;
+  private long lastFrameDurationNanos;
 
   private Optional<String> parsingStatus = Optional.empty();
   // Save if Watchman reported zero file changes in case we receive an ActionGraphCache hit. This
@@ -292,7 +303,7 @@ public class SuperConsoleEventBusListener extends AbstractConsoleEventBusListene
     renderScheduler.scheduleAtFixedRate(
         () -> {
           try {
-            SuperConsoleEventBusListener.this.render();
+            SuperConsoleEventBusListener.this.renderScheduledFrame();
           } catch (Error | RuntimeException e) {
             LOG.error(e, "Rendering exception");
             throw e;
@@ -309,13 +320,24 @@ public class SuperConsoleEventBusListener extends AbstractConsoleEventBusListene
     renderScheduler.shutdownNow();
   }
 
+  private synchronized void renderScheduledFrame() {
+    long now = System.nanoTime();
+    if (now - lastFrameStartNanos
+        < lastFrameDurationNanos * MIN_FRAME_INTERVAL_TO_FRAME_DURATION_RATIO) {
+      LOG.verbose("Skipping frame, the last one took %d ns", lastFrameDurationNanos);
+      return;
+    }
+    render();
+  }
+
   @VisibleForTesting
   synchronized void render() {
     LOG.verbose("Rendering");
-    int previousNumLinesPrinted = lastNumLinesPrinted;
+    lastFrameStartNanos = System.nanoTime();
+    ImmutableList<String> previousLines = lastRenderedLines;
     ImmutableList<String> lines = createRenderLinesAtTime(clock.currentTimeMillis());
     ImmutableList<String> logLines = createLogRenderLines();
-    lastNumLinesPrinted = lines.size();
+    lastRenderedLines = lines;
 
     // Synchronize on the DirtyPrintStreamDecorator to prevent interlacing of output.
     // We don't log immediately so we avoid locking the console handler to avoid deadlocks.
@@ -331,18 +353,63 @@ public class SuperConsoleEventBusListener extends AbstractConsoleEventBusListene
         stdoutDirty = console.getStdOut().isDirty();
         if (stderrDirty || stdoutDirty) {
           stopRenderScheduler();
-        } else if (previousNumLinesPrinted != 0 || !lines.isEmpty() || !logLines.isEmpty()) {
-          String fullFrame = renderFullFrame(logLines, lines, previousNumLinesPrinted);
-          console.getStdErr().getRawStream().print(fullFrame);
+        } else if (!previousLines.isEmpty() || !lines.isEmpty() || !logLines.isEmpty()) {
+          frameBuilder.setLength(0);
+          if (logLines.isEmpty() && ansi.isAnsiTerminal()) {
+            renderChangedLines(lines, previousLines);
+          } else {
+            renderFullFrame(logLines, lines, previousLines.size());
+          }
+          if (frameBuilder.length() > 0) {
+            console.getStdErr().getRawStream().print(frameBuilder);
+          }
         }
       }
     }
+    lastFrameDurationNanos = System.nanoTime() - lastFrameStartNanos;
     if (stderrDirty) {
       LOG.debug("Stopping console output (stderr was dirty).");
     }
   }
 
-  private String renderFullFrame(
+  /**
+   * Reprints the lines that differ from those of the previous frame, and moves the cursor over the
+   * others. Log lines scroll the whole frame, so frames with log lines are rendered in full.
+   */
+  private void renderChangedLines(
+      ImmutableList<String> lines, ImmutableList<String> previousLines) {
+    int firstChangedLine = 0;
+    int commonNumLines = Math.min(lines.size(), previousLines.size());
+    while (firstChangedLine < commonNumLines
+        && lines.get(firstChangedLine).equals(previousLines.get(firstChangedLine))) {
+      firstChangedLine++;
+    }
+    if (firstChangedLine == lines.size() && lines.size() == previousLines.size()) {
+      return;
+    }
+
+    List<String> renderedLines = new ArrayList<>();
+    for (int i = firstChangedLine; i < lines.size(); i++) {
+      if (i < previousLines.size() && lines.get(i).equals(previousLines.get(i))) {
+        renderedLines.add("\n");
+      } else {
+        renderedLines.add(ansi.clearLine());
+        renderedLines.add(lines.get(i));
+        renderedLines.add(ansi.clearToTheEndOfLine() + "\n");
+      }
+    }
+
+    // We move the cursor back to the first line that changed.
+    if (previousLines.size() > firstChangedLine) {
+      frameBuilder.append(ansi.cursorPreviousLine(previousLines.size() - firstChangedLine));
+    }
+    for (String part : ansi.asNoWrap(renderedLines)) {
+      frameBuilder.append(part);
+    }
+    clearRemainingLines(previousLines.size() - lines.size());
+  }
+
+  private void renderFullFrame(
       ImmutableList<String> logLines, ImmutableList<String> lines, int previousNumLinesPrinted) {
     int currentNumLines = lines.size();
 
@@ -358,29 +425,27 @@ public class SuperConsoleEventBusListener extends AbstractConsoleEventBusListene
                     lines,
                     Iterables.cycle(ansi.clearToTheEndOfLine() + "\n"))));
 
-    // Number of lines remaining to clear because of old output once we displayed
-    // the new output.
-    int remainingLinesToClear =
-        previousNumLinesPrinted > currentNumLines ? previousNumLinesPrinted - currentNumLines : 0;
-
-    StringBuilder fullFrame = new StringBuilder();
     // We move the cursor back to the top.
-    for (int i = 0; i < previousNumLinesPrinted; i++) {
-      fullFrame.append(ansi.cursorPreviousLine(1));
+    if (previousNumLinesPrinted > 0) {
+      frameBuilder.append(ansi.cursorPreviousLine(previousNumLinesPrinted));
     }
     // We display the new output.
     for (String part : renderedLines) {
-      fullFrame.append(part);
+      frameBuilder.append(part);
     }
-    // We clear the remaining lines of the old output.
-    for (int i = 0; i < remainingLinesToClear; i++) {
-      fullFrame.append(ansi.clearLine() + "\n");
+    clearRemainingLines(previousNumLinesPrinted - currentNumLines);
+  }
+
+  /** Clears the lines of the old output below the new output, if there are any. */
+  private void clearRemainingLines(int remainingLinesToClear) {
+    if (remainingLinesToClear <= 0) {
+      return;
     }
-    // We move the cursor at the end of the new output.
     for (int i = 0; i < remainingLinesToClear; i++) {
-      fullFrame.append(ansi.cursorPreviousLine(1));
+      frameBuilder.append(ansi.clearLine()).append('\n');
     }
-    return fullFrame.toString();
+    // We move the cursor at the end of the new output.
+    frameBuilder.append(ansi.cursorPreviousLine(remainingLinesToClear));
   }
 
   /**
@@ -17,42 +17,193 @@
 package com.facebook.buck.graph;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.Sets;
-import java.util.Objects;
+import com.google.common.collect.UnmodifiableIterator;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
 
+/**
+ * An immutable directed acyclic graph.
+ *
+ * <p>To keep large graphs compact, every node is assigned an int id and the edges are stored in
+ * compressed sparse row form: the ids of the nodes adjacent to the node with id {@code i} are the
+ * ones in a slice of a single int array that starts at the {@code i}-th offset. The sets of
+ * adjacent nodes returned are views of these slices, so looking them up does not copy them.
+ */
 public class DirectedAcyclicGraph<T> implements TraversableGraph<T> {
 
   private final ImmutableSet<T> nodes;
-  private final ImmutableSetMultimap<T, T> outgoingEdges;
-  private final ImmutableSetMultimap<T, T> incomingEdges;
+
+  /** The nodes, indexed by their ids. */
+  private final ImmutableList<T> nodesById;
+
+  /**
+   * Open addressing hash table that maps each node to its id plus one. Empty slots contain zero.
+   */
+  private final int[] idTable;
+
+  private final int[] outgoingEdgeOffsets;
+  private final int[] outgoingEdges;
+  private final int[] incomingEdgeOffsets;
+  private final int[] incomingEdges;
 
   public DirectedAcyclicGraph(MutableDirectedGraph<T> graph) {
     Preconditions.checkState(graph.isAcyclic(), "Graph must by acyclic");
     this.nodes = graph.createImmutableCopyOfNodes();
-    this.outgoingEdges = graph.createImmutableCopyOfOutgoingEdges();
-    this.incomingEdges = graph.createImmutableCopyOfIncomingEdges();
+    this.nodesById = nodes.asList();
+    this.idTable = createIdTable(nodesById);
+    this.outgoingEdgeOffsets = new int[nodes.size() + 1];
+    this.outgoingEdges =
+        createEdges(graph::getOutgoingNodesFor, graph.getEdgeCount(), outgoingEdgeOffsets);
+    this.incomingEdgeOffsets = new int[nodes.size() + 1];
+    this.incomingEdges =
+        createEdges(graph::getIncomingNodesFor, graph.getEdgeCount(), incomingEdgeOffsets);
+  }
+
+  private static int smear(int hashCode) {
+    return 0x1b873593 * Integer.rotateLeft(hashCode * 0xcc9e2d51, 15);
+  }
+
+  private static <T> int[] createIdTable(ImmutableList<T> nodesById) {
+    // Keep the table at most half full, so that probe sequences stay short.
+    int[] idTable = new int[Integer.highestOneBit(Math.max(nodesById.size(), 1) * 2) * 2];
+    int mask = idTable.length - 1;
+    for (int id = 0; id < nodesById.size(); id++) {
+      int slot = smear(nodesById.get(id).hashCode()) & mask;
+      while (idTable[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      idTable[slot] = id + 1;
+    }
+    return idTable;
+  }
+
+  /** @return The id of {@code node}, or -1 if it is not in this graph. */
+  private int getId(Object node) {
+    int mask = idTable.length - 1;
+    for (int slot = smear(node.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+      int idPlusOne = idTable[slot];
+      if (idPlusOne == 0) {
+        return -1;
+      }
+      if (nodesById.get(idPlusOne - 1).equals(node)) {
+        return idPlusOne - 1;
+      }
+    }
+  }
+
+  /**
+   * Stores the ids of the nodes adjacent to each node in the returned array, and the offset of the
+   * first of them in {@code offsets}.
+   */
+  private int[] createEdges(Function<T, Iterable<T>> adjacentNodes, int edgeCount, int[] offsets) {
+    int[] edges = new int[edgeCount];
+    int edge = 0;
+    for (int id = 0; id < nodesById.size(); id++) {
+      offsets[id] = edge;
+      for (T adjacentNode : adjacentNodes.apply(nodesById.get(id))) {
+        int adjacentId = getId(adjacentNode);
+        Preconditions.checkState(
+            adjacentId >= 0, "Edge of %s leads to a node not in the graph", nodesById.get(id));
+        edges[edge++] = adjacentId;
+      }
+    }
+    offsets[nodesById.size()] = edge;
+    return edges;
+  }
+
+  private Set<T> getAdjacentNodes(T node, int[] offsets, int[] edges) {
+    int id = getId(node);
+    if (id < 0 || offsets[id] == offsets[id + 1]) {
+      return ImmutableSet.of();
+    }
+    return new AdjacentNodes(edges, offsets[id], offsets[id + 1]);
+  }
+
+  /** Unmodifiable view of the nodes whose ids are in a slice of an edge array. */
+  private class AdjacentNodes extends AbstractSet<T> {
+    private final int[] edges;
+    private final int start;
+    private final int end;
+
+    private AdjacentNodes(int[] edges, int start, int end) {
+      this.edges = edges;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return new UnmodifiableIterator<T>() {
+        private int edge = start;
+
+        @Override
+        public boolean hasNext() {
+          return edge < end;
+        }
+
+        @Override
+        public T next() {
+          if (edge >= end) {
+            throw new NoSuchElementException();
+          }
+          return nodesById.get(edges[edge++]);
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return end - start;
+    }
+
+    @Override
+    public boolean contains(Object node) {
+      int id = node == null ? -1 : getId(node);
+      if (id < 0) {
+        return false;
+      }
+      for (int edge = start; edge < end; edge++) {
+        if (edges[edge] == id) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private ImmutableSet<T> getNodesWithoutEdges(int[] offsets) {
+    ImmutableSet.Builder<T> nodesWithoutEdges = ImmutableSet.builder();
+    for (int id = 0; id < nodesById.size(); id++) {
+      if (offsets[id] == offsets[id + 1]) {
+        nodesWithoutEdges.add(nodesById.get(id));
+      }
+    }
+    return nodesWithoutEdges.build();
   }
 
   @Override
-  public ImmutableSet<T> getOutgoingNodesFor(T source) {
-    return outgoingEdges.get(source);
+  public Set<T> getOutgoingNodesFor(T source) {
+    return getAdjacentNodes(source, outgoingEdgeOffsets, outgoingEdges);
   }
 
   @Override
-  public ImmutableSet<T> getIncomingNodesFor(T sink) {
-    return incomingEdges.get(sink);
+  public Set<T> getIncomingNodesFor(T sink) {
+    return getAdjacentNodes(sink, incomingEdgeOffsets, incomingEdges);
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoOutgoingEdges() {
-    return ImmutableSet.copyOf(Sets.difference(nodes, outgoingEdges.keySet()));
+    return getNodesWithoutEdges(outgoingEdgeOffsets);
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoIncomingEdges() {
-    return ImmutableSet.copyOf(Sets.difference(nodes, incomingEdges.keySet()));
+    return getNodesWithoutEdges(incomingEdgeOffsets);
   }
 
   @Override
@@ -67,13 +218,46 @@ public class DirectedAcyclicGraph<T> implements TraversableGraph<T> {
     }
 
     DirectedAcyclicGraph<?> that = (DirectedAcyclicGraph<?>) other;
-    return Objects.equals(this.nodes, that.nodes)
-        && Objects.equals(this.outgoingEdges, that.outgoingEdges)
-        && Objects.equals(this.incomingEdges, that.incomingEdges);
+    if (!this.nodes.equals(that.nodes) || this.outgoingEdges.length != that.outgoingEdges.length) {
+      return false;
+    }
+    // Ids depend on the order in which nodes were added, so edges are compared by their nodes.
+    for (int id = 0; id < nodesById.size(); id++) {
+      int thatId = that.getId(nodesById.get(id));
+      int edgeCount = outgoingEdgeOffsets[id + 1] - outgoingEdgeOffsets[id];
+      if (that.outgoingEdgeOffsets[thatId + 1] - that.outgoingEdgeOffsets[thatId] != edgeCount) {
+        return false;
+      }
+      for (int edge = outgoingEdgeOffsets[id]; edge < outgoingEdgeOffsets[id + 1]; edge++) {
+        int thatSinkId = that.getId(nodesById.get(outgoingEdges[edge]));
+        if (!that.hasEdge(thatId, thatSinkId)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean hasEdge(int sourceId, int sinkId) {
+    int end = outgoingEdgeOffsets[sourceId + 1];
+    for (int edge = outgoingEdgeOffsets[sourceId]; edge < end; edge++) {
+      if (outgoingEdges[edge] == sinkId) {
+        return true;
+      }
+    }
+    return false;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(nodes, outgoingEdges, incomingEdges);
+    // Sums of hash codes do not depend on the order of nodes and edges, like equals.
+    int edgesHashCode = 0;
+    for (int id = 0; id < nodesById.size(); id++) {
+      int sourceHashCode = nodesById.get(id).hashCode();
+      for (int edge = outgoingEdgeOffsets[id]; edge < outgoingEdgeOffsets[id + 1]; edge++) {
+        edgesHashCode += sourceHashCode ^ nodesById.get(outgoingEdges[edge]).hashCode();
+      }
+    }
+    return 31 * nodes.hashCode() + edgesHashCode;
   }
 }
@@ -35,7 +35,10 @@ import org.eclipse.jetty.server.Request;
 public class TracesHandlerDelegate implements TemplateHandlerDelegate {
 
   private static final Pattern TRACE_FILE_NAME_PATTERN =
-      Pattern.compile("build\\.(?:[\\d\\-\\.]+\\.)?" + BuildTraces.TRACE_ID_PATTERN + "\\.trace");
+      Pattern.compile(
+          "build\\.(?:[\\d\\-\\.]+\\.)?"
+              + BuildTraces.TRACE_ID_PATTERN
+              + BuildTraces.TRACE_FILE_EXTENSION_PATTERN_TEXT);
 
   private final BuildTraces buildTraces;
 
@@ -16,7 +16,9 @@
 
 package com.facebook.buck.io;
 
+import com.google.common.collect.ImmutableList;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
@@ -25,6 +27,29 @@ public interface WatchmanClient extends AutoCloseable {
   Optional<? extends Map<String, ? extends Object>> queryWithTimeout(
       long timeoutNanos, Object... query) throws IOException, InterruptedException;
 
+  /**
+   * Sends all {@code queries} to Watchman and returns their responses in the same order.
+   *
+   * <p>Implementations may send the queries without waiting for the previous responses, so this
+   * should be preferred over issuing independent queries one by one.
+   *
+   * @return The responses, or nothing if any of the queries could not be fulfilled in time.
+   */
+  default Optional<ImmutableList<Map<String, ? extends Object>>> queryBatchWithTimeout(
+      long timeoutNanos, List<? extends List<? extends Object>> queries)
+      throws IOException, InterruptedException {
+    ImmutableList.Builder<Map<String, ? extends Object>> responses = ImmutableList.builder();
+    for (List<? extends Object> query : queries) {
+      Optional<? extends Map<String, ? extends Object>> response =
+          queryWithTimeout(timeoutNanos, query.toArray());
+      if (!response.isPresent()) {
+        return Optional.empty();
+      }
+      responses.add(response.get());
+    }
+    return Optional.of(responses.build());
+  }
+
   @Override
   void close() throws IOException;
 }
@@ -25,12 +25,14 @@ import com.facebook.buck.util.bser.BserDeserializer;
 import com.facebook.buck.util.bser.BserSerializer;
 import com.facebook.buck.util.timing.Clock;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -40,6 +42,13 @@ class WatchmanTransportClient implements WatchmanClient, AutoCloseable {
   private static final Logger LOG = Logger.get(WatchmanTransportClient.class);
   private static final long POLL_TIME_NANOS = TimeUnit.SECONDS.toNanos(1);
 
+  /**
+   * How many queries are sent before reading their responses. Queries are small, so a group of
+   * them fits into the socket buffer and sending it cannot block on Watchman waiting for us to
+   * read its responses.
+   */
+  private static final int MAX_PIPELINED_QUERIES = 32;
+
   private final ListeningExecutorService listeningExecutorService;
   private final Clock clock;
   private final Transport transport;
@@ -61,16 +70,24 @@ class WatchmanTransportClient implements WatchmanClient, AutoCloseable {
   @Override
   public Optional<Map<String, Object>> queryWithTimeout(long timeoutNanos, Object... query)
       throws IOException, InterruptedException {
-    return queryListWithTimeout(timeoutNanos, ImmutableList.copyOf(query));
+    List<Object> queryList = ImmutableList.copyOf(query);
+    return runWithTimeout(() -> sendWatchmanQuery(queryList), timeoutNanos, queryList);
+  }
+
+  @Override
+  public Optional<ImmutableList<Map<String, ? extends Object>>> queryBatchWithTimeout(
+      long timeoutNanos, List<? extends List<? extends Object>> queries)
+      throws IOException, InterruptedException {
+    return runWithTimeout(() -> sendWatchmanQueries(queries), timeoutNanos, queries);
   }
 
-  private Optional<Map<String, Object>> queryListWithTimeout(long timeoutNanos, List<Object> query)
+  private <T> Optional<T> runWithTimeout(
+      Callable<Optional<T>> request, long timeoutNanos, Object query)
       throws IOException, InterruptedException {
-    ListenableFuture<Optional<Map<String, Object>>> future =
-        listeningExecutorService.submit(() -> sendWatchmanQuery(query));
+    ListenableFuture<Optional<T>> future = listeningExecutorService.submit(request);
     try {
       long startTimeNanos = clock.nanoTime();
-      Optional<Map<String, Object>> result =
+      Optional<T> result =
           waitForQueryNotifyingUserIfSlow(future, timeoutNanos, POLL_TIME_NANOS, query);
       long elapsedNanos = clock.nanoTime() - startTimeNanos;
       LOG.debug("Query %s returned in %d ms", query, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
@@ -110,11 +127,8 @@ class WatchmanTransportClient implements WatchmanClient, AutoCloseable {
             TimeUnit.NANOSECONDS.toSeconds(timeoutNanos));
   }
 
-  private Optional<Map<String, Object>> waitForQueryNotifyingUserIfSlow(
-      ListenableFuture<Optional<Map<String, Object>>> future,
-      long timeoutNanos,
-      long pollTimeNanos,
-      List<Object> query)
+  private <T> Optional<T> waitForQueryNotifyingUserIfSlow(
+      ListenableFuture<Optional<T>> future, long timeoutNanos, long pollTimeNanos, Object query)
       throws InterruptedException, ExecutionException {
     long queryStartNanos = clock.nanoTime();
     try {
@@ -140,10 +154,42 @@ class WatchmanTransportClient implements WatchmanClient, AutoCloseable {
     }
   }
 
-  @SuppressWarnings("unchecked")
   private Optional<Map<String, Object>> sendWatchmanQuery(List<Object> query) throws IOException {
     LOG.debug("Sending query: %s", query);
     bserSerializer.serializeToStream(query, transport.getOutputStream());
+    return readWatchmanResponse();
+  }
+
+  /**
+   * Sends the queries in groups of at most {@link #MAX_PIPELINED_QUERIES}, reading the responses of
+   * a group only after all of its queries have been sent.
+   */
+  private Optional<ImmutableList<Map<String, ? extends Object>>> sendWatchmanQueries(
+      List<? extends List<? extends Object>> queries) throws IOException {
+    ImmutableList.Builder<Map<String, ? extends Object>> responses = ImmutableList.builder();
+    boolean allResponsesRecognized = true;
+    for (List<? extends List<? extends Object>> group :
+        Lists.partition(queries, MAX_PIPELINED_QUERIES)) {
+      LOG.debug("Sending %d pipelined queries: %s", group.size(), group);
+      for (List<? extends Object> query : group) {
+        bserSerializer.serializeToStream(query, transport.getOutputStream());
+      }
+      // Read every response even if some are not recognized, so that the responses to later
+      // queries are not mistaken for them.
+      for (int i = 0; i < group.size(); i++) {
+        Optional<Map<String, Object>> response = readWatchmanResponse();
+        if (response.isPresent()) {
+          responses.add(response.get());
+        } else {
+          allResponsesRecognized = false;
+        }
+      }
+    }
+    return allResponsesRecognized ? Optional.of(responses.build()) : Optional.empty();
+  }
+
+  @SuppressWarnings("unchecked")
+  private Optional<Map<String, Object>> readWatchmanResponse() throws IOException {
     Object response = bserDeserializer.deserializeBserValue(transport.getInputStream());
     LOG.verbose("Got response: %s", response);
     Map<String, Object> responseMap = (Map<String, Object>) response;
@@ -277,6 +277,15 @@ abstract class AbstractParserConfig implements ConfigView<BuckConfig> {
     return getDelegate().getBooleanValue("parser", "ignore_environment_variables_changes", false);
   }
 
+  /**
+   * @return whether the daemon should save its parser state under buck-out, so that a restarted
+   *     daemon only has to reparse the build files that changed since.
+   */
+  @Value.Lazy
+  public boolean isParserStatePersistent() {
+    return getDelegate().getBooleanValue("parser", "persistent_state", false);
+  }
+
   /** @return the type of the glob handler used by the Skylark parser. */
   @Value.Lazy
   public SkylarkGlobHandler getSkylarkGlobHandler() {
@@ -34,6 +34,7 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
@@ -107,13 +108,23 @@ class DaemonicCellState {
   @GuardedBy("rawAndComputedNodesLock")
   private final Set<UnflavoredBuildTarget> allRawNodeTargets;
 
+  // Raw nodes restored from a snapshot, which are moved to `allRawNodes` when first looked up.
+  @GuardedBy("rawAndComputedNodesLock")
+  private final Map<Path, ParserStateSnapshot.EncodedRawNodes> snapshotRawNodes;
+
   @GuardedBy("rawAndComputedNodesLock")
   private final ConcurrentMap<Class<?>, Cache<?>> typedNodeCaches;
 
   private final AutoCloseableReadWriteUpdateLock rawAndComputedNodesLock;
   private final int parsingThreads;
+  private final TargetGraphIndex targetGraphIndex;
 
   DaemonicCellState(Cell cell, int parsingThreads) {
+    this(cell, parsingThreads, new TargetGraphIndex());
+  }
+
+  DaemonicCellState(Cell cell, int parsingThreads, TargetGraphIndex targetGraphIndex) {
+    this.targetGraphIndex = targetGraphIndex;
     this.cell = new AtomicReference<>(cell);
     this.parsingThreads = parsingThreads;
     this.cellRoot = cell.getRoot();
@@ -123,6 +134,7 @@ class DaemonicCellState {
     this.buildFileEnv = new HashMap<>();
     this.allRawNodes = new ConcurrentMapCache<>(parsingThreads);
     this.allRawNodeTargets = new HashSet<>();
+    this.snapshotRawNodes = new HashMap<>();
     this.typedNodeCaches = Maps.newConcurrentMap();
     this.rawAndComputedNodesLock = new AutoCloseableReadWriteUpdateLock();
   }
@@ -158,7 +170,36 @@ class DaemonicCellState {
   }
 
   Optional<ImmutableSet<Map<String, Object>>> lookupRawNodes(Path buildFile) {
+    ParserStateSnapshot.EncodedRawNodes encodedRawNodes;
     try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
+      ImmutableSet<Map<String, Object>> rawNodes = allRawNodes.getIfPresent(buildFile);
+      if (rawNodes != null) {
+        return Optional.of(rawNodes);
+      }
+      encodedRawNodes = snapshotRawNodes.get(buildFile);
+    }
+    if (encodedRawNodes == null) {
+      return Optional.empty();
+    }
+
+    ImmutableSet<Map<String, Object>> decoded;
+    try {
+      decoded = encodedRawNodes.decode();
+    } catch (RuntimeException e) {
+      LOG.warn(e, "Failed to decode raw nodes of %s from the parser state snapshot.", buildFile);
+      invalidatePath(buildFile);
+      return Optional.empty();
+    }
+    try (AutoCloseableLock writeLock = rawAndComputedNodesLock.writeLock()) {
+      // The build file may have been invalidated while it was decoded.
+      if (snapshotRawNodes.remove(buildFile, encodedRawNodes)) {
+        allRawNodes.putIfAbsentAndGet(buildFile, decoded);
+        for (Map<String, Object> node : decoded) {
+          allRawNodeTargets.add(
+              RawNodeParsePipeline.parseBuildTargetFromRawRule(
+                  cellRoot, cellCanonicalName, node, buildFile));
+        }
+      }
       return Optional.ofNullable(allRawNodes.getIfPresent(buildFile));
     }
   }
@@ -169,6 +210,7 @@ class DaemonicCellState {
       ImmutableSet<Path> dependentsOfEveryNode,
       ImmutableMap<String, Optional<String>> env) {
     try (AutoCloseableLock writeLock = rawAndComputedNodesLock.writeLock()) {
+      snapshotRawNodes.remove(buildFile);
       ImmutableSet<Map<String, Object>> updated =
           allRawNodes.putIfAbsentAndGet(buildFile, withoutMetaIncludes);
       for (Map<String, Object> node : updated) {
@@ -203,11 +245,16 @@ class DaemonicCellState {
           for (Cache<?> cache : typedNodeCaches.values()) {
             cache.allComputedNodes.invalidateAll(targetsCornucopia.get(target));
           }
+          targetGraphIndex.invalidateTargets(targetsCornucopia.get(target));
           targetsCornucopia.removeAll(target);
           allRawNodeTargets.remove(target);
         }
         allRawNodes.invalidate(path);
       }
+      ParserStateSnapshot.EncodedRawNodes encodedRawNodes = snapshotRawNodes.remove(path);
+      if (encodedRawNodes != null) {
+        invalidatedRawNodes += encodedRawNodes.getNodeCount();
+      }
 
       // We may have been given a file that other build files depend on. Iteratively remove those.
       Iterable<Path> dependents = buildFileDependents.get(path);
@@ -220,6 +267,7 @@ class DaemonicCellState {
       }
       buildFileDependents.removeAll(path);
       buildFileEnv.remove(path);
+      targetGraphIndex.invalidateBuildFile(path);
 
       return invalidatedRawNodes;
     }
@@ -306,6 +354,59 @@ class DaemonicCellState {
     return result;
   }
 
+  /** @return the raw nodes and their dependencies, to be saved in a parser state snapshot. */
+  ParserStateSnapshot.CellSnapshot toSnapshot(long configHash) {
+    ImmutableSetMultimap.Builder<String, String> dependents = ImmutableSetMultimap.builder();
+    ImmutableMap.Builder<String, ImmutableMap<String, Optional<String>>> env =
+        ImmutableMap.builder();
+    ImmutableMap.Builder<String, ImmutableSet<Map<String, Object>>> rawNodes =
+        ImmutableMap.builder();
+    ImmutableMap.Builder<String, ParserStateSnapshot.EncodedRawNodes> encodedRawNodes =
+        ImmutableMap.builder();
+    try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
+      buildFileDependents.forEach(
+          (path, dependent) ->
+              dependents.put(
+                  cellRoot.relativize(path).toString(), cellRoot.relativize(dependent).toString()));
+      buildFileEnv.forEach((path, values) -> env.put(cellRoot.relativize(path).toString(), values));
+      for (Path path : allRawNodes.keySet()) {
+        ImmutableSet<Map<String, Object>> nodes = allRawNodes.getIfPresent(path);
+        if (nodes != null) {
+          rawNodes.put(cellRoot.relativize(path).toString(), nodes);
+        }
+      }
+      snapshotRawNodes.forEach(
+          (path, nodes) -> encodedRawNodes.put(cellRoot.relativize(path).toString(), nodes));
+    }
+    return new ParserStateSnapshot.CellSnapshot(
+        configHash, dependents.build(), env.build(), rawNodes.build(), encodedRawNodes.build());
+  }
+
+  /**
+   * Restores the state saved in a parser state snapshot. The raw nodes are only decoded when they
+   * are looked up.
+   *
+   * @return the number of build files whose raw nodes were restored.
+   */
+  int restoreSnapshot(ParserStateSnapshot.CellSnapshot snapshot) {
+    try (AutoCloseableLock writeLock = rawAndComputedNodesLock.writeLock()) {
+      snapshot
+          .getBuildFileDependents()
+          .forEach(
+              (path, dependent) ->
+                  buildFileDependents.put(
+                      cellRoot.resolve(path).normalize(), cellRoot.resolve(dependent).normalize()));
+      snapshot
+          .getBuildFileEnv()
+          .forEach((path, values) -> buildFileEnv.put(cellRoot.resolve(path).normalize(), values));
+      snapshot
+          .getEncodedRawNodes()
+          .forEach(
+              (path, nodes) -> snapshotRawNodes.put(cellRoot.resolve(path).normalize(), nodes));
+      return snapshotRawNodes.size();
+    }
+  }
+
   RemoteDaemonicCellState serialize() throws IOException {
     RemoteDaemonicCellState result = new RemoteDaemonicCellState();
     try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
@@ -317,8 +418,13 @@ class DaemonicCellState {
   }
 
   static DaemonicCellState deserialize(
-      RemoteDaemonicCellState remote, Cell cell, int parsingThreads) throws IOException {
-    DaemonicCellState daemonicCellState = new DaemonicCellState(cell, parsingThreads);
+      RemoteDaemonicCellState remote,
+      Cell cell,
+      int parsingThreads,
+      TargetGraphIndex targetGraphIndex)
+      throws IOException {
+    DaemonicCellState daemonicCellState =
+        new DaemonicCellState(cell, parsingThreads, targetGraphIndex);
     Path root = cell.getRoot();
     for (String pathString : remote.buildFileDependents.keySet()) {
       Path key = root.resolve(pathString);
@@ -35,6 +35,8 @@ import com.facebook.buck.parser.exceptions.BuildTargetException;
 import com.facebook.buck.parser.thrift.RemoteDaemonicCellState;
 import com.facebook.buck.parser.thrift.RemoteDaemonicParserState;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
+import com.facebook.buck.skylark.io.impl.WatchmanGlobCache;
+import com.facebook.buck.skylark.parser.SkylarkExtensionCache;
 import com.facebook.buck.util.concurrent.AutoCloseableLock;
 import com.facebook.buck.util.concurrent.AutoCloseableReadWriteUpdateLock;
 import com.google.common.base.Preconditions;
@@ -61,6 +63,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -243,6 +246,7 @@ public class DaemonicParserState {
             resolveIncludePath(cell, include, cell.getBuckConfig().getCellPathResolver()));
       }
 
+      rawNodeModifications.incrementAndGet();
       return getOrCreateCellState(cell)
           .putRawNodesIfNotPresentAndStripMetaEntries(
               buildFile, withoutMetaIncludes, dependentsOfEveryNode.build(), env);
@@ -293,6 +297,15 @@ public class DaemonicParserState {
 
   private final LoadingCache<Cell, BuildFileTree> buildFileTrees;
 
+  /** Skylark extensions evaluated by the parsers of all the builds that use this state. */
+  private final SkylarkExtensionCache skylarkExtensionCache;
+
+  /** Globs resolved by Watchman for the parsers of all the builds that use this state. */
+  private final WatchmanGlobCache watchmanGlobCache;
+
+  /** Target graph loaded by the queries of all the commands that use this state. */
+  private final TargetGraphIndex targetGraphIndex;
+
   /**
    * The default includes used by the previous run of the parser in each cell (the key is the cell's
    * root path). If this value changes, then we need to invalidate all the caches.
@@ -303,6 +316,11 @@ public class DaemonicParserState {
   private final AutoCloseableReadWriteUpdateLock cachedStateLock;
   private final AutoCloseableReadWriteUpdateLock cellStateLock;
 
+  // Counts the changes to the raw nodes, to tell whether they changed since the state was last
+  // saved to or restored from a snapshot.
+  private final AtomicLong rawNodeModifications = new AtomicLong();
+  private volatile long snapshotRawNodeModifications = 0;
+
   public DaemonicParserState(
       TypeCoercerFactory typeCoercerFactory,
       int parsingThreads,
@@ -347,6 +365,9 @@ public class DaemonicParserState {
         new ConcurrentHashMap<>(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, parsingThreads);
 
     this.rawNodeCache = new DaemonicRawCacheView();
+    this.skylarkExtensionCache = new SkylarkExtensionCache();
+    this.watchmanGlobCache = new WatchmanGlobCache();
+    this.targetGraphIndex = new TargetGraphIndex();
 
     this.cachedStateLock = new AutoCloseableReadWriteUpdateLock();
     this.cellStateLock = new AutoCloseableReadWriteUpdateLock();
@@ -360,6 +381,18 @@ public class DaemonicParserState {
     return buildFileTrees;
   }
 
+  SkylarkExtensionCache getSkylarkExtensionCache() {
+    return skylarkExtensionCache;
+  }
+
+  WatchmanGlobCache getWatchmanGlobCache() {
+    return watchmanGlobCache;
+  }
+
+  public TargetGraphIndex getTargetGraphIndex() {
+    return targetGraphIndex;
+  }
+
   /**
    * Retrieve the cache view for caching a particular type.
    *
@@ -390,7 +423,7 @@ public class DaemonicParserState {
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
       DaemonicCellState state = cellPathToDaemonicState.get(cell.getRoot());
       if (state == null) {
-        state = new DaemonicCellState(cell, parsingThreads);
+        state = new DaemonicCellState(cell, parsingThreads, targetGraphIndex);
         cellPathToDaemonicState.put(cell.getRoot(), state);
       }
       return state;
@@ -417,6 +450,10 @@ public class DaemonicParserState {
     Path path = event.getPath();
     Path fullPath = event.getCellPath().resolve(event.getPath());
 
+    if (isPathCreateOrDeleteEvent(event)) {
+      watchmanGlobCache.invalidatePath(fullPath);
+    }
+
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
       for (DaemonicCellState state : cellPathToDaemonicState.values()) {
         try {
@@ -469,6 +506,10 @@ public class DaemonicParserState {
   public void invalidateBasedOnPath(Path fullPath, boolean isCreatedOrDeleted) {
     filesChangedCounter.inc();
 
+    if (isCreatedOrDeleted) {
+      watchmanGlobCache.invalidatePath(fullPath);
+    }
+
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
       for (DaemonicCellState state : cellPathToDaemonicState.values()) {
         try {
@@ -513,6 +554,7 @@ public class DaemonicParserState {
   }
 
   public void invalidatePath(Path path) {
+    skylarkExtensionCache.invalidatePath(path);
 
     // The paths from watchman are not absolute. Because of this, we adopt a conservative approach
     // to invalidating the caches.
@@ -585,6 +627,9 @@ public class DaemonicParserState {
     // Paths passed in may not be absolute.
     path = state.getCellRoot().resolve(path);
     int invalidatedNodes = state.invalidatePath(path);
+    if (invalidatedNodes > 0) {
+      rawNodeModifications.incrementAndGet();
+    }
     rulesInvalidatedByWatchEventsCounter.inc(invalidatedNodes);
   }
 
@@ -619,6 +664,7 @@ public class DaemonicParserState {
           state.invalidateIfEnvHasChanged(cell, buildFile);
       if (envDiff.isPresent()) {
         hasInvalidated = true;
+        rawNodeModifications.incrementAndGet();
         MapDifference<String, String> diff = envDiff.get();
         LOG.warn("Invalidating cache on environment change (%s)", diff);
         Set<String> environmentChanges = new HashSet<>();
@@ -668,7 +714,10 @@ public class DaemonicParserState {
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
       boolean invalidated = cellPathToDaemonicState.containsKey(cell.getRoot());
       cellPathToDaemonicState.remove(cell.getRoot());
+      // Nodes of other cells might depend on the nodes of this one.
+      targetGraphIndex.invalidateAll();
       if (invalidated) {
+        rawNodeModifications.incrementAndGet();
         LOG.debug("Cell cache data invalidated.");
       } else {
         LOG.debug("Cell caches were empty, no data invalidated.");
@@ -684,7 +733,11 @@ public class DaemonicParserState {
       boolean invalidated = !cellPathToDaemonicState.isEmpty();
       cellPathToDaemonicState.clear();
       buildFileTrees.invalidateAll();
+      skylarkExtensionCache.invalidateAll();
+      watchmanGlobCache.invalidateAll();
+      targetGraphIndex.invalidateAll();
       if (invalidated) {
+        rawNodeModifications.incrementAndGet();
         LOG.debug("Cache data invalidated.");
       } else {
         LOG.debug("Caches were empty, no data invalidated.");
@@ -758,7 +811,8 @@ public class DaemonicParserState {
           if (cell != null) {
             try {
               DaemonicCellState daemonicCellState =
-                  DaemonicCellState.deserialize(remoteDaemonicCellState, cell, parsingThreads);
+                  DaemonicCellState.deserialize(
+                      remoteDaemonicCellState, cell, parsingThreads, targetGraphIndex);
               cellPathToDaemonicState.put(cell.getRoot(), daemonicCellState);
             } catch (IOException e) {
               throw new RuntimeException(e);
@@ -771,6 +825,67 @@ public class DaemonicParserState {
           Path absolutePath = rootCell.getRoot().resolve(path).normalize();
           cachedIncludes.put(absolutePath, v);
         });
+    rawNodeModifications.incrementAndGet();
     return this;
   }
+
+  /**
+   * Saves the raw nodes of all cells to {@code snapshotPath}, unless they did not change since the
+   * state was last saved or restored.
+   *
+   * @param watchmanClocks the Watchman clocks up to which all file changes were applied to this
+   *     state, keyed by cell path relative to the root cell. These must be read before calling this
+   *     method, so that changes applied while the snapshot is taken are not missed.
+   * @return whether the snapshot was saved.
+   */
+  public boolean saveSnapshot(
+      Path snapshotPath,
+      Cell rootCell,
+      ImmutableMap<String, String> watchmanClocks,
+      String buckVersion)
+      throws IOException {
+    long modifications = rawNodeModifications.get();
+    if (modifications == snapshotRawNodeModifications) {
+      return false;
+    }
+    ImmutableMap.Builder<String, ParserStateSnapshot.CellSnapshot> cells = ImmutableMap.builder();
+    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
+      for (DaemonicCellState state : cellPathToDaemonicState.values()) {
+        cells.put(
+            rootCell.getRoot().relativize(state.getCellRoot()).toString(),
+            state.toSnapshot(ParserStateSnapshot.hashConfig(state.getCell())));
+      }
+    }
+    new ParserStateSnapshot(watchmanClocks, cells.build()).save(snapshotPath, buckVersion);
+    snapshotRawNodeModifications = modifications;
+    return true;
+  }
+
+  /**
+   * Restores the raw nodes saved in {@code snapshot} for all cells whose configuration did not
+   * change since it was saved. Files that changed since then must be invalidated separately.
+   *
+   * @return the number of build files whose raw nodes were restored.
+   */
+  public int restoreSnapshot(ParserStateSnapshot snapshot, Cell rootCell) {
+    int restoredBuildFiles = 0;
+    for (Cell cell : rootCell.getAllCells()) {
+      ParserStateSnapshot.CellSnapshot cellSnapshot =
+          snapshot.getCells().get(rootCell.getRoot().relativize(cell.getRoot()).toString());
+      if (cellSnapshot == null) {
+        continue;
+      }
+      if (cellSnapshot.getConfigHash() != ParserStateSnapshot.hashConfig(cell)) {
+        LOG.debug("Not restoring parser state of %s as its configuration changed.", cell.getRoot());
+        continue;
+      }
+      restoredBuildFiles += getOrCreateCellState(cell).restoreSnapshot(cellSnapshot);
+      try (AutoCloseableLock writeLock = cachedStateLock.writeLock()) {
+        cachedIncludes.put(
+            cell.getRoot(), cell.getBuckConfig().getView(ParserConfig.class).getDefaultIncludes());
+      }
+    }
+    snapshotRawNodeModifications = rawNodeModifications.get();
+    return restoredBuildFiles;
+  }
 }
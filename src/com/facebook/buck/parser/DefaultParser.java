@@ -36,6 +36,7 @@ import com.facebook.buck.model.ImmutableBuildTarget;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.parser.exceptions.BuildTargetException;
 import com.facebook.buck.parser.exceptions.MissingBuildFileException;
+import com.facebook.buck.rules.coercer.CoercedValueInterner;
 import com.facebook.buck.rules.coercer.ConstructorArgMarshaller;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.util.MoreMaps;
@@ -47,6 +48,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.TreeMultiset;
 import com.google.common.eventbus.EventBus;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -346,6 +349,9 @@ public class DefaultParser implements Parser {
       }
 
       targetGraph = new TargetGraph(graph, ImmutableMap.copyOf(index));
+      if (LOG.isDebugEnabled()) {
+        logTargetGraphFootprint(targetGraph);
+      }
       return targetGraph;
     } catch (AcyclicDepthFirstPostOrderTraversal.CycleException e) {
       throw new HumanReadableException(e.getMessage());
@@ -358,6 +364,24 @@ public class DefaultParser implements Parser {
     }
   }
 
+  /**
+   * Logs the number of target nodes of each rule type, and how many of the values coerced for all
+   * target nodes of the daemon are shared with other target nodes.
+   */
+  private static void logTargetGraphFootprint(TargetGraph targetGraph) {
+    Multiset<String> ruleTypes = TreeMultiset.create();
+    for (TargetNode<?, ?> node : targetGraph.getNodes()) {
+      ruleTypes.add(node.getBuildRuleType().getName());
+    }
+    LOG.debug("Target nodes by rule type: %s", ruleTypes);
+    for (Map.Entry<String, CoercedValueInterner.InternerStats> entry :
+        CoercedValueInterner.INSTANCE.getStats().entrySet()) {
+      LOG.debug(
+          "Interned %s: %d of %d values shared",
+          entry.getKey(), entry.getValue().getHitCount(), entry.getValue().getRequestCount());
+    }
+  }
+
   /**
    * @param eventBus used to log events while parsing.
    * @param targetNodeSpecs the specs representing the build targets to generate a target graph for.
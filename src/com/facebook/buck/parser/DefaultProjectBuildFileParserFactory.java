@@ -37,9 +37,11 @@ import com.facebook.buck.skylark.io.GlobberFactory;
 import com.facebook.buck.skylark.io.impl.HybridGlobberFactory;
 import com.facebook.buck.skylark.io.impl.NativeGlobber;
 import com.facebook.buck.skylark.io.impl.SyncCookieState;
+import com.facebook.buck.skylark.io.impl.WatchmanGlobCache;
 import com.facebook.buck.skylark.parser.BuckGlobals;
 import com.facebook.buck.skylark.parser.ConsoleEventHandler;
 import com.facebook.buck.skylark.parser.RuleFunctionFactory;
+import com.facebook.buck.skylark.parser.SkylarkExtensionCache;
 import com.facebook.buck.skylark.parser.SkylarkProjectBuildFileParser;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.DefaultProcessExecutor;
@@ -56,6 +58,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
   private final Console console;
   private final ParserPythonInterpreterProvider pythonInterpreterProvider;
   private final KnownBuildRuleTypesProvider knownBuildRuleTypesProvider;
+  private final SkylarkExtensionCache skylarkExtensionCache;
+  private final WatchmanGlobCache watchmanGlobCache;
   private final boolean enableProfiling;
 
   public DefaultProjectBuildFileParserFactory(
@@ -63,11 +67,15 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       Console console,
       ParserPythonInterpreterProvider pythonInterpreterProvider,
       KnownBuildRuleTypesProvider knownBuildRuleTypesProvider,
+      SkylarkExtensionCache skylarkExtensionCache,
+      WatchmanGlobCache watchmanGlobCache,
       boolean enableProfiling) {
     this.typeCoercerFactory = typeCoercerFactory;
     this.console = console;
     this.pythonInterpreterProvider = pythonInterpreterProvider;
     this.knownBuildRuleTypesProvider = knownBuildRuleTypesProvider;
+    this.skylarkExtensionCache = skylarkExtensionCache;
+    this.watchmanGlobCache = watchmanGlobCache;
     this.enableProfiling = enableProfiling;
   }
 
@@ -75,12 +83,16 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       TypeCoercerFactory typeCoercerFactory,
       ParserPythonInterpreterProvider pythonInterpreterProvider,
       KnownBuildRuleTypesProvider knownBuildRuleTypesProvider,
+      SkylarkExtensionCache skylarkExtensionCache,
+      WatchmanGlobCache watchmanGlobCache,
       boolean enableProfiling) {
     this(
         typeCoercerFactory,
         Console.createNullConsole(),
         pythonInterpreterProvider,
         knownBuildRuleTypesProvider,
+        skylarkExtensionCache,
+        watchmanGlobCache,
         enableProfiling);
   }
 
@@ -90,7 +102,13 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       ParserPythonInterpreterProvider pythonInterpreterProvider,
       KnownBuildRuleTypesProvider knownBuildRuleTypesProvider) {
     this(
-        typeCoercerFactory, console, pythonInterpreterProvider, knownBuildRuleTypesProvider, false);
+        typeCoercerFactory,
+        console,
+        pythonInterpreterProvider,
+        knownBuildRuleTypesProvider,
+        new SkylarkExtensionCache(),
+        new WatchmanGlobCache(),
+        false);
   }
 
   /**
@@ -136,7 +154,14 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
             .build();
     return EventReportingProjectBuildFileParser.of(
         createProjectBuildFileParser(
-            cell, typeCoercerFactory, console, eventBus, parserConfig, buildFileParserOptions),
+            cell,
+            typeCoercerFactory,
+            console,
+            eventBus,
+            parserConfig,
+            buildFileParserOptions,
+            skylarkExtensionCache,
+            watchmanGlobCache),
         eventBus);
   }
 
@@ -153,7 +178,9 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       Console console,
       BuckEventBus eventBus,
       ParserConfig parserConfig,
-      ProjectBuildFileParserOptions buildFileParserOptions) {
+      ProjectBuildFileParserOptions buildFileParserOptions,
+      SkylarkExtensionCache skylarkExtensionCache,
+      WatchmanGlobCache watchmanGlobCache) {
     ProjectBuildFileParser parser;
     Syntax defaultBuildFileSyntax = parserConfig.getDefaultBuildFileSyntax();
     if (parserConfig.isPolyglotParsingEnabled()) {
@@ -169,7 +196,9 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
                       typeCoercerFactory,
                       eventBus,
                       buildFileParserOptions,
-                      parserConfig.getSkylarkGlobHandler())),
+                      parserConfig.getSkylarkGlobHandler(),
+                      skylarkExtensionCache,
+                      watchmanGlobCache)),
               defaultBuildFileSyntax);
     } else {
       switch (defaultBuildFileSyntax) {
@@ -180,7 +209,9 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
                   typeCoercerFactory,
                   eventBus,
                   buildFileParserOptions,
-                  parserConfig.getSkylarkGlobHandler());
+                  parserConfig.getSkylarkGlobHandler(),
+                  skylarkExtensionCache,
+                  watchmanGlobCache);
           break;
         case PYTHON_DSL:
           parser =
@@ -219,10 +250,14 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       TypeCoercerFactory typeCoercerFactory,
       BuckEventBus eventBus,
       ProjectBuildFileParserOptions buildFileParserOptions,
-      SkylarkGlobHandler skylarkGlobHandler) {
+      SkylarkGlobHandler skylarkGlobHandler,
+      SkylarkExtensionCache skylarkExtensionCache,
+      WatchmanGlobCache watchmanGlobCache) {
     GlobberFactory globberFactory;
     try {
-      globberFactory = getSkylarkGlobberFactory(cell, buildFileParserOptions, skylarkGlobHandler);
+      globberFactory =
+          getSkylarkGlobberFactory(
+              cell, buildFileParserOptions, skylarkGlobHandler, watchmanGlobCache);
     } catch (IOException e) {
       throw new RuntimeException(
           "Watchman glob handler was requested, but Watchman client cannot be created", e);
@@ -254,7 +289,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
               EventKind.ALL_EVENTS,
               ImmutableSet.copyOf(buckGlobals.getNativeModule().getFieldNames()),
               augmentor),
-          globberFactory);
+          globberFactory,
+          skylarkExtensionCache);
     } catch (EvalException e) {
       throw new RuntimeException(e);
     }
@@ -263,7 +299,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
   private static GlobberFactory getSkylarkGlobberFactory(
       Cell cell,
       ProjectBuildFileParserOptions buildFileParserOptions,
-      SkylarkGlobHandler skylarkGlobHandler)
+      SkylarkGlobHandler skylarkGlobHandler,
+      WatchmanGlobCache watchmanGlobCache)
       throws IOException {
     SyncCookieState syncCookieState = new SyncCookieState();
     return skylarkGlobHandler == SkylarkGlobHandler.JAVA
@@ -273,6 +310,7 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
             buildFileParserOptions.getWatchman().createClient(),
             syncCookieState,
             buildFileParserOptions.getProjectRoot(),
-            buildFileParserOptions.getWatchman().getProjectWatches());
+            buildFileParserOptions.getWatchman().getProjectWatches(),
+            watchmanGlobCache);
   }
 }
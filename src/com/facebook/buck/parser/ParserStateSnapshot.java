@@ -0,0 +1,601 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.log.Logger;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * A compact binary snapshot of the raw nodes cached by {@link DaemonicParserState}, saved by the
+ * daemon under buck-out so that a newly started daemon only has to reparse the build files that
+ * changed since the snapshot was taken.
+ *
+ * <p>Along with the raw nodes, the snapshot records the build file dependencies and environment
+ * used by every build file, a hash of the configuration of every cell and the Watchman clocks the
+ * state is up to date with. Build files whose raw nodes contain values that can't be represented
+ * are left out.
+ *
+ * <p>The snapshot is memory-mapped when loaded. Only the index of build files is read eagerly, the
+ * raw nodes of a build file are decoded when they are first looked up.
+ *
+ * <p>As a mapped file can't be replaced on every platform, each save writes a new generation of the
+ * snapshot next to the given path, named {@code <path>.<generation>}, and only the newest one is
+ * loaded. Older generations are deleted once they are no longer mapped.
+ */
+public class ParserStateSnapshot {
+
+  private static final Logger LOG = Logger.get(ParserStateSnapshot.class);
+
+  private static final int MAGIC = 0x50415253;
+  private static final int VERSION = 1;
+
+  // Magic, version and the offset of the index, which follows the raw nodes of all build files.
+  private static final int HEADER_BYTES = 3 * Integer.BYTES;
+  // Leaves room for the index, as the whole file must fit in a single mapped buffer.
+  private static final int MAX_RAW_NODES_BYTES = Integer.MAX_VALUE / 2;
+
+  private static final byte TAG_NULL = 0;
+  private static final byte TAG_TRUE = 1;
+  private static final byte TAG_FALSE = 2;
+  private static final byte TAG_INTEGER = 3;
+  private static final byte TAG_LONG = 4;
+  private static final byte TAG_DOUBLE = 5;
+  private static final byte TAG_STRING = 6;
+  private static final byte TAG_LIST = 7;
+  private static final byte TAG_MAP = 8;
+
+  private final ImmutableMap<String, String> watchmanClocks;
+  private final ImmutableMap<String, CellSnapshot> cells;
+
+  ParserStateSnapshot(
+      ImmutableMap<String, String> watchmanClocks, ImmutableMap<String, CellSnapshot> cells) {
+    this.watchmanClocks = watchmanClocks;
+    this.cells = cells;
+  }
+
+  /** @return the Watchman clocks the snapshot is up to date with, keyed by relative cell path. */
+  public ImmutableMap<String, String> getWatchmanClocks() {
+    return watchmanClocks;
+  }
+
+  /** @return the state of every cell, keyed by the path of the cell relative to the root cell. */
+  ImmutableMap<String, CellSnapshot> getCells() {
+    return cells;
+  }
+
+  /** @return a hash of the configuration of {@code cell} that can affect parsing. */
+  static long hashConfig(Cell cell) {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    for (Map.Entry<String, ImmutableMap<String, String>> section :
+        new TreeMap<>(cell.getBuckConfig().getRawConfigForParser()).entrySet()) {
+      hasher.putString(section.getKey(), StandardCharsets.UTF_8).putByte((byte) 0);
+      for (Map.Entry<String, String> entry : new TreeMap<>(section.getValue()).entrySet()) {
+        hasher
+            .putString(entry.getKey(), StandardCharsets.UTF_8)
+            .putByte((byte) 0)
+            .putString(entry.getValue(), StandardCharsets.UTF_8)
+            .putByte((byte) 0);
+      }
+      hasher.putByte((byte) 1);
+    }
+    return hasher.hash().asLong();
+  }
+
+  /**
+   * Loads the newest snapshot saved at {@code basePath}.
+   *
+   * @return the snapshot, or nothing if there is no snapshot, it was saved by a different version
+   *     of buck or it can't be read.
+   */
+  public static Optional<ParserStateSnapshot> load(Path basePath, String buckVersion) {
+    Path snapshotPath;
+    try {
+      Map.Entry<Long, Path> latest = findSnapshots(basePath).lastEntry();
+      if (latest == null) {
+        return Optional.empty();
+      }
+      snapshotPath = latest.getValue();
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to find parser state snapshot %s.", basePath);
+      return Optional.empty();
+    }
+    try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+        LOG.warn("Ignoring parser state snapshot %s with unexpected size.", snapshotPath);
+        return Optional.empty();
+      }
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(Integer.BYTES) != VERSION) {
+        LOG.warn("Ignoring parser state snapshot %s with unrecognized format.", snapshotPath);
+        return Optional.empty();
+      }
+      buffer.position(buffer.getInt(2 * Integer.BYTES));
+      String savedBuckVersion = readString(buffer);
+      if (!savedBuckVersion.equals(buckVersion)) {
+        LOG.debug(
+            "Ignoring parser state snapshot %s saved by buck version %s.",
+            snapshotPath, savedBuckVersion);
+        return Optional.empty();
+      }
+
+      ImmutableMap.Builder<String, String> watchmanClocks = ImmutableMap.builder();
+      for (int clocks = readVarInt(buffer); clocks > 0; clocks--) {
+        watchmanClocks.put(readString(buffer), readString(buffer));
+      }
+      ImmutableMap.Builder<String, CellSnapshot> cells = ImmutableMap.builder();
+      for (int cellCount = readVarInt(buffer); cellCount > 0; cellCount--) {
+        String cellPath = readString(buffer);
+        cells.put(cellPath, readCell(buffer));
+      }
+      return Optional.of(new ParserStateSnapshot(watchmanClocks.build(), cells.build()));
+    } catch (IOException
+        | BufferUnderflowException
+        | IllegalArgumentException
+        | IndexOutOfBoundsException e) {
+      LOG.warn(e, "Failed to load parser state snapshot %s.", snapshotPath);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Writes the snapshot as the next generation at {@code basePath}, and deletes the previous
+   * generations that are no longer mapped.
+   */
+  void save(Path basePath, String buckVersion) throws IOException {
+    Files.createDirectories(basePath.getParent());
+    TreeMap<Long, Path> oldSnapshots = findSnapshots(basePath);
+    Path snapshotPath =
+        getSnapshotPath(basePath, oldSnapshots.isEmpty() ? 1 : oldSnapshots.lastKey() + 1);
+    Path tmp =
+        Files.createTempFile(basePath.getParent(), basePath.getFileName().toString(), ".tmp");
+    int buildFiles = 0;
+    try {
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(0);
+
+        // Write the raw nodes first, so that their offsets are known when writing the index.
+        Map<CellSnapshot, Map<String, Extent>> written = new HashMap<>();
+        WritableByteChannel outChannel = Channels.newChannel(out);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        for (CellSnapshot cell : cells.values()) {
+          Map<String, Extent> cellWritten = new LinkedHashMap<>();
+          written.put(cell, cellWritten);
+          for (Map.Entry<String, EncodedRawNodes> entry : cell.encodedRawNodes.entrySet()) {
+            ByteBuffer bytes = entry.getValue().bytes.duplicate();
+            if (out.size() + bytes.remaining() <= MAX_RAW_NODES_BYTES) {
+              cellWritten.put(entry.getKey(), new Extent(out.size(), bytes.remaining()));
+              outChannel.write(bytes);
+            }
+          }
+          for (Map.Entry<String, ImmutableSet<Map<String, Object>>> entry :
+              cell.rawNodes.entrySet()) {
+            encoded.reset();
+            if (encodeRawNodes(entry.getValue(), new DataOutputStream(encoded))
+                && out.size() + encoded.size() <= MAX_RAW_NODES_BYTES) {
+              cellWritten.put(entry.getKey(), new Extent(out.size(), encoded.size()));
+              encoded.writeTo(out);
+            }
+          }
+        }
+
+        int indexOffset = out.size();
+        writeString(out, buckVersion);
+        writeVarInt(out, watchmanClocks.size());
+        for (Map.Entry<String, String> clock : watchmanClocks.entrySet()) {
+          writeString(out, clock.getKey());
+          writeString(out, clock.getValue());
+        }
+        writeVarInt(out, cells.size());
+        for (Map.Entry<String, CellSnapshot> cell : cells.entrySet()) {
+          writeString(out, cell.getKey());
+          buildFiles += writeCell(out, cell.getValue(), written.get(cell.getValue()));
+        }
+        out.flush();
+
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).putInt(0, indexOffset);
+        channel.write(header, 2 * Integer.BYTES);
+      }
+      Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    LOG.debug("Saved the raw nodes of %d build files to %s.", buildFiles, snapshotPath);
+
+    for (Path oldSnapshot : oldSnapshots.values()) {
+      try {
+        Files.deleteIfExists(oldSnapshot);
+      } catch (IOException e) {
+        // Still mapped, by this or another process. A later save deletes it.
+        LOG.debug(e, "Failed to delete old parser state snapshot %s.", oldSnapshot);
+      }
+    }
+  }
+
+  private static Path getSnapshotPath(Path basePath, long generation) {
+    return basePath.resolveSibling(basePath.getFileName() + "." + generation);
+  }
+
+  /** Returns the saved snapshots by generation. */
+  private static TreeMap<Long, Path> findSnapshots(Path basePath) throws IOException {
+    TreeMap<Long, Path> snapshots = new TreeMap<>();
+    if (!Files.isDirectory(basePath.getParent())) {
+      return snapshots;
+    }
+    String prefix = basePath.getFileName() + ".";
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(basePath.getParent(), prefix + "*")) {
+      for (Path path : stream) {
+        String generation = path.getFileName().toString().substring(prefix.length());
+        try {
+          snapshots.put(Long.parseLong(generation), path);
+        } catch (NumberFormatException e) {
+          // Not a saved snapshot, e.g. one being written.
+        }
+      }
+    }
+    return snapshots;
+  }
+
+  private static int writeCell(
+      DataOutputStream out, CellSnapshot cell, Map<String, Extent> written) throws IOException {
+    out.writeLong(cell.configHash);
+
+    Map<String, Collection<String>> dependents = cell.buildFileDependents.asMap();
+    writeVarInt(out, dependents.size());
+    for (Map.Entry<String, Collection<String>> entry : dependents.entrySet()) {
+      writeString(out, entry.getKey());
+      writeVarInt(out, entry.getValue().size());
+      for (String dependent : entry.getValue()) {
+        writeString(out, dependent);
+      }
+    }
+
+    writeVarInt(out, written.size());
+    for (Map.Entry<String, Extent> entry : written.entrySet()) {
+      writeString(out, entry.getKey());
+      ImmutableMap<String, Optional<String>> env =
+          cell.buildFileEnv.getOrDefault(entry.getKey(), ImmutableMap.of());
+      writeVarInt(out, env.size());
+      for (Map.Entry<String, Optional<String>> variable : env.entrySet()) {
+        writeString(out, variable.getKey());
+        out.writeBoolean(variable.getValue().isPresent());
+        if (variable.getValue().isPresent()) {
+          writeString(out, variable.getValue().get());
+        }
+      }
+      writeVarInt(out, entry.getValue().offset);
+      writeVarInt(out, entry.getValue().length);
+    }
+    return written.size();
+  }
+
+  private static CellSnapshot readCell(ByteBuffer buffer) {
+    long configHash = buffer.getLong();
+
+    ImmutableSetMultimap.Builder<String, String> dependents = ImmutableSetMultimap.builder();
+    for (int paths = readVarInt(buffer); paths > 0; paths--) {
+      String path = readString(buffer);
+      for (int count = readVarInt(buffer); count > 0; count--) {
+        dependents.put(path, readString(buffer));
+      }
+    }
+
+    ImmutableMap.Builder<String, ImmutableMap<String, Optional<String>>> buildFileEnv =
+        ImmutableMap.builder();
+    ImmutableMap.Builder<String, EncodedRawNodes> encodedRawNodes = ImmutableMap.builder();
+    for (int buildFiles = readVarInt(buffer); buildFiles > 0; buildFiles--) {
+      String path = readString(buffer);
+      ImmutableMap.Builder<String, Optional<String>> env = ImmutableMap.builder();
+      for (int variables = readVarInt(buffer); variables > 0; variables--) {
+        String name = readString(buffer);
+        env.put(name, buffer.get() != 0 ? Optional.of(readString(buffer)) : Optional.empty());
+      }
+      buildFileEnv.put(path, env.build());
+      int offset = readVarInt(buffer);
+      int length = readVarInt(buffer);
+      encodedRawNodes.put(path, new EncodedRawNodes(buffer, offset, length));
+    }
+    return new CellSnapshot(
+        configHash,
+        dependents.build(),
+        buildFileEnv.build(),
+        ImmutableMap.of(),
+        encodedRawNodes.build());
+  }
+
+  /**
+   * Encodes the raw nodes of a build file, along with a table of the strings they use.
+   *
+   * @return false if a value of the raw nodes can't be encoded.
+   */
+  private static boolean encodeRawNodes(
+      ImmutableSet<Map<String, Object>> rawNodes, DataOutputStream out) throws IOException {
+    Map<String, Integer> strings = new LinkedHashMap<>();
+    ByteArrayOutputStream values = new ByteArrayOutputStream();
+    DataOutputStream valuesOut = new DataOutputStream(values);
+    for (Map<String, Object> rawNode : rawNodes) {
+      if (!encodeValue(rawNode, strings, valuesOut)) {
+        return false;
+      }
+    }
+
+    writeVarInt(out, rawNodes.size());
+    writeVarInt(out, strings.size());
+    for (String string : strings.keySet()) {
+      writeString(out, string);
+    }
+    values.writeTo(out);
+    return true;
+  }
+
+  private static boolean encodeValue(
+      Object value, Map<String, Integer> strings, DataOutputStream out) throws IOException {
+    if (value == null) {
+      out.writeByte(TAG_NULL);
+    } else if (value instanceof Boolean) {
+      out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+    } else if (value instanceof Integer) {
+      out.writeByte(TAG_INTEGER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(TAG_LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Double) {
+      out.writeByte(TAG_DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof String) {
+      out.writeByte(TAG_STRING);
+      writeVarInt(out, internString((String) value, strings));
+    } else if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      out.writeByte(TAG_LIST);
+      writeVarInt(out, list.size());
+      for (Object element : list) {
+        if (!encodeValue(element, strings, out)) {
+          return false;
+        }
+      }
+    } else if (value instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      out.writeByte(TAG_MAP);
+      writeVarInt(out, map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        if (!(entry.getKey() instanceof String)) {
+          return false;
+        }
+        writeVarInt(out, internString((String) entry.getKey(), strings));
+        if (!encodeValue(entry.getValue(), strings, out)) {
+          return false;
+        }
+      }
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private static int internString(String string, Map<String, Integer> strings) {
+    return strings.computeIfAbsent(string, s -> strings.size());
+  }
+
+  private static Object decodeValue(ByteBuffer buffer, String[] strings) {
+    byte tag = buffer.get();
+    switch (tag) {
+      case TAG_NULL:
+        return null;
+      case TAG_TRUE:
+        return true;
+      case TAG_FALSE:
+        return false;
+      case TAG_INTEGER:
+        return buffer.getInt();
+      case TAG_LONG:
+        return buffer.getLong();
+      case TAG_DOUBLE:
+        return buffer.getDouble();
+      case TAG_STRING:
+        return strings[readVarInt(buffer)];
+      case TAG_LIST:
+        {
+          int size = readVarInt(buffer);
+          List<Object> list = new ArrayList<>(size);
+          for (int i = 0; i < size; i++) {
+            list.add(decodeValue(buffer, strings));
+          }
+          return list;
+        }
+      case TAG_MAP:
+        {
+          int size = readVarInt(buffer);
+          Map<String, Object> map = new LinkedHashMap<>();
+          for (int i = 0; i < size; i++) {
+            String key = strings[readVarInt(buffer)];
+            map.put(key, decodeValue(buffer, strings));
+          }
+          return map;
+        }
+      default:
+        throw new IllegalArgumentException("Unknown value tag " + tag);
+    }
+  }
+
+  private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarInt(ByteBuffer buffer) {
+    int value = 0;
+    for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+      byte b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed variable length integer");
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = readVarInt(buffer);
+    String string;
+    if (buffer.hasArray()) {
+      string =
+          new String(
+              buffer.array(),
+              buffer.arrayOffset() + buffer.position(),
+              length,
+              StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      string = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return string;
+  }
+
+  /**
+   * The raw nodes of a build file as stored in a snapshot. They are only decoded on demand, and
+   * copied as they are when the snapshot is saved again.
+   */
+  static class EncodedRawNodes {
+    private final ByteBuffer bytes;
+
+    private EncodedRawNodes(ByteBuffer buffer, int offset, int length) {
+      ByteBuffer bytes = buffer.duplicate();
+      bytes.limit(offset + length);
+      bytes.position(offset);
+      this.bytes = bytes.slice();
+    }
+
+    /** @return the number of raw nodes, without decoding them. */
+    int getNodeCount() {
+      return readVarInt(bytes.duplicate());
+    }
+
+    ImmutableSet<Map<String, Object>> decode() {
+      ByteBuffer buffer = bytes.duplicate();
+      int nodeCount = readVarInt(buffer);
+      String[] strings = new String[readVarInt(buffer)];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = readString(buffer);
+      }
+      ImmutableSet.Builder<Map<String, Object>> rawNodes = ImmutableSet.builder();
+      for (int i = 0; i < nodeCount; i++) {
+        Object rawNode = decodeValue(buffer, strings);
+        if (!(rawNode instanceof Map)) {
+          throw new IllegalArgumentException("Raw node is not a map");
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = (Map<String, Object>) rawNode;
+        rawNodes.add(map);
+      }
+      return rawNodes.build();
+    }
+  }
+
+  /** Where the raw nodes of a build file were written in a snapshot. */
+  private static class Extent {
+    private final int offset;
+    private final int length;
+
+    private Extent(int offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /** The state of one cell, with all paths relative to the root of the cell. */
+  static class CellSnapshot {
+    private final long configHash;
+    private final ImmutableSetMultimap<String, String> buildFileDependents;
+    private final ImmutableMap<String, ImmutableMap<String, Optional<String>>> buildFileEnv;
+    private final ImmutableMap<String, ImmutableSet<Map<String, Object>>> rawNodes;
+    private final ImmutableMap<String, EncodedRawNodes> encodedRawNodes;
+
+    CellSnapshot(
+        long configHash,
+        ImmutableSetMultimap<String, String> buildFileDependents,
+        ImmutableMap<String, ImmutableMap<String, Optional<String>>> buildFileEnv,
+        ImmutableMap<String, ImmutableSet<Map<String, Object>>> rawNodes,
+        ImmutableMap<String, EncodedRawNodes> encodedRawNodes) {
+      this.configHash = configHash;
+      this.buildFileDependents = buildFileDependents;
+      this.buildFileEnv = buildFileEnv;
+      this.rawNodes = rawNodes;
+      this.encodedRawNodes = encodedRawNodes;
+    }
+
+    long getConfigHash() {
+      return configHash;
+    }
+
+    ImmutableSetMultimap<String, String> getBuildFileDependents() {
+      return buildFileDependents;
+    }
+
+    ImmutableMap<String, ImmutableMap<String, Optional<String>>> getBuildFileEnv() {
+      return buildFileEnv;
+    }
+
+    ImmutableMap<String, EncodedRawNodes> getEncodedRawNodes() {
+      return encodedRawNodes;
+    }
+  }
+}
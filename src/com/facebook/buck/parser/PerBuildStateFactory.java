@@ -51,6 +51,8 @@ public class PerBuildStateFactory {
             typeCoercerFactory,
             parserPythonInterpreterProvider,
             knownBuildRuleTypesProvider,
+            daemonicParserState.getSkylarkExtensionCache(),
+            daemonicParserState.getWatchmanGlobCache(),
             enableProfiling);
     ProjectBuildFileParserPool projectBuildFileParserPool =
         new ProjectBuildFileParserPool(
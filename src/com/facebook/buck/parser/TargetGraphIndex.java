@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.facebook.buck.graph.MutableDirectedGraph;
+import com.facebook.buck.log.Logger;
+import com.google.common.collect.ImmutableSet;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Index of the target nodes loaded by queries, which outlives a single command so that repeated
+ * queries do not have to rebuild their target graph.
+ *
+ * <p>It contains a graph of target nodes with both forward and reverse edges, in which every node
+ * is stored together with all of its transitive dependencies, and the target nodes defined in each
+ * build file, which are used to find the owners of files.
+ *
+ * <p>The index is kept in sync with the cached nodes of {@link DaemonicParserState}: whenever a
+ * cached node is invalidated, the node and all nodes that depend on it are removed from the index,
+ * and so are the nodes of its build file.
+ */
+@ThreadSafe
+public class TargetGraphIndex {
+
+  private static final Logger LOG = Logger.get(TargetGraphIndex.class);
+
+  @GuardedBy("this")
+  private final Map<BuildTarget, TargetNode<?, ?>> nodes = new HashMap<>();
+
+  @GuardedBy("this")
+  private MutableDirectedGraph<TargetNode<?, ?>> graph = new MutableDirectedGraph<>();
+
+  /** All target nodes defined in a build file, keyed by the absolute path of the build file. */
+  @GuardedBy("this")
+  private final Map<Path, ImmutableSet<TargetNode<?, ?>>> buildFileNodes = new HashMap<>();
+
+  /** @return Whether the node of {@code target} and all its dependencies are in the index. */
+  public synchronized boolean contains(BuildTarget target) {
+    return nodes.containsKey(target);
+  }
+
+  /** @return The node of {@code target}, if it and all its dependencies are in the index. */
+  public synchronized Optional<TargetNode<?, ?>> getNode(BuildTarget target) {
+    return Optional.ofNullable(nodes.get(target));
+  }
+
+  /**
+   * Adds {@code node}, whose dependencies must have been added already.
+   *
+   * @return whether the node is in the index. It is not added if one of its dependencies is not,
+   *     e.g. because the dependency was invalidated after it was added. The caller then has to add
+   *     the dependency again first.
+   */
+  public synchronized boolean addNode(TargetNode<?, ?> node) {
+    if (nodes.containsKey(node.getBuildTarget())) {
+      return true;
+    }
+    List<TargetNode<?, ?>> depNodes = new ArrayList<>(node.getParseDeps().size());
+    for (BuildTarget dep : node.getParseDeps()) {
+      @Nullable TargetNode<?, ?> depNode = nodes.get(dep);
+      if (depNode == null) {
+        LOG.debug("Not adding %s, its dependency %s is not indexed.", node.getBuildTarget(), dep);
+        return false;
+      }
+      depNodes.add(depNode);
+    }
+    nodes.put(node.getBuildTarget(), node);
+    graph.addNode(node);
+    for (TargetNode<?, ?> depNode : depNodes) {
+      graph.addEdge(node, depNode);
+    }
+    return true;
+  }
+
+  /** @return The nodes {@code node} depends on, if it is in the index. */
+  public synchronized ImmutableSet<TargetNode<?, ?>> getOutgoingNodesFor(TargetNode<?, ?> node) {
+    return ImmutableSet.copyOf(graph.getOutgoingNodesFor(node));
+  }
+
+  /** @return The indexed nodes that depend on {@code node}. */
+  public synchronized ImmutableSet<TargetNode<?, ?>> getIncomingNodesFor(TargetNode<?, ?> node) {
+    return ImmutableSet.copyOf(graph.getIncomingNodesFor(node));
+  }
+
+  /** @return All target nodes defined in {@code buildFile}, if they are in the index. */
+  public synchronized Optional<ImmutableSet<TargetNode<?, ?>>> getBuildFileNodes(Path buildFile) {
+    return Optional.ofNullable(buildFileNodes.get(buildFile));
+  }
+
+  /** Records that {@code targetNodes} are all target nodes defined in {@code buildFile}. */
+  public synchronized void putBuildFileNodes(
+      Path buildFile, ImmutableSet<TargetNode<?, ?>> targetNodes) {
+    buildFileNodes.put(buildFile, targetNodes);
+  }
+
+  /** Removes the nodes of {@code targets} and all nodes that depend on them. */
+  synchronized void invalidateTargets(Iterable<BuildTarget> targets) {
+    Deque<TargetNode<?, ?>> nodesToRemove = new ArrayDeque<>();
+    for (BuildTarget target : targets) {
+      @Nullable TargetNode<?, ?> node = nodes.remove(target);
+      if (node != null) {
+        nodesToRemove.add(node);
+      }
+    }
+    int removedNodes = 0;
+    while (!nodesToRemove.isEmpty()) {
+      TargetNode<?, ?> node = nodesToRemove.remove();
+      for (TargetNode<?, ?> dependent : graph.getIncomingNodesFor(node)) {
+        if (nodes.remove(dependent.getBuildTarget()) != null) {
+          nodesToRemove.add(dependent);
+        }
+      }
+      graph.removeNode(node);
+      removedNodes++;
+    }
+    if (removedNodes > 0) {
+      LOG.verbose("Removed %d nodes depending on %s", removedNodes, targets);
+    }
+  }
+
+  /** Removes the nodes defined in {@code buildFile}. */
+  synchronized void invalidateBuildFile(Path buildFile) {
+    buildFileNodes.remove(buildFile);
+  }
+
+  /** Removes everything from the index. */
+  synchronized void invalidateAll() {
+    nodes.clear();
+    graph = new MutableDirectedGraph<>();
+    buildFileNodes.clear();
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.coercer;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.sourcepath.DefaultBuildTargetSourcePath;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Ordering;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+/**
+ * Interns immutable values produced by {@link TypeCoercer}s, so that the constructor args of target
+ * nodes share equal values, such as lists of compiler flags, instead of each holding a copy.
+ *
+ * <p>Values are held weakly, so they are dropped once no target node refers to them anymore. Only
+ * values whose equality implies that they are interchangeable are interned, others are returned
+ * as they are. These are strings, boxed primitives, enums, build targets and {@link
+ * DefaultBuildTargetSourcePath}s, as well as lists, optionals and naturally ordered sorted sets and
+ * maps made of them. Other values, such as unsorted sets, whose iteration order is not part of
+ * their equality, or path source paths, whose equality ignores all of their filesystem but its
+ * root, are not interned. Each concrete class has its own interner, so that equal values of
+ * different classes are never mixed up.
+ */
+public class CoercedValueInterner {
+
+  public static final CoercedValueInterner INSTANCE = new CoercedValueInterner();
+
+  private static final ImmutableSet<Class<?>> INTERCHANGEABLE_LEAF_CLASSES =
+      ImmutableSet.of(
+          String.class,
+          Boolean.class,
+          Character.class,
+          Byte.class,
+          Short.class,
+          Integer.class,
+          Long.class,
+          Float.class,
+          Double.class);
+
+  private final ConcurrentMap<Class<?>, InternedType> internedTypes = new ConcurrentHashMap<>();
+
+  @VisibleForTesting
+  CoercedValueInterner() {}
+
+  /**
+   * @return a value equal to {@code value}, which is shared by all callers interning it, or {@code
+   *     value} itself if equal values are not interchangeable with it.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T intern(T value) {
+    if (!isInterchangeable(value)) {
+      return value;
+    }
+    InternedType internedType =
+        internedTypes.computeIfAbsent(value.getClass(), type -> new InternedType());
+    T interned = (T) internedType.interner.intern(value);
+    internedType.requests.increment();
+    if (interned != value) {
+      internedType.hits.increment();
+    }
+    return interned;
+  }
+
+  private static boolean isInterchangeable(Object value) {
+    if (INTERCHANGEABLE_LEAF_CLASSES.contains(value.getClass())
+        || value instanceof Enum
+        || value instanceof BuildTarget
+        || value instanceof DefaultBuildTargetSourcePath) {
+      return true;
+    }
+    if (value instanceof List
+        || (value instanceof SortedSet
+            && isNaturalOrder(((SortedSet<?>) value).comparator()))) {
+      for (Object element : (Iterable<?>) value) {
+        if (!isInterchangeable(element)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (value instanceof SortedMap && isNaturalOrder(((SortedMap<?, ?>) value).comparator())) {
+      for (Map.Entry<?, ?> entry : ((SortedMap<?, ?>) value).entrySet()) {
+        if (!isInterchangeable(entry.getKey()) || !isInterchangeable(entry.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (value instanceof Optional) {
+      return ((Optional<?>) value).map(CoercedValueInterner::isInterchangeable).orElse(true);
+    }
+    return false;
+  }
+
+  /** A sorted set or map with another order may equal a naturally ordered one but iterate apart. */
+  private static boolean isNaturalOrder(@Nullable Comparator<?> comparator) {
+    return comparator == null
+        || comparator.equals(Ordering.natural())
+        || comparator.equals(Comparator.naturalOrder());
+  }
+
+  /** @return how often values of each interned class were interned, keyed by class name. */
+  public ImmutableSortedMap<String, InternerStats> getStats() {
+    ImmutableSortedMap.Builder<String, InternerStats> stats = ImmutableSortedMap.naturalOrder();
+    for (Map.Entry<Class<?>, InternedType> entry : internedTypes.entrySet()) {
+      stats.put(
+          entry.getKey().getName(),
+          new InternerStats(entry.getValue().requests.sum(), entry.getValue().hits.sum()));
+    }
+    return stats.build();
+  }
+
+  /** Interner and counters of a single class. */
+  private static class InternedType {
+    private final Interner<Object> interner = Interners.newWeakInterner();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+  }
+
+  /** Number of values of a class that were interned. */
+  public static class InternerStats {
+    private final long requestCount;
+    private final long hitCount;
+
+    private InternerStats(long requestCount, long hitCount) {
+      this.requestCount = requestCount;
+      this.hitCount = hitCount;
+    }
+
+    /** @return the number of values that were interned. */
+    public long getRequestCount() {
+      return requestCount;
+    }
+
+    /** @return the number of values that were replaced by an equal value interned before. */
+    public long getHitCount() {
+      return hitCount;
+    }
+  }
+}
@@ -47,7 +47,7 @@ public class ListTypeCoercer<T> extends CollectionTypeCoercer<ImmutableList<T>,
       throws CoerceFailedException {
     ImmutableList.Builder<T> builder = ImmutableList.builder();
     fill(cellRoots, filesystem, pathRelativeToProjectRoot, builder, object);
-    return builder.build();
+    return CoercedValueInterner.INSTANCE.intern(builder.build());
   }
 
   @Override
@@ -72,7 +72,7 @@ public class SortedMapTypeCoercer<K extends Comparable<K>, V>
         builder.put(key, value);
       }
 
-      return builder.build();
+      return CoercedValueInterner.INSTANCE.intern(builder.build());
     } else {
       throw CoerceFailedException.simple(object, getOutputClass());
     }
@@ -73,6 +73,6 @@ public class SortedSetTypeCoercer<T extends Comparable<? super T>>
       throws CoerceFailedException {
     SortedSet<T> builder = new TreeSet<>();
     fillSortedSet(cellRoots, filesystem, pathRelativeToProjectRoot, builder, object);
-    return ImmutableSortedSet.copyOf(builder);
+    return CoercedValueInterner.INSTANCE.intern(ImmutableSortedSet.copyOf(builder));
   }
 }
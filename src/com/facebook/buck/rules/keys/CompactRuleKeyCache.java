@@ -0,0 +1,465 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.core.rulekey.AddsToRuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.cache.CacheStatsTracker;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+
+/**
+ * A memory-conscious alternative to {@link DefaultRuleKeyCache} for long-lived daemons.
+ *
+ * <p>Cached nodes double as their own identity keys in the cache map, values are stored directly
+ * instead of in memoizing suppliers, and both reverse indexes (dependents of a node and users of an
+ * input) are plain growable arrays rather than {@code Stream.Builder}s. The cache can optionally be
+ * capped at a number of entries, in which case nodes that were not used since the last sweep are
+ * evicted together with their transitive dependents between builds. The number of entries and an
+ * estimate of the retained memory are reported to the {@link CacheStatsTracker}.
+ *
+ * @param <V> The rule key type.
+ */
+public class CompactRuleKeyCache<V> implements TrackableRuleKeyCache<V> {
+
+  private static final Logger LOG = Logger.get(CompactRuleKeyCache.class);
+
+  // Rough shallow sizes (with compressed oops) used to estimate the memory retained by the cache.
+  private static final long NODE_BYTES = 64;
+  private static final long INPUT_BYTES = 96;
+  private static final long SLOT_BYTES = 4;
+
+  // Once over the cap, evict until the cache is back under this fraction of it.
+  private static final double EVICTION_LOW_WATER_MARK = 0.9;
+
+  private final ConcurrentHashMap<IdentityKey, Node<V>> cache = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<RuleKeyInput, NodeList> inputsIndex = new ConcurrentHashMap<>();
+  private final long maxEntries;
+  /** Total capacity of all reverse index arrays. */
+  private final LongAdder slots = new LongAdder();
+
+  /** @param maxEntries the maximum number of cached nodes, or 0 for an unbounded cache. */
+  public CompactRuleKeyCache(long maxEntries) {
+    Preconditions.checkArgument(maxEntries >= 0);
+    this.maxEntries = maxEntries;
+  }
+
+  public CompactRuleKeyCache() {
+    this(0);
+  }
+
+  private Node<V> getOrCreateNode(Object object) {
+    IdentityKey key = new IdentityKey(object);
+    Node<V> node = cache.get(key);
+    if (node == null) {
+      Node<V> newNode = new Node<>(object);
+      node = cache.putIfAbsent(newNode, newNode);
+      if (node == null) {
+        node = newNode;
+      }
+    }
+    return node;
+  }
+
+  private <K> V calculateNode(Node<V> node, K object, Function<K, RuleKeyResult<V>> create) {
+    Preconditions.checkArgument(
+        object instanceof BuildRule || object instanceof AddsToRuleKey,
+        "%s must be one of either a `BuildRule` or `AddsToRuleKey`",
+        object.getClass());
+
+    RuleKeyResult<V> result = create.apply(object);
+    for (Object dependency : result.deps) {
+      while (!getOrCreateNode(dependency).dependents.add(node, slots)) {
+        // The dependency was invalidated concurrently, so register with its replacement.
+      }
+    }
+    for (RuleKeyInput input : result.inputs) {
+      while (!inputsIndex.computeIfAbsent(input, i -> new NodeList()).add(node, slots)) {
+        // The input was invalidated concurrently, so register with its replacement.
+      }
+    }
+    return result.result;
+  }
+
+  private <K> V getNode(
+      K object, Function<K, RuleKeyResult<V>> create, CacheStatsTracker statsTracker) {
+    CacheStatsTracker.CacheRequest request = statsTracker.startRequest();
+    while (true) {
+      Node<V> node = getOrCreateNode(object);
+      V value = node.value;
+      if (value != null) {
+        node.referenced = true;
+        request.recordHit();
+        return value;
+      }
+      if (!node.startComputing()) {
+        // Either another thread computed the value, or the node was invalidated and we should
+        // look it up again.
+        continue;
+      }
+      request.recordMiss();
+      V computed = null;
+      try {
+        computed = calculateNode(node, object, create);
+        request.recordLoadSuccess();
+      } finally {
+        node.finishComputing(computed);
+      }
+      reportSize(statsTracker);
+      return computed;
+    }
+  }
+
+  @Nullable
+  @Override
+  public V get(BuildRule rule, CacheStatsTracker statsTracker) {
+    CacheStatsTracker.CacheRequest request = statsTracker.startRequest();
+    Node<V> node = cache.get(new IdentityKey(rule));
+    V value = node == null ? null : node.value;
+    if (value != null) {
+      node.referenced = true;
+      request.recordHit();
+      return value;
+    }
+    request.recordMiss();
+    return null;
+  }
+
+  @Override
+  public V get(
+      BuildRule rule,
+      Function<? super BuildRule, RuleKeyResult<V>> create,
+      CacheStatsTracker statsTracker) {
+    return getNode(rule, create, statsTracker);
+  }
+
+  @Override
+  public V get(
+      AddsToRuleKey appendable,
+      Function<? super AddsToRuleKey, RuleKeyResult<V>> create,
+      CacheStatsTracker statsTracker) {
+    return getNode(appendable, create, statsTracker);
+  }
+
+  @VisibleForTesting
+  boolean isCached(Object object) {
+    return cache.containsKey(new IdentityKey(object));
+  }
+
+  /** Removes the given nodes and all their transitive dependents. */
+  private void invalidateNodes(ArrayDeque<Node<?>> nodes, CacheStatsTracker statsTracker) {
+    long evicted = 0;
+    while (!nodes.isEmpty()) {
+      Node<?> node = nodes.pop();
+      // This node may have already been removed due to being someone else's reverse dependency,
+      // in which case a fresh node for the same object must be left alone.
+      if (cache.remove(node, node)) {
+        LOG.verbose("invalidating node %s", node.delegate);
+        evicted++;
+      }
+      node.dependents.removeAllTo(nodes, slots);
+    }
+    statsTracker.recordEviction(evicted);
+  }
+
+  /** Invalidate the given inputs and all their transitive dependents. */
+  @Override
+  public void invalidateInputs(Iterable<RuleKeyInput> inputs, CacheStatsTracker statsTracker) {
+    ArrayDeque<Node<?>> nodes = new ArrayDeque<>();
+    for (RuleKeyInput input : inputs) {
+      LOG.verbose("invalidating input %s", input);
+      NodeList inputNodes = inputsIndex.remove(input);
+      if (inputNodes != null) {
+        inputNodes.removeAllTo(nodes, slots);
+      }
+    }
+    if (!nodes.isEmpty()) {
+      invalidateNodes(nodes, statsTracker);
+    }
+    reportSize(statsTracker);
+  }
+
+  private void invalidateMatchingInputs(
+      Predicate<RuleKeyInput> predicate, CacheStatsTracker statsTracker) {
+    ImmutableList.Builder<RuleKeyInput> inputs = ImmutableList.builder();
+    for (RuleKeyInput input : inputsIndex.keySet()) {
+      if (predicate.test(input)) {
+        inputs.add(input);
+      }
+    }
+    invalidateInputs(inputs.build(), statsTracker);
+  }
+
+  /**
+   * Invalidate all inputs *not* from the given {@link ProjectFilesystem}s and their transitive
+   * dependents.
+   */
+  @Override
+  public void invalidateAllExceptFilesystems(
+      ImmutableSet<ProjectFilesystem> filesystems, CacheStatsTracker statsTracker) {
+    if (filesystems.isEmpty()) {
+      invalidateAll(statsTracker);
+    } else {
+      invalidateMatchingInputs(
+          input -> !filesystems.contains(input.getFilesystem()), statsTracker);
+    }
+  }
+
+  /**
+   * Invalidate all inputs from a given {@link ProjectFilesystem} and their transitive dependents.
+   */
+  @Override
+  public void invalidateFilesystem(ProjectFilesystem filesystem, CacheStatsTracker statsTracker) {
+    invalidateMatchingInputs(input -> filesystem.equals(input.getFilesystem()), statsTracker);
+  }
+
+  /** Invalidate everything in the cache. */
+  @Override
+  public void invalidateAll(CacheStatsTracker statsTracker) {
+    statsTracker.recordEviction(cache.size());
+    cache.clear();
+    inputsIndex.clear();
+    slots.reset();
+    reportSize(statsTracker);
+  }
+
+  /**
+   * Evicts nodes that were not used since the previous sweep (and their transitive dependents,
+   * whose invalidation would otherwise no longer be tracked) until the cache is back under its low
+   * water mark.
+   *
+   * <p>This must not run while rule keys are computed: a node registers with its deps only after
+   * its value was computed from theirs, so evicting a dep in between would leave the dependent
+   * registered with a fresh node that no longer tracks the dep's inputs.
+   */
+  @Override
+  public synchronized void evictToCapacity(CacheStatsTracker statsTracker) {
+    if (maxEntries == 0 || cache.size() <= maxEntries) {
+      return;
+    }
+    long target = (long) (maxEntries * EVICTION_LOW_WATER_MARK);
+    // The first pass clears the referenced bits, so the second one is guaranteed to find victims.
+    for (int pass = 0; pass < 2 && cache.size() > target; pass++) {
+      for (Node<V> node : cache.values()) {
+        if (cache.size() <= target) {
+          break;
+        }
+        if (node.referenced) {
+          node.referenced = false;
+        } else {
+          ArrayDeque<Node<?>> victims = new ArrayDeque<>();
+          victims.add(node);
+          invalidateNodes(victims, statsTracker);
+        }
+      }
+    }
+    // Drop references to evicted nodes from the surviving reverse indexes, so that they do not
+    // keep the evicted rules reachable.
+    for (Node<V> node : cache.values()) {
+      node.dependents.prune(slots);
+    }
+    for (Map.Entry<RuleKeyInput, NodeList> entry : inputsIndex.entrySet()) {
+      if (entry.getValue().prune(slots) == 0) {
+        inputsIndex.remove(entry.getKey(), entry.getValue());
+      }
+    }
+    LOG.debug("Evicted rule keys down to %d entries", cache.size());
+    reportSize(statsTracker);
+  }
+
+  @Override
+  public void reportSize(CacheStatsTracker statsTracker) {
+    long entries = cache.size();
+    statsTracker.recordSize(
+        entries,
+        entries * NODE_BYTES + inputsIndex.size() * INPUT_BYTES + slots.sum() * SLOT_BYTES);
+  }
+
+  @Override
+  public ImmutableList<Map.Entry<BuildRule, V>> getCachedBuildRules() {
+    ImmutableList.Builder<Map.Entry<BuildRule, V>> builder = ImmutableList.builder();
+    for (Node<V> node : cache.values()) {
+      V value = node.value;
+      if (node.delegate instanceof BuildRule && value != null) {
+        builder.add(new AbstractMap.SimpleEntry<>((BuildRule) node.delegate, value));
+      }
+    }
+    return builder.build();
+  }
+
+  /** A key which uses identity equality and hash code of the wrapped object. */
+  private static class IdentityKey {
+
+    protected final Object delegate;
+
+    private IdentityKey(Object delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public final int hashCode() {
+      return System.identityHashCode(delegate);
+    }
+
+    @Override
+    public final boolean equals(Object obj) {
+      return obj instanceof IdentityKey && delegate == ((IdentityKey) obj).delegate;
+    }
+  }
+
+  /**
+   * A cached rule or appendable. Nodes are stored as their own keys in the cache map, so there is
+   * no separate wrapper per entry.
+   */
+  private static final class Node<V> extends IdentityKey {
+
+    /** Nodes that depend on this one, invalidated along with it. */
+    private final NodeList dependents = new NodeList();
+
+    /**
+     * The cached value. It is null until computed, as the node may also be created in response to
+     * recording a dependent.
+     */
+    @Nullable private volatile V value;
+
+    /** Whether a thread is computing the value; guarded by this node's monitor. */
+    private boolean computing;
+
+    /**
+     * Set on creation and on every hit, and cleared by eviction sweeps, so that a new node survives
+     * at least one sweep.
+     */
+    private volatile boolean referenced = true;
+
+    private Node(Object delegate) {
+      super(delegate);
+    }
+
+    /**
+     * Waits for any concurrent computation of this node to finish.
+     *
+     * @return true if the caller should compute the value, false if it is now available or this
+     *     node was invalidated in the meantime.
+     */
+    private synchronized boolean startComputing() {
+      boolean interrupted = false;
+      try {
+        while (computing) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (value != null || dependents.isRemoved()) {
+        return false;
+      }
+      computing = true;
+      return true;
+    }
+
+    private synchronized void finishComputing(@Nullable V computed) {
+      if (computed != null) {
+        value = computed;
+      }
+      computing = false;
+      notifyAll();
+    }
+  }
+
+  /**
+   * A growable array of nodes guarded by its own monitor. Once removed from its index, a list
+   * rejects further additions so that callers register with a fresh list instead.
+   */
+  private static final class NodeList {
+    private static final Node<?>[] EMPTY = new Node<?>[0];
+
+    private Node<?>[] nodes = EMPTY;
+    private int size = 0;
+    private volatile boolean removed = false;
+
+    /** @return false if the list has been removed from its index. */
+    private synchronized boolean add(Node<?> node, LongAdder slots) {
+      if (removed) {
+        return false;
+      }
+      if (size == nodes.length) {
+        int newLength = Math.max(2, nodes.length + (nodes.length >> 1));
+        slots.add(newLength - nodes.length);
+        nodes = Arrays.copyOf(nodes, newLength);
+      }
+      nodes[size++] = node;
+      return true;
+    }
+
+    /** Marks this list as removed and moves its nodes to the given queue. */
+    private synchronized void removeAllTo(ArrayDeque<Node<?>> queue, LongAdder slots) {
+      removed = true;
+      for (int i = 0; i < size; i++) {
+        queue.add(nodes[i]);
+      }
+      slots.add(-nodes.length);
+      nodes = EMPTY;
+      size = 0;
+    }
+
+    /**
+     * Drops nodes that have been invalidated from this list, and shrinks the array if at most half
+     * of it is still in use.
+     *
+     * @return the number of remaining nodes.
+     */
+    private synchronized int prune(LongAdder slots) {
+      int kept = 0;
+      for (int i = 0; i < size; i++) {
+        if (!nodes[i].dependents.removed) {
+          nodes[kept++] = nodes[i];
+        }
+      }
+      Arrays.fill(nodes, kept, size, null);
+      size = kept;
+      if (kept <= nodes.length / 2) {
+        Node<?>[] trimmed = kept == 0 ? EMPTY : Arrays.copyOf(nodes, Math.max(2, kept));
+        slots.add(trimmed.length - nodes.length);
+        nodes = trimmed;
+      }
+      return kept;
+    }
+
+    private boolean isRemoved() {
+      return removed;
+    }
+  }
+}
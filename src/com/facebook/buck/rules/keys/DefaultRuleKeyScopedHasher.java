@@ -19,6 +19,9 @@ package com.facebook.buck.rules.keys;
 import com.facebook.buck.rules.keys.hasher.CountingRuleKeyHasher;
 import com.facebook.buck.rules.keys.hasher.RuleKeyHasher;
 import com.facebook.buck.util.Scope;
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import javax.annotation.Nullable;
 
 /**
  * A wrapper of {@link RuleKeyHasher} that provides scoped hashing facilities.
@@ -28,8 +31,25 @@ import com.facebook.buck.util.Scope;
  * that ignore some fields.
  */
 public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
+  private static final byte KEY = 0;
+  private static final byte WRAPPER = 1;
+  private static final byte CONTAINER = 2;
+  private static final byte ELEMENT = 3;
+
+  private static final int INITIAL_DEPTH = 16;
+
   private final CountingRuleKeyHasher<HASH> hasher;
 
+  // Scopes are always strictly nested (they are opened with try-with-resources), so rather than
+  // allocating a closure for every scope, the state of the open scopes is kept on a stack of
+  // primitive arrays and the same scope instance is handed out every time.
+  private final StackScope scope = new StackScope();
+  private byte[] kinds = new byte[INITIAL_DEPTH];
+  private long[] startCounts = new long[INITIAL_DEPTH];
+  private int[] elementCounts = new int[INITIAL_DEPTH];
+  private Object[] labels = new Object[INITIAL_DEPTH];
+  private int depth = 0;
+
   DefaultRuleKeyScopedHasher(CountingRuleKeyHasher<HASH> hasher) {
     this.hasher = hasher;
   }
@@ -41,23 +61,13 @@ public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
   /** Hashes the key iff non-empty (i.e. if anything gets hashed during its scope). */
   @Override
   public Scope keyScope(String key) {
-    long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putKey(key);
-      }
-    };
+    return push(KEY, key);
   }
 
   /** Hashes the wrapper iff non-empty (i.e. if any element gets hashed during its scope). */
   @Override
   public Scope wrapperScope(RuleKeyHasher.Wrapper wrapper) {
-    long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putWrapper(wrapper);
-      }
-    };
+    return push(WRAPPER, wrapper);
   }
 
   /**
@@ -67,37 +77,72 @@ public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
    */
   @Override
   public ContainerScope containerScope(RuleKeyHasher.Container container) {
-    return new DefaultContainerScope(hasher, container);
+    return push(CONTAINER, container);
   }
 
-  public static class DefaultContainerScope implements ContainerScope {
-    private final CountingRuleKeyHasher<?> hasher;
-    private final RuleKeyHasher.Container container;
-    private int elementCount = 0;
+  private StackScope push(byte kind, @Nullable Object label) {
+    if (depth == kinds.length) {
+      int newLength = depth * 2;
+      kinds = Arrays.copyOf(kinds, newLength);
+      startCounts = Arrays.copyOf(startCounts, newLength);
+      elementCounts = Arrays.copyOf(elementCounts, newLength);
+      labels = Arrays.copyOf(labels, newLength);
+    }
+    kinds[depth] = kind;
+    startCounts[depth] = hasher.getCount();
+    elementCounts[depth] = 0;
+    labels[depth] = label;
+    depth++;
+    return scope;
+  }
 
-    private DefaultContainerScope(
-        CountingRuleKeyHasher<?> hasher, RuleKeyHasher.Container container) {
-      this.hasher = hasher;
-      this.container = container;
+  private void pop() {
+    Preconditions.checkState(depth > 0, "Closing a scope that was not opened.");
+    depth--;
+    boolean nonEmpty = hasher.getCount() > startCounts[depth];
+    Object label = labels[depth];
+    labels[depth] = null;
+    switch (kinds[depth]) {
+      case KEY:
+        if (nonEmpty) {
+          hasher.putKey((String) label);
+        }
+        break;
+      case WRAPPER:
+        if (nonEmpty) {
+          hasher.putWrapper((RuleKeyHasher.Wrapper) label);
+        }
+        break;
+      case CONTAINER:
+        if (elementCounts[depth] > 0) {
+          hasher.putContainer((RuleKeyHasher.Container) label, elementCounts[depth]);
+        }
+        break;
+      case ELEMENT:
+        if (nonEmpty) {
+          elementCounts[depth - 1]++;
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unknown scope kind: " + kinds[depth]);
     }
+  }
+
+  /** The single scope instance that closes whichever scope is currently innermost. */
+  private class StackScope implements ContainerScope {
 
     /** Increases element count if anything gets hashed during the element scope. */
     @Override
     public Scope elementScope() {
-      long hasherCount = hasher.getCount();
-      return () -> {
-        if (hasher.getCount() > hasherCount) {
-          elementCount++;
-        }
-      };
+      Preconditions.checkState(
+          depth > 0 && kinds[depth - 1] == CONTAINER,
+          "Element scopes must be opened directly inside a container scope.");
+      return push(ELEMENT, null);
     }
 
-    /** Hashes the container iff non-empty (i.e. if any element gets hashed during this scope). */
     @Override
     public void close() {
-      if (elementCount > 0) {
-        hasher.putContainer(container, elementCount);
-      }
+      pop();
     }
   }
 }
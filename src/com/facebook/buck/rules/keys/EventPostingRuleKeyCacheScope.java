@@ -64,6 +64,8 @@ public class EventPostingRuleKeyCacheScope<V> implements RuleKeyCacheScope<V> {
       scope.update("misses", stats.getMissCount());
       scope.update("requests", stats.getRequestCount());
       scope.update("load_time_ms", stats.getTotalLoadTime());
+      scope.update("entries", stats.getNumberEntries());
+      scope.update("estimated_size_bytes", stats.getEstimatedSizeBytes());
 
       // Run additional cleanup.
       cleanup(scope);
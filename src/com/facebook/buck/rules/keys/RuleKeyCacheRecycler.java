@@ -151,6 +151,9 @@ public class RuleKeyCacheRecycler<V> {
         LOG.verbose(
             "invalidating unwatched filesystems (everything except %s)", watchedFilesystems);
         getCache().invalidateAllExceptFilesystems(watchedFilesystems);
+
+        // Rule keys are no longer being computed, so a bounded cache can safely evict entries.
+        getCache().evictToCapacity();
       }
     };
   }
@@ -56,4 +56,13 @@ public interface TrackableRuleKeyCache<V> {
   void invalidateAll(CacheStatsTracker statsTracker);
 
   ImmutableList<Map.Entry<BuildRule, V>> getCachedBuildRules();
+
+  /** Reports the current size of the cache to the tracker, if the cache keeps track of it. */
+  default void reportSize(@SuppressWarnings("unused") CacheStatsTracker statsTracker) {}
+
+  /**
+   * Evicts entries if the cache is bounded and over its capacity. Must only be called while no
+   * rule keys are computed, e.g. between builds.
+   */
+  default void evictToCapacity(@SuppressWarnings("unused") CacheStatsTracker statsTracker) {}
 }
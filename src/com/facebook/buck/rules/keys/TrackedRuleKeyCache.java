@@ -86,6 +86,11 @@ public class TrackedRuleKeyCache<V> implements RuleKeyCache<V> {
     cache.invalidateAll(statsTracker);
   }
 
+  /** Evicts entries if the cache is over its capacity. Must not be called during a build. */
+  public void evictToCapacity() {
+    cache.evictToCapacity(statsTracker);
+  }
+
   @VisibleForTesting
   TrackableRuleKeyCache<V> getCache() {
     return cache;
@@ -93,6 +98,7 @@ public class TrackedRuleKeyCache<V> implements RuleKeyCache<V> {
 
   /** @return the stats of the cache */
   public CacheStats getStats() {
+    cache.reportSize(statsTracker);
     CacheStats.Builder statsBuilder =
         CacheStats.builder()
             .setHitCount(statsTracker.getTotalHitCount())
@@ -100,7 +106,9 @@ public class TrackedRuleKeyCache<V> implements RuleKeyCache<V> {
             .setEvictionCount(statsTracker.getTotalEvictionCount())
             .setRetrievalTime(statsTracker.getAverageRetrievalTime())
             .setTotalMissTime(statsTracker.getAverageMissTime())
-            .setTotalLoadTime(statsTracker.getAverageLoadTime());
+            .setTotalLoadTime(statsTracker.getAverageLoadTime())
+            .setNumberEntries(statsTracker.getNumberEntries())
+            .setEstimatedSizeBytes(statsTracker.getEstimatedSizeBytes());
 
     return statsBuilder.build();
   }
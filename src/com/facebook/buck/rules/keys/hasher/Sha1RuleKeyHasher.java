@@ -0,0 +1,350 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys.hasher;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.type.BuildRuleType;
+import com.facebook.buck.core.sourcepath.BuildTargetSourcePath;
+import com.facebook.buck.core.sourcepath.ExplicitBuildTargetSourcePath;
+import com.facebook.buck.core.sourcepath.ForwardingBuildTargetSourcePath;
+import com.facebook.buck.io.ArchiveMemberPath;
+import com.facebook.buck.rules.keys.SourceRoot;
+import com.facebook.buck.util.sha1.Sha1HashCode;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import java.nio.file.Path;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * A SHA-1 {@link RuleKeyHasher} that produces exactly the same hashes as a {@link
+ * GuavaRuleKeyHasher} wrapping {@code Hashing.sha1().newHasher()}, without allocating per value.
+ *
+ * <p>Values are encoded directly into a byte buffer that is fed to the digest in large chunks:
+ * primitives are written in place, strings are UTF-8 encoded character by character instead of
+ * going through {@link String#getBytes}, and hash codes are copied without cloning their bytes.
+ * Buffers and digests are recycled through a small per-thread pool once {@link #hash()} is called,
+ * so computing a rule key only allocates the resulting {@link HashCode}.
+ */
+public class Sha1RuleKeyHasher implements RuleKeyHasher<HashCode> {
+
+  private static final int BUFFER_SIZE = 4096;
+  private static final int MAX_POOLED_BUFFERS = 8;
+  private static final int SHA1_LENGTH = 20;
+  private static final byte[] RELEASED = new byte[0];
+
+  // Rule keys of dependencies may be computed while a rule key is being built on the same thread,
+  // so each thread keeps a few buffers around rather than a single one.
+  private static final ThreadLocal<ArrayDeque<DigestBuffer>> POOL =
+      ThreadLocal.withInitial(ArrayDeque::new);
+
+  @Nullable private DigestBuffer state;
+  private byte[] buffer;
+  private int position = 0;
+
+  public Sha1RuleKeyHasher() {
+    DigestBuffer pooled = POOL.get().pollFirst();
+    this.state = pooled != null ? pooled : new DigestBuffer();
+    this.buffer = state.bytes;
+  }
+
+  private static class DigestBuffer {
+    private final MessageDigest digest;
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+
+    private DigestBuffer() {
+      try {
+        digest = MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError("SHA-1 is always supported", e);
+      }
+    }
+  }
+
+  private void flush() {
+    Preconditions.checkState(state != null, "Cannot re-use a hasher after calling hash()");
+    state.digest.update(buffer, 0, position);
+    position = 0;
+  }
+
+  private void ensureCapacity(int length) {
+    if (position + length > buffer.length) {
+      flush();
+    }
+  }
+
+  private void writeByte(byte val) {
+    ensureCapacity(1);
+    buffer[position++] = val;
+  }
+
+  private void writeShort(short val) {
+    ensureCapacity(2);
+    buffer[position++] = (byte) val;
+    buffer[position++] = (byte) (val >>> 8);
+  }
+
+  private void writeInt(int val) {
+    ensureCapacity(4);
+    buffer[position++] = (byte) val;
+    buffer[position++] = (byte) (val >>> 8);
+    buffer[position++] = (byte) (val >>> 16);
+    buffer[position++] = (byte) (val >>> 24);
+  }
+
+  private void writeLong(long val) {
+    writeInt((int) val);
+    writeInt((int) (val >>> 32));
+  }
+
+  private void writeBytes(byte[] val) {
+    if (val.length > buffer.length - position) {
+      flush();
+      state.digest.update(val);
+    } else {
+      System.arraycopy(val, 0, buffer, position, val.length);
+      position += val.length;
+    }
+  }
+
+  /** Writes the value the same way {@link String#getBytes} encodes it and returns its length. */
+  private int writeUtf8(String val) {
+    int length = 0;
+    int size = val.length();
+    for (int i = 0; i < size; i++) {
+      char c = val.charAt(i);
+      if (c < 0x80) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) c;
+        length += 1;
+      } else if (c < 0x800) {
+        ensureCapacity(2);
+        buffer[position++] = (byte) (0xc0 | (c >>> 6));
+        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+        length += 2;
+      } else if (!Character.isSurrogate(c)) {
+        ensureCapacity(3);
+        buffer[position++] = (byte) (0xe0 | (c >>> 12));
+        buffer[position++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+        length += 3;
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < size
+          && Character.isLowSurrogate(val.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, val.charAt(++i));
+        ensureCapacity(4);
+        buffer[position++] = (byte) (0xf0 | (codePoint >>> 18));
+        buffer[position++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3f));
+        buffer[position++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3f));
+        buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+        length += 4;
+      } else {
+        // Unpaired surrogates are replaced the same way String#getBytes does.
+        ensureCapacity(1);
+        buffer[position++] = '?';
+        length += 1;
+      }
+    }
+    return length;
+  }
+
+  private Sha1RuleKeyHasher putHashCode(byte type, HashCode hash) {
+    int length = hash.bits() / 8;
+    if (length > BUFFER_SIZE) {
+      writeBytes(hash.asBytes());
+    } else {
+      ensureCapacity(length);
+      position += hash.writeBytesTo(buffer, position, length);
+    }
+    writeInt(length);
+    writeByte(type);
+    return this;
+  }
+
+  private Sha1RuleKeyHasher putStringified(byte type, String val) {
+    writeInt(writeUtf8(val));
+    writeByte(type);
+    return this;
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putKey(String key) {
+    return putStringified(RuleKeyHasherTypes.KEY, key);
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putNull() {
+    writeByte(RuleKeyHasherTypes.NULL);
+    return this;
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putCharacter(char val) {
+    writeShort((short) val);
+    return this;
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putBoolean(boolean val) {
+    writeByte(val ? RuleKeyHasherTypes.TRUE : RuleKeyHasherTypes.FALSE);
+    return this;
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putNumber(Number val) {
+    if (val instanceof Integer) { // most common, so test first
+      writeInt((Integer) val);
+      writeByte(RuleKeyHasherTypes.INTEGER);
+    } else if (val instanceof Long) {
+      writeLong((Long) val);
+      writeByte(RuleKeyHasherTypes.LONG);
+    } else if (val instanceof Short) {
+      writeShort((Short) val);
+      writeByte(RuleKeyHasherTypes.SHORT);
+    } else if (val instanceof Byte) {
+      writeByte((Byte) val);
+      writeByte(RuleKeyHasherTypes.BYTE);
+    } else if (val instanceof Float) {
+      writeInt(Float.floatToRawIntBits((Float) val));
+      writeByte(RuleKeyHasherTypes.FLOAT);
+    } else if (val instanceof Double) {
+      writeLong(Double.doubleToRawLongBits((Double) val));
+      writeByte(RuleKeyHasherTypes.DOUBLE);
+    } else {
+      throw new UnsupportedOperationException(("Unsupported Number type: " + val.getClass()));
+    }
+    return this;
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putString(String val) {
+    return putStringified(RuleKeyHasherTypes.STRING, val);
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putBytes(byte[] bytes) {
+    writeBytes(bytes);
+    writeInt(bytes.length);
+    writeByte(RuleKeyHasherTypes.BYTE_ARRAY);
+    return this;
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putPattern(Pattern pattern) {
+    return putStringified(RuleKeyHasherTypes.PATTERN, pattern.toString());
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putSha1(Sha1HashCode sha1) {
+    ensureCapacity(SHA1_LENGTH);
+    sha1.writeBytesTo(buffer, position);
+    position += SHA1_LENGTH;
+    writeByte(RuleKeyHasherTypes.SHA1);
+    return this;
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putPath(Path path, HashCode hash) {
+    putStringified(RuleKeyHasherTypes.PATH, path.toString());
+    return putHashCode(RuleKeyHasherTypes.PATH, hash);
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putArchiveMemberPath(ArchiveMemberPath path, HashCode hash) {
+    putStringified(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, path.toString());
+    return putHashCode(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, hash);
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putNonHashingPath(String path) {
+    return putStringified(RuleKeyHasherTypes.NON_HASHING_PATH, path);
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putSourceRoot(SourceRoot sourceRoot) {
+    return putStringified(RuleKeyHasherTypes.SOURCE_ROOT, sourceRoot.getName());
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putRuleKey(RuleKey ruleKey) {
+    return putHashCode(RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode());
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putBuildRuleType(BuildRuleType buildRuleType) {
+    return putStringified(RuleKeyHasherTypes.RULE_TYPE, buildRuleType.toString());
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putBuildTarget(BuildTarget buildTarget) {
+    return putStringified(RuleKeyHasherTypes.TARGET, buildTarget.getFullyQualifiedName());
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putBuildTargetSourcePath(BuildTargetSourcePath targetSourcePath) {
+    putStringified(
+        RuleKeyHasherTypes.TARGET_SOURCE_PATH, targetSourcePath.getTarget().getFullyQualifiedName());
+    if (targetSourcePath instanceof ExplicitBuildTargetSourcePath) {
+      putStringified(
+          RuleKeyHasherTypes.TARGET_SOURCE_PATH,
+          ((ExplicitBuildTargetSourcePath) targetSourcePath).getResolvedPath().toString());
+    } else if (targetSourcePath instanceof ForwardingBuildTargetSourcePath) {
+      putStringified(
+          RuleKeyHasherTypes.TARGET_SOURCE_PATH, targetSourcePath.representationForRuleKey());
+    }
+    return this;
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putContainer(Container container, int length) {
+    writeByte(RuleKeyHasherTypes.containerSubType(container));
+    writeInt(length);
+    writeByte(RuleKeyHasherTypes.CONTAINER);
+    return this;
+  }
+
+  @Override
+  public Sha1RuleKeyHasher putWrapper(Wrapper wrapper) {
+    writeByte(RuleKeyHasherTypes.wrapperSubType(wrapper));
+    writeByte(RuleKeyHasherTypes.WRAPPER);
+    return this;
+  }
+
+  @Override
+  public HashCode hash() {
+    flush();
+    DigestBuffer released = Preconditions.checkNotNull(state);
+    byte[] result = new byte[SHA1_LENGTH];
+    try {
+      released.digest.digest(result, 0, SHA1_LENGTH);
+    } catch (DigestException e) {
+      throw new IllegalStateException(e);
+    }
+    state = null;
+    buffer = RELEASED;
+    ArrayDeque<DigestBuffer> pool = POOL.get();
+    if (pool.size() < MAX_POOLED_BUFFERS) {
+      pool.addFirst(released);
+    }
+    return HashCode.fromBytes(result);
+  }
+}
@@ -48,6 +48,7 @@ public class DefaultWorkerTool extends WriteFile
   private final Tool tool;
 
   private final int maxWorkers;
+  private final int maxJobsPerWorker;
   private final boolean isPersistent;
   private final BuildOutputInitializer<UUID> buildOutputInitializer;
   private final Supplier<SortedSet<BuildRule>> depsSupplier;
@@ -58,6 +59,7 @@ public class DefaultWorkerTool extends WriteFile
       SourcePathRuleFinder ruleFinder,
       Tool tool,
       int maxWorkers,
+      int maxJobsPerWorker,
       boolean isPersistent) {
     super(
         buildTarget,
@@ -72,6 +74,7 @@ public class DefaultWorkerTool extends WriteFile
           @AddToRuleKey SourcePath placeholder = getSourcePathToOutput();
         };
     this.maxWorkers = maxWorkers;
+    this.maxJobsPerWorker = maxJobsPerWorker;
     this.isPersistent = isPersistent;
     this.buildOutputInitializer = new BuildOutputInitializer<>(getBuildTarget(), this);
     this.depsSupplier = BuildableSupport.buildDepsSupplier(this, ruleFinder);
@@ -97,6 +100,11 @@ public class DefaultWorkerTool extends WriteFile
     return maxWorkers;
   }
 
+  @Override
+  public int getMaxJobsPerWorker() {
+    return maxJobsPerWorker;
+  }
+
   @Override
   public boolean isPersistent() {
     return isPersistent;
@@ -27,6 +27,8 @@ public interface WorkerTool {
 
   int getMaxWorkers();
 
+  int getMaxJobsPerWorker();
+
   boolean isPersistent();
 
   HashCode getInstanceKey();
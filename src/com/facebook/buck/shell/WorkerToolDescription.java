@@ -147,6 +147,10 @@ public class WorkerToolDescription implements DescriptionWithTargetGraph<WorkerT
       maxWorkers = args.getMaxWorkers().map(x -> x < 1 ? buckConfig.getNumThreads() : x).orElse(1);
     }
 
+    // negative or zero: as many jobs per worker process as there are threads
+    int maxJobsPerWorker =
+        args.getMaxJobsPerWorker().map(x -> x < 1 ? buckConfig.getNumThreads() : x).orElse(1);
+
     CommandTool tool = builder.build();
     return new DefaultWorkerTool(
         buildTarget,
@@ -154,6 +158,7 @@ public class WorkerToolDescription implements DescriptionWithTargetGraph<WorkerT
         new SourcePathRuleFinder(graphBuilder),
         tool,
         maxWorkers,
+        maxJobsPerWorker,
         args.getPersistent()
             .orElse(buckConfig.getBooleanValue(CONFIG_SECTION, CONFIG_PERSISTENT_KEY, false)));
   }
@@ -174,6 +179,8 @@ public class WorkerToolDescription implements DescriptionWithTargetGraph<WorkerT
 
     Optional<Integer> getMaxWorkersPerThreadPercent();
 
+    Optional<Integer> getMaxJobsPerWorker();
+
     Optional<Boolean> getPersistent();
   }
 }
@@ -16,9 +16,13 @@
 
 package com.facebook.buck.skylark.io.impl;
 
+import com.facebook.buck.skylark.io.GlobSpec;
 import com.facebook.buck.skylark.io.Globber;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.Optional;
 import java.util.Set;
@@ -26,22 +30,44 @@ import java.util.Set;
 /**
  * A {@link Globber} implementation that tries to use Watchman if it's available and falls back to a
  * fallback globber, in case Watchman query cannot be fulfilled.
+ *
+ * <p>Results returned by Watchman are stored in a {@link WatchmanGlobCache}, which also batches
+ * Watchman queries for all globs requested by the previous evaluation of the same package.
  */
 public class HybridGlobber implements Globber {
   private final Globber fallbackGlobber;
   private final WatchmanGlobber watchmanGlobber;
+  private final WatchmanGlobCache globCache;
+  /** Absolute path of the directory in which globs are resolved. */
+  private final Path basePath;
 
-  public HybridGlobber(Globber fallbackGlobber, WatchmanGlobber watchmanGlobber) {
+  public HybridGlobber(
+      Globber fallbackGlobber,
+      WatchmanGlobber watchmanGlobber,
+      WatchmanGlobCache globCache,
+      Path basePath) {
     this.fallbackGlobber = fallbackGlobber;
     this.watchmanGlobber = watchmanGlobber;
+    this.globCache = globCache;
+    this.basePath = basePath;
+  }
+
+  public HybridGlobber(Globber fallbackGlobber, WatchmanGlobber watchmanGlobber) {
+    this(fallbackGlobber, watchmanGlobber, new WatchmanGlobCache(), Paths.get(""));
   }
 
   @Override
   public Set<String> run(
       Collection<String> include, Collection<String> exclude, boolean excludeDirectories)
       throws IOException, InterruptedException {
+    GlobSpec globSpec =
+        GlobSpec.builder()
+            .setInclude(ImmutableList.copyOf(include))
+            .setExclude(ImmutableList.copyOf(exclude))
+            .setExcludeDirectories(excludeDirectories)
+            .build();
     Optional<ImmutableSet<String>> watchmanResult =
-        watchmanGlobber.run(include, exclude, excludeDirectories);
+        globCache.get(basePath, globSpec, watchmanGlobber::run);
     if (watchmanResult.isPresent()) {
       return watchmanResult.get();
     }
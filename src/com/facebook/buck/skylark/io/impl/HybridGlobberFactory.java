@@ -22,6 +22,7 @@ import com.facebook.buck.skylark.io.Globber;
 import com.facebook.buck.skylark.io.GlobberFactory;
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.vfs.Path;
+import java.nio.file.Paths;
 import javax.annotation.Nullable;
 
 /** Provides instances of {@link com.facebook.buck.skylark.io.impl.HybridGlobber}. */
@@ -31,16 +32,19 @@ public class HybridGlobberFactory implements GlobberFactory {
   private final java.nio.file.Path projectRoot;
   private final ImmutableMap<java.nio.file.Path, ProjectWatch> projectWatches;
   private final SyncCookieState syncCookieState;
+  private final WatchmanGlobCache globCache;
 
   private HybridGlobberFactory(
       WatchmanClient watchmanClient,
       SyncCookieState syncCookieState,
       java.nio.file.Path projectRoot,
-      ImmutableMap<java.nio.file.Path, ProjectWatch> projectWatches) {
+      ImmutableMap<java.nio.file.Path, ProjectWatch> projectWatches,
+      WatchmanGlobCache globCache) {
     this.watchmanClient = watchmanClient;
     this.syncCookieState = syncCookieState;
     this.projectRoot = projectRoot;
     this.projectWatches = projectWatches;
+    this.globCache = globCache;
   }
 
   @Override
@@ -53,16 +57,22 @@ public class HybridGlobberFactory implements GlobberFactory {
     }
     String relativeRoot =
         basePath.relativeTo(basePath.getFileSystem().getPath(watchRoot)).toString();
+    java.nio.file.Path globBasePath = Paths.get(basePath.getPathString());
+    globCache.startEvaluation(globBasePath);
     return new HybridGlobber(
         NativeGlobber.create(basePath),
-        WatchmanGlobber.create(watchmanClient, syncCookieState, relativeRoot, watchRoot));
+        WatchmanGlobber.create(watchmanClient, syncCookieState, relativeRoot, watchRoot),
+        globCache,
+        globBasePath);
   }
 
   public static HybridGlobberFactory using(
       WatchmanClient watchmanClient,
       SyncCookieState syncCookieState,
       java.nio.file.Path projectRoot,
-      ImmutableMap<java.nio.file.Path, ProjectWatch> projectWatches) {
-    return new HybridGlobberFactory(watchmanClient, syncCookieState, projectRoot, projectWatches);
+      ImmutableMap<java.nio.file.Path, ProjectWatch> projectWatches,
+      WatchmanGlobCache globCache) {
+    return new HybridGlobberFactory(
+        watchmanClient, syncCookieState, projectRoot, projectWatches, globCache);
   }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.io.impl;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.skylark.io.GlobSpec;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Cache of glob results resolved by Watchman that can be shared by all parsers of a daemon.
+ *
+ * <p>Results are keyed by the absolute path of the directory in which globs are resolved and by
+ * their {@link GlobSpec}, and are dropped when a file under that directory is added or removed.
+ * The glob specifications requested by the latest evaluation of a package are remembered even after
+ * their results are dropped, so that when the package is evaluated again all of them can be
+ * resolved with a single batch of Watchman queries instead of one query per {@code glob} call.
+ * Globs that the latest evaluation no longer requested are forgotten together with their results.
+ */
+public class WatchmanGlobCache {
+
+  private static final Logger LOG = Logger.get(WatchmanGlobCache.class);
+
+  /** Resolves several glob specifications at once. */
+  @FunctionalInterface
+  public interface BatchGlobber {
+    /**
+     * @return The paths matching each of {@code globSpecs}, or nothing if they cannot be resolved.
+     *     Specifications that cannot be resolved on their own may be left out.
+     */
+    Optional<ImmutableMap<GlobSpec, ImmutableSet<String>>> run(Collection<GlobSpec> globSpecs)
+        throws IOException, InterruptedException;
+  }
+
+  private final ConcurrentMap<Path, DirectoryGlobs> directories = new ConcurrentHashMap<>();
+
+  /**
+   * @return The paths matching {@code globSpec} in {@code basePath}. If they are not cached, they
+   *     are resolved using {@code globber} together with all other specifications requested in
+   *     {@code basePath} by this or the previous evaluation of its package whose results are not
+   *     cached either. Nothing if {@code globber} cannot resolve {@code globSpec}.
+   */
+  public Optional<ImmutableSet<String>> get(Path basePath, GlobSpec globSpec, BatchGlobber globber)
+      throws IOException, InterruptedException {
+    DirectoryGlobs globs = directories.computeIfAbsent(basePath, path -> new DirectoryGlobs());
+    long generation;
+    ImmutableSet<GlobSpec> specsToResolve;
+    synchronized (globs) {
+      globs.currentSpecs.add(globSpec);
+      @Nullable ImmutableSet<String> cachedPaths = globs.results.get(globSpec);
+      if (cachedPaths != null) {
+        return Optional.of(cachedPaths);
+      }
+      generation = globs.generation;
+      specsToResolve =
+          Stream.concat(globs.previousSpecs.stream(), globs.currentSpecs.stream())
+              .filter(spec -> !globs.results.containsKey(spec))
+              .collect(ImmutableSet.toImmutableSet());
+    }
+
+    LOG.verbose("Resolving %d globs in %s", specsToResolve.size(), basePath);
+    Optional<ImmutableMap<GlobSpec, ImmutableSet<String>>> resolvedPaths =
+        globber.run(specsToResolve);
+    if (!resolvedPaths.isPresent()) {
+      return Optional.empty();
+    }
+    synchronized (globs) {
+      // Results resolved before a change in the directory was reported might already be stale.
+      if (globs.generation == generation) {
+        globs.results.putAll(resolvedPaths.get());
+      }
+    }
+    return Optional.ofNullable(resolvedPaths.get().get(globSpec));
+  }
+
+  /**
+   * Called before the package in {@code basePath} is evaluated, so that the globs requested by the
+   * evaluation before it are batched, and the globs it no longer requested are forgotten.
+   */
+  public void startEvaluation(Path basePath) {
+    @Nullable DirectoryGlobs globs = directories.get(basePath);
+    if (globs == null) {
+      return;
+    }
+    synchronized (globs) {
+      globs.previousSpecs = globs.currentSpecs;
+      globs.currentSpecs = new LinkedHashSet<>();
+      globs.results.keySet().retainAll(globs.previousSpecs);
+    }
+  }
+
+  /**
+   * Drops the results of globs that might match the file at {@code path}, because it was added or
+   * removed.
+   */
+  public void invalidatePath(Path path) {
+    // The directory itself was added or removed, so its package is gone or new.
+    directories.remove(path);
+    for (Path directory = path.getParent(); directory != null; directory = directory.getParent()) {
+      @Nullable DirectoryGlobs globs = directories.get(directory);
+      if (globs != null) {
+        synchronized (globs) {
+          globs.generation++;
+          globs.results.clear();
+        }
+      }
+    }
+  }
+
+  /** Drops all cached results. */
+  public void invalidateAll() {
+    directories.clear();
+  }
+
+  /** Globs requested in a single directory. */
+  private static class DirectoryGlobs {
+    /** Globs requested by the previous evaluation of the package. */
+    @GuardedBy("this")
+    private Set<GlobSpec> previousSpecs = new LinkedHashSet<>();
+
+    /** Globs requested by the latest evaluation of the package. */
+    @GuardedBy("this")
+    private Set<GlobSpec> currentSpecs = new LinkedHashSet<>();
+
+    @GuardedBy("this")
+    private final Map<GlobSpec, ImmutableSet<String>> results = new HashMap<>();
+
+    /** Incremented whenever results are dropped. */
+    @GuardedBy("this")
+    private long generation = 0;
+  }
+}
@@ -17,6 +17,7 @@
 package com.facebook.buck.skylark.io.impl;
 
 import com.facebook.buck.io.WatchmanClient;
+import com.facebook.buck.skylark.io.GlobSpec;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -86,6 +87,45 @@ public class WatchmanGlobber {
             });
   }
 
+  /**
+   * Resolves all {@code globSpecs} using a single batch of Watchman queries, which is cheaper than
+   * resolving them one by one.
+   *
+   * @return The set of paths matching each of {@code globSpecs}, or nothing if Watchman queries
+   *     cannot be fulfilled. Specifications for which Watchman did not return any files are left
+   *     out.
+   */
+  public Optional<ImmutableMap<GlobSpec, ImmutableSet<String>>> run(Collection<GlobSpec> globSpecs)
+      throws IOException, InterruptedException {
+    ImmutableList<GlobSpec> specs = ImmutableSet.copyOf(globSpecs).asList();
+    ImmutableList<ImmutableList<Object>> queries =
+        specs
+            .stream()
+            .map(
+                spec ->
+                    ImmutableList.<Object>of(
+                        "query",
+                        watchmanWatchRoot,
+                        createWatchmanQuery(
+                            spec.getInclude(), spec.getExclude(), spec.getExcludeDirectories())))
+            .collect(ImmutableList.toImmutableList());
+
+    return watchmanClient
+        .queryBatchWithTimeout(TIMEOUT_NANOS, queries)
+        .map(
+            results -> {
+              ImmutableMap.Builder<GlobSpec, ImmutableSet<String>> paths = ImmutableMap.builder();
+              for (int i = 0; i < specs.size(); i++) {
+                @SuppressWarnings("unchecked")
+                List<String> files = (List<String>) results.get(i).get("files");
+                if (files != null) {
+                  paths.put(specs.get(i), ImmutableSet.copyOf(files));
+                }
+              }
+              return paths.build();
+            });
+  }
+
   /**
    * Creates a JSON-like Watchman query to get a list of matching files.
    *
@@ -18,6 +18,7 @@ package com.facebook.buck.skylark.parser;
 
 import com.facebook.buck.core.util.immutables.BuckStyleImmutable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
 import com.google.devtools.build.lib.syntax.Environment.Extension;
 import org.immutables.value.Value;
 
@@ -36,4 +37,7 @@ abstract class AbstractExtensionData {
   public abstract ImmutableList<ExtensionData> getDependencies();
 
   public abstract String getImportString();
+
+  /** Returns the hash of the file contents {@link #getExtension()} was evaluated from. */
+  public abstract HashCode getContentHash();
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.parser;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of evaluated Skylark extensions that can be shared by all {@link
+ * SkylarkProjectBuildFileParser} instances of a daemon.
+ *
+ * <p>A cached extension is only returned if none of the files in its transitive load closure has
+ * different contents than the ones it was evaluated from. The hash of each file is computed at most
+ * once until the file is reported as changed, so checking an extension does not require reading
+ * files that did not change.
+ */
+public class SkylarkExtensionCache {
+
+  private static final Logger LOG = Logger.get(SkylarkExtensionCache.class);
+
+  /**
+   * Extensions keyed by the root of the cell that loaded them, since labels are resolved relative
+   * to it.
+   */
+  private final ConcurrentMap<Path, ConcurrentMap<Label, ExtensionData>> extensions =
+      new ConcurrentHashMap<>();
+
+  /** Hashes of extension file contents keyed by the absolute path of the file. */
+  private final ConcurrentMap<String, HashCode> contentHashes = new ConcurrentHashMap<>();
+
+  /** Computes the hash of extension file contents the way they are recorded in this cache. */
+  static HashCode hashContent(byte[] content) {
+    return Hashing.sha1().hashBytes(content);
+  }
+
+  /**
+   * @return The extension with {@code label} loaded by a parser of the cell at {@code cellRoot},
+   *     if it is cached and up to date.
+   */
+  Optional<ExtensionData> get(Path cellRoot, Label label) {
+    ConcurrentMap<Label, ExtensionData> cellExtensions = extensions.get(cellRoot);
+    if (cellExtensions == null) {
+      return Optional.empty();
+    }
+    ExtensionData extensionData = cellExtensions.get(label);
+    if (extensionData == null) {
+      return Optional.empty();
+    }
+    if (!isUpToDate(extensionData, new HashSet<>())) {
+      LOG.verbose("Extension %s loaded from %s is out of date", label, cellRoot);
+      cellExtensions.remove(label, extensionData);
+      return Optional.empty();
+    }
+    return Optional.of(extensionData);
+  }
+
+  /** Records {@code extensionData} loaded by a parser of the cell at {@code cellRoot}. */
+  void put(Path cellRoot, Label label, ExtensionData extensionData) {
+    extensions
+        .computeIfAbsent(cellRoot, root -> new ConcurrentHashMap<>())
+        .put(label, extensionData);
+  }
+
+  private boolean isUpToDate(ExtensionData extensionData, Set<String> checkedPaths) {
+    if (!checkedPaths.add(extensionData.getPath().getPathString())) {
+      return true;
+    }
+    if (!getContentHash(extensionData.getPath())
+        .equals(Optional.of(extensionData.getContentHash()))) {
+      return false;
+    }
+    for (ExtensionData dependency : extensionData.getDependencies()) {
+      if (!isUpToDate(dependency, checkedPaths)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Optional<HashCode> getContentHash(com.google.devtools.build.lib.vfs.Path path) {
+    String key = path.getPathString();
+    HashCode hash = contentHashes.get(key);
+    if (hash == null) {
+      try {
+        hash = hashContent(FileSystemUtils.readContent(path));
+      } catch (IOException e) {
+        LOG.verbose(e, "Cannot read extension file %s", path);
+        return Optional.empty();
+      }
+      contentHashes.put(key, hash);
+    }
+    return Optional.of(hash);
+  }
+
+  /** Forgets the contents of the file at {@code path}, because it might have changed. */
+  public void invalidatePath(Path path) {
+    contentHashes.remove(path.toString());
+  }
+
+  /** Drops all cached extensions. */
+  public void invalidateAll() {
+    extensions.clear();
+    contentHashes.clear();
+  }
+}
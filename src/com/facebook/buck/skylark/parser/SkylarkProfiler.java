@@ -0,0 +1,273 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.parser;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.PerfEventId;
+import com.facebook.buck.event.SimplePerfEvent;
+import com.facebook.buck.skylark.io.Globber;
+import com.google.common.base.Preconditions;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time and memory {@link SkylarkProjectBuildFileParser} spends on build files, on
+ * extensions and on the functions called at the top level of build files, and summarizes them in a
+ * report.
+ *
+ * <p>Every measurement records its own costs separately from the costs of the measurements nested
+ * in it, so that for example the time spent on loading extensions is not attributed to the build
+ * file that loads them. Measured extensions and function calls are also reported as perf events,
+ * so that they show up in the Chrome trace.
+ *
+ * <p>A disabled profiler does not measure anything. Like the parser using it, this class is not
+ * thread-safe.
+ */
+class SkylarkProfiler {
+
+  /** What is measured. */
+  enum Kind {
+    // Build files are already traced using ParseBuckFileEvent.
+    BUILD_FILE("build file", Optional.empty()),
+    EXTENSION("extension", Optional.of(PerfEventId.of("skylark_load"))),
+    FUNCTION("function", Optional.of(PerfEventId.of("skylark_call")));
+
+    private final String description;
+    private final Optional<PerfEventId> perfEventId;
+
+    Kind(String description, Optional<PerfEventId> perfEventId) {
+      this.description = description;
+      this.perfEventId = perfEventId;
+    }
+  }
+
+  /** A measurement in progress, which ends when it is closed. */
+  interface Measurement extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private static final Measurement NOOP_MEASUREMENT = () -> {};
+
+  private final BuckEventBus buckEventBus;
+  private final boolean enabled;
+  private final ThreadMXBean threadMXBean;
+  private final Map<Key, Stats> stats = new HashMap<>();
+  private final Deque<ActiveMeasurement> measurements = new ArrayDeque<>();
+  private long globNanos = 0;
+
+  SkylarkProfiler(BuckEventBus buckEventBus, boolean enabled) {
+    this.buckEventBus = buckEventBus;
+    this.enabled = enabled;
+    this.threadMXBean = ManagementFactory.getThreadMXBean();
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts measuring {@code name}. The returned {@link Measurement} has to be closed before the
+   * measurements started before it.
+   */
+  Measurement measure(Kind kind, String name) {
+    if (!enabled) {
+      return NOOP_MEASUREMENT;
+    }
+    ActiveMeasurement measurement = new ActiveMeasurement(new Key(kind, name));
+    measurements.push(measurement);
+    return measurement;
+  }
+
+  /** @return A {@link Globber} that records the time spent by {@code globber}. */
+  Globber timeGlobs(Globber globber) {
+    if (!enabled) {
+      return globber;
+    }
+    return (include, exclude, excludeDirectories) -> {
+      long startNanos = System.nanoTime();
+      try {
+        return globber.run(include, exclude, excludeDirectories);
+      } finally {
+        globNanos += System.nanoTime() - startNanos;
+      }
+    };
+  }
+
+  /** @return Whether anything has been measured. */
+  boolean hasMeasurements() {
+    return !stats.isEmpty();
+  }
+
+  /**
+   * @return A human readable report of all measurements, with the ones that took the most time on
+   *     their own first.
+   */
+  String createReport() {
+    List<Map.Entry<Key, Stats>> entries = new ArrayList<>(stats.entrySet());
+    entries.sort(
+        Comparator.<Map.Entry<Key, Stats>>comparingLong(entry -> entry.getValue().selfWallNanos)
+            .reversed());
+    StringBuilder report = new StringBuilder();
+    report.append(
+        String.format(
+            "%-10s %8s %12s %12s %12s %14s %12s  %s%n",
+            "kind",
+            "count",
+            "wall ms",
+            "self wall ms",
+            "self cpu ms",
+            "self alloc kB",
+            "self glob ms",
+            "name"));
+    for (Map.Entry<Key, Stats> entry : entries) {
+      Stats value = entry.getValue();
+      report.append(
+          String.format(
+              "%-10s %8d %12d %12d %12d %14d %12d  %s%n",
+              entry.getKey().kind.description,
+              value.count,
+              TimeUnit.NANOSECONDS.toMillis(value.wallNanos),
+              TimeUnit.NANOSECONDS.toMillis(value.selfWallNanos),
+              TimeUnit.NANOSECONDS.toMillis(value.selfCpuNanos),
+              value.selfAllocatedBytes / 1024,
+              TimeUnit.NANOSECONDS.toMillis(value.selfGlobNanos),
+              entry.getKey().name));
+    }
+    return report.toString();
+  }
+
+  private long getCpuNanos() {
+    return threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled()
+        ? threadMXBean.getCurrentThreadCpuTime()
+        : 0;
+  }
+
+  private long getAllocatedBytes() {
+    if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean allocationMXBean =
+          (com.sun.management.ThreadMXBean) threadMXBean;
+      if (allocationMXBean.isThreadAllocatedMemorySupported()
+          && allocationMXBean.isThreadAllocatedMemoryEnabled()) {
+        return allocationMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return 0;
+  }
+
+  private class ActiveMeasurement implements Measurement {
+    private final Key key;
+    private final Optional<SimplePerfEvent.Scope> perfEventScope;
+    private final long startWallNanos;
+    private final long startCpuNanos;
+    private final long startAllocatedBytes;
+    private final long startGlobNanos;
+
+    // The costs of the measurements nested in this one.
+    private long nestedWallNanos = 0;
+    private long nestedCpuNanos = 0;
+    private long nestedAllocatedBytes = 0;
+    private long nestedGlobNanos = 0;
+
+    private ActiveMeasurement(Key key) {
+      this.key = key;
+      this.perfEventScope =
+          key.kind.perfEventId.map(id -> SimplePerfEvent.scope(buckEventBus, id, "name", key.name));
+      this.startWallNanos = System.nanoTime();
+      this.startCpuNanos = getCpuNanos();
+      this.startAllocatedBytes = getAllocatedBytes();
+      this.startGlobNanos = globNanos;
+    }
+
+    @Override
+    public void close() {
+      long wallNanos = System.nanoTime() - startWallNanos;
+      long cpuNanos = getCpuNanos() - startCpuNanos;
+      long allocatedBytes = getAllocatedBytes() - startAllocatedBytes;
+      long measuredGlobNanos = globNanos - startGlobNanos;
+
+      Preconditions.checkState(measurements.pop() == this, "Measurements must be nested.");
+      ActiveMeasurement parent = measurements.peek();
+      if (parent != null) {
+        parent.nestedWallNanos += wallNanos;
+        parent.nestedCpuNanos += cpuNanos;
+        parent.nestedAllocatedBytes += allocatedBytes;
+        parent.nestedGlobNanos += measuredGlobNanos;
+      }
+
+      Stats value = stats.computeIfAbsent(key, k -> new Stats());
+      value.count++;
+      value.wallNanos += wallNanos;
+      value.selfWallNanos += wallNanos - nestedWallNanos;
+      value.selfCpuNanos += cpuNanos - nestedCpuNanos;
+      value.selfAllocatedBytes += allocatedBytes - nestedAllocatedBytes;
+      value.selfGlobNanos += measuredGlobNanos - nestedGlobNanos;
+
+      if (perfEventScope.isPresent()) {
+        perfEventScope.get().appendFinishedInfo("cpu_ms", TimeUnit.NANOSECONDS.toMillis(cpuNanos));
+        perfEventScope.get().appendFinishedInfo("allocated_kb", allocatedBytes / 1024);
+        perfEventScope.get().close();
+      }
+    }
+  }
+
+  private static class Key {
+    private final Kind kind;
+    private final String name;
+
+    private Key(Kind kind, String name) {
+      this.kind = kind;
+      this.name = name;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) other;
+      return kind == that.kind && name.equals(that.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(kind, name);
+    }
+  }
+
+  private static class Stats {
+    private int count = 0;
+    private long wallNanos = 0;
+    private long selfWallNanos = 0;
+    private long selfCpuNanos = 0;
+    private long selfAllocatedBytes = 0;
+    private long selfGlobNanos = 0;
+  }
+}
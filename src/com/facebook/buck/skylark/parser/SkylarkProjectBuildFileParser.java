@@ -23,6 +23,7 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.parser.api.BuildFileManifest;
 import com.facebook.buck.parser.api.ProjectBuildFileParser;
 import com.facebook.buck.parser.events.ParseBuckFileEvent;
+import com.facebook.buck.parser.events.ParseBuckProfilerReportEvent;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.parser.options.ProjectBuildFileParserOptions;
 import com.facebook.buck.skylark.function.SkylarkNativeModule;
@@ -39,6 +40,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Ordering;
+import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
@@ -47,11 +49,14 @@ import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.syntax.BuildFileAST;
 import com.google.devtools.build.lib.syntax.Environment;
 import com.google.devtools.build.lib.syntax.Environment.Extension;
+import com.google.devtools.build.lib.syntax.Expression;
+import com.google.devtools.build.lib.syntax.ExpressionStatement;
 import com.google.devtools.build.lib.syntax.FuncallExpression;
 import com.google.devtools.build.lib.syntax.Mutability;
 import com.google.devtools.build.lib.syntax.ParserInputSource;
 import com.google.devtools.build.lib.syntax.Runtime;
 import com.google.devtools.build.lib.syntax.SkylarkImport;
+import com.google.devtools.build.lib.syntax.Statement;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.PathFragment;
@@ -82,8 +87,10 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
   private final BuckEventBus buckEventBus;
   private final EventHandler eventHandler;
   private final LoadingCache<LoadImport, ExtensionData> extensionDataCache;
+  private final SkylarkExtensionCache extensionCache;
   private final BuckGlobals buckGlobals;
   private final GlobberFactory globberFactory;
+  private final SkylarkProfiler profiler;
 
   private SkylarkProjectBuildFileParser(
       ProjectBuildFileParserOptions options,
@@ -91,13 +98,16 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
       FileSystem fileSystem,
       BuckGlobals buckGlobals,
       EventHandler eventHandler,
-      GlobberFactory globberFactory) {
+      GlobberFactory globberFactory,
+      SkylarkExtensionCache extensionCache) {
     this.options = options;
     this.buckEventBus = buckEventBus;
     this.fileSystem = fileSystem;
     this.eventHandler = eventHandler;
     this.buckGlobals = buckGlobals;
     this.globberFactory = globberFactory;
+    this.extensionCache = extensionCache;
+    this.profiler = new SkylarkProfiler(buckEventBus, options.getEnableProfiling());
 
     this.extensionDataCache =
         CacheBuilder.newBuilder()
@@ -118,8 +128,36 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
       BuckGlobals buckGlobals,
       EventHandler eventHandler,
       GlobberFactory globberFactory) {
+    return using(
+        options,
+        buckEventBus,
+        fileSystem,
+        buckGlobals,
+        eventHandler,
+        globberFactory,
+        new SkylarkExtensionCache());
+  }
+
+  /**
+   * Create an instance of Skylark project build file parser using provided options, that reuses
+   * extensions evaluated by other parsers sharing the same {@code extensionCache}.
+   */
+  public static SkylarkProjectBuildFileParser using(
+      ProjectBuildFileParserOptions options,
+      BuckEventBus buckEventBus,
+      FileSystem fileSystem,
+      BuckGlobals buckGlobals,
+      EventHandler eventHandler,
+      GlobberFactory globberFactory,
+      SkylarkExtensionCache extensionCache) {
     return new SkylarkProjectBuildFileParser(
-        options, buckEventBus, fileSystem, buckGlobals, eventHandler, globberFactory);
+        options,
+        buckEventBus,
+        fileSystem,
+        buckGlobals,
+        eventHandler,
+        globberFactory,
+        extensionCache);
   }
 
   @Override
@@ -151,11 +189,14 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
     ParseBuckFileEvent.Started startEvent = ParseBuckFileEvent.started(buildFile);
     buckEventBus.post(startEvent);
     ParseResult parseResult;
-    try {
+    try (SkylarkProfiler.Measurement measurement =
+        profiler.measure(
+            SkylarkProfiler.Kind.BUILD_FILE,
+            MorePaths.pathWithUnixSeparators(options.getProjectRoot().relativize(buildFile)))) {
       parseResult = parseBuildRules(buildFile);
       rules = parseResult.getRawRules();
     } finally {
-      // TODO(ttsugrii): think about reporting processed bytes and profiling support
+      // TODO(ttsugrii): think about reporting processed bytes
       buckEventBus.post(ParseBuckFileEvent.finished(startEvent, rules, 0L, Optional.empty()));
     }
     return parseResult;
@@ -177,7 +218,8 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
     String basePath = getBasePath(buildFile);
     CachingGlobber globber =
         CachingGlobber.of(
-            globberFactory.create(fileSystem.getPath(buildFile.getParent().toString())));
+            profiler.timeGlobs(
+                globberFactory.create(fileSystem.getPath(buildFile.getParent().toString()))));
     PackageContext packageContext = createPackageContext(basePath, globber);
     ParseContext parseContext = new ParseContext(packageContext);
     try (Mutability mutability = Mutability.create("parsing " + buildFile)) {
@@ -191,7 +233,7 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
               buildFileAst,
               mutability,
               parseContext);
-      boolean exec = buildFileAst.exec(envData.getEnvironment(), eventHandler);
+      boolean exec = execBuildFile(buildFileAst, envData.getEnvironment());
       if (!exec) {
         throw BuildFileParseException.createForUnknownParseError(
             "Cannot evaluate build file " + buildFile);
@@ -212,6 +254,45 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
     }
   }
 
+  /**
+   * Evaluates {@code buildFileAst} in {@code env}. If profiling is enabled, the functions called at
+   * the top level of the build file, which are usually macros, are measured one by one.
+   *
+   * @return Whether the evaluation succeeded.
+   */
+  private boolean execBuildFile(BuildFileAST buildFileAst, Environment env)
+      throws InterruptedException {
+    if (!profiler.isEnabled()) {
+      return buildFileAst.exec(env, eventHandler);
+    }
+    boolean success = true;
+    for (Statement statement : buildFileAst.getStatements()) {
+      Optional<String> function = getCalledFunction(statement);
+      boolean statementSuccess;
+      if (function.isPresent()) {
+        try (SkylarkProfiler.Measurement measurement =
+            profiler.measure(SkylarkProfiler.Kind.FUNCTION, function.get())) {
+          statementSuccess = buildFileAst.execTopLevelStatement(statement, env, eventHandler);
+        }
+      } else {
+        statementSuccess = buildFileAst.execTopLevelStatement(statement, env, eventHandler);
+      }
+      success &= statementSuccess;
+    }
+    return success;
+  }
+
+  /** @return The name of the function called by {@code statement}, if it is a function call. */
+  private static Optional<String> getCalledFunction(Statement statement) {
+    if (statement instanceof ExpressionStatement) {
+      Expression expression = ((ExpressionStatement) statement).getExpression();
+      if (expression instanceof FuncallExpression) {
+        return Optional.of(((FuncallExpression) expression).getFunction().toString());
+      }
+    }
+    return Optional.empty();
+  }
+
   /** Creates an instance of {@link ParserInputSource} for a file at {@code buildFilePath}. */
   private ParserInputSource createInputSource(com.google.devtools.build.lib.vfs.Path buildFilePath)
       throws IOException {
@@ -340,7 +421,8 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
   }
 
   /**
-   * Creates an extension from a {@code path}.
+   * Returns an extension for {@code loadImport}, reusing the one from {@link #extensionCache} if
+   * none of the files it was created from changed.
    *
    * @param loadImport an import label representing an extension to load.
    */
@@ -349,13 +431,43 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
     Label label = loadImport.getLabel();
     com.google.devtools.build.lib.vfs.Path extensionPath =
         getImportPath(label, loadImport.getImport());
+    Optional<ExtensionData> cachedExtensionData =
+        extensionCache.get(options.getProjectRoot(), label);
+    if (cachedExtensionData.isPresent()) {
+      // The same extension can be imported using different import strings.
+      return ExtensionData.builder()
+          .from(cachedExtensionData.get())
+          .setImportString(loadImport.getImport().getImportString())
+          .build();
+    }
+    ExtensionData extensionData = createExtension(loadImport, label, extensionPath);
+    extensionCache.put(options.getProjectRoot(), label, extensionData);
+    return extensionData;
+  }
+
+  /**
+   * Creates an extension from the file at {@code extensionPath}.
+   *
+   * @param loadImport an import label representing an extension to load.
+   */
+  private ExtensionData createExtension(
+      LoadImport loadImport, Label label, com.google.devtools.build.lib.vfs.Path extensionPath)
+      throws IOException, BuildFileParseException, InterruptedException {
     ImmutableList<ExtensionData> dependencies = ImmutableList.of();
     Extension extension;
-    try (Mutability mutability = Mutability.create("importing extension")) {
+    HashCode contentHash;
+    try (Mutability mutability = Mutability.create("importing extension");
+        SkylarkProfiler.Measurement measurement =
+            profiler.measure(SkylarkProfiler.Kind.EXTENSION, label.toString())) {
       BuildFileAST extensionAst;
       try {
+        byte[] content = FileSystemUtils.readContent(extensionPath);
+        contentHash = SkylarkExtensionCache.hashContent(content);
         extensionAst =
-            BuildFileAST.parseSkylarkFile(createInputSource(extensionPath), eventHandler);
+            BuildFileAST.parseSkylarkFile(
+                ParserInputSource.create(
+                    new String(content, StandardCharsets.UTF_8), extensionPath.asFragment()),
+                eventHandler);
       } catch (FileNotFoundException e) {
         throw BuildFileParseException.createForUnknownParseError(
             String.format(
@@ -387,6 +499,7 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
         .setPath(extensionPath)
         .setDependencies(dependencies)
         .setImportString(loadImport.getImport().getImportString())
+        .setContentHash(contentHash)
         .build();
   }
 
@@ -438,7 +551,9 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
 
   @Override
   public void reportProfile() {
-    // TODO(ttsugrii): implement
+    if (profiler.hasMeasurements()) {
+      buckEventBus.post(ParseBuckProfilerReportEvent.profilerReport(profiler.createReport()));
+    }
   }
 
   @Override
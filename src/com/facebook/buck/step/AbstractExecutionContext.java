@@ -35,6 +35,8 @@ import com.facebook.buck.util.concurrent.ConcurrencyLimit;
 import com.facebook.buck.util.concurrent.ResourceAllocationFairness;
 import com.facebook.buck.util.concurrent.ResourceAmountsEstimator;
 import com.facebook.buck.util.environment.Platform;
+import com.facebook.buck.worker.WorkerPoolManager;
+import com.facebook.buck.worker.WorkerPoolSettings;
 import com.facebook.buck.worker.WorkerProcessPool;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Closer;
@@ -137,6 +139,21 @@ abstract class AbstractExecutionContext implements Closeable {
     return new ConcurrentHashMap<>();
   }
 
+  /** Settings of the adaptive mode of the worker process pools that are created. */
+  @Value.Default
+  public WorkerPoolSettings getWorkerPoolSettings() {
+    return WorkerPoolSettings.builder().build();
+  }
+
+  /**
+   * Runs the adaptive mode of the worker process pools. The buck daemon provides its own, so that
+   * its persistent pools and the pools of this invocation share one memory limit.
+   */
+  @Value.Default
+  public WorkerPoolManager getWorkerPoolManager() {
+    return new WorkerPoolManager();
+  }
+
   @Value.Default
   public ConcurrencyLimit getConcurrencyLimit() {
     return new ConcurrencyLimit(
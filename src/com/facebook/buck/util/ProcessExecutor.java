@@ -122,6 +122,11 @@ public interface ProcessExecutor {
 
     /** Input stream that maps into stderr of the process. You'd read process' stderr from it. */
     InputStream getErrorStream();
+
+    /** @return the native process id of the process, if it can be determined. */
+    default Optional<Long> getPid() {
+      return Optional.empty();
+    }
   }
 
   /**
@@ -155,6 +160,11 @@ public interface ProcessExecutor {
     public InputStream getErrorStream() {
       return process.getErrorStream();
     }
+
+    @Override
+    public Optional<Long> getPid() {
+      return Optional.ofNullable(ProcessHelper.getInstance().getPid(process));
+    }
   }
 
   /**
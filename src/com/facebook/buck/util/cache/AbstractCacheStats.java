@@ -46,6 +46,8 @@ abstract class AbstractCacheStats {
   public abstract Optional<Long> getTotalMissTime();
   // the number of entries in cache at time of stat
   public abstract Optional<Long> getNumberEntries();
+  // the estimated memory retained by the cache at time of stat
+  public abstract Optional<Long> getEstimatedSizeBytes();
 
   /**
    * @return the total number of requests to the cash defined as {@code getHitCount() +
@@ -150,6 +152,9 @@ abstract class AbstractCacheStats {
             aggregateFields(stats1.getTotalLoadTime(), stats2.getTotalLoadTime(), addOrMinus))
         .setNumberEntries(
             aggregateFields(stats1.getNumberEntries(), stats2.getNumberEntries(), addOrMinus))
+        .setEstimatedSizeBytes(
+            aggregateFields(
+                stats1.getEstimatedSizeBytes(), stats2.getEstimatedSizeBytes(), addOrMinus))
         .build();
   }
 
@@ -16,6 +16,8 @@
 
 package com.facebook.buck.util.cache;
 
+import java.util.Optional;
+
 /** Class that tracks cache statistics, including timings. */
 public interface CacheStatsTracker {
 
@@ -55,6 +57,20 @@ public interface CacheStatsTracker {
 
   void recordInvalidation(long num);
 
+  /**
+   * Records the current size of the cache, for caches able to report it.
+   *
+   * @param numberEntries the number of entries in the cache
+   * @param estimatedSizeBytes an estimate of the memory retained by the cache
+   */
+  void recordSize(long numberEntries, long estimatedSizeBytes);
+
+  /** @return the number of entries last recorded by {@link #recordSize}, if any */
+  Optional<Long> getNumberEntries();
+
+  /** @return the memory estimate last recorded by {@link #recordSize}, if any */
+  Optional<Long> getEstimatedSizeBytes();
+
   /** Class that keeps record and timings of a single cache request */
   interface CacheRequest {
 
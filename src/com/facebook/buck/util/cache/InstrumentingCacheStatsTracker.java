@@ -19,6 +19,7 @@ package com.facebook.buck.util.cache;
 import com.facebook.buck.util.timing.Clock;
 import com.facebook.buck.util.timing.DefaultClock;
 import com.google.common.base.Preconditions;
+import java.util.Optional;
 import java.util.concurrent.atomic.LongAdder;
 
 /** Class that tracks cache statistics, including timings. */
@@ -36,6 +37,9 @@ public final class InstrumentingCacheStatsTracker implements CacheStatsTracker {
   private final LongAdder totalRetrievalTime = new LongAdder();
   private final LongAdder totalLoadTime = new LongAdder();
   private final LongAdder totalMissTime = new LongAdder();
+  // -1 until the cache reports its size.
+  private volatile long numberEntries = -1;
+  private volatile long estimatedSizeBytes = -1;
 
   public InstrumentingCacheStatsTracker() {
     this(new DefaultClock());
@@ -161,6 +165,25 @@ public final class InstrumentingCacheStatsTracker implements CacheStatsTracker {
     totalInvalidationCount.add(num);
   }
 
+  /** records the size most recently reported by the cache */
+  @Override
+  public void recordSize(long numberEntries, long estimatedSizeBytes) {
+    this.numberEntries = numberEntries;
+    this.estimatedSizeBytes = estimatedSizeBytes;
+  }
+
+  @Override
+  public Optional<Long> getNumberEntries() {
+    long entries = numberEntries;
+    return entries < 0 ? Optional.empty() : Optional.of(entries);
+  }
+
+  @Override
+  public Optional<Long> getEstimatedSizeBytes() {
+    long bytes = estimatedSizeBytes;
+    return bytes < 0 ? Optional.empty() : Optional.of(bytes);
+  }
+
   /** Class that keeps record and timings of a single cache request */
   public class TrackingCacheRequest implements CacheStatsTracker.CacheRequest {
     private long startTime = clock.currentTimeMillis();
@@ -16,6 +16,8 @@
 
 package com.facebook.buck.util.cache;
 
+import java.util.Optional;
+
 /** CacheStats tracker that doesn't track any stats */
 public class NoOpCacheStatsTracker implements CacheStatsTracker {
 
@@ -101,6 +103,19 @@ public class NoOpCacheStatsTracker implements CacheStatsTracker {
   @Override
   public void recordInvalidation(long num) {}
 
+  @Override
+  public void recordSize(long numberEntries, long estimatedSizeBytes) {}
+
+  @Override
+  public Optional<Long> getNumberEntries() {
+    return Optional.empty();
+  }
+
+  @Override
+  public Optional<Long> getEstimatedSizeBytes() {
+    return Optional.empty();
+  }
+
   /** CacheRequest that doesn't track stats */
   public class NoOpCacheRequest implements CacheStatsTracker.CacheRequest {
 
@@ -52,6 +52,7 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
 
   private final ProjectFilesystem projectFilesystem;
   private final Predicate<Path> ignoredPredicate;
+  private final Optional<PersistentFileHashStore> persistentStore;
 
   @VisibleForTesting FileHashCacheEngine fileHashCacheEngine;
 
@@ -59,8 +60,21 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
       ProjectFilesystem projectFilesystem,
       Predicate<Path> ignoredPredicate,
       FileHashCacheMode fileHashCacheMode) {
+    this(projectFilesystem, ignoredPredicate, fileHashCacheMode, Optional.empty());
+  }
+
+  /**
+   * @param persistentStore if present, file contents are only hashed if the store doesn't have an
+   *     up to date hash for them.
+   */
+  protected DefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Predicate<Path> ignoredPredicate,
+      FileHashCacheMode fileHashCacheMode,
+      Optional<PersistentFileHashStore> persistentStore) {
     this.projectFilesystem = projectFilesystem;
     this.ignoredPredicate = ignoredPredicate;
+    this.persistentStore = persistentStore;
     FileHashCacheEngine.ValueLoader<HashCodeAndFileType> hashLoader =
         path -> {
           try {
@@ -205,6 +219,11 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   }
 
   private HashCode getFileHashCode(Path path) throws IOException {
+    if (persistentStore.isPresent()) {
+      return persistentStore
+          .get()
+          .get(path, () -> projectFilesystem.computeSha1(path).asHashCode());
+    }
     return projectFilesystem.computeSha1(path).asHashCode();
   }
 
@@ -245,6 +264,14 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   @Override
   public void invalidate(Path relativePath) {
     fileHashCacheEngine.invalidate(relativePath);
+    invalidatePersistentHash(relativePath);
+  }
+
+  /** Drops the hash of {@code relativePath} from the persistent store, if there is one. */
+  void invalidatePersistentHash(Path relativePath) {
+    if (persistentStore.isPresent()) {
+      persistentStore.get().invalidate(relativePath);
+    }
   }
 
   @Override
@@ -344,4 +371,11 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   public List<AbstractBuckEvent> getStatsEvents() {
     return fileHashCacheEngine.getStatsEvents();
   }
+
+  /** Saves the hashes computed so far, if this cache is backed by a persistent store. */
+  public void saveHashes() throws IOException {
+    if (persistentStore.isPresent()) {
+      persistentStore.get().save();
+    }
+  }
 }
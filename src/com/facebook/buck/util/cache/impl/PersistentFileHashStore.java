@@ -0,0 +1,442 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Stores the content hashes of files in a file under buck-out, so that a newly started daemon does
+ * not have to rehash files that did not change since the previous daemon saved them.
+ *
+ * <p>Every hash is stored along with the modification time, size and file key (inode) the file had
+ * when it was hashed, and is only handed out while the file still has the same attributes. Hashes
+ * of files that were modified less than a timestamp granularity before they were hashed are never
+ * recorded, as a later modification in the same tick would go unnoticed.
+ *
+ * <p>The saved file is memory-mapped on first use and looked up in place through a sorted index of
+ * path hashes, so loading it costs nothing until hashes are actually requested. As a mapped file
+ * can't be replaced on some platforms, every save writes a new generation of the file and deletes
+ * the older ones that are no longer mapped.
+ *
+ * <p>Saving keeps the hashes of the previous file that were not invalidated since, so that hashes
+ * of files this daemon did not look at are not lost, while hashes of changed files are pruned.
+ */
+public class PersistentFileHashStore {
+
+  private static final Logger LOG = Logger.get(PersistentFileHashStore.class);
+
+  private static final int MAGIC = 0xF11E4A54;
+  private static final int VERSION = 1;
+
+  private static final int HEADER_BYTES = 3 * Integer.BYTES;
+  // Path hash followed by the offset of the record.
+  private static final int INDEX_ENTRY_BYTES = Long.BYTES + Integer.BYTES;
+  private static final int SHA1_BYTES = 20;
+
+  // Some filesystems (e.g. HFS+) only record modification times to the second.
+  private static final long MTIME_GRANULARITY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static final HashFunction PATH_HASH = Hashing.murmur3_128();
+
+  /** Computes the hash of a file that could not be found in the store. */
+  @FunctionalInterface
+  public interface HashLoader {
+    HashCode load() throws IOException;
+  }
+
+  private final Path root;
+  private final Path storePath;
+
+  // Hashes computed or validated by this daemon, keyed by path relative to the root.
+  private final ConcurrentMap<Path, Entry> entries = new ConcurrentHashMap<>();
+  // Paths whose hashes in the saved file are out of date.
+  private final Set<String> invalidated = ConcurrentHashMap.newKeySet();
+  private volatile boolean dirty = false;
+
+  @Nullable private volatile ByteBuffer snapshot;
+  private volatile boolean snapshotLoaded = false;
+
+  /**
+   * @param root absolute path that the paths passed to {@link #get} are relative to.
+   * @param storePath absolute path of the file the hashes are saved to, followed by a generation.
+   */
+  public PersistentFileHashStore(Path root, Path storePath) {
+    this.root = root;
+    this.storePath = storePath;
+  }
+
+  /**
+   * Returns the stored hash of the file at {@code relativePath} if the file did not change since it
+   * was hashed, otherwise hashes it with {@code loader} and records the result.
+   */
+  public HashCode get(Path relativePath, HashLoader loader) throws IOException {
+    long hashStartNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    FileStamp stamp = FileStamp.of(root.resolve(relativePath));
+
+    Entry entry = entries.get(relativePath);
+    if (entry == null) {
+      entry = lookUpSnapshot(relativePath.toString());
+    }
+    if (entry != null && entry.stamp.equals(stamp)) {
+      entries.putIfAbsent(relativePath, entry);
+      return entry.hashCode;
+    }
+
+    HashCode hashCode = loader.load();
+    if (hashCode.bits() == SHA1_BYTES * Byte.SIZE
+        && stamp.mtimeNanos + MTIME_GRANULARITY_NANOS < hashStartNanos) {
+      entries.put(relativePath, new Entry(stamp, hashCode));
+      dirty = true;
+    } else {
+      // Too recently modified to tell later changes apart by their attributes.
+      entries.remove(relativePath);
+      if (entry != null) {
+        invalidated.add(relativePath.toString());
+        dirty = true;
+      }
+    }
+    return hashCode;
+  }
+
+  /** Forgets the hash of the file at {@code relativePath}, e.g. because it changed. */
+  public void invalidate(Path relativePath) {
+    String path = relativePath.toString();
+    if (entries.remove(relativePath) != null || lookUpSnapshot(path) != null) {
+      invalidated.add(path);
+      dirty = true;
+    }
+  }
+
+  /**
+   * Writes all known hashes to disk, if any were added since the store was loaded or last saved.
+   */
+  public synchronized void save() throws IOException {
+    if (!dirty) {
+      return;
+    }
+    dirty = false;
+
+    Map<String, Entry> toSave = new HashMap<>();
+    readSnapshotEntries(toSave);
+    toSave.keySet().removeAll(invalidated);
+    for (Map.Entry<Path, Entry> entry : entries.entrySet()) {
+      toSave.put(entry.getKey().toString(), entry.getValue());
+    }
+
+    List<Map.Entry<String, Entry>> sorted = new ArrayList<>(toSave.entrySet());
+    long[] pathHashes = new long[sorted.size()];
+    Integer[] order = new Integer[sorted.size()];
+    for (int i = 0; i < sorted.size(); i++) {
+      pathHashes[i] = hashPath(sorted.get(i).getKey());
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(pathHashes[a], pathHashes[b]));
+
+    Files.createDirectories(storePath.getParent());
+    TreeMap<Long, Path> oldSnapshots = findSnapshots();
+    Path snapshotPath = getSnapshotPath(oldSnapshots.isEmpty() ? 1 : oldSnapshots.lastKey() + 1);
+    Path tmp =
+        Files.createTempFile(storePath.getParent(), storePath.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(sorted.size());
+
+        int offset = HEADER_BYTES + sorted.size() * INDEX_ENTRY_BYTES;
+        List<byte[]> paths = new ArrayList<>(sorted.size());
+        for (Integer i : order) {
+          byte[] path = sorted.get(i).getKey().getBytes(StandardCharsets.UTF_8);
+          paths.add(path);
+          out.writeLong(pathHashes[i]);
+          out.writeInt(offset);
+          offset += recordSize(path.length);
+        }
+
+        int written = 0;
+        for (Integer i : order) {
+          Entry entry = sorted.get(i).getValue();
+          byte[] path = paths.get(written++);
+          out.writeShort(path.length);
+          out.write(path);
+          out.writeLong(entry.stamp.mtimeNanos);
+          out.writeLong(entry.stamp.size);
+          out.writeLong(entry.stamp.fileKeyHash);
+          out.write(entry.hashCode.asBytes());
+        }
+      }
+      Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    LOG.debug("Saved %d file hashes to %s.", sorted.size(), snapshotPath);
+
+    // Look up hashes in the new file from now on, so that the old one is unmapped once it is
+    // garbage collected.
+    snapshotLoaded = false;
+    snapshot = null;
+    invalidated.clear();
+    for (Path oldSnapshot : oldSnapshots.values()) {
+      try {
+        Files.deleteIfExists(oldSnapshot);
+      } catch (IOException e) {
+        // Still mapped, by this or another process. A later save deletes it.
+        LOG.debug(e, "Failed to delete old file hash store %s.", oldSnapshot);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int size() {
+    return entries.size();
+  }
+
+  private Path getSnapshotPath(long generation) {
+    return storePath.resolveSibling(storePath.getFileName() + "." + generation);
+  }
+
+  /** Returns the saved files by generation. */
+  private TreeMap<Long, Path> findSnapshots() throws IOException {
+    TreeMap<Long, Path> snapshots = new TreeMap<>();
+    if (!Files.isDirectory(storePath.getParent())) {
+      return snapshots;
+    }
+    String prefix = storePath.getFileName() + ".";
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(storePath.getParent(), prefix + "*")) {
+      for (Path path : stream) {
+        String generation = path.getFileName().toString().substring(prefix.length());
+        try {
+          snapshots.put(Long.parseLong(generation), path);
+        } catch (NumberFormatException e) {
+          // Not a saved file, e.g. one being written.
+        }
+      }
+    }
+    return snapshots;
+  }
+
+  private static int recordSize(int pathLength) {
+    return Short.BYTES + pathLength + 3 * Long.BYTES + SHA1_BYTES;
+  }
+
+  private static long hashPath(String path) {
+    return PATH_HASH.hashString(path, StandardCharsets.UTF_8).asLong();
+  }
+
+  @Nullable
+  private ByteBuffer getSnapshot() {
+    if (!snapshotLoaded) {
+      synchronized (this) {
+        if (!snapshotLoaded) {
+          snapshot = mapSnapshot();
+          snapshotLoaded = true;
+        }
+      }
+    }
+    return snapshot;
+  }
+
+  @Nullable
+  private ByteBuffer mapSnapshot() {
+    Path snapshotPath;
+    try {
+      Map.Entry<Long, Path> latest = findSnapshots().lastEntry();
+      if (latest == null) {
+        return null;
+      }
+      snapshotPath = latest.getValue();
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to find file hash store %s.", storePath);
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.limit() < HEADER_BYTES
+          || buffer.getInt(0) != MAGIC
+          || buffer.getInt(Integer.BYTES) != VERSION
+          || buffer.limit()
+              < HEADER_BYTES + (long) buffer.getInt(2 * Integer.BYTES) * INDEX_ENTRY_BYTES) {
+        LOG.warn("Ignoring file hash store %s with unrecognized format.", snapshotPath);
+        return null;
+      }
+      return buffer;
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to load file hash store %s.", snapshotPath);
+      return null;
+    }
+  }
+
+  @Nullable
+  private Entry lookUpSnapshot(String path) {
+    ByteBuffer buffer = getSnapshot();
+    if (buffer == null) {
+      return null;
+    }
+    int count = buffer.getInt(2 * Integer.BYTES);
+    long pathHash = hashPath(path);
+
+    // Find the first index entry with the path hash, then check the paths of all entries with it.
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (buffer.getLong(indexOffset(mid)) < pathHash) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+    for (int i = low; i < count && buffer.getLong(indexOffset(i)) == pathHash; i++) {
+      int offset = buffer.getInt(indexOffset(i) + Long.BYTES);
+      if (pathEquals(buffer, offset, pathBytes)) {
+        return readEntry(buffer, offset + Short.BYTES + pathBytes.length);
+      }
+    }
+    return null;
+  }
+
+  private void readSnapshotEntries(Map<String, Entry> out) {
+    ByteBuffer buffer = getSnapshot();
+    if (buffer == null) {
+      return;
+    }
+    int count = buffer.getInt(2 * Integer.BYTES);
+    for (int i = 0; i < count; i++) {
+      int offset = buffer.getInt(indexOffset(i) + Long.BYTES);
+      byte[] path = new byte[getPathLength(buffer, offset)];
+      for (int j = 0; j < path.length; j++) {
+        path[j] = buffer.get(offset + Short.BYTES + j);
+      }
+      out.put(
+          new String(path, StandardCharsets.UTF_8),
+          readEntry(buffer, offset + Short.BYTES + path.length));
+    }
+  }
+
+  private static int indexOffset(int index) {
+    return HEADER_BYTES + index * INDEX_ENTRY_BYTES;
+  }
+
+  private static int getPathLength(ByteBuffer buffer, int offset) {
+    return buffer.getShort(offset) & 0xFFFF;
+  }
+
+  private static boolean pathEquals(ByteBuffer buffer, int offset, byte[] path) {
+    if (getPathLength(buffer, offset) != path.length) {
+      return false;
+    }
+    for (int i = 0; i < path.length; i++) {
+      if (buffer.get(offset + Short.BYTES + i) != path[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Entry readEntry(ByteBuffer buffer, int offset) {
+    FileStamp stamp =
+        new FileStamp(
+            buffer.getLong(offset),
+            buffer.getLong(offset + Long.BYTES),
+            buffer.getLong(offset + 2 * Long.BYTES));
+    byte[] sha1 = new byte[SHA1_BYTES];
+    for (int i = 0; i < SHA1_BYTES; i++) {
+      sha1[i] = buffer.get(offset + 3 * Long.BYTES + i);
+    }
+    return new Entry(stamp, HashCode.fromBytes(sha1));
+  }
+
+  private static class Entry {
+    private final FileStamp stamp;
+    private final HashCode hashCode;
+
+    private Entry(FileStamp stamp, HashCode hashCode) {
+      this.stamp = stamp;
+      this.hashCode = hashCode;
+    }
+  }
+
+  /** The attributes of a file that tell whether it changed since it was hashed. */
+  private static class FileStamp {
+    private final long mtimeNanos;
+    private final long size;
+    private final long fileKeyHash;
+
+    private FileStamp(long mtimeNanos, long size, long fileKeyHash) {
+      this.mtimeNanos = mtimeNanos;
+      this.size = size;
+      this.fileKeyHash = fileKeyHash;
+    }
+
+    private static FileStamp of(Path path) throws IOException {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      Object fileKey = attributes.fileKey();
+      return new FileStamp(
+          attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+          attributes.size(),
+          fileKey == null
+              ? 0
+              : PATH_HASH.hashString(fileKey.toString(), StandardCharsets.UTF_8).asLong());
+    }
+
+    @Override
+    public boolean equals(@Nullable Object other) {
+      if (!(other instanceof FileStamp)) {
+        return false;
+      }
+      FileStamp that = (FileStamp) other;
+      return mtimeNanos == that.mtimeNanos && size == that.size && fileKeyHash == that.fileKeyHash;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(mtimeNanos, size, fileKeyHash);
+    }
+  }
+}
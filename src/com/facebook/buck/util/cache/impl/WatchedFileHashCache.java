@@ -23,14 +23,38 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.util.cache.FileHashCacheMode;
 import com.google.common.eventbus.Subscribe;
 import java.nio.file.Path;
+import java.util.Optional;
 
 public class WatchedFileHashCache extends DefaultFileHashCache {
 
   private static final Logger LOG = Logger.get(WatchedFileHashCache.class);
 
+  private static final String STORE_FILE_NAME = "file_hash_cache";
+
   public WatchedFileHashCache(
       ProjectFilesystem projectFilesystem, FileHashCacheMode fileHashCacheMode) {
-    super(projectFilesystem, getDefaultPathPredicate(projectFilesystem), fileHashCacheMode);
+    this(projectFilesystem, fileHashCacheMode, false);
+  }
+
+  /**
+   * @param persistent whether to keep file hashes in a {@link PersistentFileHashStore} under
+   *     buck-out, so that they can be reused after the daemon restarts.
+   */
+  public WatchedFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      FileHashCacheMode fileHashCacheMode,
+      boolean persistent) {
+    super(
+        projectFilesystem,
+        getDefaultPathPredicate(projectFilesystem),
+        fileHashCacheMode,
+        persistent
+            ? Optional.of(
+                new PersistentFileHashStore(
+                    projectFilesystem.getRootPath(),
+                    projectFilesystem.resolve(
+                        projectFilesystem.getBuckPaths().getBuckOut().resolve(STORE_FILE_NAME))))
+            : Optional.empty());
   }
 
   /**
@@ -44,6 +68,7 @@ public class WatchedFileHashCache extends DefaultFileHashCache {
     Path path = event.getPath().normalize();
     LOG.verbose("Invalidating %s", path);
     fileHashCacheEngine.invalidateWithParents(path);
+    invalidatePersistentHash(path);
   }
 
   @SuppressWarnings("unused")
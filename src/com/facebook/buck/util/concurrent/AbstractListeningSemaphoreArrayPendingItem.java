@@ -25,4 +25,10 @@ abstract class AbstractListeningSemaphoreArrayPendingItem {
   public abstract SettableFuture<Void> getFuture();
 
   public abstract ResourceAmounts getResources();
+
+  /** Items with higher priority are granted resources first. */
+  public abstract long getPriority();
+
+  /** Order of arrival, used to keep items of equal priority first-come, first-served. */
+  public abstract long getSequenceNumber();
 }
@@ -20,9 +20,10 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 
 /**
  * A semaphore using {@link ListenableFuture}s for acquisition of different resource types rather
@@ -32,8 +33,13 @@ public class ListeningMultiSemaphore {
 
   private ResourceAmounts usedValues;
   private final ResourceAmounts maximumValues;
-  private final List<ListeningSemaphoreArrayPendingItem> pending = new LinkedList<>();
+  private final NavigableSet<ListeningSemaphoreArrayPendingItem> pending =
+      new TreeSet<>(
+          Comparator.comparingLong(ListeningSemaphoreArrayPendingItem::getPriority)
+              .reversed()
+              .thenComparingLong(ListeningSemaphoreArrayPendingItem::getSequenceNumber));
   private final ResourceAllocationFairness fairness;
+  private long nextSequenceNumber = 0;
 
   public ListeningMultiSemaphore(
       ResourceAmounts availableResources, ResourceAllocationFairness fairness) {
@@ -52,7 +58,20 @@ public class ListeningMultiSemaphore {
    *     amounts, they will be capped to them.
    * @return Future that will be completed once resource will be acquired.
    */
-  public synchronized ListenableFuture<Void> acquire(ResourceAmounts resources) {
+  public ListenableFuture<Void> acquire(ResourceAmounts resources) {
+    return acquire(resources, 0);
+  }
+
+  /**
+   * Same as {@link #acquire(ResourceAmounts)}, but if the resources are not immediately available,
+   * the request is queued ahead of all pending requests with a lower priority. Requests with equal
+   * priority are served in the order they were made.
+   *
+   * @param resources Resource amounts that need to be acquired.
+   * @param priority Priority of this request relative to other pending requests.
+   * @return Future that will be completed once resource will be acquired.
+   */
+  public synchronized ListenableFuture<Void> acquire(ResourceAmounts resources, long priority) {
     if (resources.equals(ResourceAmounts.zero())) {
       return Futures.immediateFuture(null);
     }
@@ -60,7 +79,9 @@ public class ListeningMultiSemaphore {
     resources = capResourceAmounts(resources);
     if (!checkIfResourcesAvailable(resources)) {
       SettableFuture<Void> pendingFuture = SettableFuture.create();
-      pending.add(ListeningSemaphoreArrayPendingItem.of(pendingFuture, resources));
+      pending.add(
+          ListeningSemaphoreArrayPendingItem.of(
+              pendingFuture, resources, priority, nextSequenceNumber++));
       return pendingFuture;
     }
     increaseUsedResources(resources);
@@ -99,6 +99,26 @@ public final class Sha1HashCode {
     return hasher;
   }
 
+  /**
+   * Copies the 20 bytes of this SHA-1 into {@code dest} starting at {@code offset}, in the same
+   * order as {@link #update(Hasher)} would feed them to a {@link Hasher}.
+   */
+  public void writeBytesTo(byte[] dest, int offset) {
+    Preconditions.checkPositionIndexes(offset, offset + NUM_BYTES_IN_HASH, dest.length);
+    writeInt(dest, offset, firstFourBytes);
+    writeInt(dest, offset + 4, (int) nextEightBytes);
+    writeInt(dest, offset + 8, (int) (nextEightBytes >>> 32));
+    writeInt(dest, offset + 12, (int) lastEightBytes);
+    writeInt(dest, offset + 16, (int) (lastEightBytes >>> 32));
+  }
+
+  private static void writeInt(byte[] dest, int offset, int bytes) {
+    dest[offset] = (byte) bytes;
+    dest[offset + 1] = (byte) (bytes >>> 8);
+    dest[offset + 2] = (byte) (bytes >>> 16);
+    dest[offset + 3] = (byte) (bytes >>> 24);
+  }
+
   /**
    * <strong>This method should be used sparingly as we are trying to favor {@link Sha1HashCode}
    * over {@link HashCode}, where appropriate.</strong> Currently, the {@code FileHashCache} API is
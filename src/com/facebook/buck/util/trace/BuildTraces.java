@@ -17,17 +17,22 @@
 package com.facebook.buck.util.trace;
 
 import com.facebook.buck.core.exceptions.HumanReadableException;
+import com.facebook.buck.event.chrome_trace.ChromeTraceBinaryReader;
+import com.facebook.buck.event.chrome_trace.ChromeTraceBinaryWriter;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.util.trace.ChromeTraceParser.ChromeTraceEventMatcher;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.text.DateFormat;
@@ -43,6 +48,7 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 /** Utility to help with reading data from build trace files. */
 public class BuildTraces {
@@ -57,7 +63,15 @@ public class BuildTraces {
 
   private static final Logger logger = Logger.get(BuildTraces.class);
 
-  private static final Pattern TRACES_FILE_PATTERN = Pattern.compile("build\\..*\\.trace$");
+  /**
+   * Regex pattern that matches the extensions of trace files: traces in the JSON or the binary
+   * format, each optionally gzipped.
+   */
+  public static final String TRACE_FILE_EXTENSION_PATTERN_TEXT =
+      "\\.trace(?:" + Pattern.quote(ChromeTraceBinaryWriter.FILE_EXTENSION) + ")?(?:\\.gz)?";
+
+  private static final Pattern TRACES_FILE_PATTERN =
+      Pattern.compile("build\\..*" + TRACE_FILE_EXTENSION_PATTERN_TEXT);
 
   private final ProjectFilesystem projectFilesystem;
 
@@ -99,14 +113,41 @@ public class BuildTraces {
     }
   }
 
+  /** @return the traces of the build {@code id}, each in the JSON Array Format. */
   public Iterable<InputStream> getInputsForTraces(String id) throws IOException {
     ImmutableList.Builder<InputStream> tracesBuilder = ImmutableList.builder();
     for (Path p : getPathsToTraces(id)) {
-      tracesBuilder.add(projectFilesystem.getInputStreamForRelativePath(p));
+      tracesBuilder.add(openTraceAsJson(projectFilesystem, p));
     }
     return tracesBuilder.build();
   }
 
+  /**
+   * Opens a trace in any of the formats buck writes as a trace in the JSON Array Format. Binary
+   * traces are converted to a temporary file, which is deleted when the stream is closed.
+   */
+  static InputStream openTraceAsJson(ProjectFilesystem projectFilesystem, Path pathToTrace)
+      throws IOException {
+    String name = pathToTrace.getFileName().toString();
+    InputStream input = projectFilesystem.newFileInputStream(pathToTrace);
+    if (name.endsWith(".gz")) {
+      input = new GZIPInputStream(input);
+      name = name.substring(0, name.length() - ".gz".length());
+    }
+    if (!name.endsWith(ChromeTraceBinaryWriter.FILE_EXTENSION)) {
+      return input;
+    }
+    Path jsonTrace = Files.createTempFile("trace", ".json");
+    try {
+      ChromeTraceBinaryReader.convertToJson(
+          input, new BufferedOutputStream(Files.newOutputStream(jsonTrace)));
+      return Files.newInputStream(jsonTrace, StandardOpenOption.DELETE_ON_CLOSE);
+    } catch (IOException e) {
+      Files.deleteIfExists(jsonTrace);
+      throw e;
+    }
+  }
+
   public TraceAttributes getTraceAttributesFor(String id) throws IOException {
     for (Path p : getPathsToTraces(id)) {
       if (isTraceForBuild(p, id)) {
@@ -145,10 +186,10 @@ public class BuildTraces {
   }
 
   private boolean isTraceForBuild(Path path, String id) {
-    String testPrefix = "build.";
-    String testSuffix = "." + id + ".trace";
-    String name = path.getFileName().toString();
-    return name.startsWith(testPrefix) && name.endsWith(testSuffix);
+    return Pattern.compile(
+            "build(?:\\..*)?\\." + Pattern.quote(id) + TRACE_FILE_EXTENSION_PATTERN_TEXT)
+        .matcher(path.getFileName().toString())
+        .matches();
   }
 
   /** The most recent trace (the one with the greatest last-modified time) will be listed first. */
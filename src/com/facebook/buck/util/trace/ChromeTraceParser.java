@@ -97,7 +97,7 @@ public class ChromeTraceParser {
     Preconditions.checkArgument(!unmatchedMatchers.isEmpty(), "Must specify at least one matcher");
     Map<ChromeTraceEventMatcher<?>, Object> results = new HashMap<>();
 
-    try (InputStream input = projectFilesystem.newFileInputStream(pathToTrace);
+    try (InputStream input = BuildTraces.openTraceAsJson(projectFilesystem, pathToTrace);
         MappingIterator<ImmutableMap<String, Object>> it =
             ObjectMappers.READER
                 .forType(new TypeReference<ImmutableMap<String, Object>>() {})
@@ -16,6 +16,8 @@
 
 package com.facebook.buck.util.trace.uploader;
 
+import com.facebook.buck.event.chrome_trace.ChromeTraceBinaryReader;
+import com.facebook.buck.event.chrome_trace.ChromeTraceBinaryWriter;
 import com.facebook.buck.util.network.MacIpv6BugWorkaround;
 import com.facebook.buck.util.trace.uploader.types.CompressionType;
 import com.facebook.buck.util.zip.BestCompressionGZIPOutputStream;
@@ -25,11 +27,13 @@ import com.google.common.base.Stopwatch;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter; // NOPMD this is just a log
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 import javax.annotation.Nullable;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
@@ -104,11 +108,19 @@ public final class Main {
       Path fileToUpload = traceFilePath;
       String mediaType = "application/data";
       String traceName = traceFilePath.getFileName().toString();
+      String binaryTraceExtension = ChromeTraceBinaryWriter.FILE_EXTENSION;
+      if (traceName.endsWith(binaryTraceExtension)
+          || traceName.endsWith(binaryTraceExtension + ".gz")) {
+        // Binary traces are written to save time during builds, but are uploaded as JSON.
+        fileToUpload = convertBinaryTrace(traceFilePath, traceName.endsWith(".gz"));
+        traceName = traceName.substring(0, traceName.lastIndexOf(binaryTraceExtension));
+        log.format("Converted binary trace to JSON (%d) bytes\n", Files.size(fileToUpload));
+      }
       boolean compressionEnabled = false;
       if (compressionType != null) {
         switch (compressionType) {
           case GZIP:
-            fileToUpload = gzip(traceFilePath);
+            fileToUpload = gzip(fileToUpload);
             mediaType = "application/json+gzip";
             traceName = traceName + ".gz";
             compressionEnabled = true;
@@ -163,6 +175,17 @@ public final class Main {
     }
   }
 
+  private Path convertBinaryTrace(Path binaryTrace, boolean compressed) throws IOException {
+    Path jsonTrace = Files.createTempFile("tmp", ".trace");
+    InputStream input = Files.newInputStream(binaryTrace);
+    if (compressed) {
+      input = new GZIPInputStream(input);
+    }
+    ChromeTraceBinaryReader.convertToJson(
+        input, new BufferedOutputStream(Files.newOutputStream(jsonTrace)));
+    return jsonTrace;
+  }
+
   private Path gzip(Path uncompressed) throws IOException {
     Path compressed = Files.createTempFile("tmp", ".gz");
     try (BestCompressionGZIPOutputStream gzipStream =
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.unarchive;
+
+import com.facebook.buck.io.file.MorePosixFilePermissions;
+import com.facebook.buck.io.file.MostFiles;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import org.apache.commons.compress.archivers.zip.ZipUtil;
+
+/**
+ * Extracts a zip archive while it is being read from a stream, e.g. while it is being downloaded,
+ * so that it never has to be written to disk as a whole.
+ *
+ * <p>The result is the same as extracting the archive with {@link Unzip}. Since file permissions
+ * and symlinks are only recorded in the central directory at the end of the archive, files are
+ * first written as regular files and fixed up once the central directory has been read. Stale
+ * contents of directories are also only cleaned up at the end, once all the entries are known.
+ */
+public class StreamingUnzip {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+  private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+  private static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+
+  private static final int LOCAL_FILE_HEADER_LENGTH = 30;
+  private static final int CENTRAL_DIRECTORY_HEADER_LENGTH = 46;
+
+  /** The "version made by" platform of archives which record unix file modes. */
+  private static final int UNIX_PLATFORM = 3;
+
+  /** The unix file type bits of a mode, and the type of symlinks. */
+  private static final int S_IFMT = 0170000;
+
+  private static final int S_IFLNK = 0120000;
+
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+
+  /**
+   * Extracts the zip archive read from the given stream into the root of the given filesystem. The
+   * stream is read to its end, but is not closed.
+   *
+   * @return the paths of the files that were written, in the order they appear in the archive.
+   * @throws IOException if the archive is malformed, uses zip features that cannot be streamed, or
+   *     could not be extracted.
+   */
+  public ImmutableList<Path> extractArchive(
+      InputStream archive, ProjectFilesystem filesystem, ExistingFileMode existingFileMode)
+      throws IOException {
+    PushbackInputStream in = new PushbackInputStream(archive, BUFFER_SIZE);
+    DirectoryCreator creator = new DirectoryCreator(filesystem);
+    Path root = filesystem.getPath("");
+
+    SortedMap<Path, Boolean> isDirectoryByPath = new TreeMap<>();
+    Map<String, Path> pathsByName = new HashMap<>();
+    List<Path> filesWritten = new ArrayList<>();
+
+    int signature = readInt(in);
+    while (signature == LOCAL_FILE_HEADER_SIGNATURE) {
+      byte[] header = new byte[LOCAL_FILE_HEADER_LENGTH - 4];
+      ByteStreams.readFully(in, header);
+      int flags = getShort(header, 2);
+      int method = getShort(header, 4);
+      long dosTime = getInt(header, 6) & 0xffffffffL;
+      long crc = getInt(header, 10) & 0xffffffffL;
+      long compressedSize = getInt(header, 14) & 0xffffffffL;
+      byte[] nameBytes = new byte[getShort(header, 22)];
+      byte[] extra = new byte[getShort(header, 24)];
+      ByteStreams.readFully(in, nameBytes);
+      ByteStreams.readFully(in, extra);
+      String name = new String(nameBytes, Charsets.UTF_8);
+      boolean zip64 = hasExtraField(extra, ZIP64_EXTRA_FIELD_ID);
+      boolean hasDataDescriptor = (flags & DATA_DESCRIPTOR_FLAG) != 0;
+
+      Path target = root.resolve(name).normalize();
+      boolean isDirectory = name.endsWith("/");
+      isDirectoryByPath.put(target, isDirectory);
+      pathsByName.put(name, target);
+
+      CRC32 actualCrc = new CRC32();
+      if (isDirectory) {
+        extractDirectory(creator, target);
+        skipData(in, method, compressedSize, hasDataDescriptor);
+      } else {
+        prepareFile(creator, target);
+        filesWritten.add(target);
+        try (OutputStream out = filesystem.newFileOutputStream(target)) {
+          copyData(in, out, method, compressedSize, hasDataDescriptor, actualCrc, name);
+        }
+        filesystem.resolve(target).toFile().setLastModified(ZipUtil.dosToJavaTime(dosTime));
+      }
+
+      if (hasDataDescriptor) {
+        int first = readInt(in);
+        crc = (first == DATA_DESCRIPTOR_SIGNATURE ? readInt(in) : first) & 0xffffffffL;
+        ByteStreams.skipFully(in, zip64 ? 16 : 8);
+      }
+      if (!isDirectory && crc != actualCrc.getValue()) {
+        throw new IOException(String.format("CRC mismatch for zip entry %s", name));
+      }
+
+      signature = readInt(in);
+    }
+
+    if (signature != CENTRAL_DIRECTORY_SIGNATURE
+        && signature != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+      throw new IOException(
+          String.format("Unexpected zip record signature 0x%08x", signature & 0xffffffffL));
+    }
+    while (signature == CENTRAL_DIRECTORY_SIGNATURE) {
+      byte[] header = new byte[CENTRAL_DIRECTORY_HEADER_LENGTH - 4];
+      ByteStreams.readFully(in, header);
+      byte[] nameBytes = new byte[getShort(header, 24)];
+      ByteStreams.readFully(in, nameBytes);
+      ByteStreams.skipFully(in, getShort(header, 26) + getShort(header, 28));
+      Path target = pathsByName.get(new String(nameBytes, Charsets.UTF_8));
+      if (target != null && !isDirectoryByPath.get(target)) {
+        boolean madeOnUnix = (header[1] & 0xff) == UNIX_PLATFORM;
+        applyAttributes(filesystem, target, getInt(header, 34) >>> 16, madeOnUnix);
+      }
+      signature = readInt(in);
+    }
+    // The rest is the end of central directory record, which has nothing we need.
+    ByteStreams.exhaust(in);
+
+    // A zip file isn't required to list intermediate paths (e.g., it can contain "foo/" and
+    // "foo/bar/baz"), but we need to know not to delete those intermediates, so fill them in.
+    for (Path path : new ArrayList<>(isDirectoryByPath.keySet())) {
+      if (!isTopLevel(path, isDirectoryByPath)) {
+        fillIntermediatePaths(path, isDirectoryByPath);
+      }
+    }
+    if (existingFileMode == ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES) {
+      for (Map.Entry<Path, Boolean> entry : isDirectoryByPath.entrySet()) {
+        if (entry.getValue()) {
+          cleanDirectory(filesystem, entry.getKey(), isDirectoryByPath);
+        }
+      }
+    }
+    return ImmutableList.copyOf(filesWritten);
+  }
+
+  private void copyData(
+      PushbackInputStream in,
+      OutputStream out,
+      int method,
+      long compressedSize,
+      boolean hasDataDescriptor,
+      CRC32 crc,
+      String name)
+      throws IOException {
+    if (method == ZipEntry.STORED) {
+      if (hasDataDescriptor) {
+        throw new IOException(
+            String.format("Cannot stream stored zip entry %s without a known size", name));
+      }
+      long remaining = compressedSize;
+      while (remaining > 0) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read < 0) {
+          throw new EOFException(String.format("Truncated zip entry %s", name));
+        }
+        crc.update(buffer, 0, read);
+        out.write(buffer, 0, read);
+        remaining -= read;
+      }
+    } else if (method == ZipEntry.DEFLATED) {
+      inflate(in, out, crc, name);
+    } else {
+      throw new IOException(
+          String.format("Unsupported compression method %d for zip entry %s", method, name));
+    }
+  }
+
+  private void skipData(
+      PushbackInputStream in, int method, long compressedSize, boolean hasDataDescriptor)
+      throws IOException {
+    if (method == ZipEntry.DEFLATED && hasDataDescriptor) {
+      inflate(in, ByteStreams.nullOutputStream(), new CRC32(), "directory");
+    } else {
+      ByteStreams.skipFully(in, compressedSize);
+    }
+  }
+
+  /**
+   * Inflates a deflated entry. The end of the entry is only known once the inflater finishes, so
+   * any input it did not use is pushed back for the next record.
+   */
+  private void inflate(PushbackInputStream in, OutputStream out, CRC32 crc, String name)
+      throws IOException {
+    Inflater inflater = new Inflater(/* nowrap */ true);
+    byte[] input = new byte[BUFFER_SIZE];
+    int inputLength = 0;
+    try {
+      while (!inflater.finished()) {
+        if (inflater.needsInput()) {
+          inputLength = in.read(input);
+          if (inputLength < 0) {
+            throw new EOFException(String.format("Truncated zip entry %s", name));
+          }
+          inflater.setInput(input, 0, inputLength);
+        }
+        int inflated = inflater.inflate(buffer);
+        if (inflated > 0) {
+          crc.update(buffer, 0, inflated);
+          out.write(buffer, 0, inflated);
+        } else if (inflater.needsDictionary()) {
+          throw new IOException(String.format("Zip entry %s needs a preset dictionary", name));
+        }
+      }
+      int remaining = inflater.getRemaining();
+      if (remaining > 0) {
+        in.unread(input, inputLength - remaining, remaining);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException(String.format("Corrupt zip entry %s", name), e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static void prepareFile(DirectoryCreator creator, Path target) throws IOException {
+    ProjectFilesystem filesystem = creator.getFilesystem();
+    if (filesystem.isFile(target, LinkOption.NOFOLLOW_LINKS)) { // NOPMD for clarity
+      // pass
+    } else if (filesystem.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+      filesystem.deleteRecursivelyIfExists(target);
+    } else if (target.getParent() != null) {
+      creator.forcefullyCreateDirs(target.getParent());
+    }
+  }
+
+  private static void extractDirectory(DirectoryCreator creator, Path target) throws IOException {
+    ProjectFilesystem filesystem = creator.getFilesystem();
+    if (filesystem.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) { // NOPMD for clarity
+      // pass
+    } else if (filesystem.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+      filesystem.deleteFileAtPath(target);
+      creator.mkdirs(target);
+    } else {
+      creator.forcefullyCreateDirs(target);
+    }
+  }
+
+  /** Deletes the contents of a pre-existing directory that aren't in the archive. */
+  private static void cleanDirectory(
+      ProjectFilesystem filesystem, Path directory, SortedMap<Path, Boolean> isDirectoryByPath)
+      throws IOException {
+    if (!filesystem.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+      return;
+    }
+    for (Path path : filesystem.getDirectoryContents(directory)) {
+      if (!isDirectoryByPath.containsKey(path)) {
+        filesystem.deleteRecursivelyIfExists(path);
+      }
+    }
+  }
+
+  /** Turns a written file into a symlink or makes it executable, as recorded in its mode. */
+  private static void applyAttributes(
+      ProjectFilesystem filesystem, Path target, int mode, boolean madeOnUnix) throws IOException {
+    if (madeOnUnix && (mode & S_IFMT) == S_IFLNK) {
+      Path linkTarget;
+      try (InputStream is = filesystem.newFileInputStream(target)) {
+        linkTarget =
+            filesystem.getPath(new String(ByteStreams.toByteArray(is), Charsets.UTF_8));
+      }
+      filesystem.createSymLink(target, linkTarget, /* force */ true);
+      return;
+    }
+    Set<PosixFilePermission> permissions = MorePosixFilePermissions.fromMode(mode);
+    Path filePath = filesystem.resolve(target);
+    if (permissions.contains(PosixFilePermission.OWNER_EXECUTE)
+        && filePath.toFile().getCanonicalFile().exists()) {
+      MostFiles.makeExecutable(filePath);
+    }
+  }
+
+  private static boolean isTopLevel(Path path, SortedMap<Path, Boolean> isDirectoryByPath) {
+    for (Path p = path.getParent(); p != null; p = p.getParent()) {
+      if (isDirectoryByPath.containsKey(p)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void fillIntermediatePaths(Path path, SortedMap<Path, Boolean> isDirectoryByPath) {
+    for (Path p = path.getParent(); p != null; p = p.getParent()) {
+      if (isDirectoryByPath.containsKey(p)) {
+        break;
+      }
+      isDirectoryByPath.put(p, true);
+    }
+  }
+
+  private static boolean hasExtraField(byte[] extra, int id) {
+    for (int offset = 0; offset + 4 <= extra.length; offset += 4 + getShort(extra, offset + 2)) {
+      if (getShort(extra, offset) == id) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int readInt(InputStream in) throws IOException {
+    byte[] bytes = new byte[4];
+    ByteStreams.readFully(in, bytes);
+    return getInt(bytes, 0);
+  }
+
+  private static int getShort(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+  }
+
+  private static int getInt(byte[] bytes, int offset) {
+    return getShort(bytes, offset) | getShort(bytes, offset + 2) << 16;
+  }
+}
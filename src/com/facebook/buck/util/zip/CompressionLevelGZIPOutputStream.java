@@ -0,0 +1,30 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.facebook.buck.util.zip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** A {@link GZIPOutputStream} that compresses with a given {@link java.util.zip.Deflater} level. */
+public class CompressionLevelGZIPOutputStream extends GZIPOutputStream {
+
+  public CompressionLevelGZIPOutputStream(
+      OutputStream out, int level, int bufferSize, boolean syncFlush) throws IOException {
+    super(out, bufferSize, syncFlush);
+    def.setLevel(level);
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.versions;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.facebook.buck.core.util.immutables.BuckStyleTuple;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+import org.immutables.value.Value;
+
+/**
+ * Memoizes the work of {@link VersionedTargetGraphBuilder} for each version root and each
+ * translated node, so that it can be reused by later builds whose target graphs differ in parts
+ * that do not affect them.
+ *
+ * <p>The version selections of a root are reused when the root node and its version domain are
+ * unchanged. A translated node is reused when the node it was translated from is unchanged, its
+ * selected versions are the same, and all of its parse deps translate to the same targets. All
+ * entries are only valid for the version universes the cache was created for, and entries the
+ * latest build did not use are dropped once it finishes.
+ */
+public class VersionResolutionCache {
+
+  private final ImmutableMap<String, VersionUniverse> versionUniverses;
+
+  private final ConcurrentMap<BuildTarget, VersionSelection> selections =
+      new ConcurrentHashMap<>();
+
+  /** Translated nodes, keyed by their translated build target. */
+  private final ConcurrentMap<BuildTarget, TranslatedNode> translatedNodes =
+      new ConcurrentHashMap<>();
+
+  public VersionResolutionCache(ImmutableMap<String, VersionUniverse> versionUniverses) {
+    this.versionUniverses = versionUniverses;
+  }
+
+  /** @return the version universes the memoized results were resolved with. */
+  public ImmutableMap<String, VersionUniverse> getVersionUniverses() {
+    return versionUniverses;
+  }
+
+  /**
+   * @return the versions selected by {@code versionSelector} for the version sub-graph of {@code
+   *     root}, reusing a previous selection if the root and its version domain are unchanged.
+   */
+  ImmutableMap<BuildTarget, Version> getSelectedVersions(
+      TargetNode<?, ?> root,
+      ImmutableMap<BuildTarget, ImmutableSet<Version>> versionDomain,
+      VersionSelector versionSelector)
+      throws VersionException {
+    @Nullable VersionSelection selection = selections.get(root.getBuildTarget());
+    if (selection != null
+        && selection.getRoot().equals(root)
+        && selection.getVersionDomain().equals(versionDomain)) {
+      return selection.getSelectedVersions();
+    }
+    ImmutableMap<BuildTarget, Version> selectedVersions =
+        versionSelector.resolve(root.getBuildTarget(), versionDomain);
+    selections.put(
+        root.getBuildTarget(), VersionSelection.of(root, versionDomain, selectedVersions));
+    return selectedVersions;
+  }
+
+  /**
+   * @param newTarget the build target {@code node} is translated to.
+   * @param selectedVersions the versions selected for the version domain of {@code node}.
+   * @param translateBuildTarget translates the parse deps of {@code node}.
+   * @return the node previously translated from {@code node}, if it is still valid.
+   */
+  Optional<TargetNode<?, ?>> getTranslatedNode(
+      TargetNode<?, ?> node,
+      BuildTarget newTarget,
+      Optional<ImmutableMap<BuildTarget, Version>> selectedVersions,
+      Function<BuildTarget, Optional<BuildTarget>> translateBuildTarget) {
+    @Nullable TranslatedNode translated = translatedNodes.get(newTarget);
+    if (translated == null
+        || !translated.getOriginalNode().equals(node)
+        || !translated.getNode().getSelectedVersions().equals(selectedVersions)) {
+      return Optional.empty();
+    }
+    for (Map.Entry<BuildTarget, Optional<BuildTarget>> dep :
+        translated.getTranslatedDeps().entrySet()) {
+      if (!translateBuildTarget.apply(dep.getKey()).equals(dep.getValue())) {
+        return Optional.empty();
+      }
+    }
+    return Optional.of(translated.getNode());
+  }
+
+  /** Records that {@code node} was translated to {@code newNode}. */
+  void putTranslatedNode(
+      TargetNode<?, ?> node,
+      TargetNode<?, ?> newNode,
+      Function<BuildTarget, Optional<BuildTarget>> translateBuildTarget) {
+    ImmutableMap.Builder<BuildTarget, Optional<BuildTarget>> translatedDeps =
+        ImmutableMap.builder();
+    for (BuildTarget dep : node.getParseDeps()) {
+      translatedDeps.put(dep, translateBuildTarget.apply(dep));
+    }
+    translatedNodes.put(
+        newNode.getBuildTarget(), TranslatedNode.of(node, newNode, translatedDeps.build()));
+  }
+
+  /**
+   * Drops the version selections and translated nodes of all targets not in {@code targets}, so
+   * that roots and nodes which are no longer built do not stay in the cache.
+   */
+  void retainTargets(Set<BuildTarget> targets) {
+    selections.keySet().retainAll(targets);
+    translatedNodes.keySet().retainAll(targets);
+  }
+
+  /** The versions selected for the version sub-graph of a root. */
+  @Value.Immutable(prehash = false)
+  @BuckStyleTuple
+  interface AbstractVersionSelection {
+
+    TargetNode<?, ?> getRoot();
+
+    ImmutableMap<BuildTarget, ImmutableSet<Version>> getVersionDomain();
+
+    ImmutableMap<BuildTarget, Version> getSelectedVersions();
+  }
+
+  /** A node of the versioned target graph and what it was translated from. */
+  @Value.Immutable(prehash = false)
+  @BuckStyleTuple
+  interface AbstractTranslatedNode {
+
+    TargetNode<?, ?> getOriginalNode();
+
+    TargetNode<?, ?> getNode();
+
+    /** @return the translations of the parse deps of the original node. */
+    ImmutableMap<BuildTarget, Optional<BuildTarget>> getTranslatedDeps();
+  }
+}
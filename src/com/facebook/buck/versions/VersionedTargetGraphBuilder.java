@@ -72,6 +72,7 @@ public class VersionedTargetGraphBuilder {
   private final VersionSelector versionSelector;
   private final TargetGraphAndBuildTargets unversionedTargetGraphAndBuildTargets;
   private final TypeCoercerFactory typeCoercerFactory;
+  private final VersionResolutionCache resolutionCache;
 
   /** The resolved version graph being built. */
   private final VersionedTargetGraph.Builder targetGraphBuilder = VersionedTargetGraph.builder();
@@ -88,16 +89,34 @@ public class VersionedTargetGraphBuilder {
   /** Count of root nodes. */
   private final AtomicInteger roots = new AtomicInteger();
 
+  /** Count of nodes reused from the resolution cache. */
+  private final AtomicInteger reusedNodes = new AtomicInteger();
+
   VersionedTargetGraphBuilder(
       ForkJoinPool pool,
       VersionSelector versionSelector,
       TargetGraphAndBuildTargets unversionedTargetGraphAndBuildTargets,
       TypeCoercerFactory typeCoercerFactory) {
+    this(
+        pool,
+        versionSelector,
+        unversionedTargetGraphAndBuildTargets,
+        typeCoercerFactory,
+        new VersionResolutionCache(ImmutableMap.of()));
+  }
+
+  VersionedTargetGraphBuilder(
+      ForkJoinPool pool,
+      VersionSelector versionSelector,
+      TargetGraphAndBuildTargets unversionedTargetGraphAndBuildTargets,
+      TypeCoercerFactory typeCoercerFactory,
+      VersionResolutionCache resolutionCache) {
 
     this.pool = pool;
     this.versionSelector = versionSelector;
     this.unversionedTargetGraphAndBuildTargets = unversionedTargetGraphAndBuildTargets;
     this.typeCoercerFactory = typeCoercerFactory;
+    this.resolutionCache = resolutionCache;
 
     this.index =
         new ConcurrentHashMap<>(
@@ -262,10 +281,14 @@ public class VersionedTargetGraphBuilder {
       action.getChecked();
     }
 
+    // Every root selection and translated node this build used is indexed by its target, so
+    // anything else in the resolution cache belongs to targets that are no longer built.
+    resolutionCache.retainTargets(index.keySet());
+
     long end = System.currentTimeMillis();
     LOG.debug(
-        "Finished version target graph transformation in %.2f (nodes %d, roots: %d)",
-        (end - start) / 1000.0, index.size(), roots.get());
+        "Finished version target graph transformation in %.2f (nodes %d, roots: %d, reused: %d)",
+        (end - start) / 1000.0, index.size(), roots.get(), reusedNodes.get());
 
     return targetGraphBuilder.build();
   }
@@ -276,9 +299,34 @@ public class VersionedTargetGraphBuilder {
       ForkJoinPool pool,
       TypeCoercerFactory typeCoercerFactory)
       throws VersionException, TimeoutException, InterruptedException {
+    return transform(
+        versionSelector,
+        unversionedTargetGraphAndBuildTargets,
+        pool,
+        typeCoercerFactory,
+        new VersionResolutionCache(ImmutableMap.of()));
+  }
+
+  /**
+   * Like {@link #transform(VersionSelector, TargetGraphAndBuildTargets, ForkJoinPool,
+   * TypeCoercerFactory)}, but reuses the version selections and translated nodes of previous
+   * transformations from {@code resolutionCache} where they are still valid, and records the new
+   * ones in it.
+   */
+  public static TargetGraphAndBuildTargets transform(
+      VersionSelector versionSelector,
+      TargetGraphAndBuildTargets unversionedTargetGraphAndBuildTargets,
+      ForkJoinPool pool,
+      TypeCoercerFactory typeCoercerFactory,
+      VersionResolutionCache resolutionCache)
+      throws VersionException, TimeoutException, InterruptedException {
     return unversionedTargetGraphAndBuildTargets.withTargetGraph(
         new VersionedTargetGraphBuilder(
-                pool, versionSelector, unversionedTargetGraphAndBuildTargets, typeCoercerFactory)
+                pool,
+                versionSelector,
+                unversionedTargetGraphAndBuildTargets,
+                typeCoercerFactory,
+                resolutionCache)
             .build());
   }
 
@@ -390,10 +438,24 @@ public class VersionedTargetGraphBuilder {
         return processed;
       }
 
-      // Create the new target node, with the new target and deps.
-      TargetNode<?, ?> newNode =
-          ((Optional<TargetNode<?, ?>>) (Optional<?>) targetTranslator.translateNode(node))
-              .orElse(node);
+      // Create the new target node, with the new target and deps, unless it was already created
+      // by a previous build.
+      Optional<TargetNode<?, ?>> cachedNode =
+          resolutionCache.getTranslatedNode(
+              node,
+              newTarget.orElse(node.getBuildTarget()),
+              targetTranslator.getSelectedVersions(node.getBuildTarget()),
+              targetTranslator::translateBuildTarget);
+      TargetNode<?, ?> newNode;
+      if (cachedNode.isPresent()) {
+        newNode = cachedNode.get();
+        reusedNodes.incrementAndGet();
+      } else {
+        newNode =
+            ((Optional<TargetNode<?, ?>>) (Optional<?>) targetTranslator.translateNode(node))
+                .orElse(node);
+        resolutionCache.putTranslatedNode(node, newNode, targetTranslator::translateBuildTarget);
+      }
 
       LOG.verbose(
           "%s: new node declared deps %s, extra deps %s, arg %s",
@@ -453,7 +515,8 @@ public class VersionedTargetGraphBuilder {
 
       // Select the versions to use for this sub-graph.
       ImmutableMap<BuildTarget, Version> selectedVersions =
-          versionSelector.resolve(root.getBuildTarget(), versionInfo.getVersionDomain());
+          resolutionCache.getSelectedVersions(
+              root, versionInfo.getVersionDomain(), versionSelector);
 
       // Build a target translator object to translate build targets.
       ImmutableList<TargetTranslator<?>> translators =
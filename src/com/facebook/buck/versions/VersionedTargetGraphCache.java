@@ -39,6 +39,12 @@ public class VersionedTargetGraphCache {
 
   @Nullable private CachedVersionedTargetGraph cachedVersionedTargetGraph = null;
 
+  /**
+   * Version selections and translated nodes of previous builds, which are reused when the target
+   * graph has changed in parts that do not affect them.
+   */
+  @Nullable private VersionResolutionCache resolutionCache = null;
+
   /** @return a new versioned target graph. */
   private TargetGraphAndBuildTargets createdVersionedTargetGraph(
       TargetGraphAndBuildTargets targetGraphAndBuildTargets,
@@ -46,12 +52,17 @@ public class VersionedTargetGraphCache {
       ForkJoinPool pool,
       TypeCoercerFactory typeCoercerFactory)
       throws VersionException, TimeoutException, InterruptedException {
+    if (resolutionCache == null
+        || !resolutionCache.getVersionUniverses().equals(versionUniverses)) {
+      resolutionCache = new VersionResolutionCache(versionUniverses);
+    }
     return VersionedTargetGraphBuilder.transform(
         new VersionUniverseVersionSelector(
             targetGraphAndBuildTargets.getTargetGraph(), versionUniverses),
         targetGraphAndBuildTargets,
         pool,
-        typeCoercerFactory);
+        typeCoercerFactory,
+        resolutionCache);
   }
 
   private VersionedTargetGraphCacheResult getVersionedTargetGraph(
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.worker;
+
+import com.facebook.buck.core.util.immutables.BuckStyleImmutable;
+import com.google.common.base.Preconditions;
+import java.util.Optional;
+import org.immutables.value.Value;
+
+/**
+ * Settings of the adaptive mode of {@link WorkerProcessPool}s. By default, none of them is enabled,
+ * and pools keep every worker they started until they are closed.
+ */
+@Value.Immutable
+@BuckStyleImmutable
+interface AbstractWorkerPoolSettings {
+
+  /**
+   * Whether a pool that is used by a new build starts as many workers as the previous build had in
+   * use at once, before the jobs of the new build ask for them.
+   */
+  @Value.Default
+  default boolean isPrespawnEnabled() {
+    return false;
+  }
+
+  /** How long a worker may stay unused before its process is shut down. */
+  Optional<Long> getIdleTimeoutMillis();
+
+  /**
+   * Resident memory of the worker processes of all pools together, above which unused workers are
+   * shut down, least recently used first. See {@link WorkerPoolManager}.
+   */
+  Optional<Long> getMaxResidentMemoryBytes();
+
+  @Value.Check
+  default void check() {
+    Preconditions.checkArgument(
+        getIdleTimeoutMillis().orElse(1L) > 0, "Idle timeout of workers must be positive.");
+    Preconditions.checkArgument(
+        getMaxResidentMemoryBytes().orElse(1L) > 0,
+        "Maximum resident memory of workers must be positive.");
+  }
+}
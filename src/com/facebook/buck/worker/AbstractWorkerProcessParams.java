@@ -46,6 +46,12 @@ interface AbstractWorkerProcessParams {
   /** Maximum number of tools that pool can have. */
   int getMaxWorkers();
 
+  /**
+   * Maximum number of jobs that are sent to one tool at once. If greater than 1, the tool is asked
+   * to multiplex jobs during the handshake.
+   */
+  int getMaxJobsPerWorker();
+
   /**
    * Identifies the instance of the persisted worker process pool. Defines when worker process pool
    * should be invalidated.
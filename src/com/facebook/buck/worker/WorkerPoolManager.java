@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.worker;
+
+import com.facebook.buck.core.model.BuildId;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Runs the adaptive mode of the {@link WorkerProcessPool}s of a daemon, or of a single command when
+ * there is no daemon, on a single executor that is shut down with the manager.
+ *
+ * <p>The manager starts the workers that pools prespawn, and periodically shuts down the workers of
+ * its pools that exceed their idle timeout. The resident memory of the workers of all its pools is
+ * held to one limit, by shutting down the least recently used idle workers of any pool first.
+ * Pools are created from the same configuration, so they have the same limit; if their limits
+ * differ, the smallest one applies.
+ */
+@ThreadSafe
+public class WorkerPoolManager implements Closeable {
+  private static final Logger LOG = Logger.get(WorkerPoolManager.class);
+
+  /** How often idle timeouts and the memory limit are checked. */
+  private static final long MAINTENANCE_INTERVAL_MILLIS = 1000;
+
+  /** How long threads of the executor are kept around without work. */
+  private static final long THREAD_KEEP_ALIVE_SECONDS = 10;
+
+  private final Set<WorkerProcessPool> pools = ConcurrentHashMap.newKeySet();
+  private final ScheduledThreadPoolExecutor executor;
+  private final boolean scheduleMaintenance;
+  @Nullable private ScheduledFuture<?> maintenance;
+
+  public WorkerPoolManager() {
+    this(true);
+  }
+
+  @VisibleForTesting
+  WorkerPoolManager(boolean scheduleMaintenance) {
+    this.scheduleMaintenance = scheduleMaintenance;
+    // Prespawning starts several workers at once, so the executor may use a few threads. Threads
+    // time out when unused, so a manager without adaptive pools does not keep any.
+    executor =
+        new ScheduledThreadPoolExecutor(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2),
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("worker-pool-manager-%d")
+                .build());
+    executor.setKeepAliveTime(THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+    executor.allowCoreThreadTimeOut(true);
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Notes that {@code pool} is used by the build {@code buildId}, and keeps maintaining it until it
+   * is closed. See {@link WorkerProcessPool#prepareForBuild}.
+   */
+  public void prepareForBuild(WorkerProcessPool pool, BuildId buildId) {
+    if (executor.isShutdown()) {
+      return;
+    }
+    WorkerPoolSettings settings = pool.getSettings();
+    if (pools.add(pool)
+        && (settings.getIdleTimeoutMillis().isPresent()
+            || settings.getMaxResidentMemoryBytes().isPresent())) {
+      startMaintenance();
+    }
+    pool.prepareForBuild(buildId, executor);
+  }
+
+  private synchronized void startMaintenance() {
+    if (maintenance != null || !scheduleMaintenance || executor.isShutdown()) {
+      return;
+    }
+    maintenance =
+        executor.scheduleWithFixedDelay(
+            this::shutDownUnneededWorkers,
+            MAINTENANCE_INTERVAL_MILLIS,
+            MAINTENANCE_INTERVAL_MILLIS,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Shuts down the processes of workers that exceed the idle timeout of their pool, and then those
+   * of the least recently used idle workers of all pools while they use more memory than the limit.
+   * Stops maintaining pools that were closed, and stops the periodic maintenance when none is left.
+   */
+  @VisibleForTesting
+  synchronized void shutDownUnneededWorkers() {
+    pools.removeIf(WorkerProcessPool::isClosed);
+    if (pools.isEmpty()) {
+      if (maintenance != null) {
+        maintenance.cancel(false);
+        maintenance = null;
+      }
+      return;
+    }
+
+    Optional<Long> maxResidentMemoryBytes = Optional.empty();
+    for (WorkerProcessPool pool : pools) {
+      pool.shutDownIdleWorkers();
+      Optional<Long> poolLimit = pool.getSettings().getMaxResidentMemoryBytes();
+      if (poolLimit.isPresent()
+          && (!maxResidentMemoryBytes.isPresent()
+              || poolLimit.get() < maxResidentMemoryBytes.get())) {
+        maxResidentMemoryBytes = poolLimit;
+      }
+    }
+    if (!maxResidentMemoryBytes.isPresent()) {
+      return;
+    }
+
+    long residentMemoryBytes = 0;
+    for (WorkerProcessPool pool : pools) {
+      residentMemoryBytes += pool.getResidentMemoryBytes();
+    }
+    while (residentMemoryBytes > maxResidentMemoryBytes.get()) {
+      @Nullable WorkerProcessPool leastRecentlyUsedPool = null;
+      long leastRecentUseNanos = 0;
+      for (WorkerProcessPool pool : pools) {
+        Optional<Long> useNanos = pool.getLeastRecentIdleWorkerUseNanos();
+        if (useNanos.isPresent()
+            && (leastRecentlyUsedPool == null || useNanos.get() < leastRecentUseNanos)) {
+          leastRecentlyUsedPool = pool;
+          leastRecentUseNanos = useNanos.get();
+        }
+      }
+      if (leastRecentlyUsedPool == null) {
+        // All remaining workers are borrowed.
+        return;
+      }
+      Optional<Long> freedBytes = leastRecentlyUsedPool.shutDownLeastRecentlyUsedIdleWorker();
+      if (!freedBytes.isPresent()) {
+        // The worker was borrowed in the meantime; try again at the next interval.
+        return;
+      }
+      residentMemoryBytes -= freedBytes.get();
+      LOG.debug("Shut down a worker to stay under the worker memory limit.");
+    }
+  }
+
+  /** Stops maintaining pools. The pools themselves are closed by their owners. */
+  @Override
+  public synchronized void close() {
+    if (maintenance != null) {
+      maintenance.cancel(false);
+      maintenance = null;
+    }
+    pools.clear();
+    executor.shutdownNow();
+  }
+}
@@ -22,6 +22,8 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.util.MoreStrings;
 import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.ProcessExecutorParams;
+import com.facebook.buck.util.ProcessHelper;
+import com.facebook.buck.util.ProcessResourceConsumption;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
@@ -43,10 +45,11 @@ public class WorkerProcess implements Closeable {
   private final ProjectFilesystem filesystem;
   private final Path tmpPath;
   private final Path stdErr;
+  private final boolean requestMultiplexing;
   private final AtomicInteger currentMessageID = new AtomicInteger();
   private boolean handshakePerformed = false;
-  @Nullable private WorkerProcessProtocol.CommandSender protocol;
-  @Nullable private ProcessExecutor.LaunchedProcess launchedProcess;
+  @Nullable private volatile WorkerProcessProtocol.CommandSender protocol;
+  @Nullable private volatile ProcessExecutor.LaunchedProcess launchedProcess;
 
   /**
    * Worker process is a process that stays alive and receives commands which describe jobs. Worker
@@ -67,18 +70,49 @@ public class WorkerProcess implements Closeable {
       ProjectFilesystem filesystem,
       Path tmpPath)
       throws IOException {
+    this(executor, processParams, filesystem, tmpPath, false);
+  }
+
+  /**
+   * @param requestMultiplexing Whether to ask the worker process to accept several jobs at once.
+   *     If the worker process agrees during the handshake, concurrent calls to {@link
+   *     #submitAndWaitForJob} are all sent to it right away, otherwise they are run one at a time.
+   */
+  public WorkerProcess(
+      ProcessExecutor executor,
+      ProcessExecutorParams processParams,
+      ProjectFilesystem filesystem,
+      Path tmpPath,
+      boolean requestMultiplexing)
+      throws IOException {
     this.executor = executor;
     this.stdErr = Files.createTempFile("buck-worker-", "-stderr.log");
     this.processParams =
         processParams.withRedirectError(ProcessBuilder.Redirect.to(stdErr.toFile()));
     this.filesystem = filesystem;
     this.tmpPath = tmpPath;
+    this.requestMultiplexing = requestMultiplexing;
   }
 
   public boolean isAlive() {
     return launchedProcess != null && launchedProcess.isAlive();
   }
 
+  /**
+   * @return the resident memory of the worker process and its child processes, as measured by
+   *     {@link ProcessHelper} like for the processes tracked by {@code ProcessTracker}, if known.
+   */
+  public Optional<Long> getResidentMemoryBytes() {
+    ProcessExecutor.LaunchedProcess process = launchedProcess;
+    if (process == null) {
+      return Optional.empty();
+    }
+    return process
+        .getPid()
+        .map(pid -> ProcessHelper.getInstance().getTotalResourceConsumption(pid))
+        .map(ProcessResourceConsumption::getMemResident);
+  }
+
   public synchronized void ensureLaunchAndHandshake() throws IOException {
     if (handshakePerformed) {
       return;
@@ -96,18 +130,39 @@ public class WorkerProcess implements Closeable {
               if (launchedProcess != null) {
                 executor.destroyLaunchedProcess(launchedProcess);
               }
-            });
+            },
+            requestMultiplexing);
 
     LOG.debug("Handshaking with process %d", this.hashCode());
     protocol.handshake(currentMessageID.getAndIncrement());
+    if (requestMultiplexing && !protocol.isMultiplexed()) {
+      LOG.warn(
+          "Worker process '%s' does not support multiplexing, its jobs are run one at a time.",
+          Joiner.on(' ').join(processParams.getCommand()));
+    }
     handshakePerformed = true;
   }
 
-  public synchronized WorkerJobResult submitAndWaitForJob(String jobArgs) throws IOException {
+  /**
+   * Submits a job to the worker process and blocks until it has finished. Jobs are run one at a
+   * time, unless the worker process agreed to multiplex them during the handshake.
+   */
+  public WorkerJobResult submitAndWaitForJob(String jobArgs) throws IOException {
+    WorkerProcessProtocol.CommandSender sender = protocol;
     Preconditions.checkState(
-        protocol != null,
+        sender != null,
         "Tried to submit a job to the worker process before the handshake was performed.");
 
+    if (sender.isMultiplexed()) {
+      return runJob(sender, jobArgs);
+    }
+    synchronized (this) {
+      return runJob(sender, jobArgs);
+    }
+  }
+
+  private WorkerJobResult runJob(WorkerProcessProtocol.CommandSender sender, String jobArgs)
+      throws IOException {
     int messageID = currentMessageID.getAndAdd(1);
     Path argsPath = Paths.get(tmpPath.toString(), String.format("%d.args", messageID));
     Path stdoutPath = Paths.get(tmpPath.toString(), String.format("%d.out", messageID));
@@ -119,9 +174,9 @@ public class WorkerProcess implements Closeable {
     LOG.debug(
         "Sending job %d to process %d \n" + " job arguments: \'%s\'",
         messageID, this.hashCode(), jobArgs);
-    protocol.send(messageID, WorkerProcessCommand.of(argsPath, stdoutPath, stderrPath));
+    sender.send(messageID, WorkerProcessCommand.of(argsPath, stdoutPath, stderrPath));
     LOG.debug("Receiving response for job %d from process %d", messageID, this.hashCode());
-    int exitCode = protocol.receiveCommandResponse(messageID);
+    int exitCode = sender.receiveCommandResponse(messageID);
     Optional<String> stdout = filesystem.readFileIfItExists(stdoutPath);
     Optional<String> stderr = filesystem.readFileIfItExists(stderrPath);
     LOG.debug(
@@ -16,9 +16,11 @@
 
 package com.facebook.buck.worker;
 
+import com.facebook.buck.core.model.BuildId;
 import com.facebook.buck.log.Logger;
-import com.facebook.buck.util.concurrent.LinkedBlockingStack;
 import com.facebook.buck.util.function.ThrowingSupplier;
+import com.facebook.buck.util.timing.Clock;
+import com.facebook.buck.util.timing.DefaultClock;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.hash.HashCode;
@@ -26,10 +28,16 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Optional;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
@@ -39,29 +47,113 @@ import javax.annotation.concurrent.ThreadSafe;
  *
  * <p>This pool supports acquisition and release of worker processes on different threads. Workers
  * are acquired with {@link #borrowWorkerProcess()}, which returns
+ *
+ * <p>Each worker process can be borrowed up to {@code maxJobsPerWorker} times at once, for worker
+ * processes that multiplex jobs. Workers that were started already are preferred, so that a single
+ * worker process serves all jobs until it is saturated.
+ *
+ * <p>The {@link WorkerPoolSettings} of a pool may make it adaptive: it can start the workers a
+ * build is likely to need when the build starts using the pool, and it can shut down workers that
+ * are unused for too long or while the workers of all pools use too much memory. Workers that were
+ * shut down are started again when they are needed. The {@link WorkerPoolManager} that owns the
+ * pool does this work on its own threads.
  */
 @ThreadSafe
 public class WorkerProcessPool implements Closeable {
   private static final Logger LOG = Logger.get(WorkerProcessPool.class);
 
+  private final String name;
   private final int capacity;
-  private final BlockingQueue<WorkerLifecycle> availableWorkers;
+  private final int maxJobsPerWorker;
+  private final BlockingDeque<WorkerLifecycle> availableWorkers;
   private final WorkerLifecycle[] workerLifecycles;
   private final HashCode poolHash;
+  private final WorkerPoolSettings settings;
+  private final Clock clock;
+  private boolean isPoolClosed = false;
+
+  /** Number of workers that run at least one job. */
+  private final AtomicInteger workersInUse = new AtomicInteger();
+
+  private final AtomicInteger peakWorkersInUse = new AtomicInteger();
+  private final LongAdder jobs = new LongAdder();
+  private final LongAdder queueWaitNanos = new LongAdder();
+  private final LongAdder executionNanos = new LongAdder();
+  private final LongAdder startedWorkers = new LongAdder();
+  private final LongAdder reapedWorkers = new LongAdder();
+  @Nullable private volatile BuildId currentBuildId;
+
+  public WorkerProcessPool(
+      int maxWorkers,
+      HashCode poolHash,
+      ThrowingSupplier<WorkerProcess, IOException> startWorkerProcess) {
+    this(maxWorkers, 1, poolHash, startWorkerProcess);
+  }
 
   public WorkerProcessPool(
       int maxWorkers,
+      int maxJobsPerWorker,
       HashCode poolHash,
       ThrowingSupplier<WorkerProcess, IOException> startWorkerProcess) {
+    this(
+        poolHash.toString(),
+        maxWorkers,
+        maxJobsPerWorker,
+        poolHash,
+        WorkerPoolSettings.builder().build(),
+        startWorkerProcess);
+  }
+
+  /**
+   * @param name identifies the pool in the statistics it logs.
+   * @param settings settings of the adaptive mode of the pool.
+   */
+  public WorkerProcessPool(
+      String name,
+      int maxWorkers,
+      int maxJobsPerWorker,
+      HashCode poolHash,
+      WorkerPoolSettings settings,
+      ThrowingSupplier<WorkerProcess, IOException> startWorkerProcess) {
+    this(
+        name,
+        maxWorkers,
+        maxJobsPerWorker,
+        poolHash,
+        settings,
+        new DefaultClock(),
+        startWorkerProcess);
+  }
+
+  @VisibleForTesting
+  WorkerProcessPool(
+      String name,
+      int maxWorkers,
+      int maxJobsPerWorker,
+      HashCode poolHash,
+      WorkerPoolSettings settings,
+      Clock clock,
+      ThrowingSupplier<WorkerProcess, IOException> startWorkerProcess) {
+    Preconditions.checkArgument(maxJobsPerWorker > 0, "maxJobsPerWorker must be positive.");
+    this.name = name;
     capacity = maxWorkers;
-    availableWorkers = new LinkedBlockingStack<>();
+    this.maxJobsPerWorker = maxJobsPerWorker;
+    availableWorkers = new LinkedBlockingDeque<>();
     workerLifecycles = new WorkerLifecycle[maxWorkers];
     this.poolHash = poolHash;
+    this.settings = settings;
+    this.clock = clock;
 
     Arrays.setAll(
         workerLifecycles,
-        ignored -> new WorkerLifecycle(startWorkerProcess, availableWorkers::add));
-    Collections.addAll(availableWorkers, workerLifecycles);
+        ignored -> new WorkerLifecycle(startWorkerProcess, availableWorkers::addFirst));
+    // Every worker is available once per job it may run. Slots are taken from the head of the
+    // deque and returned to it, so that the workers that were used last are used first.
+    for (WorkerLifecycle lifecycle : workerLifecycles) {
+      for (int job = 0; job < maxJobsPerWorker; job++) {
+        availableWorkers.addLast(lifecycle);
+      }
+    }
   }
 
   /**
@@ -70,22 +162,179 @@ public class WorkerProcessPool implements Closeable {
    * BorrowedWorkerProcess#close()} after using them.
    */
   public BorrowedWorkerProcess borrowWorkerProcess() throws InterruptedException {
-    return new BorrowedWorkerProcess(availableWorkers.take());
+    long startNanos = clock.nanoTime();
+    WorkerLifecycle lifecycle = availableWorkers.takeFirst();
+    queueWaitNanos.add(clock.nanoTime() - startNanos);
+    return new BorrowedWorkerProcess(lifecycle);
   }
 
   @VisibleForTesting
   Optional<BorrowedWorkerProcess> borrowWorkerProcess(int timeout, TimeUnit unit)
       throws InterruptedException {
-    return Optional.ofNullable(availableWorkers.poll(timeout, unit))
+    return Optional.ofNullable(availableWorkers.pollFirst(timeout, unit))
         .map(BorrowedWorkerProcess::new);
   }
 
+  /**
+   * Notes that the pool is used by the build {@code buildId}. When a new build starts using the
+   * pool, the statistics of the previous build are logged, and the workers the previous build had
+   * in use at once are started on {@code prespawnExecutor} if prespawning is enabled.
+   */
+  void prepareForBuild(BuildId buildId, Executor prespawnExecutor) {
+    if (buildId.equals(currentBuildId)) {
+      return;
+    }
+    synchronized (this) {
+      if (buildId.equals(currentBuildId)) {
+        return;
+      }
+      logAndResetStats();
+      int previousDemand = peakWorkersInUse.getAndSet(workersInUse.get());
+      currentBuildId = buildId;
+      if (settings.isPrespawnEnabled() && !isPoolClosed) {
+        prespawnWorkers(previousDemand, prespawnExecutor);
+      }
+    }
+  }
+
+  /** Starts the processes of the {@code count} workers that are going to be borrowed first. */
+  private void prespawnWorkers(int count, Executor prespawnExecutor) {
+    // The head of the deque holds the slots that are borrowed first.
+    Set<WorkerLifecycle> nextWorkers = new LinkedHashSet<>();
+    Iterator<WorkerLifecycle> available = availableWorkers.iterator();
+    while (nextWorkers.size() < count && available.hasNext()) {
+      nextWorkers.add(available.next());
+    }
+    for (WorkerLifecycle lifecycle : nextWorkers) {
+      prespawnExecutor.execute(lifecycle::prespawn);
+    }
+  }
+
+  WorkerPoolSettings getSettings() {
+    return settings;
+  }
+
+  /** Shuts down the processes of unused workers that exceed the idle timeout. */
+  synchronized void shutDownIdleWorkers() {
+    if (isPoolClosed || !settings.getIdleTimeoutMillis().isPresent()) {
+      return;
+    }
+    long nowNanos = clock.nanoTime();
+    long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(settings.getIdleTimeoutMillis().get());
+    for (WorkerLifecycle lifecycle : workerLifecycles) {
+      if (nowNanos - lifecycle.lastUsedNanos >= idleTimeoutNanos) {
+        tryShutDown(lifecycle);
+      }
+    }
+  }
+
+  /** @return the resident memory used by the worker processes of this pool, as far as known. */
+  synchronized long getResidentMemoryBytes() {
+    long residentMemoryBytes = 0;
+    for (WorkerLifecycle lifecycle : workerLifecycles) {
+      residentMemoryBytes += lifecycle.getResidentMemoryBytes().orElse(0L);
+    }
+    return residentMemoryBytes;
+  }
+
+  /**
+   * @return the {@link Clock#nanoTime()} at which the least recently used worker that has a
+   *     process and is not borrowed was last used, if there is one.
+   */
+  synchronized Optional<Long> getLeastRecentIdleWorkerUseNanos() {
+    return getLeastRecentlyUsedIdleWorker().map(lifecycle -> lifecycle.lastUsedNanos);
+  }
+
+  /**
+   * Shuts down the process of the least recently used worker that has a process and is not
+   * borrowed.
+   *
+   * @return the resident memory the process used, or empty if no process was shut down.
+   */
+  synchronized Optional<Long> shutDownLeastRecentlyUsedIdleWorker() {
+    Optional<WorkerLifecycle> lifecycle = getLeastRecentlyUsedIdleWorker();
+    if (!lifecycle.isPresent()) {
+      return Optional.empty();
+    }
+    long residentMemoryBytes = lifecycle.get().getResidentMemoryBytes().orElse(0L);
+    return tryShutDown(lifecycle.get()) ? Optional.of(residentMemoryBytes) : Optional.empty();
+  }
+
+  private Optional<WorkerLifecycle> getLeastRecentlyUsedIdleWorker() {
+    if (isPoolClosed) {
+      return Optional.empty();
+    }
+    @Nullable WorkerLifecycle leastRecentlyUsed = null;
+    for (WorkerLifecycle lifecycle : workerLifecycles) {
+      if (lifecycle.workerProcess == null || lifecycle.borrowedSlots.get() > 0) {
+        continue;
+      }
+      if (leastRecentlyUsed == null || lifecycle.lastUsedNanos < leastRecentlyUsed.lastUsedNanos) {
+        leastRecentlyUsed = lifecycle;
+      }
+    }
+    return Optional.ofNullable(leastRecentlyUsed);
+  }
+
+  /**
+   * Shuts down the process of {@code lifecycle} if none of its slots is borrowed.
+   *
+   * @return whether a process was shut down.
+   */
+  private boolean tryShutDown(WorkerLifecycle lifecycle) {
+    // Taking all slots of the worker keeps it from being borrowed while its process shuts down.
+    int takenSlots = 0;
+    while (takenSlots < maxJobsPerWorker && availableWorkers.remove(lifecycle)) {
+      takenSlots++;
+    }
+    boolean shutDown = false;
+    try {
+      shutDown = takenSlots == maxJobsPerWorker && lifecycle.shutDownProcess();
+      return shutDown;
+    } finally {
+      for (int i = 0; i < takenSlots; i++) {
+        // Workers without a process are borrowed last, so that running workers are preferred.
+        if (shutDown) {
+          availableWorkers.addLast(lifecycle);
+        } else {
+          availableWorkers.addFirst(lifecycle);
+        }
+      }
+      if (shutDown) {
+        reapedWorkers.increment();
+      }
+    }
+  }
+
+  private void logAndResetStats() {
+    long jobCount = jobs.sumThenReset();
+    long queueWaitMillis = TimeUnit.NANOSECONDS.toMillis(queueWaitNanos.sumThenReset());
+    long executionMillis = TimeUnit.NANOSECONDS.toMillis(executionNanos.sumThenReset());
+    long started = startedWorkers.sumThenReset();
+    long reaped = reapedWorkers.sumThenReset();
+    if (jobCount == 0 && started == 0 && reaped == 0) {
+      return;
+    }
+    LOG.info(
+        "Worker pool %s ran %d jobs with up to %d workers in use (%d started, %d shut down): "
+            + "%d ms waiting for workers, %d ms executing.",
+        name, jobCount, peakWorkersInUse.get(), started, reaped, queueWaitMillis, executionMillis);
+  }
+
+  synchronized boolean isClosed() {
+    return isPoolClosed;
+  }
+
   @Override
   public synchronized void close() {
     Throwable caughtWhileClosing = null;
 
+    isPoolClosed = true;
+    logAndResetStats();
+
     // remove all available workers
-    int numAvailableWorkers = availableWorkers.drainTo(new ArrayList<>(capacity));
+    int numAvailableWorkers =
+        availableWorkers.drainTo(new ArrayList<>(capacity * maxJobsPerWorker));
     for (WorkerLifecycle lifecycle : this.workerLifecycles) {
       try {
         lifecycle.close();
@@ -95,7 +344,7 @@ public class WorkerProcessPool implements Closeable {
     }
 
     Preconditions.checkState(
-        numAvailableWorkers == capacity,
+        numAvailableWorkers == capacity * maxJobsPerWorker,
         "WorkerProcessPool was still running when shutdown was called.");
     if (caughtWhileClosing != null) {
       throw new RuntimeException(caughtWhileClosing);
@@ -106,6 +355,10 @@ public class WorkerProcessPool implements Closeable {
     return capacity;
   }
 
+  public int getMaxJobsPerWorker() {
+    return maxJobsPerWorker;
+  }
+
   HashCode getPoolHash() {
     return poolHash;
   }
@@ -120,13 +373,15 @@ public class WorkerProcessPool implements Closeable {
    * pool with a consumer trying to acquire a worker in parallel.
    */
   @ThreadSafe
-  private static class WorkerLifecycle
+  private class WorkerLifecycle
       implements Closeable, ThrowingSupplier<WorkerProcess, IOException> {
 
     private final ThrowingSupplier<WorkerProcess, IOException> startWorkerProcess;
     private final Consumer<WorkerLifecycle> onWorkerProcessReturn;
+    private final AtomicInteger borrowedSlots = new AtomicInteger();
+    private volatile long lastUsedNanos = clock.nanoTime();
     private boolean isClosed = false;
-    @Nullable private WorkerProcess workerProcess;
+    @Nullable private volatile WorkerProcess workerProcess;
 
     private WorkerLifecycle(
         ThrowingSupplier<WorkerProcess, IOException> startWorkerProcess,
@@ -153,12 +408,71 @@ public class WorkerProcessPool implements Closeable {
       // start a worker if necessary, this might throw IOException
       if (workerProcess == null) {
         workerProcess = startWorkerProcess.get();
+        startedWorkers.increment();
       }
 
       return workerProcess;
     }
 
+    /** Starts the worker process ahead of its first job, unless it is running already. */
+    private synchronized void prespawn() {
+      if (isClosed || workerProcess != null) {
+        return;
+      }
+      try {
+        get();
+      } catch (IOException | RuntimeException e) {
+        LOG.warn(e, "Failed to start worker process ahead of its first job; ignoring.");
+      }
+    }
+
+    /**
+     * Shuts down the worker process, which is started again when the worker is used next.
+     *
+     * @return whether there was a process to shut down.
+     */
+    private synchronized boolean shutDownProcess() {
+      WorkerProcess process = workerProcess;
+      if (process == null) {
+        return false;
+      }
+      workerProcess = null;
+      try {
+        process.close();
+      } catch (RuntimeException e) {
+        LOG.warn(e, "Failed to shut down unneeded worker process; ignoring.");
+      }
+      return true;
+    }
+
+    private Optional<Long> getResidentMemoryBytes() {
+      WorkerProcess process = workerProcess;
+      return process == null ? Optional.empty() : process.getResidentMemoryBytes();
+    }
+
+    private WorkerJobResult submitAndWaitForJob(String expandedJobArgs) throws IOException {
+      WorkerProcess process = get();
+      long startNanos = clock.nanoTime();
+      try {
+        return process.submitAndWaitForJob(expandedJobArgs);
+      } finally {
+        jobs.increment();
+        executionNanos.add(clock.nanoTime() - startNanos);
+      }
+    }
+
+    private void markBorrowed() {
+      if (borrowedSlots.incrementAndGet() == 1) {
+        int inUse = workersInUse.incrementAndGet();
+        peakWorkersInUse.accumulateAndGet(inUse, Math::max);
+      }
+    }
+
     public void makeAvailable() {
+      lastUsedNanos = clock.nanoTime();
+      if (borrowedSlots.decrementAndGet() == 0) {
+        workersInUse.decrementAndGet();
+      }
       onWorkerProcessReturn.accept(this);
     }
 
@@ -183,12 +497,14 @@ public class WorkerProcessPool implements Closeable {
    *
    * <p>BorrowedWorkerProcess is not threadsafe, and is expected to be used by one thread at a time
    * only. Concurrency control is handled by {@link WorkerProcessPool} and {@link WorkerLifecycle}.
+   * Several BorrowedWorkerProcesses may share a worker process that multiplexes jobs.
    */
   public static class BorrowedWorkerProcess implements Closeable {
     @Nullable private WorkerLifecycle lifecycle;
 
     private BorrowedWorkerProcess(WorkerLifecycle lifecycle) {
       this.lifecycle = Preconditions.checkNotNull(lifecycle);
+      lifecycle.markBorrowed();
     }
 
     /** Returns ownership of the borrowed worker process back to the pool it was retrieved from. */
@@ -207,7 +523,8 @@ public class WorkerProcessPool implements Closeable {
      * @throws IOException
      */
     public WorkerJobResult submitAndWaitForJob(String expandedJobArgs) throws IOException {
-      return get().submitAndWaitForJob(expandedJobArgs);
+      Preconditions.checkState(lifecycle != null, "BorrowedWorker has already been closed.");
+      return lifecycle.submitAndWaitForJob(expandedJobArgs);
     }
 
     @VisibleForTesting
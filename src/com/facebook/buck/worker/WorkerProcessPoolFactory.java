@@ -83,6 +83,7 @@ public class WorkerProcessPoolFactory {
     if (pool == null) {
       pool = createWorkerProcessPool(context, paramsToUse, processPoolMap, key, workerHash);
     }
+    context.getWorkerPoolManager().prepareForBuild(pool, context.getBuildId());
 
     int poolCapacity = pool.getCapacity();
     if (poolCapacity != paramsToUse.getMaxWorkers()) {
@@ -115,12 +116,17 @@ public class WorkerProcessPoolFactory {
 
     WorkerProcessPool newPool =
         new WorkerProcessPool(
+            key,
             paramsToUse.getMaxWorkers(),
+            paramsToUse.getMaxJobsPerWorker(),
             workerHash,
+            context.getWorkerPoolSettings(),
             () -> {
               Path tmpDir = workerTmpDir.resolve(Integer.toString(workerNumber.getAndIncrement()));
               filesystem.mkdirs(tmpDir);
-              WorkerProcess process = createWorkerProcess(processParams, context, tmpDir);
+              WorkerProcess process =
+                  createWorkerProcess(
+                      processParams, context, tmpDir, paramsToUse.getMaxJobsPerWorker() > 1);
               process.ensureLaunchAndHandshake();
               return process;
             });
@@ -161,8 +167,12 @@ public class WorkerProcessPoolFactory {
 
   @VisibleForTesting
   public WorkerProcess createWorkerProcess(
-      ProcessExecutorParams processParams, ExecutionContext context, Path tmpDir)
+      ProcessExecutorParams processParams,
+      ExecutionContext context,
+      Path tmpDir,
+      boolean requestMultiplexing)
       throws IOException {
-    return new WorkerProcess(context.getProcessExecutor(), processParams, filesystem, tmpDir);
+    return new WorkerProcess(
+        context.getProcessExecutor(), processParams, filesystem, tmpDir, requestMultiplexing);
   }
 }
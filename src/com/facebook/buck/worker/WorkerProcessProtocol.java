@@ -27,6 +27,14 @@ public interface WorkerProcessProtocol {
 
     int receiveCommandResponse(int messageID) throws IOException;
 
+    /**
+     * @return true if both ends agreed during the handshake to multiplex jobs, in which case {@link
+     *     #send} and {@link #receiveCommandResponse} may be called concurrently for different jobs.
+     */
+    default boolean isMultiplexed() {
+      return false;
+    }
+
     /** Instructs the CommandReceiver to shut itself down. */
     @Override
     void close() throws IOException;
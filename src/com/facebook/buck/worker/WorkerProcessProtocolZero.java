@@ -18,6 +18,8 @@ package com.facebook.buck.worker;
 import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
@@ -26,29 +28,65 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import javax.annotation.Nullable;
 
 public class WorkerProcessProtocolZero {
+
+  /**
+   * Sends jobs to a worker process.
+   *
+   * <p>If multiplexing is requested and the worker process advertises the {@value
+   * #CAPABILITY_MULTIPLEXING} capability in its handshake response, several jobs may be in flight
+   * at once and the worker process may respond to them in any order. Responses are then read by
+   * whichever waiting thread gets to the stream first, and handed over to the threads waiting for
+   * them by message id.
+   */
   public static class CommandSender implements WorkerProcessProtocol.CommandSender {
     private final JsonWriter processStdinWriter;
     private final JsonReader processStdoutReader;
     private final Optional<Path> stdErr;
     private final Runnable onClose;
+    private final boolean requestMultiplexing;
+    private volatile boolean multiplexed = false;
     private boolean isClosed = false;
 
+    /** Ids of the multiplexed jobs that were sent, but whose response was not read yet. */
+    private final Set<Integer> pendingJobs = new HashSet<>();
+    /** Responses that were read, but not yet picked up by the threads waiting for them. */
+    private final Map<Integer, CommandResponse> receivedResponses = new HashMap<>();
+
+    private boolean isReceiving = false;
+    @Nullable private Exception receiveFailure;
+
     public CommandSender(
         OutputStream processStdin, InputStream processStdout, Path stdErr, Runnable onClose) {
+      this(processStdin, processStdout, stdErr, onClose, false);
+    }
+
+    public CommandSender(
+        OutputStream processStdin,
+        InputStream processStdout,
+        Path stdErr,
+        Runnable onClose,
+        boolean requestMultiplexing) {
       this.processStdinWriter =
           new JsonWriter(new BufferedWriter(new OutputStreamWriter(processStdin)));
       this.processStdoutReader =
           new JsonReader(new BufferedReader(new InputStreamReader(processStdout)));
       this.stdErr = Optional.of(stdErr);
       this.onClose = onClose;
+      this.requestMultiplexing = requestMultiplexing;
     }
 
     @VisibleForTesting
@@ -63,8 +101,17 @@ public class WorkerProcessProtocolZero {
 
     @Override
     public void handshake(int messageId) throws IOException {
-      sendHandshake(processStdinWriter, messageId);
-      receiveHandshake(processStdoutReader, messageId, stdErr);
+      sendHandshake(
+          processStdinWriter,
+          messageId,
+          requestMultiplexing ? ImmutableList.of(CAPABILITY_MULTIPLEXING) : ImmutableList.of());
+      ImmutableSet<String> capabilities = receiveHandshake(processStdoutReader, messageId, stdErr);
+      multiplexed = requestMultiplexing && capabilities.contains(CAPABILITY_MULTIPLEXING);
+    }
+
+    @Override
+    public boolean isMultiplexed() {
+      return multiplexed;
     }
 
     /*
@@ -79,14 +126,21 @@ public class WorkerProcessProtocolZero {
     */
     @Override
     public void send(int messageId, WorkerProcessCommand command) throws IOException {
-      processStdinWriter.beginObject();
-      processStdinWriter.name("id").value(messageId);
-      processStdinWriter.name("type").value(TYPE_COMMAND);
-      processStdinWriter.name("args_path").value(command.getArgsPath().toString());
-      processStdinWriter.name("stdout_path").value(command.getStdOutPath().toString());
-      processStdinWriter.name("stderr_path").value(command.getStdErrPath().toString());
-      processStdinWriter.endObject();
-      processStdinWriter.flush();
+      if (multiplexed) {
+        synchronized (receivedResponses) {
+          pendingJobs.add(messageId);
+        }
+      }
+      synchronized (processStdinWriter) {
+        processStdinWriter.beginObject();
+        processStdinWriter.name("id").value(messageId);
+        processStdinWriter.name("type").value(TYPE_COMMAND);
+        processStdinWriter.name("args_path").value(command.getArgsPath().toString());
+        processStdinWriter.name("stdout_path").value(command.getStdOutPath().toString());
+        processStdinWriter.name("stderr_path").value(command.getStdErrPath().toString());
+        processStdinWriter.endObject();
+        processStdinWriter.flush();
+      }
     }
 
     /*
@@ -122,6 +176,79 @@ public class WorkerProcessProtocolZero {
     */
     @Override
     public int receiveCommandResponse(int messageID) throws IOException {
+      if (multiplexed) {
+        return receiveMultiplexedCommandResponse(messageID);
+      }
+      CommandResponse response = readCommandResponse();
+      if (response.id != messageID) {
+        throw new HumanReadableException(
+            String.format(
+                "Expected response's \"id\" value to be " + "\"%d\", got \"%d\" instead.",
+                messageID, response.id));
+      }
+      checkResponseType(response.type);
+      return response.exitCode;
+    }
+
+    /**
+     * Waits for the response to the multiplexed job {@code messageID}. If no other thread is
+     * reading from the worker process, this thread reads responses until it gets its own one, and
+     * hands over the responses to other jobs to their waiting threads.
+     */
+    private int receiveMultiplexedCommandResponse(int messageID) throws IOException {
+      while (true) {
+        synchronized (receivedResponses) {
+          while (true) {
+            CommandResponse response = receivedResponses.remove(messageID);
+            if (response != null) {
+              return response.exitCode;
+            }
+            if (receiveFailure != null) {
+              throw new HumanReadableException(
+                  receiveFailure,
+                  "Error receiving response for job %d from external process: %s",
+                  messageID,
+                  receiveFailure.getMessage());
+            }
+            if (!isReceiving) {
+              isReceiving = true;
+              break;
+            }
+            try {
+              receivedResponses.wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException(
+                  String.format("Interrupted while waiting for response to job %d.", messageID));
+            }
+          }
+        }
+
+        try {
+          CommandResponse response = readCommandResponse();
+          checkResponseType(response.type);
+          synchronized (receivedResponses) {
+            if (!pendingJobs.remove(response.id)) {
+              throw new HumanReadableException(
+                  "Received response for job %d, which is not in flight.", response.id);
+            }
+            receivedResponses.put(response.id, response);
+          }
+        } catch (IOException | RuntimeException e) {
+          synchronized (receivedResponses) {
+            receiveFailure = e;
+          }
+          throw e;
+        } finally {
+          synchronized (receivedResponses) {
+            isReceiving = false;
+            receivedResponses.notifyAll();
+          }
+        }
+      }
+    }
+
+    private CommandResponse readCommandResponse() throws IOException {
       int id = -1;
       int exitCode = -1;
       String type = "";
@@ -148,13 +275,10 @@ public class WorkerProcessProtocolZero {
                 + "Stderr from external process:\n%s",
             getStdErrorOutput(stdErr));
       }
+      return new CommandResponse(id, type, exitCode);
+    }
 
-      if (id != messageID) {
-        throw new HumanReadableException(
-            String.format(
-                "Expected response's \"id\" value to be " + "\"%d\", got \"%d\" instead.",
-                messageID, id));
-      }
+    private static void checkResponseType(String type) {
       if (!type.equals(TYPE_RESULT) && !type.equals(TYPE_ERROR)) {
         throw new HumanReadableException(
             String.format(
@@ -162,7 +286,6 @@ public class WorkerProcessProtocolZero {
                     + "to be one of [\"%s\",\"%s\"], got \"%s\" instead.",
                 TYPE_RESULT, TYPE_ERROR, type));
       }
-      return exitCode;
     }
 
     @Override
@@ -211,7 +334,8 @@ public class WorkerProcessProtocolZero {
 
     @Override
     public void handshake(int messageId) throws IOException {
-      sendHandshake(processStdinWriter, messageId);
+      // Commands are received one at a time, so multiplexing is never advertised.
+      sendHandshake(processStdinWriter, messageId, ImmutableList.of());
       receiveHandshake(processStdoutReader, messageId, Optional.empty());
     }
 
@@ -359,6 +483,25 @@ public class WorkerProcessProtocolZero {
   private static final String TYPE_RESULT = "result";
   private static final String TYPE_ERROR = "error";
 
+  /**
+   * Capability that allows the sender to have several jobs in flight at once, whose responses may
+   * arrive in any order. It is only used if both ends advertise it in their handshake.
+   */
+  public static final String CAPABILITY_MULTIPLEXING = "multiplexing";
+
+  /** A response to a command, as read from the worker process. */
+  private static class CommandResponse {
+    private final int id;
+    private final String type;
+    private final int exitCode;
+
+    private CommandResponse(int id, String type, int exitCode) {
+      this.id = id;
+      this.type = type;
+      this.exitCode = exitCode;
+    }
+  }
+
   /*
    Sends a message that looks like this:
      [
@@ -366,16 +509,21 @@ public class WorkerProcessProtocolZero {
          id: 0,
          type: 'handshake',
          protocol_version: '0',
-         capabilities: []
+         capabilities: [<capability>, ...]
        }
   */
-  private static void sendHandshake(JsonWriter writer, int messageId) throws IOException {
+  private static void sendHandshake(
+      JsonWriter writer, int messageId, ImmutableList<String> capabilities) throws IOException {
     writer.beginArray();
     writer.beginObject();
     writer.name("id").value(messageId);
     writer.name("type").value(TYPE_HANDSHAKE);
     writer.name("protocol_version").value(PROTOCOL_VERSION);
-    writer.name("capabilities").beginArray().endArray();
+    writer.name("capabilities").beginArray();
+    for (String capability : capabilities) {
+      writer.value(capability);
+    }
+    writer.endArray();
     writer.endObject();
     writer.flush();
   }
@@ -387,14 +535,17 @@ public class WorkerProcessProtocolZero {
          id: 0,
          type: 'handshake',
          protocol_version: '0',
-         capabilities: []
+         capabilities: [<capability>, ...]
        }
+
+   Returns the advertised capabilities. Capabilities that are not known are ignored.
   */
-  private static void receiveHandshake(JsonReader reader, int messageId, Optional<Path> stdErr)
-      throws IOException {
+  private static ImmutableSet<String> receiveHandshake(
+      JsonReader reader, int messageId, Optional<Path> stdErr) throws IOException {
     int id = -1;
     String type = "";
     String protocolVersion = "";
+    ImmutableSet.Builder<String> capabilities = ImmutableSet.builder();
 
     try {
       reader.beginArray();
@@ -410,10 +561,13 @@ public class WorkerProcessProtocolZero {
         } else if (property.equals("capabilities")) {
           try {
             reader.beginArray();
+            while (reader.hasNext()) {
+              capabilities.add(reader.nextString());
+            }
             reader.endArray();
           } catch (IllegalStateException e) {
             throw new HumanReadableException(
-                "Expected handshake response's \"capabilities\" to " + "be an empty array.");
+                "Expected handshake response's \"capabilities\" to " + "be an array of strings.");
           }
         } else {
           reader.skipValue();
@@ -447,6 +601,7 @@ public class WorkerProcessProtocolZero {
                   + "\"protocol_version\" to be \"%s\", got \"%s\" instead.",
               PROTOCOL_VERSION, protocolVersion));
     }
+    return capabilities.build();
   }
 
   private static String getStdErrorOutput(Optional<Path> stdErr) throws IOException {
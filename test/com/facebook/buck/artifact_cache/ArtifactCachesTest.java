@@ -287,6 +287,10 @@ public class ArtifactCachesTest {
           (TwoLevelArtifactCacheDecorator) artifactCache;
       return stripDecorators(cacheDecorator.getDelegate());
     }
+    if (artifactCache instanceof ChunkedArtifactCacheDecorator) {
+      ChunkedArtifactCacheDecorator cacheDecorator = (ChunkedArtifactCacheDecorator) artifactCache;
+      return stripDecorators(cacheDecorator.getDelegate());
+    }
     if (artifactCache instanceof RetryingCacheDecorator) {
       RetryingCacheDecorator cacheDecorator = (RetryingCacheDecorator) artifactCache;
       return stripDecorators(cacheDecorator.getDelegate());
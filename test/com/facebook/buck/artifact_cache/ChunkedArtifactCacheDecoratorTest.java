@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ChunkedArtifactCacheDecoratorTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final RuleKey dummyRuleKey =
+      new RuleKey("76b1c1beae69428db2d1befb31cf743ac8ce90df");
+  private static final RuleKey dummyRuleKey2 =
+      new RuleKey("1111111111111111111111111111111111111111");
+
+  private ProjectFilesystem filesystem;
+  private InMemoryArtifactCache inMemoryArtifactCache;
+  private byte[] contents;
+
+  @Before
+  public void setUp() throws InterruptedException {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    inMemoryArtifactCache = new InMemoryArtifactCache();
+    contents = new byte[1024 * 1024];
+    new Random(0).nextBytes(contents);
+  }
+
+  private ChunkedArtifactCacheDecorator newCache(String chunkStore) {
+    return newCache(inMemoryArtifactCache, chunkStore);
+  }
+
+  private ChunkedArtifactCacheDecorator newCache(ArtifactCache delegate, String chunkStore) {
+    return new ChunkedArtifactCacheDecorator(
+        delegate,
+        filesystem,
+        BuckEventBusForTests.newInstance(),
+        Paths.get(chunkStore),
+        Optional.empty(),
+        /* minimumChunkedArtifactSize */ 1024L,
+        /* maximumChunkedArtifactSize */ Optional.empty());
+  }
+
+  private void store(ArtifactCache cache, RuleKey ruleKey, byte[] data) throws IOException {
+    Path artifact = tmp.newFile();
+    Files.write(artifact, data);
+    Futures.getUnchecked(
+        cache.store(
+            ArtifactInfo.builder()
+                .addRuleKeys(ruleKey)
+                .setMetadata(ImmutableMap.of("key", "value"))
+                .build(),
+            BorrowablePath.notBorrowablePath(artifact)));
+  }
+
+  @Test
+  public void testStoreAndFetchChunkedArtifact() throws IOException {
+    try (ChunkedArtifactCacheDecorator cache = newCache("chunks")) {
+      store(cache, dummyRuleKey, contents);
+    }
+    assertThat(inMemoryArtifactCache.getArtifactCount(), Matchers.greaterThan(2));
+
+    // Fetch into an empty chunk store, so that all the chunks are downloaded.
+    try (ChunkedArtifactCacheDecorator cache = newCache("other-chunks")) {
+      LazyPath output = LazyPath.ofInstance(tmp.newFile());
+      CacheResult result = Futures.getUnchecked(cache.fetchAsync(null, dummyRuleKey, output));
+      assertThat(result.getType(), Matchers.equalTo(CacheResultType.HIT));
+      assertThat(result.getMetadata(), Matchers.equalTo(ImmutableMap.of("key", "value")));
+      assertArrayEquals(contents, Files.readAllBytes(output.get()));
+    }
+  }
+
+  @Test
+  public void testOnlyChangedChunksAreUploaded() throws IOException {
+    try (ChunkedArtifactCacheDecorator cache = newCache("chunks")) {
+      store(cache, dummyRuleKey, contents);
+      int artifactCount = inMemoryArtifactCache.getArtifactCount();
+
+      byte[] modified = contents.clone();
+      modified[modified.length / 2] ^= 1;
+      store(cache, dummyRuleKey2, modified);
+
+      // At most two chunks change, plus the entry for the rule key.
+      assertThat(
+          inMemoryArtifactCache.getArtifactCount() - artifactCount, Matchers.lessThanOrEqualTo(3));
+
+      LazyPath output = LazyPath.ofInstance(tmp.newFile());
+      assertThat(
+          Futures.getUnchecked(cache.fetchAsync(null, dummyRuleKey2, output)).getType(),
+          Matchers.equalTo(CacheResultType.HIT));
+      assertArrayEquals(modified, Files.readAllBytes(output.get()));
+    }
+  }
+
+  @Test
+  public void testFetchReusesLocalChunks() throws IOException {
+    try (ChunkedArtifactCacheDecorator cache = newCache("chunks")) {
+      store(cache, dummyRuleKey, contents);
+    }
+    // Leave only the entry for the rule key in the cache.
+    String chunks =
+        Futures.getUnchecked(
+                inMemoryArtifactCache.fetchAsync(
+                    null, dummyRuleKey, LazyPath.ofInstance(tmp.newFile())))
+            .getMetadata()
+            .get(ChunkedArtifactCacheDecorator.METADATA_KEY);
+    for (String chunk : chunks.split(",")) {
+      inMemoryArtifactCache.deleteAsync(ImmutableList.of(new RuleKey(chunk)));
+    }
+    assertThat(inMemoryArtifactCache.getArtifactCount(), Matchers.equalTo(1));
+
+    try (ChunkedArtifactCacheDecorator cache = newCache("chunks")) {
+      LazyPath output = LazyPath.ofInstance(tmp.newFile());
+      assertThat(
+          Futures.getUnchecked(cache.fetchAsync(null, dummyRuleKey, output)).getType(),
+          Matchers.equalTo(CacheResultType.HIT));
+      assertArrayEquals(contents, Files.readAllBytes(output.get()));
+    }
+    try (ChunkedArtifactCacheDecorator cache = newCache("other-chunks")) {
+      assertThat(
+          Futures.getUnchecked(
+                  cache.fetchAsync(null, dummyRuleKey, LazyPath.ofInstance(tmp.newFile())))
+              .getType(),
+          Matchers.equalTo(CacheResultType.MISS));
+    }
+  }
+
+  @Test
+  public void testArtifactIsNotStoredWhenAChunkFailsToUpload() throws IOException {
+    AtomicBoolean failedUpload = new AtomicBoolean();
+    InMemoryArtifactCache failingCache =
+        new InMemoryArtifactCache() {
+          @Override
+          public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+            if (!info.getMetadata().containsKey(ChunkedArtifactCacheDecorator.METADATA_KEY)
+                && failedUpload.compareAndSet(false, true)) {
+              return Futures.immediateFailedFuture(new IOException("Upload failed."));
+            }
+            return super.store(info, output);
+          }
+        };
+
+    try (ChunkedArtifactCacheDecorator cache = newCache(failingCache, "chunks")) {
+      store(cache, dummyRuleKey, contents);
+      fail("Storing the artifact should have failed.");
+    } catch (UncheckedExecutionException e) {
+      assertThat(e.getCause(), Matchers.instanceOf(IOException.class));
+    }
+    assertTrue(failedUpload.get());
+    assertThat(failingCache.getArtifactCount(), Matchers.greaterThan(0));
+    assertFalse(failingCache.hasArtifact(dummyRuleKey));
+  }
+
+  @Test
+  public void testSmallArtifactsAreStoredWhole() throws IOException {
+    try (ChunkedArtifactCacheDecorator cache = newCache("chunks")) {
+      store(cache, dummyRuleKey, new byte[100]);
+      assertThat(inMemoryArtifactCache.getArtifactCount(), Matchers.equalTo(1));
+
+      CacheResult result =
+          Futures.getUnchecked(
+              inMemoryArtifactCache.fetchAsync(
+                  null, dummyRuleKey, LazyPath.ofInstance(tmp.newFile())));
+      assertThat(
+          result.getMetadata().keySet(),
+          Matchers.not(Matchers.hasItem(ChunkedArtifactCacheDecorator.METADATA_KEY)));
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+import com.google.common.collect.Sets;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+public class ContentDefinedChunkerTest {
+
+  private final ContentDefinedChunker chunker = new ContentDefinedChunker(256, 1024, 4096);
+
+  private List<byte[]> split(byte[] data) throws IOException {
+    List<byte[]> chunks = new ArrayList<>();
+    chunker.split(
+        new ByteArrayInputStream(data),
+        (buffer, length) -> chunks.add(Arrays.copyOf(buffer, length)));
+    return chunks;
+  }
+
+  private static Set<String> asStrings(List<byte[]> chunks) {
+    Set<String> result = new HashSet<>();
+    for (byte[] chunk : chunks) {
+      result.add(Arrays.toString(chunk));
+    }
+    return result;
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] data = new byte[size];
+    new Random(0).nextBytes(data);
+    return data;
+  }
+
+  @Test
+  public void chunksConcatenateToInput() throws IOException {
+    byte[] data = randomBytes(100 * 1024);
+    ByteArrayOutputStream joined = new ByteArrayOutputStream();
+    List<byte[]> chunks = split(data);
+    for (byte[] chunk : chunks) {
+      assertThat(chunk.length, Matchers.lessThanOrEqualTo(4096));
+      joined.write(chunk);
+    }
+    assertArrayEquals(data, joined.toByteArray());
+    assertThat(chunks.size(), Matchers.greaterThan(10));
+  }
+
+  @Test
+  public void chunksAreSplitAtMaximumSize() throws IOException {
+    List<byte[]> chunks = split(new byte[10000]);
+    assertThat(chunks.size(), Matchers.equalTo(3));
+    assertThat(chunks.get(0).length, Matchers.equalTo(4096));
+    assertThat(chunks.get(2).length, Matchers.equalTo(10000 - 2 * 4096));
+  }
+
+  @Test
+  public void insertionOnlyChangesNearbyChunks() throws IOException {
+    byte[] data = randomBytes(100 * 1024);
+    byte[] inserted = new byte[data.length + 3];
+    System.arraycopy(data, 0, inserted, 0, 1000);
+    System.arraycopy(data, 1000, inserted, 1003, data.length - 1000);
+
+    Set<String> original = asStrings(split(data));
+    Set<String> modified = asStrings(split(inserted));
+    assertThat(Sets.difference(modified, original).size(), Matchers.lessThanOrEqualTo(2));
+  }
+}
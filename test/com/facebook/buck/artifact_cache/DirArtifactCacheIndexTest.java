@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class DirArtifactCacheIndexTest {
+  @Rule public TemporaryPaths tmpDir = new TemporaryPaths();
+
+  private Path cacheDir;
+  private Path indexDir;
+  private Path tempDir;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheDir = tmpDir.newFolder("cache");
+    indexDir = cacheDir.resolve("index");
+    tempDir = cacheDir.resolve("tmp");
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntriesFirst() throws IOException {
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(cacheDir, indexDir, tempDir);
+    index.store("aaaa", 10);
+    index.store("bbbb", 10);
+    index.store("cccc", 10);
+    index.touch("aaaa");
+
+    assertEquals(30, index.getTotalBytes());
+    assertEquals(ImmutableList.of("bbbb", "cccc"), index.evict(10));
+    assertEquals(10, index.getTotalBytes());
+    assertTrue(index.contains("aaaa"));
+    assertEquals(ImmutableList.of(), index.evict(10));
+    index.close();
+  }
+
+  @Test
+  public void removeStopsAccountingForEntry() throws IOException {
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(cacheDir, indexDir, tempDir);
+    index.store("aaaa", 10);
+    index.store("aaaa", 15);
+    assertEquals(15, index.getTotalBytes());
+
+    index.remove("aaaa");
+    index.remove("bbbb");
+    assertFalse(index.contains("aaaa"));
+    assertEquals(0, index.getTotalBytes());
+    index.close();
+  }
+
+  @Test
+  public void stateSurvivesReloadWithoutClose() throws IOException {
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(cacheDir, indexDir, tempDir);
+    index.store("aaaa", 1);
+    index.store("bbbb", 2);
+    index.store("cccc", 4);
+    index.remove("cccc");
+    index.touch("aaaa");
+    index.flush();
+
+    DirArtifactCacheIndex reloaded = DirArtifactCacheIndex.load(cacheDir, indexDir, tempDir);
+    assertEquals(2, reloaded.size());
+    assertEquals(3, reloaded.getTotalBytes());
+    assertEquals(ImmutableList.of("bbbb"), reloaded.evict(1));
+    reloaded.close();
+  }
+
+  @Test
+  public void truncatedJournalRecordIsIgnored() throws IOException {
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(cacheDir, indexDir, tempDir);
+    index.store("aaaa", 1);
+    index.close();
+
+    Files.write(index.getJournalPath(), new byte[] {'S', 0}, StandardOpenOption.APPEND);
+
+    DirArtifactCacheIndex reloaded = DirArtifactCacheIndex.load(cacheDir, indexDir, tempDir);
+    assertTrue(reloaded.contains("aaaa"));
+    assertEquals(1, reloaded.getTotalBytes());
+    reloaded.store("bbbb", 1);
+    reloaded.close();
+
+    assertEquals(2, DirArtifactCacheIndex.load(cacheDir, indexDir, tempDir).size());
+  }
+
+  @Test
+  public void indexesOfTheSameDirectorySeeEachOthersChanges() throws IOException {
+    DirArtifactCacheIndex first = DirArtifactCacheIndex.load(cacheDir, indexDir, tempDir);
+    DirArtifactCacheIndex second = DirArtifactCacheIndex.load(cacheDir, indexDir, tempDir);
+
+    first.store("aaaa", 1);
+    first.flush();
+    second.flush();
+    second.store("bbbb", 2);
+    second.flush();
+    assertTrue(second.contains("aaaa"));
+    assertEquals(3, second.getTotalBytes());
+    first.flush();
+    assertTrue(first.contains("bbbb"));
+
+    assertEquals(ImmutableList.of("aaaa"), second.evict(2));
+    second.flush();
+    first.flush();
+    assertFalse(first.contains("aaaa"));
+    assertEquals(2, first.getTotalBytes());
+
+    // Compacting the journal keeps the records the other index has not written yet.
+    first.store("cccc", 4);
+    second.close();
+    first.close();
+
+    DirArtifactCacheIndex reloaded = DirArtifactCacheIndex.load(cacheDir, indexDir, tempDir);
+    assertEquals(2, reloaded.size());
+    assertEquals(6, reloaded.getTotalBytes());
+    reloaded.close();
+  }
+
+  @Test
+  public void concurrentWritersDoNotLoseRecords() throws Exception {
+    int storesPerWriter = 500;
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<?>> writers = new ArrayList<>();
+      for (String prefix : ImmutableList.of("a", "b")) {
+        writers.add(
+            executor.submit(
+                () -> {
+                  DirArtifactCacheIndex index =
+                      DirArtifactCacheIndex.load(cacheDir, indexDir, tempDir);
+                  for (int i = 0; i < storesPerWriter; i++) {
+                    index.store(prefix + i, 1);
+                    index.flush();
+                  }
+                  index.close();
+                  return null;
+                }));
+      }
+      for (Future<?> writer : writers) {
+        writer.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    DirArtifactCacheIndex reloaded = DirArtifactCacheIndex.load(cacheDir, indexDir, tempDir);
+    assertEquals(2 * storesPerWriter, reloaded.size());
+    assertEquals(2 * storesPerWriter, reloaded.getTotalBytes());
+    reloaded.close();
+  }
+
+  @Test
+  public void rebuildsFromCacheDirectoryWhenThereIsNoJournal() throws IOException {
+    Path old = cacheDir.resolve("aa").resolve("aa").resolve("aaaa");
+    Path recent = cacheDir.resolve("bb").resolve("bb").resolve("bbbb");
+    Files.createDirectories(old.getParent());
+    Files.createDirectories(recent.getParent());
+    Files.createDirectories(tempDir);
+    Files.write(old, "old".getBytes(UTF_8));
+    Files.write(old.resolveSibling("aaaa.metadata"), "m".getBytes(UTF_8));
+    Files.write(recent, "recent".getBytes(UTF_8));
+    Files.write(tempDir.resolve("artifact.tmp"), "ignored".getBytes(UTF_8));
+    Files.setAttribute(old, "lastAccessTime", FileTime.fromMillis(0));
+    Files.setAttribute(
+        old.resolveSibling("aaaa.metadata"), "lastAccessTime", FileTime.fromMillis(0));
+    Files.setAttribute(recent, "lastAccessTime", FileTime.fromMillis(1000));
+
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(cacheDir, indexDir, tempDir);
+    assertEquals(2, index.size());
+    assertEquals(10, index.getTotalBytes());
+    assertEquals(ImmutableList.of("aaaa"), index.evict(6));
+    index.close();
+  }
+}
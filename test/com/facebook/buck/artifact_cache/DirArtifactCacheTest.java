@@ -954,6 +954,60 @@ public class DirArtifactCacheTest {
             .getType());
   }
 
+  @Test
+  public void testIndexedCacheEvictsLeastRecentlyUsedAfterStore() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    Path fileX = tmpDir.newFile("x");
+    Files.write(fileX, "x".getBytes(UTF_8));
+
+    RuleKey ruleKeyW = new RuleKey("aaaa");
+    RuleKey ruleKeyX = new RuleKey("bbbb");
+    RuleKey ruleKeyY = new RuleKey("cccc");
+    RuleKey ruleKeyZ = new RuleKey("dddd");
+
+    // A 1-byte entry takes 5 bytes to store (including its empty metadata), so a 16 byte cache
+    // holds three entries and is trimmed down to two entries (at most 2/3 of the max size) when a
+    // fourth one is stored.
+    dirArtifactCache =
+        new DirArtifactCache(
+            "dir",
+            TestProjectFilesystems.createProjectFilesystem(cacheDir),
+            Paths.get("."),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.of(16L),
+            /* indexed */ true);
+
+    for (RuleKey ruleKey : ImmutableList.of(ruleKeyW, ruleKeyX, ruleKeyY)) {
+      dirArtifactCache.store(
+          ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+          BorrowablePath.notBorrowablePath(fileX));
+    }
+
+    // Accessing W makes X the least recently used entry, regardless of file access times.
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(
+                dirArtifactCache.fetchAsync(null, ruleKeyW, LazyPath.ofInstance(fileX)))
+            .getType());
+
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyZ).build(),
+        BorrowablePath.notBorrowablePath(fileX));
+
+    assertThat(
+        dirArtifactCache
+            .getAllFilesInCache()
+            .stream()
+            .map(path -> path.getFileName().toString())
+            .collect(ImmutableSet.toImmutableSet()),
+        Matchers.equalTo(ImmutableSet.of("aaaa", "aaaa.metadata", "dddd", "dddd.metadata")));
+    assertEquals(
+        CacheResultType.MISS,
+        Futures.getUnchecked(
+                dirArtifactCache.fetchAsync(null, ruleKeyX, LazyPath.ofInstance(fileX)))
+            .getType());
+  }
+
   @Test
   public void testCacheStoreMultipleKeys() throws IOException {
     Path cacheDir = tmpDir.newFolder();
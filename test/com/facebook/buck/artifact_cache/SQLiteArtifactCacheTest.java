@@ -46,7 +46,12 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Before;
@@ -291,6 +296,62 @@ public class SQLiteArtifactCacheTest {
     assertThat(artifactCache.metadataRuleKeys(), Matchers.contains(ruleKeyC));
   }
 
+  @Test
+  public void testMetadataAccessedSinceLastFlushIsNotDeleted() throws Exception {
+    artifactCache = cache(Optional.of(0L));
+    Timestamp time = Timestamp.from(Instant.now().minus(Duration.ofDays(8)));
+
+    artifactCache.insertMetadata(ruleKeyA, ImmutableMap.of(), time);
+    artifactCache.insertMetadata(ruleKeyB, ImmutableMap.of(), time);
+
+    // The access time update is buffered, but must be written out before evicting metadata.
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(artifactCache.fetchAsync(null, ruleKeyA, output)).getType());
+
+    artifactCache.removeOldMetadata().get();
+    assertThat(artifactCache.metadataRuleKeys(), Matchers.contains(ruleKeyA));
+  }
+
+  @Test
+  public void testConcurrentStoresAndFetches() throws Exception {
+    artifactCache = cache(Optional.empty());
+    ImmutableList.Builder<RuleKey> ruleKeysBuilder = ImmutableList.builder();
+    for (int i = 0; i < 64; i++) {
+      ruleKeysBuilder.add(new RuleKey(String.format("%016x", i)));
+    }
+    ImmutableList<RuleKey> ruleKeys = ruleKeysBuilder.build();
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<CacheResult>> results = new ArrayList<>();
+      for (RuleKey ruleKey : ruleKeys) {
+        results.add(
+            executor.submit(
+                () -> {
+                  artifactCache
+                      .store(
+                          ArtifactInfo.builder()
+                              .addRuleKeys(ruleKey)
+                              .putMetadata(METADATA_KEY, ruleKey.toString())
+                              .build(),
+                          BorrowablePath.notBorrowablePath(emptyFile))
+                      .get();
+                  return artifactCache.fetchAsync(null, ruleKey, output).get();
+                }));
+      }
+      for (int i = 0; i < ruleKeys.size(); i++) {
+        CacheResult result = results.get(i).get();
+        assertEquals(CacheResultType.HIT, result.getType());
+        assertEquals(ruleKeys.get(i).toString(), result.getMetadata().get(METADATA_KEY));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(artifactCache.metadataRuleKeys(), Matchers.containsInAnyOrder(ruleKeys.toArray()));
+  }
+
   @Test
   public void testNoStoreMisses() throws Exception {
     artifactCache = cache(Optional.of(0L));
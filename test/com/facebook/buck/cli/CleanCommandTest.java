@@ -316,6 +316,7 @@ public class CleanCommandTest {
         Optional.empty(),
         Optional.empty(),
         Optional.empty(),
+        Optional.empty(),
         buckConfig,
         new StackedFileHashCache(ImmutableList.of()),
         ImmutableMap.of(),
@@ -130,6 +130,7 @@ public class CommandRunnerParamsForTesting {
         Optional.empty(),
         webServer,
         Optional.empty(),
+        Optional.empty(),
         config,
         new StackedFileHashCache(ImmutableList.of()),
         ImmutableMap.of(ExecutorPool.PROJECT, MoreExecutors.newDirectExecutorService()),
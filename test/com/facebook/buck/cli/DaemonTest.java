@@ -0,0 +1,196 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.config.FakeBuckConfig;
+import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.core.cell.TestCellBuilder;
+import com.facebook.buck.core.rules.knowntypes.DefaultKnownBuildRuleTypesFactory;
+import com.facebook.buck.core.rules.knowntypes.KnownBuildRuleTypesProvider;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.io.ExecutableFinder;
+import com.facebook.buck.io.ProjectWatch;
+import com.facebook.buck.io.Watchman;
+import com.facebook.buck.io.WatchmanClient;
+import com.facebook.buck.io.WatchmanCursor;
+import com.facebook.buck.io.WatchmanFactory;
+import com.facebook.buck.io.WatchmanPathEvent;
+import com.facebook.buck.io.WatchmanWatcher;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.plugin.impl.BuckPluginManagerFactory;
+import com.facebook.buck.sandbox.TestSandboxExecutionStrategyFactory;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.testutil.TestConsole;
+import com.facebook.buck.util.DefaultProcessExecutor;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.eventbus.Subscribe;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class DaemonTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  @Test
+  public void parserStateIsNotSavedWhileWatchmanChangesArePosted() throws Exception {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    String watchRoot = filesystem.getRootPath().toString();
+    Map<String, Object> response =
+        ImmutableMap.of(
+            "clock",
+            "c:0:2",
+            "files",
+            ImmutableList.of(
+                ImmutableMap.of("name", "first.txt", "exists", true),
+                ImmutableMap.of("name", "BUCK", "exists", true)));
+    Watchman watchman =
+        new Watchman(
+            ImmutableMap.of(filesystem.getRootPath(), ProjectWatch.of(watchRoot, Optional.empty())),
+            ImmutableSet.of(WatchmanFactory.Capability.SUPPORTS_PROJECT_WATCH),
+            ImmutableMap.of(watchRoot, "c:0:1"),
+            Optional.of(Paths.get(".watchman-sock"))) {
+          @Override
+          public WatchmanClient createClient() {
+            return new WatchmanClient() {
+              @Override
+              public Optional<? extends Map<String, ? extends Object>> queryWithTimeout(
+                  long timeoutNanos, Object... query) {
+                return Optional.of(response);
+              }
+
+              @Override
+              public void close() {}
+            };
+          }
+        };
+    Cell cell =
+        new TestCellBuilder()
+            .setFilesystem(filesystem)
+            .setWatchman(watchman)
+            .setBuckConfig(
+                FakeBuckConfig.builder()
+                    .setSections(
+                        ImmutableMap.of("parser", ImmutableMap.of("persistent_state", "true")))
+                    .build())
+            .build();
+    KnownBuildRuleTypesProvider knownBuildRuleTypesProvider =
+        KnownBuildRuleTypesProvider.of(
+            DefaultKnownBuildRuleTypesFactory.of(
+                new DefaultProcessExecutor(new TestConsole()),
+                BuckPluginManagerFactory.createPluginManager(),
+                new TestSandboxExecutionStrategyFactory()));
+
+    Path buildFile = filesystem.resolve("BUCK");
+    BuckEventBus eventBus = BuckEventBusForTests.newInstance();
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try (Daemon daemon =
+        new Daemon(cell, knownBuildRuleTypesProvider, new ExecutableFinder(), Optional.empty())) {
+      daemon
+          .getParser()
+          .getPermState()
+          .getRawNodeCache()
+          .putComputedNodeIfNotPresent(
+              cell,
+              buildFile,
+              ImmutableSet.of(ImmutableMap.of("name", "foo", "buck.base_path", "")),
+              eventBus);
+
+      // Hold the watcher after it advanced the clock, but before it posted the change to BUCK.
+      CountDownLatch changePending = new CountDownLatch(1);
+      CountDownLatch postChange = new CountDownLatch(1);
+      daemon
+          .getFileEventBus()
+          .register(
+              new Object() {
+                @Subscribe
+                public void onPathEvent(WatchmanPathEvent event) throws InterruptedException {
+                  if (event.getPath().equals(Paths.get("first.txt"))) {
+                    changePending.countDown();
+                    postChange.await(10, TimeUnit.SECONDS);
+                  }
+                }
+              });
+      WatchmanWatcher watcher =
+          new WatchmanWatcher(
+              watchman,
+              daemon.getFileEventBus(),
+              ImmutableSet.of(),
+              daemon.getWatchmanCursor(),
+              1);
+      Future<?> watch =
+          executor.submit(
+              () -> {
+                daemon.watchFileSystem(eventBus, watcher, WatchmanWatcher.FreshInstanceAction.NONE);
+                return null;
+              });
+      assertTrue(changePending.await(10, TimeUnit.SECONDS));
+
+      Future<?> save = executor.submit(daemon::saveState);
+      boolean savedWhileChangePending;
+      try {
+        save.get(200, TimeUnit.MILLISECONDS);
+        savedWhileChangePending = true;
+      } catch (TimeoutException e) {
+        savedWhileChangePending = false;
+      }
+      postChange.countDown();
+      watch.get(10, TimeUnit.SECONDS);
+      save.get(10, TimeUnit.SECONDS);
+
+      assertFalse(savedWhileChangePending);
+
+      // A daemon started after this one is killed picks up from the new clock, so it must not
+      // restore the changed build file.
+      try (Daemon restarted =
+          new Daemon(
+              cell, knownBuildRuleTypesProvider, new ExecutableFinder(), Optional.empty())) {
+        assertEquals(
+            ImmutableMap.of(filesystem.getRootPath(), "c:0:2"),
+            Maps.transformValues(restarted.getWatchmanCursor(), WatchmanCursor::get));
+        assertFalse(
+            restarted
+                .getParser()
+                .getPermState()
+                .getRawNodeCache()
+                .lookupComputedNode(cell, buildFile, eventBus)
+                .isPresent());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
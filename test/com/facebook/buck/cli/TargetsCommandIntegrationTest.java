@@ -117,6 +117,44 @@ public class TargetsCommandIntegrationTest {
     parseAndVerifyTargetsAndHashes(result.getStdout(), "//:another-test", "//:test");
   }
 
+  @Test
+  public void testStreamingPrintsSameResultsAsSortedOutput() throws IOException {
+    ProjectWorkspace workspace =
+        TestDataHelper.createProjectWorkspaceForScenario(this, "output_path", tmp);
+    workspace.setUp();
+
+    ProcessResult sortedResult =
+        workspace.runBuckCommand("targets", "--show-rulekey", "--show-output", "//:");
+    sortedResult.assertSuccess();
+    ProcessResult streamedResult =
+        workspace.runBuckCommand(
+            "targets", "--streaming", "--show-rulekey", "--show-output", "//:");
+    streamedResult.assertSuccess();
+
+    assertEquals(
+        ImmutableSet.copyOf(Splitter.on('\n').omitEmptyStrings().split(sortedResult.getStdout())),
+        ImmutableSet.copyOf(
+            Splitter.on('\n').omitEmptyStrings().split(streamedResult.getStdout())));
+  }
+
+  @Test
+  public void testStreamingJsonOutput() throws IOException {
+    ProjectWorkspace workspace =
+        TestDataHelper.createProjectWorkspaceForScenario(this, "output_path", tmp);
+    workspace.setUp();
+
+    ProcessResult result =
+        workspace.runBuckCommand("targets", "--streaming", "--json", "--show-rulekey", "//:test");
+    result.assertSuccess();
+
+    JsonNode output =
+        ObjectMappers.READER.readTree(ObjectMappers.createParser(result.getStdout()));
+    assertEquals(1, output.size());
+    assertEquals("//:test", output.get(0).get("fully_qualified_name").textValue());
+    assertThat(
+        output.get(0).get("buck.ruleKey").textValue(), Matchers.matchesPattern("[a-f0-9]{40}"));
+  }
+
   @Test
   public void testBothOutputAndRuleKey() throws IOException {
     ProjectWorkspace workspace =
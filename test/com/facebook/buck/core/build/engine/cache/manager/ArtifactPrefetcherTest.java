@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.cache.manager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.InMemoryArtifactCache;
+import com.facebook.buck.core.build.engine.impl.DefaultRuleDepsCache;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.resolver.impl.TestActionGraphBuilder;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArtifactPrefetcherTest {
+
+  private final Map<BuildRule, RuleKey> ruleKeys = new HashMap<>();
+  private final Map<BuildRule, RuleKey> onDiskRuleKeys = new HashMap<>();
+  private InMemoryArtifactCache cache;
+
+  //     top
+  //    /   \
+  //   a*    b
+  //   |     |
+  //   c*    d*
+  //
+  // Rules marked with * are in the cache.
+  private BuildRule top;
+  private BuildRule a;
+  private BuildRule b;
+  private BuildRule c;
+  private BuildRule d;
+
+  @Before
+  public void setUp() {
+    cache = new InMemoryArtifactCache();
+    c = createRule("//:c", true);
+    d = createRule("//:d", true);
+    a = createRule("//:a", true, c);
+    b = createRule("//:b", false, d);
+    top = createRule("//:top", false, a, b);
+  }
+
+  @Test
+  public void prefetchesTheCachedFrontier() throws Exception {
+    try (ArtifactPrefetcher prefetcher = createPrefetcher(false)) {
+      prefetcher.prefetch(top, cache).get();
+
+      assertPrefetched(prefetcher, a);
+      assertPrefetched(prefetcher, d);
+      assertNull(prefetcher.claim(ruleKeys.get(c)));
+      assertNull(prefetcher.claim(ruleKeys.get(b)));
+      assertNull(prefetcher.claim(ruleKeys.get(top)));
+    }
+  }
+
+  @Test
+  public void prefetchesAllCachedDepsWhenAllDepsAreFetched() throws Exception {
+    try (ArtifactPrefetcher prefetcher = createPrefetcher(true)) {
+      prefetcher.prefetch(top, cache).get();
+
+      assertPrefetched(prefetcher, a);
+      assertPrefetched(prefetcher, c);
+      assertPrefetched(prefetcher, d);
+      assertNull(prefetcher.claim(ruleKeys.get(b)));
+    }
+  }
+
+  @Test
+  public void nothingIsPrefetchedForCachedTopLevelRule() throws Exception {
+    storeArtifact(top);
+    try (ArtifactPrefetcher prefetcher = createPrefetcher(false)) {
+      prefetcher.prefetch(top, cache).get();
+
+      assertNull(prefetcher.claim(ruleKeys.get(a)));
+      assertNull(prefetcher.claim(ruleKeys.get(d)));
+    }
+  }
+
+  @Test
+  public void claimedRulesAreNotPrefetched() throws Exception {
+    try (ArtifactPrefetcher prefetcher = createPrefetcher(false)) {
+      assertNull(prefetcher.claim(ruleKeys.get(a)));
+      prefetcher.prefetch(top, cache).get();
+
+      assertNull(prefetcher.claim(ruleKeys.get(a)));
+      assertPrefetched(prefetcher, d);
+    }
+  }
+
+  @Test
+  public void rulesThatAreUpToDateOnDiskAreNotPrefetched() throws Exception {
+    onDiskRuleKeys.put(a, ruleKeys.get(a));
+    onDiskRuleKeys.put(b, ruleKeys.get(b));
+    onDiskRuleKeys.put(c, new RuleKey(String.format("%040x", 100)));
+    try (ArtifactPrefetcher prefetcher = createPrefetcher(true)) {
+      prefetcher.prefetch(top, cache).get();
+
+      assertNull(prefetcher.claim(ruleKeys.get(a)));
+      assertPrefetched(prefetcher, c);
+      assertPrefetched(prefetcher, d);
+    }
+  }
+
+  @Test
+  public void depsOfRulesThatAreUpToDateOnDiskAreNotPrefetched() throws Exception {
+    onDiskRuleKeys.put(b, ruleKeys.get(b));
+    try (ArtifactPrefetcher prefetcher = createPrefetcher(false)) {
+      prefetcher.prefetch(top, cache).get();
+
+      assertPrefetched(prefetcher, a);
+      assertNull(prefetcher.claim(ruleKeys.get(d)));
+    }
+  }
+
+  @Test
+  public void prefetchedArtifactIsOnlyClaimedOnce() throws Exception {
+    try (ArtifactPrefetcher prefetcher = createPrefetcher(false)) {
+      prefetcher.prefetch(top, cache).get();
+
+      assertPrefetched(prefetcher, a);
+      assertNull(prefetcher.claim(ruleKeys.get(a)));
+    }
+  }
+
+  private ArtifactPrefetcher createPrefetcher(boolean fetchAllDeps) {
+    return new ArtifactPrefetcher(
+        new DefaultRuleDepsCache(new TestActionGraphBuilder()),
+        ruleKeys::get,
+        rule -> Optional.ofNullable(onDiskRuleKeys.get(rule)),
+        MoreExecutors.newDirectExecutorService(),
+        fetchAllDeps);
+  }
+
+  private BuildRule createRule(String target, boolean cached, BuildRule... deps) {
+    BuildRule rule = new FakeBuildRule(target, deps);
+    ruleKeys.put(rule, new RuleKey(String.format("%040x", ruleKeys.size() + 1)));
+    if (cached) {
+      storeArtifact(rule);
+    }
+    return rule;
+  }
+
+  private void storeArtifact(BuildRule rule) {
+    RuleKey ruleKey = ruleKeys.get(rule);
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+        ruleKey.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void assertPrefetched(ArtifactPrefetcher prefetcher, BuildRule rule) throws Exception {
+    ArtifactPrefetcher.PrefetchedArtifact artifact = prefetcher.claim(ruleKeys.get(rule));
+    assertNotNull(artifact);
+    assertEquals(CacheResultType.HIT, artifact.getResult().get().getType());
+    Path path = artifact.getPath().get();
+    assertArrayEquals(
+        ruleKeys.get(rule).toString().getBytes(StandardCharsets.UTF_8), Files.readAllBytes(path));
+    Files.delete(path);
+    assertFalse(Files.exists(path));
+  }
+}
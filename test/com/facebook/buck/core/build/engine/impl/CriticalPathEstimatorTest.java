@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.build.engine.RuleDepsCache;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.resolver.impl.TestActionGraphBuilder;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multiset;
+import java.util.SortedSet;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CriticalPathEstimatorTest {
+
+  private CriticalPathEstimator estimator;
+
+  @Before
+  public void setUp() {
+    estimator = new CriticalPathEstimator(new DefaultRuleDepsCache(new TestActionGraphBuilder()));
+  }
+
+  @Test
+  public void longChainsGetHigherPriority() {
+    //   binary
+    //   /    \
+    // lib1  lib2
+    //   |
+    // lib3
+    BuildRule lib3 = new FakeBuildRule("//:lib3");
+    BuildRule lib1 = new FakeBuildRule("//:lib1", lib3);
+    BuildRule lib2 = new FakeBuildRule("//:lib2");
+    BuildRule binary = new FakeBuildRule("//:binary", lib1, lib2);
+
+    estimator.recordHistoricalDuration(binary, 100);
+    estimator.recordHistoricalDuration(lib1, 10);
+    estimator.recordHistoricalDuration(lib2, 50);
+    estimator.recordHistoricalDuration(lib3, 30);
+    estimator.computePriorities(ImmutableList.of(binary));
+
+    assertEquals(100, estimator.getPriority(binary));
+    assertEquals(110, estimator.getPriority(lib1));
+    assertEquals(150, estimator.getPriority(lib2));
+    assertEquals(140, estimator.getPriority(lib3));
+  }
+
+  @Test
+  public void rulesWithoutHistoryUseAverageDuration() {
+    BuildRule dep = new FakeBuildRule("//:dep");
+    BuildRule rule = new FakeBuildRule("//:rule", dep);
+    BuildRule other = new FakeBuildRule("//:other");
+
+    estimator.recordHistoricalDuration(rule, 20);
+    estimator.recordHistoricalDuration(other, 40);
+    estimator.computePriorities(ImmutableList.of(rule, other));
+
+    assertEquals(20, estimator.getPriority(rule));
+    assertEquals(50, estimator.getPriority(dep));
+    assertEquals(40, estimator.getPriority(other));
+  }
+
+  @Test
+  public void topLevelRulesCanBeAddedOneByOne() {
+    BuildRule dep = new FakeBuildRule("//:dep");
+    BuildRule rule = new FakeBuildRule("//:rule", dep);
+    BuildRule other = new FakeBuildRule("//:other", dep);
+
+    estimator.recordHistoricalDuration(dep, 5);
+    estimator.recordHistoricalDuration(rule, 10);
+    estimator.recordHistoricalDuration(other, 30);
+    estimator.computePriorities(ImmutableList.of(rule));
+    estimator.computePriorities(ImmutableList.of(other));
+    // Already reached from rule, so it keeps its priority.
+    estimator.computePriorities(ImmutableList.of(dep));
+
+    assertEquals(10, estimator.getPriority(rule));
+    assertEquals(30, estimator.getPriority(other));
+    assertEquals(35, estimator.getPriority(dep));
+  }
+
+  @Test
+  public void sharedDepsAreOnlyWalkedAgainWhenTheirPriorityRises() {
+    Multiset<BuildRule> walked = HashMultiset.create();
+    DefaultRuleDepsCache ruleDeps = new DefaultRuleDepsCache(new TestActionGraphBuilder());
+    estimator =
+        new CriticalPathEstimator(
+            new RuleDepsCache() {
+              @Override
+              public SortedSet<BuildRule> get(BuildRule rule) {
+                walked.add(rule);
+                return ruleDeps.get(rule);
+              }
+
+              @Override
+              public SortedSet<BuildRule> getRuntimeDeps(BuildRule rule) {
+                return ruleDeps.getRuntimeDeps(rule);
+              }
+            });
+    BuildRule leaf = new FakeBuildRule("//:leaf");
+    BuildRule shared = new FakeBuildRule("//:shared", leaf);
+    BuildRule slow = new FakeBuildRule("//:slow", shared);
+    BuildRule fast = new FakeBuildRule("//:fast", shared);
+    BuildRule slowest = new FakeBuildRule("//:slowest", shared);
+
+    estimator.recordHistoricalDuration(leaf, 1);
+    estimator.recordHistoricalDuration(shared, 10);
+    estimator.recordHistoricalDuration(slow, 100);
+    estimator.recordHistoricalDuration(fast, 1);
+    estimator.recordHistoricalDuration(slowest, 200);
+    estimator.computePriorities(ImmutableList.of(slow));
+    int sharedWalks = walked.count(shared);
+    int leafWalks = walked.count(leaf);
+    estimator.computePriorities(ImmutableList.of(fast));
+
+    assertEquals(sharedWalks, walked.count(shared));
+    assertEquals(leafWalks, walked.count(leaf));
+    assertEquals(110, estimator.getPriority(shared));
+    assertEquals(111, estimator.getPriority(leaf));
+
+    estimator.computePriorities(ImmutableList.of(slowest));
+
+    assertEquals(210, estimator.getPriority(shared));
+    assertEquals(211, estimator.getPriority(leaf));
+  }
+
+  @Test
+  public void rulesAreOrderedByDepthWithoutAnyHistory() {
+    BuildRule leaf = new FakeBuildRule("//:leaf");
+    BuildRule middle = new FakeBuildRule("//:middle", leaf);
+    BuildRule top = new FakeBuildRule("//:top", middle);
+    BuildRule unrelated = new FakeBuildRule("//:unrelated");
+    estimator.computePriorities(ImmutableList.of(top, unrelated));
+
+    assertTrue(estimator.getPriority(leaf) > estimator.getPriority(middle));
+    assertTrue(estimator.getPriority(middle) > estimator.getPriority(unrelated));
+    assertEquals(0, estimator.getPriority(new FakeBuildRule("//:not_in_build")));
+  }
+}
@@ -521,6 +521,76 @@ public class IncrementalActionGraphGeneratorTest {
     event = trackedEvents.take();
     assertTrue(event instanceof ActionGraphEvent.IncrementalLoad);
     assertEquals(1, ((ActionGraphEvent.IncrementalLoad) event).getReusedNodeCount());
+    assertEquals(1, ((ActionGraphEvent.IncrementalLoad) event).getReusedTargetNodeCount());
+    assertEquals(1, ((ActionGraphEvent.IncrementalLoad) event).getTargetNodeCount());
+  }
+
+  @Test
+  public void cachedRulesReusedAfterBuildWithoutThem() {
+    TargetNode<?, ?> node = createTargetNode("test1");
+    TargetNode<?, ?> otherNode = createTargetNode("test2");
+    setUpTargetGraphAndResolver(node);
+
+    generator.populateActionGraphBuilderWithCachedRules(eventBus, targetGraph, graphBuilder);
+    BuildRule buildRule = graphBuilder.requireRule(node.getBuildTarget());
+
+    setUpTargetGraphAndResolver(otherNode);
+    generator.populateActionGraphBuilderWithCachedRules(eventBus, targetGraph, graphBuilder);
+    graphBuilder.requireRule(otherNode.getBuildTarget());
+
+    setUpTargetGraphAndResolver(node);
+    generator.populateActionGraphBuilderWithCachedRules(eventBus, targetGraph, graphBuilder);
+    graphBuilder.requireRule(node.getBuildTarget());
+
+    assertSame(buildRule, graphBuilder.getRuleOptional(node.getBuildTarget()).get());
+  }
+
+  @Test
+  public void cachedRulesEvictedAfterMaxUnusedGenerations() {
+    generator = new IncrementalActionGraphGenerator(1);
+    TargetNode<?, ?> node = createTargetNode("test1");
+    TargetNode<?, ?> otherNode = createTargetNode("test2");
+    setUpTargetGraphAndResolver(node);
+
+    generator.populateActionGraphBuilderWithCachedRules(eventBus, targetGraph, graphBuilder);
+    BuildRule buildRule = graphBuilder.requireRule(node.getBuildTarget());
+
+    setUpTargetGraphAndResolver(otherNode);
+    generator.populateActionGraphBuilderWithCachedRules(eventBus, targetGraph, graphBuilder);
+    graphBuilder.requireRule(otherNode.getBuildTarget());
+
+    setUpTargetGraphAndResolver(node);
+    generator.populateActionGraphBuilderWithCachedRules(eventBus, targetGraph, graphBuilder);
+    graphBuilder.requireRule(node.getBuildTarget());
+
+    assertNotSame(buildRule, graphBuilder.getRuleOptional(node.getBuildTarget()).get());
+  }
+
+  @Test
+  public void cachedParentNotReusedWhenChildRulesRecreatedInBetween() {
+    TargetNode<?, ?> childNode = createTargetNode("child");
+    TargetNode<?, ?> parentNode = createTargetNode("parent", childNode);
+    TargetNode<?, ?> newChildNode = createTargetNode("child", "new_label");
+    setUpTargetGraphAndResolver(parentNode, childNode);
+
+    generator.populateActionGraphBuilderWithCachedRules(eventBus, targetGraph, graphBuilder);
+    BuildRule parentBuildRule = graphBuilder.requireRule(parentNode.getBuildTarget());
+
+    setUpTargetGraphAndResolver(newChildNode);
+    generator.populateActionGraphBuilderWithCachedRules(eventBus, targetGraph, graphBuilder);
+    graphBuilder.requireRule(newChildNode.getBuildTarget());
+
+    setUpTargetGraphAndResolver(childNode);
+    generator.populateActionGraphBuilderWithCachedRules(eventBus, targetGraph, graphBuilder);
+    BuildRule childBuildRule = graphBuilder.requireRule(childNode.getBuildTarget());
+
+    setUpTargetGraphAndResolver(parentNode, childNode);
+    generator.populateActionGraphBuilderWithCachedRules(eventBus, targetGraph, graphBuilder);
+    graphBuilder.requireRule(parentNode.getBuildTarget());
+
+    assertSame(childBuildRule, graphBuilder.getRuleOptional(childNode.getBuildTarget()).get());
+    assertNotSame(
+        parentBuildRule, graphBuilder.getRuleOptional(parentNode.getBuildTarget()).get());
   }
 
   private FakeTargetNodeBuilder createTargetNodeBuilder(String name) {
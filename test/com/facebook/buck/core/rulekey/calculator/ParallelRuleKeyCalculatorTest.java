@@ -0,0 +1,226 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.rulekey.calculator;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.core.build.engine.RuleDepsCache;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.keys.RuleKeyFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelRuleKeyCalculatorTest {
+
+  private static final RuleDepsCache RULE_DEPS =
+      new RuleDepsCache() {
+        @Override
+        public SortedSet<BuildRule> get(BuildRule rule) {
+          return rule.getBuildDeps();
+        }
+
+        @Override
+        public SortedSet<BuildRule> getRuntimeDeps(BuildRule rule) {
+          throw new UnsupportedOperationException();
+        }
+      };
+
+  private final BuckEventBus eventBus = BuckEventBusForTests.newInstance();
+  private ListeningExecutorService service;
+
+  @Before
+  public void setUp() {
+    service = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    service.shutdownNow();
+    service.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  /** Builds "keys" that are the comma-separated keys of the deps, recording the build order. */
+  private static class RecordingRuleKeyFactory implements RuleKeyFactory<String> {
+    private final Map<BuildRule, String> built = new ConcurrentHashMap<>();
+    private final Map<BuildRule, String> cached = new ConcurrentHashMap<>();
+    private final Set<BuildRule> failing = ConcurrentHashMap.newKeySet();
+    private final List<BuildRule> order = new ArrayList<>();
+
+    @Override
+    public String build(BuildRule buildRule) {
+      if (failing.contains(buildRule)) {
+        throw new IllegalStateException("failed " + buildRule.getBuildTarget());
+      }
+      StringBuilder key = new StringBuilder(buildRule.getBuildTarget().getShortName());
+      for (BuildRule dep : buildRule.getBuildDeps()) {
+        String depKey = built.containsKey(dep) ? built.get(dep) : cached.get(dep);
+        assertTrue("Deps must be calculated first.", depKey != null);
+        key.append('(').append(depKey).append(')');
+      }
+      synchronized (order) {
+        order.add(buildRule);
+      }
+      String result = key.toString();
+      assertEquals("Each rule key is built once.", null, built.put(buildRule, result));
+      return result;
+    }
+
+    @Override
+    public String getFromCache(BuildRule buildRule) {
+      return cached.get(buildRule);
+    }
+  }
+
+  private ParallelRuleKeyCalculator<String> newCalculator(RuleKeyFactory<String> factory) {
+    return new ParallelRuleKeyCalculator<>(service, factory, RULE_DEPS, (bus, rule) -> () -> {});
+  }
+
+  @Test
+  public void depsAreCalculatedBeforeDependents() throws Exception {
+    BuildRule leaf = new FakeBuildRule("//:leaf");
+    BuildRule left = new FakeBuildRule("//:left", leaf);
+    BuildRule right = new FakeBuildRule("//:right", leaf);
+    BuildRule root = new FakeBuildRule("//:root", left, right);
+
+    RecordingRuleKeyFactory factory = new RecordingRuleKeyFactory();
+    ParallelRuleKeyCalculator<String> calculator = newCalculator(factory);
+
+    assertEquals("root(left(leaf))(right(leaf))", calculator.calculate(eventBus, root).get());
+    assertEquals("left(leaf)", calculator.calculate(eventBus, left).get());
+    assertEquals(4, factory.order.size());
+    assertEquals(leaf, factory.order.get(0));
+    assertEquals(root, factory.order.get(3));
+    assertEquals(
+        ImmutableSet.of(
+            leaf.getBuildTarget(),
+            left.getBuildTarget(),
+            right.getBuildTarget(),
+            root.getBuildTarget()),
+        calculator.getAllKnownTargets());
+
+    ParallelRuleKeyCalculator.Stats stats = calculator.getStats();
+    assertEquals(4, stats.getCalculatedRuleKeys());
+    assertEquals(0, stats.getCachedRuleKeys());
+  }
+
+  @Test
+  public void wideGraphIsCalculatedConcurrently() throws Exception {
+    List<BuildRule> layer = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      layer.add(new FakeBuildRule("//:leaf" + i));
+    }
+    for (int depth = 0; depth < 5; depth++) {
+      List<BuildRule> next = new ArrayList<>();
+      for (int i = 0; i < layer.size(); i++) {
+        next.add(
+            new FakeBuildRule(
+                "//:rule" + depth + "_" + i,
+                layer.get(i),
+                layer.get((i + 1) % layer.size())));
+      }
+      layer = next;
+    }
+
+    RecordingRuleKeyFactory factory = new RecordingRuleKeyFactory();
+    ParallelRuleKeyCalculator<String> calculator = newCalculator(factory);
+    List<ListenableFuture<String>> futures = new ArrayList<>();
+    for (BuildRule rule : layer) {
+      futures.add(calculator.calculate(eventBus, rule));
+    }
+    Futures.allAsList(futures).get();
+
+    assertEquals(1200, factory.built.size());
+    assertEquals(1200, calculator.getStats().getCalculatedRuleKeys());
+  }
+
+  @Test
+  public void cachedRuleKeysAreNotRecalculated() throws Exception {
+    BuildRule leaf = new FakeBuildRule("//:leaf");
+    BuildRule root = new FakeBuildRule("//:root", leaf);
+
+    RecordingRuleKeyFactory factory = new RecordingRuleKeyFactory();
+    factory.cached.put(leaf, "cached");
+    ParallelRuleKeyCalculator<String> calculator = newCalculator(factory);
+
+    assertEquals("root(cached)", calculator.calculate(eventBus, root).get());
+    assertEquals(ImmutableList.of(root), factory.order);
+    assertEquals(1, calculator.getStats().getCachedRuleKeys());
+    assertEquals(1, calculator.getStats().getCalculatedRuleKeys());
+  }
+
+  @Test
+  public void failuresPropagateToDependents() throws Exception {
+    BuildRule leaf = new FakeBuildRule("//:leaf");
+    BuildRule middle = new FakeBuildRule("//:middle", leaf);
+    BuildRule root = new FakeBuildRule("//:root", middle);
+
+    RecordingRuleKeyFactory factory = new RecordingRuleKeyFactory();
+    factory.failing.add(leaf);
+    ParallelRuleKeyCalculator<String> calculator = newCalculator(factory);
+
+    try {
+      calculator.calculate(eventBus, root).get();
+      fail("Expected the failure of //:leaf to propagate.");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause().getMessage(), containsString("//:leaf"));
+    }
+    assertTrue(factory.built.isEmpty());
+  }
+
+  @Test
+  public void failuresPropagateThroughLongChainsOfDependents() throws Exception {
+    BuildRule leaf = new FakeBuildRule("//:leaf");
+    BuildRule root = leaf;
+    for (int i = 0; i < 100000; i++) {
+      root = new FakeBuildRule("//:rule" + i, root);
+    }
+
+    RecordingRuleKeyFactory factory = new RecordingRuleKeyFactory();
+    factory.failing.add(leaf);
+    ParallelRuleKeyCalculator<String> calculator = newCalculator(factory);
+
+    try {
+      calculator.calculate(eventBus, root).get(1, TimeUnit.MINUTES);
+      fail("Expected the failure of //:leaf to propagate.");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause().getMessage(), containsString("//:leaf"));
+    }
+  }
+}
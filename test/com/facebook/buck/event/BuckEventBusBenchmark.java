@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.util.timing.DefaultClock;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.eventbus.Subscribe;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures how many events per second an asynchronous {@link DefaultBuckEventBus} delivers when
+ * several threads post events, which listeners subscribe to by their own type or by a supertype.
+ * Each rep posts and delivers a single event.
+ */
+public class BuckEventBusBenchmark {
+  @Param({"1", "4", "16"})
+  private int postingThreads = 4;
+
+  @Param({"1", "10"})
+  private int listenerCount = 10;
+
+  private DefaultBuckEventBus eventBus;
+  private List<CountingListener> listeners;
+
+  @Before
+  public void setUpTest() {
+    setUpBenchmark();
+  }
+
+  @After
+  public void tearDownTest() throws IOException {
+    tearDownBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() {
+    eventBus =
+        new DefaultBuckEventBus(
+            new DefaultClock(),
+            true,
+            BuckEventBusForTests.BUILD_ID_FOR_TEST,
+            DefaultBuckEventBus.DEFAULT_SHUTDOWN_TIMEOUT_MS);
+    listeners = new ArrayList<>();
+    for (int i = 0; i < listenerCount; i++) {
+      CountingListener listener = new CountingListener();
+      eventBus.register(listener);
+      listeners.add(listener);
+    }
+  }
+
+  @AfterExperiment
+  public void tearDownBenchmark() throws IOException {
+    eventBus.close();
+  }
+
+  @Test
+  public void allPostedEventsAreDelivered() throws InterruptedException {
+    postEvents(10000);
+    for (CountingListener listener : listeners) {
+      assertEquals(10000, listener.benchmarkEvents.sum());
+      assertEquals(10000, listener.buckEvents.sum());
+    }
+  }
+
+  @Benchmark
+  public void postEvents(int reps) throws InterruptedException {
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < postingThreads; i++) {
+      int eventCount = reps / postingThreads + (i < reps % postingThreads ? 1 : 0);
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int j = 0; j < eventCount; j++) {
+                  // Timestamping events is not part of delivering them, so use fake timestamps.
+                  BenchmarkEvent event = new BenchmarkEvent();
+                  event.configure(j, j, 0, 0, BuckEventBusForTests.BUILD_ID_FOR_TEST);
+                  eventBus.postWithoutConfiguring(event);
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(eventBus.waitEvents(DefaultBuckEventBus.DEFAULT_SHUTDOWN_TIMEOUT_MS));
+  }
+
+  private static class BenchmarkEvent extends AbstractBuckEvent {
+    private BenchmarkEvent() {
+      super(EventKey.unique());
+    }
+
+    @Override
+    protected String getValueString() {
+      return "";
+    }
+
+    @Override
+    public String getEventName() {
+      return "BenchmarkEvent";
+    }
+  }
+
+  private static class CountingListener {
+    private final LongAdder benchmarkEvents = new LongAdder();
+    private final LongAdder buckEvents = new LongAdder();
+
+    @Subscribe
+    public void benchmarkEvent(BenchmarkEvent event) {
+      benchmarkEvents.increment();
+    }
+
+    @Subscribe
+    public void buckEvent(BuckEvent event) {
+      buckEvents.increment();
+    }
+  }
+}
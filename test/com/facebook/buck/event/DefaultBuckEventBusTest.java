@@ -24,8 +24,11 @@ import static org.junit.Assert.fail;
 
 import com.facebook.buck.util.timing.DefaultClock;
 import com.facebook.buck.util.timing.SettableFakeClock;
+import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.Subscribe;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 
@@ -115,6 +118,92 @@ public class DefaultBuckEventBusTest {
     assertEquals(event.getNanoTime(), 64738);
   }
 
+  @Test
+  public void eventsAreDeliveredInPostingOrderToSubscribersOfTheirSupertypes()
+      throws IOException {
+    DefaultBuckEventBus eb =
+        new DefaultBuckEventBus(
+            new DefaultClock(), true, BuckEventBusForTests.BUILD_ID_FOR_TEST, timeoutMillis);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    eb.register(subscriber);
+    TestEvent first = new TestEvent();
+    TestEvent second = new TestEvent();
+    eb.post(first);
+    eb.post(second);
+    eb.close();
+    assertEquals(
+        ImmutableList.of("test:" + first, "any:" + first, "test:" + second, "any:" + second),
+        subscriber.deliveries);
+  }
+
+  @Test
+  public void eventsPostedByListenersAreDeliveredBeforeClose() throws IOException {
+    DefaultBuckEventBus eb =
+        new DefaultBuckEventBus(
+            new DefaultClock(), true, BuckEventBusForTests.BUILD_ID_FOR_TEST, timeoutMillis);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    eb.register(subscriber);
+    eb.register(
+        new Object() {
+          @Subscribe
+          public void postTestEvent(SleepEvent event) {
+            eb.post(new TestEvent());
+          }
+        });
+    eb.post(new SleepEvent(1));
+    eb.close();
+    assertEquals(3, subscriber.deliveries.size());
+  }
+
+  @Test
+  public void listenersRegisteredTwiceGetEventsOnce() throws IOException {
+    DefaultBuckEventBus eb =
+        new DefaultBuckEventBus(
+            new DefaultClock(), false, BuckEventBusForTests.BUILD_ID_FOR_TEST, timeoutMillis);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    eb.register(subscriber);
+    eb.register(subscriber);
+    eb.post(new TestEvent());
+    eb.unregister(subscriber);
+    eb.post(new TestEvent());
+    eb.close();
+    assertEquals(2, subscriber.deliveries.size());
+  }
+
+  @Test
+  public void failingListenersDoNotKeepEventsFromOthers() throws IOException {
+    DefaultBuckEventBus eb =
+        new DefaultBuckEventBus(
+            new DefaultClock(), true, BuckEventBusForTests.BUILD_ID_FOR_TEST, timeoutMillis);
+    eb.register(
+        new Object() {
+          @Subscribe
+          public void fail(TestEvent event) {
+            throw new IllegalStateException("Listener failed.");
+          }
+        });
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    eb.register(subscriber);
+    eb.post(new TestEvent());
+    eb.post(new TestEvent());
+    eb.close();
+    assertEquals(4, subscriber.deliveries.size());
+  }
+
+  private static class RecordingSubscriber {
+    private final List<String> deliveries = new ArrayList<>();
+
+    @Subscribe
+    public void testEvent(TestEvent event) {
+      deliveries.add("test:" + event);
+    }
+
+    @Subscribe
+    public void anyEvent(BuckEvent event) {
+      deliveries.add("any:" + event);
+    }
+  }
+
   private static class SleepEvent extends AbstractBuckEvent {
     public final long milliseconds;
 
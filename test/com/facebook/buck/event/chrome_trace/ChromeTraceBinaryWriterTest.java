@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.facebook.buck.event.chrome_trace;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.event.chrome_trace.ChromeTraceEvent.Phase;
+import com.facebook.buck.util.json.ObjectMappers;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class ChromeTraceBinaryWriterTest {
+
+  private static final ImmutableList<ChromeTraceEvent> EVENTS =
+      ImmutableList.of(
+          new ChromeTraceEvent("buck", "build", Phase.BEGIN, 0, 12, 1000, 10, ImmutableMap.of()),
+          new ChromeTraceEvent(
+              "buck",
+              "//foo:bar",
+              Phase.BEGIN,
+              0,
+              13,
+              1500,
+              5,
+              ImmutableMap.<String, Object>builder()
+                  .put("rule_key", "abc")
+                  .put("count", 42)
+                  .put("ratio", 0.5)
+                  .put("cached", true)
+                  .put("list", ImmutableList.of("a", "b"))
+                  .build()),
+          new ChromeTraceEvent(
+              "buck", "//foo:bar", Phase.END, 0, 13, 900, 7, ImmutableMap.of("cached", false)),
+          new ChromeTraceEvent("buck", "build", Phase.END, 0, 12, 2000, 20, ImmutableMap.of()));
+
+  @Test
+  public void convertedBinaryTraceEqualsJsonTrace() throws Exception {
+    ByteArrayOutputStream binaryTrace = new ByteArrayOutputStream();
+    try (ChromeTraceBinaryWriter writer = new ChromeTraceBinaryWriter(binaryTrace)) {
+      writer.writeStart();
+      for (ChromeTraceEvent event : EVENTS) {
+        writer.writeEvent(event);
+      }
+      writer.writeEnd();
+    }
+
+    ByteArrayOutputStream convertedTrace = new ByteArrayOutputStream();
+    ChromeTraceBinaryReader.convertToJson(
+        new ByteArrayInputStream(binaryTrace.toByteArray()), convertedTrace);
+
+    assertEquals(readJson(writeJsonTrace()), readJson(convertedTrace.toByteArray()));
+  }
+
+  @Test
+  public void truncatedBinaryTraceIsConvertedUpToLastCompleteEvent() throws Exception {
+    ByteArrayOutputStream binaryTrace = new ByteArrayOutputStream();
+    ChromeTraceBinaryWriter writer = new ChromeTraceBinaryWriter(binaryTrace);
+    writer.writeStart();
+    writer.writeEvent(EVENTS.get(0));
+    writer.writeEvent(EVENTS.get(1));
+    writer.close();
+    byte[] truncatedTrace = Arrays.copyOf(binaryTrace.toByteArray(), binaryTrace.size() - 1);
+
+    ByteArrayOutputStream convertedTrace = new ByteArrayOutputStream();
+    ChromeTraceBinaryReader.convertToJson(
+        new ByteArrayInputStream(truncatedTrace), convertedTrace);
+
+    JsonNode events = readJson(convertedTrace.toByteArray());
+    assertEquals(1, events.size());
+    assertEquals("build", events.get(0).get("name").asText());
+  }
+
+  private static byte[] writeJsonTrace() throws Exception {
+    ByteArrayOutputStream jsonTrace = new ByteArrayOutputStream();
+    try (ChromeTraceWriter writer = new ChromeTraceWriter(jsonTrace)) {
+      writer.writeStart();
+      for (ChromeTraceEvent event : EVENTS) {
+        writer.writeEvent(event);
+      }
+      writer.writeEnd();
+    }
+    return jsonTrace.toByteArray();
+  }
+
+  private static JsonNode readJson(byte[] json) throws Exception {
+    return ObjectMappers.READER.readTree(new ByteArrayInputStream(json));
+  }
+}
@@ -19,7 +19,9 @@ package com.facebook.buck.event.chrome_trace;
 import static org.junit.Assert.assertEquals;
 
 import com.facebook.buck.config.FakeBuckConfig;
+import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.testutil.TemporaryPaths;
+import java.util.zip.Deflater;
 import org.junit.Rule;
 import org.junit.Test;
 
@@ -36,4 +38,33 @@ public class ChromeTraceBuckConfigTest {
             FakeBuckConfig.builder().setSections("[log]", "max_traces = 42").build());
     assertEquals(42, config.getMaxTraces());
   }
+
+  @Test
+  public void testTraceWriterSettings() {
+    ChromeTraceBuckConfig defaultConfig =
+        ChromeTraceBuckConfig.of(FakeBuckConfig.builder().build());
+    assertEquals(100000, defaultConfig.getTraceQueueSize());
+    assertEquals(Deflater.BEST_SPEED, defaultConfig.getTraceCompressionLevel());
+    assertEquals(ChromeTraceFormat.JSON, defaultConfig.getTraceFormat());
+
+    ChromeTraceBuckConfig config =
+        ChromeTraceBuckConfig.of(
+            FakeBuckConfig.builder()
+                .setSections(
+                    "[log]",
+                    "trace_queue_size = 1000",
+                    "trace_compression_level = 9",
+                    "trace_format = binary")
+                .build());
+    assertEquals(1000, config.getTraceQueueSize());
+    assertEquals(Deflater.BEST_COMPRESSION, config.getTraceCompressionLevel());
+    assertEquals(ChromeTraceFormat.BINARY, config.getTraceFormat());
+  }
+
+  @Test(expected = HumanReadableException.class)
+  public void testInvalidTraceCompressionLevel() {
+    ChromeTraceBuckConfig.of(
+            FakeBuckConfig.builder().setSections("[log]", "trace_compression_level = 10").build())
+        .getTraceCompressionLevel();
+  }
 }
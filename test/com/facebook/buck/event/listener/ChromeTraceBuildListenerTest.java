@@ -47,6 +47,7 @@ import com.facebook.buck.event.DefaultBuckEventBus;
 import com.facebook.buck.event.EventKey;
 import com.facebook.buck.event.PerfEventId;
 import com.facebook.buck.event.SimplePerfEvent;
+import com.facebook.buck.event.chrome_trace.ChromeTraceBinaryReader;
 import com.facebook.buck.event.chrome_trace.ChromeTraceBuckConfig;
 import com.facebook.buck.event.chrome_trace.ChromeTraceEvent;
 import com.facebook.buck.event.chrome_trace.ChromeTraceEvent.Phase;
@@ -73,7 +74,9 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Ordering;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
@@ -278,6 +281,49 @@ public class ChromeTraceBuildListenerTest {
         ImmutableSortedSet.copyOf(files));
   }
 
+  @Test
+  public void testDeleteFilesOfAllTraceFormats() throws IOException {
+    ProjectFilesystem projectFilesystem =
+        TestProjectFilesystems.createProjectFilesystem(tmpDir.getRoot().toPath());
+    projectFilesystem.mkdirs(invocationInfo.getLogDirectoryPath());
+
+    ImmutableList<String> extensions =
+        ImmutableList.of(".trace", ".trace.gz", ".trace.bin", ".trace.bin.gz");
+    for (int i = 0; i < 8; ++i) {
+      File oldResult =
+          new File(
+              String.format(
+                  "%s/build.100%d%s",
+                  invocationInfo.getLogDirectoryPath(), i, extensions.get(i % 4)));
+      oldResult.createNewFile();
+      oldResult.setLastModified(TimeUnit.SECONDS.toMillis(i));
+    }
+
+    ChromeTraceBuildListener listener =
+        new ChromeTraceBuildListener(
+            projectFilesystem,
+            invocationInfo,
+            FAKE_CLOCK,
+            Locale.US,
+            TimeZone.getTimeZone("America/Los_Angeles"),
+            ManagementFactory.getThreadMXBean(),
+            chromeTraceConfig(3, false));
+
+    listener.close();
+
+    assertEquals(
+        ImmutableSortedSet.of(
+            "build.1006.trace.bin",
+            "build.1007.trace.bin.gz",
+            "build.2014-09-02.16-55-51.BUILD_ID.trace"),
+        projectFilesystem
+            .getDirectoryContents(invocationInfo.getLogDirectoryPath())
+            .stream()
+            .map(path -> path.getFileName().toString())
+            .filter(name -> name.startsWith("build."))
+            .collect(ImmutableSortedSet.toImmutableSortedSet(Ordering.natural())));
+  }
+
   @Test
   public void testBuildJson() throws IOException {
     ProjectFilesystem projectFilesystem =
@@ -728,6 +774,67 @@ public class ChromeTraceBuildListenerTest {
     assertThat(elements, not(empty()));
   }
 
+  @Test
+  public void canWriteCompressedBinaryTraces() throws IOException {
+    ProjectFilesystem projectFilesystem =
+        TestProjectFilesystems.createProjectFilesystem(tmpDir.getRoot().toPath());
+
+    ChromeTraceBuildListener listener =
+        new ChromeTraceBuildListener(
+            projectFilesystem,
+            invocationInfo,
+            FAKE_CLOCK,
+            Locale.US,
+            TimeZone.getTimeZone("America/Los_Angeles"),
+            ManagementFactory.getThreadMXBean(),
+            ChromeTraceBuckConfig.of(
+                FakeBuckConfig.builder()
+                    .setSections("[log]", "compress_traces = true", "trace_format = binary")
+                    .build()));
+    listener.close();
+
+    Path tracePath = Paths.get(EXPECTED_DIR + "build.2014-09-02.16-55-51.BUILD_ID.trace.bin.gz");
+
+    assertTrue(projectFilesystem.exists(tracePath));
+
+    ByteArrayOutputStream jsonTrace = new ByteArrayOutputStream();
+    ChromeTraceBinaryReader.convertToJson(
+        new GZIPInputStream(projectFilesystem.newFileInputStream(tracePath)), jsonTrace);
+
+    List<Object> elements =
+        ObjectMappers.createParser(jsonTrace.toByteArray())
+            .readValueAs(new TypeReference<List<Object>>() {});
+    assertThat(elements, notNullValue());
+    assertThat(elements, not(empty()));
+  }
+
+  @Test
+  public void fullOutputQueueDoesNotDropEvents() throws IOException {
+    ProjectFilesystem projectFilesystem =
+        TestProjectFilesystems.createProjectFilesystem(tmpDir.getRoot().toPath());
+
+    ChromeTraceBuildListener listener =
+        new ChromeTraceBuildListener(
+            projectFilesystem,
+            invocationInfo,
+            FAKE_CLOCK,
+            Locale.US,
+            TimeZone.getTimeZone("America/Los_Angeles"),
+            ManagementFactory.getThreadMXBean(),
+            ChromeTraceBuckConfig.of(
+                FakeBuckConfig.builder().setSections("[log]", "trace_queue_size = 1").build()));
+    for (int i = 0; i < 1000; i++) {
+      listener.writeChromeTraceMetadataEvent("test", ImmutableMap.of("index", i));
+    }
+    listener.close();
+
+    List<ChromeTraceEvent> events =
+        ObjectMappers.readValue(
+            tmpDir.getRoot().toPath().resolve("buck-out").resolve("log").resolve("build.trace"),
+            new TypeReference<List<ChromeTraceEvent>>() {});
+    assertEquals(1000, events.stream().filter(event -> event.getName().equals("test")).count());
+  }
+
   private static ChromeTraceBuckConfig chromeTraceConfig(int tracesToKeep, boolean compressTraces) {
     return ChromeTraceBuckConfig.of(
         FakeBuckConfig.builder()
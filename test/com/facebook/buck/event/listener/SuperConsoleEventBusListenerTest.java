@@ -17,8 +17,10 @@
 package com.facebook.buck.event.listener;
 
 import static com.facebook.buck.event.TestEventConfigurator.configureTestEventAtTime;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 
@@ -34,6 +36,7 @@ import com.facebook.buck.core.build.engine.BuildRuleSuccessType;
 import com.facebook.buck.core.build.event.BuildEvent;
 import com.facebook.buck.core.build.event.BuildRuleEvent;
 import com.facebook.buck.core.build.stats.BuildRuleDurationTracker;
+import com.facebook.buck.core.model.BuildId;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.rulekey.BuildRuleKeys;
 import com.facebook.buck.core.rulekey.RuleKey;
@@ -79,7 +82,9 @@ import com.facebook.buck.test.result.type.ResultType;
 import com.facebook.buck.test.selectors.TestSelectorList;
 import com.facebook.buck.testutil.TemporaryPaths;
 import com.facebook.buck.testutil.TestConsole;
+import com.facebook.buck.util.Ansi;
 import com.facebook.buck.util.ExitCode;
+import com.facebook.buck.util.Verbosity;
 import com.facebook.buck.util.environment.DefaultExecutionEnvironment;
 import com.facebook.buck.util.json.ObjectMappers;
 import com.facebook.buck.util.timing.Clock;
@@ -2922,6 +2927,61 @@ public class SuperConsoleEventBusListenerTest {
             "Building... 0.1 sec"));
   }
 
+  @Test
+  public void onlyChangedLinesAreRenderedOnAnsiTerminals() {
+    Clock fakeClock = new IncrementingFakeClock(TimeUnit.SECONDS.toNanos(1));
+    BuckEventBus eventBus = BuckEventBusForTests.newInstance(fakeClock);
+    TestConsole console = new TestConsole(Verbosity.STANDARD_INFORMATION, Ansi.forceTty());
+    BuildId buildId = new BuildId("1234-5678");
+    String buildIdLine = SimpleConsoleEventBusListener.getBuildLogLine(buildId);
+
+    SuperConsoleEventBusListener listener =
+        new SuperConsoleEventBusListener(
+            emptySuperConsoleConfig,
+            console,
+            fakeClock,
+            silentSummaryVerbosity,
+            new DefaultExecutionEnvironment(
+                ImmutableMap.copyOf(System.getenv()), System.getProperties()),
+            Locale.US,
+            logPath,
+            timeZone,
+            0L,
+            0L,
+            1000L,
+            false,
+            Optional.of(buildId));
+    eventBus.register(listener);
+
+    ProjectBuildFileParseEvents.Started parseEventStarted =
+        new ProjectBuildFileParseEvents.Started();
+    eventBus.postWithoutConfiguring(
+        configureTestEventAtTime(parseEventStarted, 0L, TimeUnit.MILLISECONDS, /* threadId */ 0L));
+    listener.render();
+    String firstFrame = console.getTextWrittenToStdErr();
+    assertThat(firstFrame, containsString(buildIdLine));
+    assertThat(firstFrame, containsString("Parsing buck files..."));
+
+    // The elapsed time of parsing changed, but the build id line did not.
+    listener.render();
+    String secondFrame = console.getTextWrittenToStdErr().substring(firstFrame.length());
+    assertThat(secondFrame, containsString("Parsing buck files..."));
+    assertThat(secondFrame, not(containsString(buildIdLine)));
+
+    eventBus.postWithoutConfiguring(
+        configureTestEventAtTime(
+            new ProjectBuildFileParseEvents.Finished(parseEventStarted),
+            200L,
+            TimeUnit.MILLISECONDS,
+            /* threadId */ 0L));
+    listener.render();
+    String renderedText = console.getTextWrittenToStdErr();
+
+    // Nothing changed since the last frame, so nothing is rendered.
+    listener.render();
+    assertEquals(renderedText, console.getTextWrittenToStdErr());
+  }
+
   private SuperConsoleEventBusListener createSuperConsole(Clock clock, BuckEventBus eventBus) {
     SuperConsoleEventBusListener listener =
         new SuperConsoleEventBusListener(
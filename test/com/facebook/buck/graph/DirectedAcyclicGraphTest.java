@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.Set;
+import org.junit.Test;
+
+public class DirectedAcyclicGraphTest {
+
+  private static DirectedAcyclicGraph<String> diamond() {
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    graph.addEdge("A", "B");
+    graph.addEdge("A", "C");
+    graph.addEdge("B", "D");
+    graph.addEdge("C", "D");
+    graph.addNode("E");
+    return new DirectedAcyclicGraph<>(graph);
+  }
+
+  @Test
+  public void returnsEdgesOfEachNode() {
+    DirectedAcyclicGraph<String> graph = diamond();
+
+    assertEquals(ImmutableSet.of("A", "B", "C", "D", "E"), graph.getNodes());
+    assertEquals(ImmutableSet.of("B", "C"), graph.getOutgoingNodesFor("A"));
+    assertEquals(ImmutableSet.of("D"), graph.getOutgoingNodesFor("B"));
+    assertEquals(ImmutableSet.of(), graph.getOutgoingNodesFor("D"));
+    assertEquals(ImmutableSet.of("B", "C"), graph.getIncomingNodesFor("D"));
+    assertEquals(ImmutableSet.of("A"), graph.getIncomingNodesFor("C"));
+    assertEquals(ImmutableSet.of(), graph.getIncomingNodesFor("E"));
+    assertEquals(ImmutableSet.of(), graph.getOutgoingNodesFor("F"));
+    assertEquals(ImmutableSet.of("A", "E"), graph.getNodesWithNoIncomingEdges());
+    assertEquals(ImmutableSet.of("D", "E"), graph.getNodesWithNoOutgoingEdges());
+  }
+
+  @Test
+  public void adjacentNodesAreSets() {
+    DirectedAcyclicGraph<String> graph = diamond();
+    Set<String> outgoing = graph.getOutgoingNodesFor("A");
+
+    assertEquals(2, outgoing.size());
+    assertTrue(outgoing.contains("C"));
+    assertFalse(outgoing.contains("D"));
+    assertFalse(outgoing.contains("not in graph"));
+    assertEquals(ImmutableSet.of("C", "B").hashCode(), outgoing.hashCode());
+    assertTrue(graph.getIncomingNodesFor("D").containsAll(ImmutableSet.of("B", "C")));
+  }
+
+  @Test
+  public void graphsWithSameEdgesAreEqualRegardlessOfOrder() {
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    graph.addNode("E");
+    graph.addEdge("C", "D");
+    graph.addEdge("B", "D");
+    graph.addEdge("A", "C");
+    graph.addEdge("A", "B");
+
+    assertEquals(diamond(), new DirectedAcyclicGraph<>(graph));
+    assertEquals(diamond().hashCode(), new DirectedAcyclicGraph<>(graph).hashCode());
+
+    graph.removeEdge("B", "D");
+    graph.addEdge("B", "C");
+    assertNotEquals(diamond(), new DirectedAcyclicGraph<>(graph));
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.config.FakeBuckConfig;
+import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.core.cell.TestCellBuilder;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ParserStateSnapshotTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private Cell cell;
+  private Path snapshotPath;
+  private Path buildFile;
+  private Path includedFile;
+
+  @Before
+  public void setUp() throws InterruptedException {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    cell = new TestCellBuilder().setFilesystem(filesystem).build();
+    snapshotPath = tmp.getRoot().resolve("buck-out/parser_state");
+    buildFile = cell.getRoot().resolve("foo/BUCK");
+    includedFile = cell.getRoot().resolve("defs/macros.bzl");
+  }
+
+  private static ImmutableSet<Map<String, Object>> rawNodes() {
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("optional", null);
+    attributes.put("enabled", true);
+    return ImmutableSet.of(
+        ImmutableMap.<String, Object>builder()
+            .put("buck.base_path", "foo")
+            .put("buck.type", "java_library")
+            .put("name", "bar")
+            .put("srcs", ImmutableList.of("Bar.java", "Baz.java"))
+            .put("labels", ImmutableList.of())
+            .put("attributes", attributes)
+            .put("count", 42)
+            .put("size", 1L << 40)
+            .put("ratio", 0.5)
+            .build(),
+        ImmutableMap.of("buck.base_path", "foo", "buck.type", "genrule", "name", "bar"));
+  }
+
+  private DaemonicCellState populatedState() {
+    DaemonicCellState state = new DaemonicCellState(cell, 1);
+    state.putRawNodesIfNotPresentAndStripMetaEntries(
+        buildFile,
+        rawNodes(),
+        ImmutableSet.of(includedFile),
+        ImmutableMap.of("HOME", Optional.of("/home/user"), "UNSET", Optional.empty()));
+    return state;
+  }
+
+  private void save(DaemonicCellState state, String buckVersion) throws IOException {
+    new ParserStateSnapshot(
+            ImmutableMap.of("", "c:1234:5"),
+            ImmutableMap.of("", state.toSnapshot(ParserStateSnapshot.hashConfig(cell))))
+        .save(snapshotPath, buckVersion);
+  }
+
+  private DaemonicCellState restore() {
+    ParserStateSnapshot snapshot = ParserStateSnapshot.load(snapshotPath, "version").get();
+    assertEquals(ImmutableMap.of("", "c:1234:5"), snapshot.getWatchmanClocks());
+    ParserStateSnapshot.CellSnapshot cellSnapshot = snapshot.getCells().get("");
+    assertEquals(ParserStateSnapshot.hashConfig(cell), cellSnapshot.getConfigHash());
+    DaemonicCellState state = new DaemonicCellState(cell, 1);
+    state.restoreSnapshot(cellSnapshot);
+    return state;
+  }
+
+  @Test
+  public void restoresRawNodes() throws IOException {
+    save(populatedState(), "version");
+
+    DaemonicCellState state = restore();
+
+    assertEquals(Optional.of(rawNodes()), state.lookupRawNodes(buildFile));
+    assertEquals(
+        Optional.of(Arrays.asList("Bar.java", "Baz.java")),
+        state.lookupRawNodes(buildFile).map(nodes -> nodes.iterator().next().get("srcs")));
+  }
+
+  @Test
+  public void restoredRawNodesCanBeSavedAgainWithoutDecodingThem() throws IOException {
+    save(populatedState(), "version");
+    save(restore(), "version");
+
+    assertEquals(Optional.of(rawNodes()), restore().lookupRawNodes(buildFile));
+  }
+
+  @Test
+  public void savingKeepsOnlyTheNewestSnapshot() throws IOException {
+    save(populatedState(), "other-version");
+    save(populatedState(), "version");
+
+    try (Stream<Path> files = Files.list(snapshotPath.getParent())) {
+      assertEquals(
+          ImmutableList.of(snapshotPath.resolveSibling("parser_state.2")),
+          files.collect(ImmutableList.toImmutableList()));
+    }
+    assertEquals(Optional.of(rawNodes()), restore().lookupRawNodes(buildFile));
+  }
+
+  @Test
+  public void restoresDependentsAndEnvironment() throws IOException {
+    save(populatedState(), "version");
+
+    DaemonicCellState state = restore();
+
+    assertEquals(2, state.invalidatePath(includedFile));
+    assertEquals(Optional.empty(), state.lookupRawNodes(buildFile));
+
+    state = restore();
+    Cell cellWithOtherEnvironment =
+        new TestCellBuilder()
+            .setFilesystem(cell.getFilesystem())
+            .setBuckConfig(
+                FakeBuckConfig.builder()
+                    .setFilesystem(cell.getFilesystem())
+                    .setEnvironment(ImmutableMap.of("HOME", "/home/other"))
+                    .build())
+            .build();
+    assertTrue(state.invalidateIfEnvHasChanged(cellWithOtherEnvironment, buildFile).isPresent());
+    assertEquals(Optional.empty(), state.lookupRawNodes(buildFile));
+  }
+
+  @Test
+  public void ignoresSnapshotOfOtherBuckVersion() throws IOException {
+    save(populatedState(), "other-version");
+
+    assertFalse(ParserStateSnapshot.load(snapshotPath, "version").isPresent());
+  }
+
+  @Test
+  public void leavesOutBuildFilesWithUnsupportedValues() throws IOException {
+    DaemonicCellState state = populatedState();
+    Path otherBuildFile = cell.getRoot().resolve("other/BUCK");
+    state.putRawNodesIfNotPresentAndStripMetaEntries(
+        otherBuildFile,
+        ImmutableSet.of(
+            ImmutableMap.of("buck.base_path", "other", "name", "baz", "value", new Object())),
+        ImmutableSet.of(),
+        ImmutableMap.of());
+    save(state, "version");
+
+    DaemonicCellState restored = restore();
+
+    assertEquals(Optional.of(rawNodes()), restored.lookupRawNodes(buildFile));
+    assertEquals(Optional.empty(), restored.lookupRawNodes(otherBuildFile));
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.model.targetgraph.FakeTargetNodeBuilder;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TargetGraphIndexTest {
+
+  private TargetGraphIndex index;
+  private TargetNode<?, ?> lib;
+  private TargetNode<?, ?> util;
+  private TargetNode<?, ?> bin;
+  private TargetNode<?, ?> test;
+
+  @Before
+  public void setUp() {
+    index = new TargetGraphIndex();
+    util = FakeTargetNodeBuilder.newBuilder(BuildTargetFactory.newInstance("//util:util")).build();
+    lib =
+        FakeTargetNodeBuilder.newBuilder(BuildTargetFactory.newInstance("//lib:lib"))
+            .setDeps(util)
+            .build();
+    bin =
+        FakeTargetNodeBuilder.newBuilder(BuildTargetFactory.newInstance("//bin:bin"))
+            .setDeps(lib)
+            .build();
+    test =
+        FakeTargetNodeBuilder.newBuilder(BuildTargetFactory.newInstance("//util:test"))
+            .setDeps(util)
+            .build();
+    for (TargetNode<?, ?> node : ImmutableList.of(util, lib, bin, test)) {
+      index.addNode(node);
+    }
+  }
+
+  @Test
+  public void indexesEdgesInBothDirections() {
+    assertEquals(ImmutableSet.of(util), index.getOutgoingNodesFor(lib));
+    assertEquals(ImmutableSet.of(lib, test), index.getIncomingNodesFor(util));
+    assertEquals(Optional.of(bin), index.getNode(bin.getBuildTarget()));
+  }
+
+  @Test
+  public void nodesCannotBeAddedBeforeTheirDependencies() {
+    TargetGraphIndex emptyIndex = new TargetGraphIndex();
+
+    assertFalse(emptyIndex.addNode(lib));
+    assertFalse(emptyIndex.contains(lib.getBuildTarget()));
+  }
+
+  @Test
+  public void nodesCanBeAddedAgainOnceInvalidatedDependenciesAreAddedBack() {
+    index.invalidateTargets(ImmutableList.of(util.getBuildTarget()));
+
+    assertFalse(index.addNode(lib));
+    assertTrue(index.addNode(util));
+    assertTrue(index.addNode(lib));
+    assertEquals(ImmutableSet.of(lib), index.getIncomingNodesFor(util));
+  }
+
+  @Test
+  public void invalidatingTargetRemovesItsReverseDependencies() {
+    index.invalidateTargets(ImmutableList.of(lib.getBuildTarget()));
+
+    assertFalse(index.contains(lib.getBuildTarget()));
+    assertFalse(index.contains(bin.getBuildTarget()));
+    assertTrue(index.contains(util.getBuildTarget()));
+    assertTrue(index.contains(test.getBuildTarget()));
+    assertEquals(ImmutableSet.of(test), index.getIncomingNodesFor(util));
+  }
+
+  @Test
+  public void invalidatingBuildFileRemovesItsNodes() {
+    Path buildFile = Paths.get("/project/util/BUCK");
+    index.putBuildFileNodes(buildFile, ImmutableSet.of(util, test));
+    assertEquals(Optional.of(ImmutableSet.of(util, test)), index.getBuildFileNodes(buildFile));
+
+    index.invalidateBuildFile(buildFile);
+    assertEquals(Optional.empty(), index.getBuildFileNodes(buildFile));
+  }
+
+  @Test
+  public void invalidateAllEmptiesTheIndex() {
+    index.invalidateAll();
+
+    assertFalse(index.contains(util.getBuildTarget()));
+    index.addNode(util);
+    assertEquals(ImmutableSet.of(), index.getIncomingNodesFor(util));
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.coercer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.facebook.buck.core.cell.TestCellPathResolver;
+import com.facebook.buck.core.cell.resolver.CellPathResolver;
+import com.facebook.buck.core.sourcepath.PathSourcePath;
+import com.facebook.buck.core.sourcepath.SourcePath;
+import com.facebook.buck.core.sourcepath.SourceWithFlags;
+import com.facebook.buck.rules.FakeSourcePath;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CoercedValueInternerTest {
+  private FakeProjectFilesystem projectFilesystem;
+  private CellPathResolver cellRoots;
+  private final Path pathRelativeToProjectRoot = Paths.get("");
+
+  @Before
+  public void setUp() {
+    projectFilesystem = new FakeProjectFilesystem();
+    cellRoots = TestCellPathResolver.get(projectFilesystem);
+  }
+
+  @Test
+  public void equalListsAreShared() throws CoerceFailedException {
+    ListTypeCoercer<String> coercer =
+        new ListTypeCoercer<>(new IdentityTypeCoercer<>(String.class));
+
+    ImmutableList<String> flags =
+        coercer.coerce(
+            cellRoots,
+            projectFilesystem,
+            pathRelativeToProjectRoot,
+            ImmutableList.of("-DFOO", "-O2"));
+    ImmutableList<String> sameFlags =
+        coercer.coerce(
+            cellRoots,
+            projectFilesystem,
+            pathRelativeToProjectRoot,
+            ImmutableList.of("-DFOO", "-O2"));
+    ImmutableList<String> otherFlags =
+        coercer.coerce(
+            cellRoots,
+            projectFilesystem,
+            pathRelativeToProjectRoot,
+            ImmutableList.of("-O2", "-DFOO"));
+
+    assertSame(flags, sameFlags);
+    assertNotSame(flags, otherFlags);
+  }
+
+  @Test
+  public void equalSortedSetsOfSourcePathsAreShared() throws CoerceFailedException {
+    SortedSetTypeCoercer<SourcePath> coercer =
+        new SortedSetTypeCoercer<>(
+            new SourcePathTypeCoercer(
+                new BuildTargetTypeCoercer(),
+                new PathTypeCoercer(PathTypeCoercer.PathExistenceVerificationMode.DO_NOT_VERIFY)));
+
+    ImmutableSortedSet<SourcePath> srcs =
+        coercer.coerce(
+            cellRoots,
+            projectFilesystem,
+            pathRelativeToProjectRoot,
+            ImmutableList.of("//:lib", "//:other"));
+    ImmutableSortedSet<SourcePath> sameSrcs =
+        coercer.coerce(
+            cellRoots,
+            projectFilesystem,
+            pathRelativeToProjectRoot,
+            ImmutableList.of("//:other", "//:lib"));
+
+    assertSame(srcs, sameSrcs);
+    assertSame(srcs.first(), sameSrcs.first());
+  }
+
+  @Test
+  public void listsOfPathSourcePathsAreNotShared() throws CoerceFailedException {
+    ListTypeCoercer<SourcePath> coercer =
+        new ListTypeCoercer<>(
+            new SourcePathTypeCoercer(
+                new BuildTargetTypeCoercer(),
+                new PathTypeCoercer(PathTypeCoercer.PathExistenceVerificationMode.DO_NOT_VERIFY)));
+    // Has the same root, so its paths are equal to those of the other filesystem.
+    FakeProjectFilesystem otherFilesystem = new FakeProjectFilesystem();
+
+    ImmutableList<SourcePath> srcs =
+        coercer.coerce(
+            cellRoots, projectFilesystem, pathRelativeToProjectRoot, ImmutableList.of("Foo.java"));
+    ImmutableList<SourcePath> otherSrcs =
+        coercer.coerce(
+            cellRoots, otherFilesystem, pathRelativeToProjectRoot, ImmutableList.of("Foo.java"));
+
+    assertEquals(srcs, otherSrcs);
+    assertNotSame(srcs, otherSrcs);
+    assertSame(otherFilesystem, ((PathSourcePath) otherSrcs.get(0)).getFilesystem());
+  }
+
+  @Test
+  public void collectionsOfUnsortedSetsAreNotShared() {
+    ImmutableList<ImmutableSet<String>> labels = ImmutableList.of(ImmutableSet.of("a", "b"));
+    ImmutableList<ImmutableSet<String>> reorderedLabels =
+        ImmutableList.of(ImmutableSet.of("b", "a"));
+
+    assertSame(labels, CoercedValueInterner.INSTANCE.intern(labels));
+    assertSame(reorderedLabels, CoercedValueInterner.INSTANCE.intern(reorderedLabels));
+    ImmutableSet<String> set = ImmutableSet.of("c", "d");
+    assertSame(set, CoercedValueInterner.INSTANCE.intern(set));
+  }
+
+  @Test
+  public void sortedSetsOfSourcesWithFlagsAreNotShared() throws CoerceFailedException {
+    SortedSetTypeCoercer<SourceWithFlags> coercer =
+        new SortedSetTypeCoercer<>(
+            new SourceWithFlagsTypeCoercer(
+                new SourcePathTypeCoercer(
+                    new BuildTargetTypeCoercer(),
+                    new PathTypeCoercer(
+                        PathTypeCoercer.PathExistenceVerificationMode.DO_NOT_VERIFY)),
+                new ListTypeCoercer<>(new IdentityTypeCoercer<>(String.class))));
+    FakeProjectFilesystem otherFilesystem = new FakeProjectFilesystem();
+
+    ImmutableSortedSet<SourceWithFlags> srcs =
+        coercer.coerce(
+            cellRoots, projectFilesystem, pathRelativeToProjectRoot, ImmutableList.of("Foo.cpp"));
+    ImmutableSortedSet<SourceWithFlags> otherSrcs =
+        coercer.coerce(
+            cellRoots, otherFilesystem, pathRelativeToProjectRoot, ImmutableList.of("Foo.cpp"));
+
+    assertEquals(srcs, otherSrcs);
+    assertNotSame(srcs, otherSrcs);
+    assertSame(
+        otherFilesystem, ((PathSourcePath) otherSrcs.first().getSourcePath()).getFilesystem());
+  }
+
+  @Test
+  public void valuesWrappingPathSourcePathsAreNotShared() {
+    PathSourcePath path = FakeSourcePath.of(projectFilesystem, "Foo.java");
+    Optional<SourcePath> optionalPath = Optional.of(path);
+    ImmutableList<Pair<String, SourcePath>> namedPaths =
+        ImmutableList.of(new Pair<>("foo", path));
+
+    assertSame(optionalPath, CoercedValueInterner.INSTANCE.intern(optionalPath));
+    assertSame(namedPaths, CoercedValueInterner.INSTANCE.intern(namedPaths));
+  }
+
+  @Test
+  public void statsCountSharedValues() {
+    CoercedValueInterner interner = new CoercedValueInterner();
+
+    ImmutableList<String> first = interner.intern(ImmutableList.of("a"));
+    ImmutableList<String> second = interner.intern(ImmutableList.of("a"));
+    interner.intern(ImmutableList.of("b"));
+
+    String key = first.getClass().getName();
+    assertSame(first, second);
+    assertEquals(3, interner.getStats().get(key).getRequestCount());
+    assertEquals(1, interner.getStats().get(key).getHitCount());
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.rules.impl.NoopBuildRuleWithDeclaredAndExtraDeps;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.TestBuildRuleParams;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.util.cache.CacheStats;
+import com.facebook.buck.util.cache.InstrumentingCacheStatsTracker;
+import com.google.common.collect.ImmutableList;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+public class CompactRuleKeyCacheTest {
+
+  private static final ProjectFilesystem FILESYSTEM = new FakeProjectFilesystem();
+
+  @Test
+  public void testCacheRule() {
+    CompactRuleKeyCache<String> internalCache = new CompactRuleKeyCache<>();
+    TrackedRuleKeyCache<String> cache =
+        new TrackedRuleKeyCache<>(internalCache, new InstrumentingCacheStatsTracker());
+    TestRule rule = new TestRule();
+    assertThat(
+        cache.get(rule, r -> new RuleKeyResult<>("result", ImmutableList.of(), ImmutableList.of())),
+        Matchers.equalTo("result"));
+    assertTrue(internalCache.isCached(rule));
+    assertThat(
+        cache.get(
+            rule,
+            r -> {
+              throw new IllegalStateException();
+            }),
+        Matchers.equalTo("result"));
+  }
+
+  @Test
+  public void invalidatingDiamondDependencyWorksCorrectly() {
+    // A -> B
+    // |    |
+    // v    v
+    // C -> D
+
+    RuleKeyInput input = RuleKeyInput.of(FILESYSTEM, FILESYSTEM.getPath("input"));
+    RuleKeyInput otherInput = RuleKeyInput.of(FILESYSTEM, FILESYSTEM.getPath("other"));
+    TestRule ruleA = new TestRule();
+    TestRule ruleB = new TestRule();
+    TestRule ruleC = new TestRule();
+    TestRule ruleD = new TestRule();
+
+    CompactRuleKeyCache<String> internalCache = new CompactRuleKeyCache<>();
+    TrackedRuleKeyCache<String> cache =
+        new TrackedRuleKeyCache<>(internalCache, new InstrumentingCacheStatsTracker());
+    cache.get(ruleA, r -> new RuleKeyResult<>("", ImmutableList.of(), ImmutableList.of(input)));
+    cache.get(ruleB, r -> new RuleKeyResult<>("", ImmutableList.of(ruleA), ImmutableList.of()));
+    cache.get(
+        ruleC, r -> new RuleKeyResult<>("", ImmutableList.of(ruleA), ImmutableList.of(otherInput)));
+    cache.get(
+        ruleD, r -> new RuleKeyResult<>("", ImmutableList.of(ruleB, ruleC), ImmutableList.of()));
+
+    cache.invalidateInputs(ImmutableList.of(otherInput));
+    assertTrue(internalCache.isCached(ruleA));
+    assertTrue(internalCache.isCached(ruleB));
+    assertFalse(internalCache.isCached(ruleC));
+    assertFalse(internalCache.isCached(ruleD));
+
+    cache.invalidateInputs(ImmutableList.of(input));
+    assertFalse(internalCache.isCached(ruleA));
+    assertFalse(internalCache.isCached(ruleB));
+    assertThat(cache.getStats().getEvictionCount().get(), Matchers.equalTo(4L));
+  }
+
+  @Test
+  public void invalidatingFilesystemOnlyEvictsItsInputs() {
+    ProjectFilesystem otherFilesystem = new FakeProjectFilesystem(Paths.get("/other"));
+    CompactRuleKeyCache<String> internalCache = new CompactRuleKeyCache<>();
+    TrackedRuleKeyCache<String> cache =
+        new TrackedRuleKeyCache<>(internalCache, new InstrumentingCacheStatsTracker());
+    TestRule rule = new TestRule();
+    TestRule otherRule = new TestRule();
+    cache.get(
+        rule,
+        r ->
+            new RuleKeyResult<>(
+                "",
+                ImmutableList.of(),
+                ImmutableList.of(RuleKeyInput.of(FILESYSTEM, FILESYSTEM.getPath("input")))));
+    cache.get(
+        otherRule,
+        r ->
+            new RuleKeyResult<>(
+                "",
+                ImmutableList.of(),
+                ImmutableList.of(
+                    RuleKeyInput.of(otherFilesystem, otherFilesystem.getPath("input")))));
+
+    cache.invalidateFilesystem(FILESYSTEM);
+    assertFalse(internalCache.isCached(rule));
+    assertTrue(internalCache.isCached(otherRule));
+  }
+
+  @Test
+  public void invalidatedRuleIsRecomputed() {
+    CompactRuleKeyCache<String> internalCache = new CompactRuleKeyCache<>();
+    TrackedRuleKeyCache<String> cache =
+        new TrackedRuleKeyCache<>(internalCache, new InstrumentingCacheStatsTracker());
+    RuleKeyInput input = RuleKeyInput.of(FILESYSTEM, FILESYSTEM.getPath("input"));
+    TestRule rule = new TestRule();
+    cache.get(rule, r -> new RuleKeyResult<>("old", ImmutableList.of(), ImmutableList.of(input)));
+    cache.invalidateInputs(ImmutableList.of(input));
+    assertThat(
+        cache.get(
+            rule, r -> new RuleKeyResult<>("new", ImmutableList.of(), ImmutableList.of(input))),
+        Matchers.equalTo("new"));
+
+    // The input must still be tracked for the recomputed rule.
+    cache.invalidateInputs(ImmutableList.of(input));
+    assertFalse(internalCache.isCached(rule));
+  }
+
+  @Test
+  public void boundedCacheEvictsUnreferencedRulesWithTheirDependents() {
+    CompactRuleKeyCache<String> internalCache = new CompactRuleKeyCache<>(10);
+    TrackedRuleKeyCache<String> cache =
+        new TrackedRuleKeyCache<>(internalCache, new InstrumentingCacheStatsTracker());
+
+    List<TestRule> deps = new ArrayList<>();
+    List<TestRule> dependents = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      TestRule dep = new TestRule();
+      TestRule dependent = new TestRule();
+      deps.add(dep);
+      dependents.add(dependent);
+      cache.get(dep, r -> new RuleKeyResult<>("", ImmutableList.of(), ImmutableList.of()));
+      cache.get(
+          dependent, r -> new RuleKeyResult<>("", ImmutableList.of(dep), ImmutableList.of()));
+    }
+    // Nothing is evicted while rule keys are being computed.
+    assertThat(cache.getStats().getNumberEntries().get(), Matchers.equalTo(40L));
+
+    cache.evictToCapacity();
+    CacheStats stats = cache.getStats();
+    assertThat(stats.getNumberEntries().get(), Matchers.lessThanOrEqualTo(10L));
+    assertThat(stats.getEvictionCount().get(), Matchers.greaterThan(0L));
+    for (int i = 0; i < deps.size(); i++) {
+      // A rule must never outlive the cached key of its dependency.
+      if (!internalCache.isCached(deps.get(i))) {
+        assertFalse(internalCache.isCached(dependents.get(i)));
+      }
+    }
+  }
+
+  @Test
+  public void rulesUsedSinceThePreviousSweepSurviveEviction() {
+    CompactRuleKeyCache<String> internalCache = new CompactRuleKeyCache<>(10);
+    TrackedRuleKeyCache<String> cache =
+        new TrackedRuleKeyCache<>(internalCache, new InstrumentingCacheStatsTracker());
+
+    List<TestRule> rules = new ArrayList<>();
+    for (int i = 0; i < 11; i++) {
+      TestRule rule = new TestRule();
+      rules.add(rule);
+      cache.get(rule, r -> new RuleKeyResult<>("", ImmutableList.of(), ImmutableList.of()));
+    }
+    cache.evictToCapacity();
+    TestRule survivor = rules.stream().filter(internalCache::isCached).findFirst().get();
+
+    // The next build uses one of the survivors and adds new rules, which makes the other survivors
+    // the coldest entries.
+    cache.get(
+        survivor,
+        r -> {
+          throw new IllegalStateException();
+        });
+    List<TestRule> newRules = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      TestRule rule = new TestRule();
+      newRules.add(rule);
+      cache.get(rule, r -> new RuleKeyResult<>("", ImmutableList.of(), ImmutableList.of()));
+    }
+    cache.evictToCapacity();
+
+    assertThat(cache.getStats().getNumberEntries().get(), Matchers.lessThanOrEqualTo(10L));
+    assertTrue(internalCache.isCached(survivor));
+    for (TestRule rule : newRules) {
+      assertTrue(internalCache.isCached(rule));
+    }
+  }
+
+  @Test
+  public void sizeIsReportedInStats() {
+    CompactRuleKeyCache<String> internalCache = new CompactRuleKeyCache<>();
+    TrackedRuleKeyCache<String> cache =
+        new TrackedRuleKeyCache<>(internalCache, new InstrumentingCacheStatsTracker());
+    RuleKeyInput input = RuleKeyInput.of(FILESYSTEM, FILESYSTEM.getPath("input"));
+    TestRule dep = new TestRule();
+    TestRule rule = new TestRule();
+    cache.get(dep, r -> new RuleKeyResult<>("", ImmutableList.of(), ImmutableList.of(input)));
+    cache.get(rule, r -> new RuleKeyResult<>("", ImmutableList.of(dep), ImmutableList.of()));
+
+    CacheStats stats = cache.getStats();
+    assertThat(stats.getNumberEntries().get(), Matchers.equalTo(2L));
+    long size = stats.getEstimatedSizeBytes().get();
+    assertThat(size, Matchers.greaterThan(0L));
+
+    cache.invalidateAll();
+    stats = cache.getStats();
+    assertThat(stats.getNumberEntries().get(), Matchers.equalTo(0L));
+    assertThat(stats.getEstimatedSizeBytes().get(), Matchers.lessThan(size));
+  }
+
+  private static class TestRule extends NoopBuildRuleWithDeclaredAndExtraDeps {
+
+    private TestRule() {
+      super(
+          BuildTargetFactory.newInstance("//:rule"),
+          new FakeProjectFilesystem(),
+          TestBuildRuleParams.create());
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.rulekey.AddsToRuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.SourcePathRuleFinder;
+import com.facebook.buck.core.rules.resolver.impl.TestActionGraphBuilder;
+import com.facebook.buck.core.sourcepath.PathSourcePath;
+import com.facebook.buck.core.sourcepath.SourcePath;
+import com.facebook.buck.core.sourcepath.resolver.SourcePathResolver;
+import com.facebook.buck.core.sourcepath.resolver.impl.DefaultSourcePathResolver;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.rules.keys.hasher.GuavaRuleKeyHasher;
+import com.facebook.buck.rules.keys.hasher.RuleKeyHasher;
+import com.facebook.buck.rules.keys.hasher.Sha1RuleKeyHasher;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the cost of feeding a typical mix of rule key fields through a {@link RuleKeyBuilder}
+ * backed by {@link GuavaRuleKeyHasher} against one backed by {@link Sha1RuleKeyHasher}.
+ */
+public class RuleKeyBuilderBenchmark {
+  @Param({"guava", "sha1"})
+  private String hasherType = "sha1";
+
+  @Param({"10", "100", "1000"})
+  private int fieldCount = 100;
+
+  private static final Random random = new Random(4242);
+
+  private SourcePathRuleFinder ruleFinder;
+  private SourcePathResolver resolver;
+  private FakeFileHashCache hashCache;
+  private ImmutableList<SourcePath> sourcePaths;
+  private ImmutableList<String> strings;
+  private ImmutableSortedMap<String, String> environment;
+
+  @Before
+  public void setUpTest() {
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    ruleFinder = new SourcePathRuleFinder(new TestActionGraphBuilder());
+    resolver = DefaultSourcePathResolver.from(ruleFinder);
+
+    Map<Path, HashCode> hashes = new HashMap<>();
+    ImmutableList.Builder<SourcePath> sourcePathsBuilder = ImmutableList.builder();
+    ImmutableList.Builder<String> stringsBuilder = ImmutableList.builder();
+    ImmutableSortedMap.Builder<String, String> environmentBuilder =
+        ImmutableSortedMap.naturalOrder();
+    for (int i = 0; i < fieldCount; i++) {
+      Path path = Paths.get("some/package", "File" + i + ".java");
+      hashes.put(filesystem.resolve(path), Hashing.sha1().hashInt(random.nextInt()));
+      sourcePathsBuilder.add(PathSourcePath.of(filesystem, path));
+      stringsBuilder.add("-Dflag" + i + "=" + random.nextInt());
+      environmentBuilder.put("VAR_" + i, "value-" + random.nextLong());
+    }
+    hashCache = new FakeFileHashCache(hashes);
+    sourcePaths = sourcePathsBuilder.build();
+    strings = stringsBuilder.build();
+    environment = environmentBuilder.build();
+  }
+
+  @Test
+  public void hashersProduceTheSameRuleKey() {
+    hasherType = "guava";
+    HashCode guavaKey = buildRuleKey();
+    hasherType = "sha1";
+    assertEquals(guavaKey, buildRuleKey());
+  }
+
+  @Benchmark
+  public void buildRuleKeys(int reps) {
+    for (int i = 0; i < reps; i++) {
+      buildRuleKey();
+    }
+  }
+
+  private HashCode buildRuleKey() {
+    RuleKeyBuilder<HashCode> builder = newBuilder(newHasher());
+    builder.setReflectively("name", "//some/package:target");
+    builder.setReflectively("srcs", sourcePaths);
+    builder.setReflectively("flags", strings);
+    builder.setReflectively("env", environment);
+    builder.setReflectively("optimization_level", Optional.of(fieldCount));
+    builder.setReflectively("debug", false);
+    for (int i = 0; i < fieldCount; i++) {
+      builder.setReflectively("field" + (i % 10), i);
+    }
+    return builder.build();
+  }
+
+  private RuleKeyHasher<HashCode> newHasher() {
+    switch (hasherType) {
+      case "guava":
+        return new GuavaRuleKeyHasher(Hashing.sha1().newHasher());
+      case "sha1":
+        return new Sha1RuleKeyHasher();
+      default:
+        throw new IllegalArgumentException("Unknown hasher type: " + hasherType);
+    }
+  }
+
+  private RuleKeyBuilder<HashCode> newBuilder(RuleKeyHasher<HashCode> hasher) {
+    return new RuleKeyBuilder<HashCode>(ruleFinder, resolver, hashCache, hasher) {
+      @Override
+      protected RuleKeyBuilder<HashCode> setBuildRule(BuildRule rule) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      protected RuleKeyBuilder<HashCode> setAddsToRuleKey(AddsToRuleKey appendable) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      protected RuleKeyBuilder<HashCode> setSourcePath(SourcePath sourcePath) throws IOException {
+        return setSourcePathDirectly(sourcePath);
+      }
+
+      @Override
+      protected RuleKeyBuilder<HashCode> setNonHashingSourcePath(SourcePath sourcePath) {
+        return setNonHashingSourcePathDirectly(sourcePath);
+      }
+    };
+  }
+}
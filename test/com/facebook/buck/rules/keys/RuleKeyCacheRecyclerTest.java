@@ -189,4 +189,23 @@ public class RuleKeyCacheRecyclerTest {
         c -> {});
     assertFalse(cache.isCached(appendable));
   }
+
+  @Test
+  public void boundedCacheIsEvictedOnlyOnceTheBuildIsDone() {
+    CompactRuleKeyCache<String> cache = new CompactRuleKeyCache<>(1);
+    RuleKeyCacheRecycler<String> recycler =
+        RuleKeyCacheRecycler.createAndRegister(EVENT_BUS, cache, ImmutableSet.of(FILESYSTEM));
+    AddsToRuleKey appendable1 = new AddsToRuleKey() {};
+    AddsToRuleKey appendable2 = new AddsToRuleKey() {};
+    recycler.withRecycledCache(
+        BUCK_EVENT_BUS,
+        SETTINGS,
+        c -> {
+          c.get(appendable1, a -> new RuleKeyResult<>("", ImmutableList.of(), ImmutableList.of()));
+          c.get(appendable2, a -> new RuleKeyResult<>("", ImmutableList.of(), ImmutableList.of()));
+          assertTrue(cache.isCached(appendable1));
+          assertTrue(cache.isCached(appendable2));
+        });
+    assertFalse(cache.isCached(appendable1) && cache.isCached(appendable2));
+  }
 }
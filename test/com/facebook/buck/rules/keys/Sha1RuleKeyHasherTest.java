@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.rules.keys.hasher.GuavaRuleKeyHasher;
+import com.facebook.buck.rules.keys.hasher.RuleKeyHasher;
+import com.facebook.buck.rules.keys.hasher.Sha1RuleKeyHasher;
+import com.facebook.buck.util.sha1.Sha1HashCode;
+import com.google.common.base.Strings;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.nio.file.Paths;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@SuppressWarnings("PMD.TestClassWithoutTestCases")
+@RunWith(Enclosed.class)
+public class Sha1RuleKeyHasherTest {
+
+  @RunWith(Parameterized.class)
+  public static class UniquenessTest extends CommonRuleKeyHasherTest.UniquenessTest<HashCode> {
+    @Parameters(name = "{0} != {2}")
+    public static Iterable<Object[]> cases() {
+      return CommonRuleKeyHasherTest.uniquenessTestCases(Sha1RuleKeyHasher::new);
+    }
+  }
+
+  public static class ConsistencyTest extends CommonRuleKeyHasherTest.ConsistencyTest<HashCode> {
+
+    @Override
+    protected Sha1RuleKeyHasher newHasher() {
+      return new Sha1RuleKeyHasher();
+    }
+  }
+
+  public static class CompatibilityTest {
+
+    private static void assertSameAsGuava(
+        Function<RuleKeyHasher<HashCode>, RuleKeyHasher<HashCode>> addToHash) {
+      assertEquals(
+          addToHash.apply(new GuavaRuleKeyHasher(Hashing.sha1().newHasher())).hash(),
+          addToHash.apply(new Sha1RuleKeyHasher()).hash());
+    }
+
+    @Test
+    public void primitivesHashSameAsGuava() {
+      assertSameAsGuava(h -> h);
+      assertSameAsGuava(h -> h.putNull().putBoolean(true).putBoolean(false));
+      assertSameAsGuava(h -> h.putCharacter('a').putCharacter('ሴ'));
+      assertSameAsGuava(
+          h ->
+              h.putNumber(42)
+                  .putNumber(-42L)
+                  .putNumber((short) 7)
+                  .putNumber((byte) -1)
+                  .putNumber(4.2f)
+                  .putNumber(Double.NaN));
+      assertSameAsGuava(h -> h.putBytes(new byte[] {1, 2, 3}).putBytes(new byte[0]));
+      assertSameAsGuava(
+          h ->
+              h.putContainer(RuleKeyHasher.Container.LIST, 3)
+                  .putWrapper(RuleKeyHasher.Wrapper.OPTIONAL));
+    }
+
+    @Test
+    public void stringsHashSameAsGuava() {
+      assertSameAsGuava(h -> h.putKey("").putString(""));
+      assertSameAsGuava(h -> h.putKey("key").putString("ascii"));
+      assertSameAsGuava(h -> h.putString("éࠀ￿"));
+      assertSameAsGuava(h -> h.putString("😀 surrogate pair"));
+      assertSameAsGuava(h -> h.putString("unpaired \ud83d and \ude00 surrogates \ud83d"));
+      assertSameAsGuava(h -> h.putPattern(Pattern.compile("[a-z]+\\.java")));
+    }
+
+    @Test
+    public void valuesLargerThanTheBufferHashSameAsGuava() {
+      String longString = Strings.repeat("0123456789é", 1000);
+      byte[] longBytes = longString.getBytes();
+      assertSameAsGuava(h -> h.putString(longString).putBytes(longBytes).putString(longString));
+    }
+
+    @Test
+    public void hashesHashSameAsGuava() {
+      HashCode hash = Hashing.sha1().hashInt(42);
+      assertSameAsGuava(
+          h ->
+              h.putPath(Paths.get("foo/bar.txt"), hash)
+                  .putPath(Paths.get("baz"), HashCode.fromInt(42))
+                  .putSha1(Sha1HashCode.fromHashCode(hash))
+                  .putRuleKey(new RuleKey(hash))
+                  .putNonHashingPath("foo/bar.txt"));
+    }
+
+    @Test
+    public void hasherCanBeCreatedWhileAnotherIsInUse() {
+      Sha1RuleKeyHasher outer = new Sha1RuleKeyHasher();
+      outer.putString("outer");
+      Sha1RuleKeyHasher inner = new Sha1RuleKeyHasher();
+      inner.putString("inner");
+      assertEquals(
+          new GuavaRuleKeyHasher(Hashing.sha1().newHasher()).putString("inner").hash(),
+          inner.hash());
+      assertEquals(
+          new GuavaRuleKeyHasher(Hashing.sha1().newHasher()).putString("outer").hash(),
+          outer.hash());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void hasherCannotBeReusedAfterHash() {
+      Sha1RuleKeyHasher hasher = new Sha1RuleKeyHasher();
+      hasher.hash();
+      hasher.putString("value");
+    }
+  }
+}
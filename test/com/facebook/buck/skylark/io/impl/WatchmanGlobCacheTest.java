@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.io.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.skylark.io.GlobSpec;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WatchmanGlobCacheTest {
+
+  private static final Path PACKAGE = Paths.get("/project/foo");
+  private static final GlobSpec JAVA_GLOB = globSpec("*.java");
+  private static final GlobSpec TXT_GLOB = globSpec("*.txt");
+
+  private WatchmanGlobCache cache;
+  private List<ImmutableSet<GlobSpec>> batches;
+
+  private static GlobSpec globSpec(String include) {
+    return GlobSpec.builder()
+        .setInclude(ImmutableList.of(include))
+        .setExclude(ImmutableList.of())
+        .setExcludeDirectories(true)
+        .build();
+  }
+
+  @Before
+  public void setUp() {
+    cache = new WatchmanGlobCache();
+    batches = new ArrayList<>();
+  }
+
+  private Optional<ImmutableSet<String>> get(Path basePath, GlobSpec globSpec) throws Exception {
+    return cache.get(
+        basePath,
+        globSpec,
+        globSpecs -> {
+          batches.add(ImmutableSet.copyOf(globSpecs));
+          ImmutableMap.Builder<GlobSpec, ImmutableSet<String>> paths = ImmutableMap.builder();
+          for (GlobSpec spec : globSpecs) {
+            paths.put(spec, ImmutableSet.of("file" + spec.getInclude().iterator().next()));
+          }
+          return Optional.of(paths.build());
+        });
+  }
+
+  @Test
+  public void resolvedGlobsAreReused() throws Exception {
+    assertEquals(Optional.of(ImmutableSet.of("file*.java")), get(PACKAGE, JAVA_GLOB));
+    assertEquals(Optional.of(ImmutableSet.of("file*.java")), get(PACKAGE, JAVA_GLOB));
+
+    assertEquals(ImmutableList.of(ImmutableSet.of(JAVA_GLOB)), batches);
+  }
+
+  @Test
+  public void invalidatedGlobsOfPackageAreResolvedInOneBatch() throws Exception {
+    get(PACKAGE, JAVA_GLOB);
+    get(PACKAGE, TXT_GLOB);
+    batches.clear();
+
+    cache.invalidatePath(PACKAGE.resolve("bar/Baz.java"));
+    cache.startEvaluation(PACKAGE);
+    get(PACKAGE, TXT_GLOB);
+    get(PACKAGE, JAVA_GLOB);
+
+    assertEquals(ImmutableList.of(ImmutableSet.of(JAVA_GLOB, TXT_GLOB)), batches);
+  }
+
+  @Test
+  public void globsNoLongerRequestedByPackageAreForgotten() throws Exception {
+    GlobSpec headerGlob = globSpec("*.h");
+    cache.startEvaluation(PACKAGE);
+    get(PACKAGE, JAVA_GLOB);
+    get(PACKAGE, TXT_GLOB);
+    cache.startEvaluation(PACKAGE);
+    get(PACKAGE, JAVA_GLOB);
+    batches.clear();
+
+    cache.invalidatePath(PACKAGE.resolve("Baz.java"));
+    cache.startEvaluation(PACKAGE);
+    get(PACKAGE, headerGlob);
+    get(PACKAGE, TXT_GLOB);
+    get(PACKAGE, JAVA_GLOB);
+
+    assertEquals(
+        ImmutableList.of(ImmutableSet.of(JAVA_GLOB, headerGlob), ImmutableSet.of(TXT_GLOB)),
+        batches);
+  }
+
+  @Test
+  public void changesOutsideOfPackageDoNotInvalidateGlobs() throws Exception {
+    Path subPackage = PACKAGE.resolve("bar");
+    get(PACKAGE, JAVA_GLOB);
+    get(subPackage, JAVA_GLOB);
+    batches.clear();
+
+    cache.invalidatePath(Paths.get("/project/other/Baz.java"));
+    cache.invalidatePath(PACKAGE.resolve("Baz.java"));
+    get(PACKAGE, JAVA_GLOB);
+    get(subPackage, JAVA_GLOB);
+
+    assertEquals(ImmutableList.of(ImmutableSet.of(JAVA_GLOB)), batches);
+  }
+
+  @Test
+  public void globsThatCannotBeResolvedAreNotCached() throws Exception {
+    assertEquals(
+        Optional.empty(),
+        cache.get(PACKAGE, JAVA_GLOB, globSpecs -> Optional.of(ImmutableMap.of())));
+    assertEquals(Optional.empty(), cache.get(PACKAGE, JAVA_GLOB, globSpecs -> Optional.empty()));
+
+    assertEquals(Optional.of(ImmutableSet.of("file*.java")), get(PACKAGE, JAVA_GLOB));
+  }
+
+  @Test
+  public void invalidateAllDropsEverything() throws Exception {
+    get(PACKAGE, JAVA_GLOB);
+    get(PACKAGE, TXT_GLOB);
+    batches.clear();
+
+    cache.invalidateAll();
+    get(PACKAGE, JAVA_GLOB);
+
+    assertEquals(ImmutableList.of(ImmutableSet.of(JAVA_GLOB)), batches);
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.parser;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.skylark.io.Globber;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class SkylarkProfilerTest {
+
+  private static final Globber SLOW_GLOBBER =
+      (include, exclude, excludeDirectories) -> {
+        Thread.sleep(50);
+        return ImmutableSet.of();
+      };
+
+  private static final int COUNT = 0;
+  private static final int SELF_WALL_MS = 2;
+  private static final int SELF_GLOB_MS = 5;
+
+  /** @return The numeric report columns of each measured name. */
+  private static Map<String, long[]> parseReport(String report) {
+    Map<String, long[]> rows = new HashMap<>();
+    String[] lines = report.split("\n");
+    for (int i = 1; i < lines.length; i++) {
+      String[] columns = lines[i].trim().split("\\s+");
+      long[] values = new long[6];
+      for (int j = 0; j < values.length; j++) {
+        values[j] = Long.parseLong(columns[columns.length - 7 + j]);
+      }
+      rows.put(columns[columns.length - 1], values);
+    }
+    return rows;
+  }
+
+  @Test
+  public void nestedMeasurementsAreReportedSeparately() throws Exception {
+    SkylarkProfiler profiler = new SkylarkProfiler(BuckEventBusForTests.newInstance(), true);
+    Globber globber = profiler.timeGlobs(SLOW_GLOBBER);
+
+    for (int i = 0; i < 2; i++) {
+      try (SkylarkProfiler.Measurement buildFile =
+          profiler.measure(SkylarkProfiler.Kind.BUILD_FILE, "foo/BUCK")) {
+        try (SkylarkProfiler.Measurement extension =
+            profiler.measure(SkylarkProfiler.Kind.EXTENSION, "//defs:macros.bzl")) {
+          // nothing to do
+        }
+        try (SkylarkProfiler.Measurement function =
+            profiler.measure(SkylarkProfiler.Kind.FUNCTION, "java_library_with_globs")) {
+          globber.run(ImmutableList.of("*.java"), ImmutableList.of(), false);
+        }
+      }
+    }
+
+    Map<String, long[]> report = parseReport(profiler.createReport());
+    assertThat(
+        report.keySet(),
+        equalTo(ImmutableSet.of("foo/BUCK", "//defs:macros.bzl", "java_library_with_globs")));
+    long[] buildFile = report.get("foo/BUCK");
+    long[] function = report.get("java_library_with_globs");
+    assertThat(buildFile[COUNT], equalTo(2L));
+    assertThat(report.get("//defs:macros.bzl")[COUNT], equalTo(2L));
+    assertThat(function[COUNT], equalTo(2L));
+    assertThat(buildFile[SELF_WALL_MS], lessThan(function[SELF_WALL_MS]));
+    assertThat(buildFile[SELF_GLOB_MS], equalTo(0L));
+    assertThat(function[SELF_GLOB_MS], greaterThanOrEqualTo(100L));
+  }
+
+  @Test
+  public void disabledProfilerDoesNotMeasure() throws Exception {
+    SkylarkProfiler profiler = new SkylarkProfiler(BuckEventBusForTests.newInstance(), false);
+
+    assertSame(SLOW_GLOBBER, profiler.timeGlobs(SLOW_GLOBBER));
+    try (SkylarkProfiler.Measurement measurement =
+        profiler.measure(SkylarkProfiler.Kind.BUILD_FILE, "foo/BUCK")) {
+      // nothing to do
+    }
+    assertFalse(profiler.hasMeasurements());
+  }
+}
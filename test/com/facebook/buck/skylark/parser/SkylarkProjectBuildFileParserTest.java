@@ -123,6 +123,23 @@ public class SkylarkProjectBuildFileParserTest {
     return createParserWithOptions(eventHandler, getDefaultParserOptions().build());
   }
 
+  private SkylarkProjectBuildFileParser createParserWithExtensionCache(
+      EventHandler eventHandler, SkylarkExtensionCache extensionCache) {
+    ProjectBuildFileParserOptions options = getDefaultParserOptions().build();
+    return SkylarkProjectBuildFileParser.using(
+        options,
+        BuckEventBusForTests.newInstance(),
+        SkylarkFilesystem.using(projectFilesystem),
+        BuckGlobals.builder()
+            .setRuleFunctionFactory(new RuleFunctionFactory(new DefaultTypeCoercerFactory()))
+            .setDescriptions(options.getDescriptions())
+            .setDisableImplicitNativeRules(options.getDisableImplicitNativeRules())
+            .build(),
+        eventHandler,
+        NativeGlobber::create,
+        extensionCache);
+  }
+
   @Test
   public void canParsePrebuiltJarRule() throws Exception {
     Path buildFile = projectFilesystem.resolve("src").resolve("test").resolve("BUCK");
@@ -396,6 +413,41 @@ public class SkylarkProjectBuildFileParserTest {
     assertTrue(parser.getBuildFileManifest(buildFile, new AtomicLong()).getTargets().isEmpty());
   }
 
+  @Test
+  public void extensionIsReusedByParsersSharingExtensionCache() throws Exception {
+    SkylarkExtensionCache extensionCache = new SkylarkExtensionCache();
+    Path buildFile = projectFilesystem.resolve("BUCK");
+    Files.write(
+        buildFile,
+        Arrays.asList("load('//:ext.bzl', 'ext')", "prebuilt_jar(name='foo', binary_jar=ext)"));
+    Path extensionFile = projectFilesystem.resolve("ext.bzl");
+    Files.write(
+        extensionFile, Arrays.asList("load('//:dep.bzl', 'dep')", "ext = dep", "print('ext')"));
+    Path dependencyFile = projectFilesystem.resolve("dep.bzl");
+    Files.write(dependencyFile, Arrays.asList("dep = 'foo.jar'"));
+    EventCollector eventCollector = new EventCollector(EnumSet.allOf(EventKind.class));
+
+    parser = createParserWithExtensionCache(eventCollector, extensionCache);
+    assertThat(getSingleRule(buildFile).get("binaryJar"), equalTo("foo.jar"));
+    assertThat(eventCollector.count(), equalTo(1));
+
+    parser = createParserWithExtensionCache(eventCollector, extensionCache);
+    assertThat(getSingleRule(buildFile).get("binaryJar"), equalTo("foo.jar"));
+    assertThat(eventCollector.count(), equalTo(1));
+
+    // Touching a file does not require evaluating the extension again.
+    extensionCache.invalidatePath(extensionFile);
+    parser = createParserWithExtensionCache(eventCollector, extensionCache);
+    assertThat(getSingleRule(buildFile).get("binaryJar"), equalTo("foo.jar"));
+    assertThat(eventCollector.count(), equalTo(1));
+
+    Files.write(dependencyFile, Arrays.asList("dep = 'bar.jar'"));
+    extensionCache.invalidatePath(dependencyFile);
+    parser = createParserWithExtensionCache(eventCollector, extensionCache);
+    assertThat(getSingleRule(buildFile).get("binaryJar"), equalTo("bar.jar"));
+    assertThat(eventCollector.count(), equalTo(2));
+  }
+
   @Test
   public void packageNameFunctionInExtensionUsesBuildFilePackage() throws Exception {
     Path buildFileDirectory = projectFilesystem.resolve("test");
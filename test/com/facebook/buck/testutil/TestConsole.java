@@ -34,11 +34,15 @@ public class TestConsole extends Console {
   }
 
   public TestConsole(Verbosity verbosity) {
+    this(verbosity, Ansi.withoutTty());
+  }
+
+  public TestConsole(Verbosity verbosity, Ansi ansi) {
     super(
         verbosity,
         /* stdOut */ new CapturingPrintStream(),
         /* stdErr */ new CapturingPrintStream(),
-        /* ansi */ Ansi.withoutTty());
+        ansi);
   }
 
   public String getTextWrittenToStdOut() {
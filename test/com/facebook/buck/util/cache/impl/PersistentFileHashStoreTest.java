@@ -0,0 +1,184 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentFileHashStoreTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private Path storePath;
+
+  @Before
+  public void setUp() {
+    storePath = tmp.getRoot().resolve("buck-out").resolve("file_hash_cache");
+  }
+
+  private Path writeFile(String name, String contents) throws IOException {
+    Path path = tmp.getRoot().resolve(name);
+    Files.write(path, contents.getBytes(UTF_8));
+    // Make the file old enough for its hash to be recorded.
+    Files.setLastModifiedTime(
+        path, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1)));
+    return path;
+  }
+
+  private static HashCode hash(int value) {
+    return Hashing.sha1().hashInt(value);
+  }
+
+  private static PersistentFileHashStore.HashLoader failingLoader() {
+    return () -> {
+      fail("Expected the hash to be read from the store.");
+      return hash(0);
+    };
+  }
+
+  @Test
+  public void hashesAreReusedAfterReload() throws IOException {
+    writeFile("a.txt", "a");
+    writeFile("b.txt", "b");
+
+    PersistentFileHashStore store = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    assertEquals(hash(1), store.get(Paths.get("a.txt"), () -> hash(1)));
+    assertEquals(hash(2), store.get(Paths.get("b.txt"), () -> hash(2)));
+    store.save();
+
+    PersistentFileHashStore reloaded = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    assertEquals(hash(1), reloaded.get(Paths.get("a.txt"), failingLoader()));
+    assertEquals(hash(2), reloaded.get(Paths.get("b.txt"), failingLoader()));
+  }
+
+  @Test
+  public void modifiedFilesAreRehashed() throws IOException {
+    Path file = writeFile("a.txt", "a");
+
+    PersistentFileHashStore store = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    store.get(Paths.get("a.txt"), () -> hash(1));
+    store.save();
+
+    Files.write(file, "changed".getBytes(UTF_8));
+    Files.setLastModifiedTime(
+        file, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(30)));
+
+    PersistentFileHashStore reloaded = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    assertEquals(hash(3), reloaded.get(Paths.get("a.txt"), () -> hash(3)));
+  }
+
+  @Test
+  public void recentlyModifiedFilesAreNotRecorded() throws IOException {
+    Files.write(tmp.getRoot().resolve("a.txt"), "a".getBytes(UTF_8));
+
+    PersistentFileHashStore store = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    store.get(Paths.get("a.txt"), () -> hash(1));
+    assertEquals(0, store.size());
+
+    store.save();
+    assertFalse(Files.exists(storePath.getParent()));
+  }
+
+  @Test
+  public void entriesNotUsedSinceReloadAreKeptOnSave() throws IOException {
+    writeFile("a.txt", "a");
+    writeFile("b.txt", "b");
+
+    PersistentFileHashStore store = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    store.get(Paths.get("a.txt"), () -> hash(1));
+    store.save();
+
+    PersistentFileHashStore second = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    second.get(Paths.get("b.txt"), () -> hash(2));
+    second.save();
+
+    PersistentFileHashStore third = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    assertEquals(hash(1), third.get(Paths.get("a.txt"), failingLoader()));
+    assertEquals(hash(2), third.get(Paths.get("b.txt"), failingLoader()));
+  }
+
+  @Test
+  public void invalidatedEntriesAreDroppedOnSave() throws IOException {
+    writeFile("a.txt", "a");
+    writeFile("b.txt", "b");
+
+    PersistentFileHashStore store = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    store.get(Paths.get("a.txt"), () -> hash(1));
+    store.get(Paths.get("b.txt"), () -> hash(2));
+    store.save();
+
+    PersistentFileHashStore second = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    second.invalidate(Paths.get("a.txt"));
+    second.save();
+
+    // The file did not actually change, so only pruning the entry makes it rehashed.
+    PersistentFileHashStore third = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    assertEquals(hash(3), third.get(Paths.get("a.txt"), () -> hash(3)));
+    assertEquals(hash(2), third.get(Paths.get("b.txt"), failingLoader()));
+  }
+
+  @Test
+  public void savingWritesANewFileAndDeletesTheOldOne() throws IOException {
+    writeFile("a.txt", "a");
+    writeFile("b.txt", "b");
+
+    PersistentFileHashStore store = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    store.get(Paths.get("a.txt"), () -> hash(1));
+    store.save();
+
+    PersistentFileHashStore second = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    assertEquals(hash(1), second.get(Paths.get("a.txt"), failingLoader()));
+    second.get(Paths.get("b.txt"), () -> hash(2));
+    second.save();
+    assertEquals(hash(1), second.get(Paths.get("a.txt"), failingLoader()));
+
+    try (Stream<Path> files = Files.list(storePath.getParent())) {
+      assertEquals(
+          ImmutableList.of(storePath.resolveSibling("file_hash_cache.2")),
+          files.collect(ImmutableList.toImmutableList()));
+    }
+    PersistentFileHashStore third = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    assertEquals(hash(1), third.get(Paths.get("a.txt"), failingLoader()));
+    assertEquals(hash(2), third.get(Paths.get("b.txt"), failingLoader()));
+  }
+
+  @Test
+  public void corruptStoreIsIgnored() throws IOException {
+    writeFile("a.txt", "a");
+    Files.createDirectories(storePath.getParent());
+    Files.write(storePath.resolveSibling("file_hash_cache.1"), "garbage".getBytes(UTF_8));
+
+    PersistentFileHashStore store = new PersistentFileHashStore(tmp.getRoot(), storePath);
+    assertEquals(hash(1), store.get(Paths.get("a.txt"), () -> hash(1)));
+  }
+}
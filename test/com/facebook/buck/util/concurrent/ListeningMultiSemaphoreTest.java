@@ -202,6 +202,33 @@ public class ListeningMultiSemaphoreTest {
     assertThat(second.isDone(), Matchers.equalTo(true));
   }
 
+  @Test
+  public void testPendingItemsAreProcessedByPriority() {
+    ListeningMultiSemaphore array = getFairListeningMultiSemaphore(amountsOfCpu(1));
+
+    ListenableFuture<Void> running = array.acquire(amountsOfCpu(1));
+    assertThat(running.isDone(), Matchers.equalTo(true));
+
+    ListenableFuture<Void> low = array.acquire(amountsOfCpu(1), 1);
+    ListenableFuture<Void> high = array.acquire(amountsOfCpu(1), 10);
+    ListenableFuture<Void> alsoHigh = array.acquire(amountsOfCpu(1), 10);
+    assertThat(array.getQueueLength(), Matchers.equalTo(3));
+
+    array.release(amountsOfCpu(1));
+    assertThat(high.isDone(), Matchers.equalTo(true));
+    assertThat(alsoHigh.isDone(), Matchers.equalTo(false));
+    assertThat(low.isDone(), Matchers.equalTo(false));
+
+    // Items of equal priority are processed in order of arrival.
+    array.release(amountsOfCpu(1));
+    assertThat(alsoHigh.isDone(), Matchers.equalTo(true));
+    assertThat(low.isDone(), Matchers.equalTo(false));
+
+    array.release(amountsOfCpu(1));
+    assertThat(low.isDone(), Matchers.equalTo(true));
+    assertThat(array.getQueueLength(), Matchers.equalTo(0));
+  }
+
   private ListeningMultiSemaphore getFairListeningMultiSemaphore(ResourceAmounts values) {
     return new ListeningMultiSemaphore(values, ResourceAllocationFairness.FAIR);
   }
@@ -21,6 +21,9 @@ import static org.junit.Assert.assertNotNull;
 
 import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.core.model.BuildId;
+import com.facebook.buck.event.chrome_trace.ChromeTraceBinaryWriter;
+import com.facebook.buck.event.chrome_trace.ChromeTraceEvent;
+import com.facebook.buck.event.chrome_trace.ChromeTraceEvent.Phase;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.InvocationInfo;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
@@ -29,11 +32,13 @@ import com.facebook.buck.util.timing.SettableFakeClock;
 import com.facebook.buck.util.trace.BuildTraces.TraceAttributes;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 import org.junit.Test;
 
 public class BuildTracesTest {
@@ -138,6 +143,34 @@ public class BuildTracesTest {
         traceAttributes.getLastModifiedTime());
   }
 
+  @Test
+  public void testGetTraceAttributesForCompressedBinaryTrace() throws IOException {
+    FakeProjectFilesystem projectFilesystem = new FakeProjectFilesystem(FakeClock.doNotCare());
+    Path tracePath =
+        projectFilesystem.getBuckPaths().getTraceDir().resolve("build.d.trace.bin.gz");
+    projectFilesystem.mkdirs(tracePath.getParent());
+    try (ChromeTraceBinaryWriter writer =
+        new ChromeTraceBinaryWriter(
+            new GZIPOutputStream(projectFilesystem.newFileOutputStream(tracePath)))) {
+      writer.writeStart();
+      writer.writeEvent(
+          new ChromeTraceEvent(
+              "buck",
+              "build",
+              Phase.BEGIN,
+              0,
+              1,
+              5621911884918L,
+              0,
+              ImmutableMap.of("command_args", "buck")));
+      writer.writeEnd();
+    }
+
+    BuildTraces helper = new BuildTraces(projectFilesystem);
+    assertEquals(ImmutableList.of(tracePath), helper.listTraceFilesByLastModified());
+    assertEquals(Optional.of("buck build buck"), helper.getTraceAttributesFor("d").getCommand());
+  }
+
   @Test
   public void testSortByLastModified() throws IOException {
     SettableFakeClock clock = SettableFakeClock.DO_NOT_CARE;
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.unarchive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeThat;
+
+import com.facebook.buck.io.file.MorePosixFilePermissions;
+import com.facebook.buck.io.file.MostFiles;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.environment.Platform;
+import com.facebook.buck.util.zip.ZipConstants;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class StreamingUnzipTest {
+  private static final byte[] DUMMY_FILE_CONTENTS = "BUCK Unzip Test String!\nNihao\n".getBytes();
+
+  @Rule public TemporaryPaths tmpFolder = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() throws InterruptedException {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmpFolder.getRoot());
+  }
+
+  @Test
+  public void extractsDeflatedEntriesWithDataDescriptors() throws IOException {
+    // Writing to a stream rather than a file makes commons-compress use data descriptors, as the
+    // compressed size of an entry is unknown when its header is written.
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(bytes)) {
+      zip.putArchiveEntry(new ZipArchiveEntry("1.bin"));
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+      zip.putArchiveEntry(new ZipArchiveEntry("subdir/2.bin"));
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+      zip.putArchiveEntry(new ZipArchiveEntry("emptydir/"));
+      zip.closeArchiveEntry();
+    }
+
+    ImmutableList<Path> result = extract(bytes.toByteArray(), ExistingFileMode.OVERWRITE);
+
+    assertEquals(ImmutableList.of(Paths.get("1.bin"), Paths.get("subdir/2.bin")), result);
+    assertEquals(
+        new String(DUMMY_FILE_CONTENTS), filesystem.readFileIfItExists(Paths.get("1.bin")).get());
+    assertEquals(
+        new String(DUMMY_FILE_CONTENTS),
+        filesystem.readFileIfItExists(Paths.get("subdir/2.bin")).get());
+    assertTrue(filesystem.isDirectory(Paths.get("emptydir")));
+  }
+
+  @Test
+  public void preservesExecutePermissionsAndModificationTime() throws IOException {
+    // getFakeTime returs time with some non-zero millis. By doing division and multiplication by
+    // 1000 we get rid of that.
+    long time = ZipConstants.getFakeTime() / 1000 * 1000;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(bytes)) {
+      ZipArchiveEntry entry = new ZipArchiveEntry("test.exe");
+      entry.setUnixMode(
+          (int) MorePosixFilePermissions.toMode(PosixFilePermissions.fromString("r-x------")));
+      entry.setSize(DUMMY_FILE_CONTENTS.length);
+      entry.setCrc(crc(DUMMY_FILE_CONTENTS));
+      entry.setMethod(ZipEntry.STORED);
+      entry.setTime(time);
+      zip.putArchiveEntry(entry);
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+    }
+
+    extract(bytes.toByteArray(), ExistingFileMode.OVERWRITE);
+
+    Path exe = tmpFolder.getRoot().resolve("test.exe");
+    assertThat(Files.getLastModifiedTime(exe).toMillis(), Matchers.equalTo(time));
+    assertTrue(Files.isExecutable(exe));
+  }
+
+  @Test
+  public void extractsSymlinks() throws IOException {
+    assumeThat(Platform.detect(), Matchers.is(Matchers.not(Platform.WINDOWS)));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(bytes)) {
+      ZipArchiveEntry entry = new ZipArchiveEntry("link.txt");
+      entry.setUnixMode((int) MostFiles.S_IFLNK);
+      zip.putArchiveEntry(entry);
+      zip.write("target.txt".getBytes(Charsets.UTF_8));
+      zip.closeArchiveEntry();
+    }
+
+    extract(bytes.toByteArray(), ExistingFileMode.OVERWRITE);
+
+    Path link = tmpFolder.getRoot().resolve("link.txt");
+    assertTrue(Files.isSymbolicLink(link));
+    assertThat(Files.readSymbolicLink(link).toString(), Matchers.equalTo("target.txt"));
+  }
+
+  @Test
+  public void cleansStaleContentsOfListedDirectories() throws IOException {
+    filesystem.mkdirs(Paths.get("foo/bar"));
+    filesystem.writeContentsToPath("stale", Paths.get("foo/bar/stale.txt"));
+    filesystem.mkdirs(Paths.get("unlisted"));
+    filesystem.writeContentsToPath("kept", Paths.get("unlisted/kept.txt"));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(bytes)) {
+      zip.putArchiveEntry(new ZipArchiveEntry("foo/"));
+      zip.closeArchiveEntry();
+      zip.putArchiveEntry(new ZipArchiveEntry("foo/bar/baz"));
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+      zip.putArchiveEntry(new ZipArchiveEntry("unlisted/file"));
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+    }
+
+    extract(bytes.toByteArray(), ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+
+    assertTrue(filesystem.isFile(Paths.get("foo/bar/baz")));
+    assertFalse(filesystem.exists(Paths.get("foo/bar/stale.txt")));
+    assertTrue(filesystem.isFile(Paths.get("unlisted/file")));
+    assertTrue(filesystem.isFile(Paths.get("unlisted/kept.txt")));
+  }
+
+  @Test(expected = IOException.class)
+  public void corruptEntryFails() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(bytes)) {
+      ZipArchiveEntry entry = new ZipArchiveEntry("1.bin");
+      entry.setSize(DUMMY_FILE_CONTENTS.length);
+      entry.setCrc(crc(DUMMY_FILE_CONTENTS));
+      entry.setMethod(ZipEntry.STORED);
+      zip.putArchiveEntry(entry);
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+    }
+    byte[] archive = bytes.toByteArray();
+    // The contents of the stored entry directly follow its 30 byte header and name.
+    archive[30 + "1.bin".length()] ^= 1;
+
+    extract(archive, ExistingFileMode.OVERWRITE);
+  }
+
+  private static long crc(byte[] contents) {
+    CRC32 crc = new CRC32();
+    crc.update(contents);
+    return crc.getValue();
+  }
+
+  private ImmutableList<Path> extract(byte[] archive, ExistingFileMode existingFileMode)
+      throws IOException {
+    return new StreamingUnzip()
+        .extractArchive(new ByteArrayInputStream(archive), filesystem, existingFileMode);
+  }
+}
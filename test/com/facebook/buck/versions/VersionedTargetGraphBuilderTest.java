@@ -323,4 +323,117 @@ public class VersionedTargetGraphBuilderTest {
     TargetGraph versionedGraph = builder.build();
     assertEquals(graph, versionedGraph);
   }
+
+  private static TargetGraph buildConstrainedGraph(
+      VersionResolutionCache resolutionCache, TargetNode<?, ?>... extraNodes) throws Exception {
+    return buildConstrainedGraph(
+        resolutionCache,
+        ImmutableSet.of(
+            BuildTargetFactory.newInstance("//:a"), BuildTargetFactory.newInstance("//:b")),
+        extraNodes);
+  }
+
+  private static TargetGraph buildConstrainedGraph(
+      VersionResolutionCache resolutionCache,
+      ImmutableSet<BuildTarget> buildTargets,
+      TargetNode<?, ?>... extraNodes)
+      throws Exception {
+    ImmutableSet.Builder<TargetNode<?, ?>> nodes = ImmutableSet.builder();
+    nodes.add(
+        new VersionPropagatorBuilder("//:v2").build(),
+        new VersionedAliasBuilder("//:dep").setVersions("1.0", "//:v1", "2.0", "//:v2").build(),
+        new VersionPropagatorBuilder("//:lib").setDeps("//:dep").build(),
+        new VersionRootBuilder("//:a")
+            .setDeps("//:lib")
+            .setVersionedDeps("//:dep", ExactConstraint.of(Version.of("1.0")))
+            .build(),
+        new VersionRootBuilder("//:b")
+            .setDeps("//:lib")
+            .setVersionedDeps("//:dep", ExactConstraint.of(Version.of("2.0")))
+            .build());
+    nodes.add(extraNodes);
+    TargetGraph graph =
+        TargetGraphFactory.newInstanceExact(nodes.build().toArray(new TargetNode<?, ?>[0]));
+    BuildTarget a = BuildTargetFactory.newInstance("//:a");
+    BuildTarget b = BuildTargetFactory.newInstance("//:b");
+    BuildTarget dep = BuildTargetFactory.newInstance("//:dep");
+    return new VersionedTargetGraphBuilder(
+            POOL,
+            new FixedVersionSelector(
+                ImmutableMap.of(
+                    a, ImmutableMap.of(dep, Version.of("1.0")),
+                    b, ImmutableMap.of(dep, Version.of("2.0")))),
+            TargetGraphAndBuildTargets.of(graph, buildTargets),
+            new DefaultTypeCoercerFactory(),
+            resolutionCache)
+        .build();
+  }
+
+  /** @return the node stored in {@code graph}, rather than the copy {@code get} returns. */
+  private static TargetNode<?, ?> getStoredNode(TargetGraph graph, BuildTarget target) {
+    return graph
+        .getNodes()
+        .stream()
+        .filter(node -> node.getBuildTarget().equals(target))
+        .findFirst()
+        .get();
+  }
+
+  @Test
+  public void translatedNodesReusedByLaterBuilds() throws Exception {
+    VersionResolutionCache resolutionCache = new VersionResolutionCache(ImmutableMap.of());
+    TargetGraph first =
+        buildConstrainedGraph(resolutionCache, new VersionPropagatorBuilder("//:v1").build());
+    TargetGraph second =
+        buildConstrainedGraph(
+            resolutionCache,
+            new VersionPropagatorBuilder("//:v1").build(),
+            new VersionRootBuilder("//:other").build());
+
+    BuildTarget lib =
+        BuildTargetFactory.newInstance(getVersionedTarget("//:lib", "//:dep", "1.0"));
+    assertThat(getStoredNode(second, lib), Matchers.sameInstance(getStoredNode(first, lib)));
+    assertEquals(first, second);
+  }
+
+  @Test
+  public void changedNodesNotReusedByLaterBuilds() throws Exception {
+    VersionResolutionCache resolutionCache = new VersionResolutionCache(ImmutableMap.of());
+    TargetGraph first =
+        buildConstrainedGraph(resolutionCache, new VersionPropagatorBuilder("//:v1").build());
+    TargetNode<?, ?>[] changedNodes = {
+      new VersionPropagatorBuilder("//:v1").setDeps("//:v3").build(),
+      new VersionPropagatorBuilder("//:v3").build()
+    };
+    TargetGraph second = buildConstrainedGraph(resolutionCache, changedNodes);
+
+    BuildTarget lib =
+        BuildTargetFactory.newInstance(getVersionedTarget("//:lib", "//:dep", "1.0"));
+    BuildTarget v1 = BuildTargetFactory.newInstance("//:v1");
+    assertThat(getStoredNode(second, lib), Matchers.sameInstance(getStoredNode(first, lib)));
+    assertThat(second.get(v1), Matchers.not(Matchers.equalTo(first.get(v1))));
+    assertEquals(
+        buildConstrainedGraph(new VersionResolutionCache(ImmutableMap.of()), changedNodes),
+        second);
+  }
+
+  @Test
+  public void nodesOfRootsNoLongerBuiltAreDroppedFromTheCache() throws Exception {
+    VersionResolutionCache resolutionCache = new VersionResolutionCache(ImmutableMap.of());
+    TargetNode<?, ?> v1 = new VersionPropagatorBuilder("//:v1").build();
+    TargetGraph first = buildConstrainedGraph(resolutionCache, v1);
+    buildConstrainedGraph(
+        resolutionCache, ImmutableSet.of(BuildTargetFactory.newInstance("//:a")), v1);
+    TargetGraph third = buildConstrainedGraph(resolutionCache, v1);
+
+    BuildTarget libA =
+        BuildTargetFactory.newInstance(getVersionedTarget("//:lib", "//:dep", "1.0"));
+    BuildTarget libB =
+        BuildTargetFactory.newInstance(getVersionedTarget("//:lib", "//:dep", "2.0"));
+    assertThat(getStoredNode(third, libA), Matchers.sameInstance(getStoredNode(first, libA)));
+    assertThat(
+        getStoredNode(third, libB),
+        Matchers.not(Matchers.sameInstance(getStoredNode(first, libB))));
+    assertEquals(first, third);
+  }
 }
@@ -22,8 +22,10 @@ import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 
+import com.facebook.buck.core.model.BuildId;
 import com.facebook.buck.util.Threads;
 import com.facebook.buck.util.function.ThrowingSupplier;
+import com.facebook.buck.util.timing.SettableFakeClock;
 import com.facebook.buck.worker.WorkerProcessPool.BorrowedWorkerProcess;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
@@ -32,6 +34,7 @@ import com.google.common.hash.Hashing;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -102,6 +105,158 @@ public class WorkerProcessPoolTest {
     assertThat(usedWorkers.size(), equalTo(maxWorkers));
   }
 
+  @Test(timeout = WAIT_FOR_TEST_THREADS_TIMEOUT)
+  public void testSharesMultiplexedWorkerProcessesUntilSaturated() throws Exception {
+    int maxWorkers = 2;
+    int maxJobsPerWorker = 3;
+    Set<WorkerProcess> createdWorkers = new HashSet<>();
+    WorkerProcessPool pool =
+        new WorkerProcessPool(
+            maxWorkers,
+            maxJobsPerWorker,
+            Hashing.sha1().hashLong(0),
+            () -> {
+              FakeWorkerProcess worker = new FakeWorkerProcess(ImmutableMap.of());
+              worker.ensureLaunchAndHandshake();
+              createdWorkers.add(worker);
+              return worker;
+            });
+
+    // as many jobs as one worker may run at once are served by one process
+    acquireWorkersThenRelease(pool, maxJobsPerWorker);
+    assertThat(createdWorkers.size(), is(1));
+
+    AtomicReference<BorrowedWorkerProcess> extraWorkerProcess = new AtomicReference<>();
+    acquireWorkersThenRunActionThenRelease(
+        pool,
+        maxWorkers * maxJobsPerWorker,
+        () ->
+            pool.borrowWorkerProcess(1, TimeUnit.MILLISECONDS).ifPresent(extraWorkerProcess::set));
+
+    assertThat(createdWorkers.size(), is(maxWorkers));
+    assertThat(extraWorkerProcess.get(), is(nullValue()));
+    pool.close();
+  }
+
+  @Test(timeout = WAIT_FOR_TEST_THREADS_TIMEOUT)
+  public void testShutsDownWorkersAfterIdleTimeout() throws Exception {
+    SettableFakeClock clock = new SettableFakeClock(0, TimeUnit.SECONDS.toNanos(100));
+    Set<WorkerProcess> createdWorkers = concurrentSet();
+    WorkerPoolManager manager = new WorkerPoolManager(false);
+    WorkerProcessPool pool =
+        createAdaptivePool(
+            3,
+            WorkerPoolSettings.builder().setIdleTimeoutMillis(1000L).build(),
+            clock,
+            createdWorkers::add);
+    manager.prepareForBuild(pool, new BuildId("build"));
+
+    acquireWorkersThenRelease(pool, 2);
+    clock.advanceTimeNanos(TimeUnit.MILLISECONDS.toNanos(999));
+    manager.shutDownUnneededWorkers();
+    assertThat(countAlive(createdWorkers), is(2));
+
+    clock.advanceTimeNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    manager.shutDownUnneededWorkers();
+    assertThat(countAlive(createdWorkers), is(0));
+
+    // workers are started again when they are needed
+    acquireWorkersThenRelease(pool, 1);
+    assertThat(createdWorkers.size(), is(3));
+    assertThat(countAlive(createdWorkers), is(1));
+    pool.close();
+    manager.close();
+  }
+
+  @Test(timeout = WAIT_FOR_TEST_THREADS_TIMEOUT)
+  public void testShutsDownUnusedWorkersAboveMemoryLimit() throws Exception {
+    SettableFakeClock clock = new SettableFakeClock(0, TimeUnit.SECONDS.toNanos(100));
+    Set<WorkerProcess> createdWorkers = concurrentSet();
+    WorkerPoolManager manager = new WorkerPoolManager(false);
+    WorkerProcessPool pool =
+        createAdaptivePool(
+            3,
+            WorkerPoolSettings.builder().setMaxResidentMemoryBytes(250L).build(),
+            clock,
+            createdWorkers::add);
+    manager.prepareForBuild(pool, new BuildId("build"));
+
+    acquireWorkersThenRunActionThenRelease(
+        pool,
+        3,
+        () -> {
+          // workers that are borrowed are never shut down
+          manager.shutDownUnneededWorkers();
+          assertThat(countAlive(createdWorkers), is(3));
+        });
+    manager.shutDownUnneededWorkers();
+
+    assertThat(countAlive(createdWorkers), is(2));
+    pool.close();
+    manager.close();
+  }
+
+  @Test(timeout = WAIT_FOR_TEST_THREADS_TIMEOUT)
+  public void testMemoryLimitAppliesToAllPoolsTogether() throws Exception {
+    SettableFakeClock clock = new SettableFakeClock(0, TimeUnit.SECONDS.toNanos(100));
+    WorkerPoolSettings settings =
+        WorkerPoolSettings.builder().setMaxResidentMemoryBytes(250L).build();
+    Set<WorkerProcess> firstPoolWorkers = concurrentSet();
+    Set<WorkerProcess> secondPoolWorkers = concurrentSet();
+    WorkerPoolManager manager = new WorkerPoolManager(false);
+    WorkerProcessPool firstPool = createAdaptivePool(2, settings, clock, firstPoolWorkers::add);
+    WorkerProcessPool secondPool = createAdaptivePool(2, settings, clock, secondPoolWorkers::add);
+    manager.prepareForBuild(firstPool, new BuildId("build"));
+    manager.prepareForBuild(secondPool, new BuildId("build"));
+
+    acquireWorkersThenRelease(firstPool, 2);
+    clock.advanceTimeNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    acquireWorkersThenRelease(secondPool, 2);
+
+    // each pool is under the limit on its own, but not together with the other one, so the least
+    // recently used workers are shut down, whichever pool they belong to
+    manager.shutDownUnneededWorkers();
+    assertThat(countAlive(firstPoolWorkers), is(0));
+    assertThat(countAlive(secondPoolWorkers), is(2));
+    firstPool.close();
+    secondPool.close();
+    manager.close();
+  }
+
+  @Test(timeout = WAIT_FOR_TEST_THREADS_TIMEOUT)
+  public void testPrespawnsWorkersThePreviousBuildHadInUse() throws Exception {
+    SettableFakeClock clock = new SettableFakeClock(0, TimeUnit.SECONDS.toNanos(100));
+    Set<WorkerProcess> createdWorkers = concurrentSet();
+    WorkerPoolManager manager = new WorkerPoolManager(false);
+    WorkerProcessPool pool =
+        createAdaptivePool(
+            4,
+            WorkerPoolSettings.builder()
+                .setPrespawnEnabled(true)
+                .setIdleTimeoutMillis(1000L)
+                .build(),
+            clock,
+            createdWorkers::add);
+
+    manager.prepareForBuild(pool, new BuildId("first"));
+    acquireWorkersThenRelease(pool, 2);
+    clock.advanceTimeNanos(TimeUnit.MILLISECONDS.toNanos(1000));
+    manager.shutDownUnneededWorkers();
+    assertThat(countAlive(createdWorkers), is(0));
+
+    manager.prepareForBuild(pool, new BuildId("second"));
+    while (countAlive(createdWorkers) < 2) {
+      Thread.sleep(1);
+    }
+    assertThat(createdWorkers.size(), is(4));
+
+    // the workers that were started ahead are the ones that are borrowed
+    acquireWorkersThenRelease(pool, 2);
+    assertThat(createdWorkers.size(), is(4));
+    pool.close();
+    manager.close();
+  }
+
   @Test
   public void testLargePool() throws Exception {
     int numConcurrentConsumers = 128;
@@ -382,6 +537,36 @@ public class WorkerProcessPoolTest {
         });
   }
 
+  private static WorkerProcessPool createAdaptivePool(
+      int maxWorkers,
+      WorkerPoolSettings settings,
+      SettableFakeClock clock,
+      Consumer<WorkerProcess> onWorkerCreated) {
+    return new WorkerProcessPool(
+        "pool",
+        maxWorkers,
+        1,
+        Hashing.sha1().hashLong(0),
+        settings,
+        clock,
+        () -> {
+          FakeWorkerProcess worker =
+              new FakeWorkerProcess(ImmutableMap.of()) {
+                @Override
+                public Optional<Long> getResidentMemoryBytes() {
+                  return isAlive() ? Optional.of(100L) : Optional.empty();
+                }
+              };
+          worker.ensureLaunchAndHandshake();
+          onWorkerCreated.accept(worker);
+          return worker;
+        });
+  }
+
+  private static int countAlive(Set<WorkerProcess> workers) {
+    return (int) workers.stream().filter(WorkerProcess::isAlive).count();
+  }
+
   private static WorkerProcessPool createPool(int maxWorkers) {
     return createPool(maxWorkers, x -> {});
   }
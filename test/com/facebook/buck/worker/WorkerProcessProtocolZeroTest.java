@@ -16,8 +16,11 @@
 
 package com.facebook.buck.worker;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.testutil.TemporaryPaths;
@@ -107,6 +110,88 @@ public class WorkerProcessProtocolZeroTest {
     protocol.handshake(handshakeID);
   }
 
+  @Test
+  public void testMultiplexingIsOnlyUsedIfBothEndsAdvertiseIt() throws IOException {
+    int handshakeID = 123;
+    String handshakeWithMultiplexing =
+        String.format(
+            "[{\"id\":%d,\"type\":\"handshake\",\"protocol_version\":\"0\","
+                + "\"capabilities\":[\"multiplexing\"]}",
+            handshakeID);
+
+    ByteArrayOutputStream jsonSentToWorkerProcess = new ByteArrayOutputStream();
+    WorkerProcessProtocol.CommandSender multiplexingSender =
+        new WorkerProcessProtocolZero.CommandSender(
+            jsonSentToWorkerProcess,
+            inputStream(handshakeWithMultiplexing),
+            newTempFile(),
+            () -> {},
+            true);
+    multiplexingSender.handshake(handshakeID);
+    assertThat(
+        jsonSentToWorkerProcess.toString(), Matchers.containsString(handshakeWithMultiplexing));
+    assertTrue(multiplexingSender.isMultiplexed());
+
+    WorkerProcessProtocol.CommandSender serialWorkerSender =
+        new WorkerProcessProtocolZero.CommandSender(
+            dummyOutputStream,
+            createMockJsonReaderForReceiveHandshake(handshakeID, "handshake", "0"),
+            newTempFile(),
+            () -> {},
+            true);
+    serialWorkerSender.handshake(handshakeID);
+    assertFalse(serialWorkerSender.isMultiplexed());
+
+    WorkerProcessProtocol.CommandSender serialSender =
+        new WorkerProcessProtocolZero.CommandSender(
+            dummyOutputStream, inputStream(handshakeWithMultiplexing), newTempFile(), () -> {});
+    serialSender.handshake(handshakeID);
+    assertFalse(serialSender.isMultiplexed());
+  }
+
+  @Test
+  public void testReceiveMultiplexedCommandResponsesOutOfOrder() throws IOException {
+    String jsonToBeRead =
+        "[{\"id\":0,\"type\":\"handshake\",\"protocol_version\":\"0\","
+            + "\"capabilities\":[\"multiplexing\"]}"
+            + ",{\"id\":2,\"type\":\"result\",\"exit_code\":3}"
+            + ",{\"id\":1,\"type\":\"result\",\"exit_code\":5}";
+
+    WorkerProcessProtocol.CommandSender protocol =
+        new WorkerProcessProtocolZero.CommandSender(
+            dummyOutputStream, inputStream(jsonToBeRead), newTempFile(), () -> {}, true);
+    protocol.handshake(0);
+    WorkerProcessCommand command =
+        WorkerProcessCommand.of(Paths.get("args"), Paths.get("stdout"), Paths.get("stderr"));
+    protocol.send(1, command);
+    protocol.send(2, command);
+
+    assertEquals(5, protocol.receiveCommandResponse(1));
+    assertEquals(3, protocol.receiveCommandResponse(2));
+  }
+
+  @Test
+  public void testReceiveMultiplexedCommandResponseForUnknownJob() throws IOException {
+    String jsonToBeRead =
+        "[{\"id\":0,\"type\":\"handshake\",\"protocol_version\":\"0\","
+            + "\"capabilities\":[\"multiplexing\"]}"
+            + ",{\"id\":7,\"type\":\"result\",\"exit_code\":0}";
+
+    WorkerProcessProtocol.CommandSender protocol =
+        new WorkerProcessProtocolZero.CommandSender(
+            dummyOutputStream, inputStream(jsonToBeRead), newTempFile(), () -> {}, true);
+    protocol.handshake(0);
+    protocol.send(
+        1, WorkerProcessCommand.of(Paths.get("args"), Paths.get("stdout"), Paths.get("stderr")));
+
+    try {
+      protocol.receiveCommandResponse(1);
+      fail("Expected an exception for a response to a job that was never sent.");
+    } catch (HumanReadableException e) {
+      assertThat(e.getMessage(), Matchers.containsString("job 7, which is not in flight"));
+    }
+  }
+
   @Test
   public void testReceiveHandshakeWithMalformedJSON() throws IOException {
     String malformedJson = "=^..^= meow";